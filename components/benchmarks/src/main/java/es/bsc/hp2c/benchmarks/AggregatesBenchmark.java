@@ -0,0 +1,86 @@
+package es.bsc.hp2c.benchmarks;
+
+import es.bsc.hp2c.common.utils.Aggregates;
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.FloatMeasurementWindow;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every aggregate of AmqpPublish, looked up by name as AmqpPublish does. With "incremental" set, the window keeps
+ * the running statistics or the sliding phasor estimator that AmqpPublish enables for the aggregate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AggregatesBenchmark {
+    @Param({"sum", "avg", "min", "max", "var", "rms", "last", "all", "phasor", "phasors"})
+    public String aggregate;
+
+    @Param({"100", "1000"})
+    public int capacity;
+
+    @Param({"boxed", "columnar"})
+    public String kind;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    private MeasurementWindow<Float[]> window;
+    private Method method;
+    private JSONObject jArgs;
+    private final float[] primitive = new float[BenchmarkData.PHASES];
+    private long nanos;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        window = BenchmarkData.filledWindow(kind, capacity);
+        nanos = CommUtils.toEpochNanos(window.getLastMeasurement().getTimestamp());
+        method = Aggregates.class.getMethod(aggregate, MeasurementWindow.class, JSONObject.class);
+        jArgs = new JSONObject().put("phasor-freq", BenchmarkData.FREQUENCY);
+        if (incremental) {
+            if (Aggregates.isRunning(aggregate)) {
+                window.enableStatistics();
+            }
+            if (aggregate.startsWith("phasor")) {
+                window.enablePhasors(Aggregates.getPhasorFrequency(jArgs));
+            }
+        }
+    }
+
+    /** Aggregate the current window. */
+    @Benchmark
+    public Object aggregate() throws Exception {
+        return method.invoke(null, window, jArgs);
+    }
+
+    /** Insert a sample and aggregate, the steady state of a Func publishing on every read. */
+    @Benchmark
+    public Object addAndAggregate() throws Exception {
+        nanos += BenchmarkData.SAMPLE_PERIOD_NANOS;
+        BenchmarkData.sample(nanos, primitive);
+        if (window instanceof FloatMeasurementWindow) {
+            ((FloatMeasurementWindow) window).addMeasurement(nanos, primitive);
+        } else {
+            window.addMeasurement(CommUtils.fromEpochNanos(nanos), BenchmarkData.boxed(primitive));
+        }
+        return method.invoke(null, window, jArgs);
+    }
+}
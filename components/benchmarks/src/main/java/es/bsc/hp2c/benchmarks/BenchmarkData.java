@@ -0,0 +1,46 @@
+package es.bsc.hp2c.benchmarks;
+
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.FloatMeasurementWindow;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+
+/**
+ * Synthetic sensor data shared by the benchmarks: three-phase 50 Hz voltages sampled at 1 kHz.
+ */
+final class BenchmarkData {
+    static final double FREQUENCY = 50.0;
+    static final long SAMPLE_PERIOD_NANOS = 1_000_000L;
+    static final int PHASES = 3;
+
+    private BenchmarkData(){}
+
+    /** Create a window of the requested kind ("boxed" or "columnar") filled to its capacity. */
+    static MeasurementWindow<Float[]> filledWindow(String kind, int capacity) {
+        MeasurementWindow<Float[]> window = "columnar".equals(kind)
+                ? new FloatMeasurementWindow(capacity, PHASES)
+                : new MeasurementWindow<>(capacity);
+        long start = CommUtils.epochNanos() - capacity * SAMPLE_PERIOD_NANOS;
+        for (int i = 0; i < capacity; i++) {
+            long nanos = start + i * SAMPLE_PERIOD_NANOS;
+            window.addMeasurement(CommUtils.fromEpochNanos(nanos), boxed(sample(nanos, new float[PHASES])));
+        }
+        return window;
+    }
+
+    /** Fill dst with the voltages of every phase at the given time. */
+    static float[] sample(long epochNanos, float[] dst) {
+        double t = (epochNanos % 1_000_000_000L) / 1e9;
+        for (int j = 0; j < dst.length; j++) {
+            dst[j] = (float) (325 * Math.cos(2 * Math.PI * FREQUENCY * t - j * 2 * Math.PI / 3));
+        }
+        return dst;
+    }
+
+    static Float[] boxed(float[] values) {
+        Float[] result = new Float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+}
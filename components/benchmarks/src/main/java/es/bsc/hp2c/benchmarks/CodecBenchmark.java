@@ -0,0 +1,88 @@
+package es.bsc.hp2c.benchmarks;
+
+import es.bsc.hp2c.common.utils.MeasurementBatch;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of windows as published by AmqpPublish and read by the server: the binary codec, the legacy Java
+ * serialization and the batches of several devices.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private static final int BATCH_DEVICES = 8;
+
+    @Param({"1", "100", "1000"})
+    public int capacity;
+
+    @Param({"boxed", "columnar"})
+    public String kind;
+
+    private MeasurementWindow<Float[]> window;
+    private byte[] encoded;
+    private byte[] encodedLegacy;
+    private byte[] encodedBatch;
+
+    @Setup
+    public void setUp() {
+        window = BenchmarkData.filledWindow(kind, capacity);
+        encoded = window.encode();
+        encodedLegacy = window.encodeLegacy();
+        encodedBatch = batch().encode();
+    }
+
+    private MeasurementBatch batch() {
+        MeasurementBatch batch = new MeasurementBatch();
+        for (int i = 0; i < BATCH_DEVICES; i++) {
+            batch.add("Voltmeter" + i, encoded);
+        }
+        return batch;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return window.encode();
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() {
+        return window.encodeLegacy();
+    }
+
+    @Benchmark
+    public MeasurementWindow<?> decode() {
+        return MeasurementWindow.decode(encoded);
+    }
+
+    @Benchmark
+    public MeasurementWindow<?> decodeLegacy() {
+        return MeasurementWindow.decode(encodedLegacy);
+    }
+
+    @Benchmark
+    public byte[] encodeBatch() {
+        return batch().encode();
+    }
+
+    @Benchmark
+    public MeasurementBatch decodeBatch() {
+        return MeasurementBatch.decode(encodedBatch);
+    }
+}
@@ -0,0 +1,49 @@
+package es.bsc.hp2c.benchmarks;
+
+import es.bsc.hp2c.common.utils.CommUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversions between float arrays and the bytes exchanged with actuators and sensors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommUtilsBenchmark {
+    @Param({"3", "25"})
+    public int length;
+
+    private Float[] values;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        values = BenchmarkData.boxed(BenchmarkData.sample(CommUtils.epochNanos(), new float[length]));
+        bytes = CommUtils.FloatArrayToBytes(values);
+    }
+
+    @Benchmark
+    public byte[] floatArrayToBytes() {
+        return CommUtils.FloatArrayToBytes(values);
+    }
+
+    @Benchmark
+    public Float[] bytesToFloatArray() {
+        return CommUtils.BytesToFloatArray(bytes);
+    }
+}
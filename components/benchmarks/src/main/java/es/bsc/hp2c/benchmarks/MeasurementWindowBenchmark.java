@@ -0,0 +1,79 @@
+package es.bsc.hp2c.benchmarks;
+
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.FloatMeasurementWindow;
+import es.bsc.hp2c.common.utils.Measurement;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insertion into a full window (the per-sample cost of every sensor) and traversal of the whole window (the cost of
+ * aggregates and publications), for the boxed and the columnar windows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MeasurementWindowBenchmark {
+    @Param({"100", "1000"})
+    public int capacity;
+
+    @Param({"boxed", "columnar"})
+    public String kind;
+
+    private MeasurementWindow<Float[]> window;
+    private final float[] primitive = new float[BenchmarkData.PHASES];
+    private long nanos;
+
+    @Setup
+    public void setUp() {
+        window = BenchmarkData.filledWindow(kind, capacity);
+        nanos = CommUtils.epochNanos();
+    }
+
+    /** Insert a measurement as the generic sensors do, with a boxed Float[] and an Instant. */
+    @Benchmark
+    public MeasurementWindow<Float[]> addMeasurement() {
+        nanos += BenchmarkData.SAMPLE_PERIOD_NANOS;
+        Float[] values = BenchmarkData.boxed(BenchmarkData.sample(nanos, primitive));
+        window.addMeasurement(Instant.ofEpochSecond(0, nanos), values);
+        return window;
+    }
+
+    /** Insert a measurement from primitive values, as OpalComm does with columnar windows. */
+    @Benchmark
+    public MeasurementWindow<Float[]> addMeasurementPrimitive() {
+        nanos += BenchmarkData.SAMPLE_PERIOD_NANOS;
+        BenchmarkData.sample(nanos, primitive);
+        if (window instanceof FloatMeasurementWindow) {
+            ((FloatMeasurementWindow) window).addMeasurement(nanos, primitive);
+        } else {
+            window.addMeasurement(CommUtils.fromEpochNanos(nanos), BenchmarkData.boxed(primitive));
+        }
+        return window;
+    }
+
+    @Benchmark
+    public Measurement<Float[]>[] getMeasurementsOlderToNewer() {
+        return window.getMeasurementsOlderToNewer();
+    }
+
+    @Benchmark
+    public Measurement<Float[]> getLastMeasurement() {
+        return window.getLastMeasurement();
+    }
+}
@@ -0,0 +1,51 @@
+package es.bsc.hp2c.benchmarks;
+
+import es.bsc.hp2c.common.utils.OnReadFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Change detection of onChange Funcs, evaluated by the sensors on every read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OnReadFunctionBenchmark {
+    private OnReadFunction<Float[]> function;
+    private Float[] first;
+    private Float[] equal;
+    private Float[] different;
+
+    @Setup
+    public void setUp() {
+        function = new OnReadFunction<>(null, 1, "bench", false);
+        first = new Float[]{230f, 231f, 229f};
+        equal = first.clone();
+        different = new Float[]{230f, 231f, 228f};
+        function.changed(first);
+    }
+
+    @Benchmark
+    public boolean changedEqual() {
+        return function.changed(equal);
+    }
+
+    /** Alternate between two values so that every call reports a change. */
+    @Benchmark
+    public boolean changedDifferent() {
+        return function.changed(different) | function.changed(first);
+    }
+}
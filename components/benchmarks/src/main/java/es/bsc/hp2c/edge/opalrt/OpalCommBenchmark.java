@@ -0,0 +1,81 @@
+package es.bsc.hp2c.edge.opalrt;
+
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.edge.opalrt.OpalComm.SensorSlot;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of one OPAL-RT frame: decoding the packet and distributing its values to three-phase voltmeters. Lives in
+ * the package of OpalComm to reach its package-private frame handling without opening sockets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpalCommBenchmark {
+    @Param({"8", "32"})
+    public int sensors;
+
+    @Param({"100", "1000"})
+    public int windowSize;
+
+    @Param({"false", "true"})
+    public boolean columnar;
+
+    private final List<SensorSlot> slots = new ArrayList<>();
+    private ByteBuffer packet;
+    private float[] frame;
+
+    @Setup
+    public void setUp() {
+        int frameLength = 3 * sensors;
+        JSONObject jGlobalProperties = new JSONObject().put("executeOpalComm", false);
+        for (int i = 0; i < sensors; i++) {
+            JSONObject jProperties = new JSONObject()
+                    .put("indexes", new JSONArray().put(3 * i).put(3 * i + 1).put(3 * i + 2))
+                    .put("window-size", windowSize)
+                    .put("columnar-window", columnar);
+            OpalVoltmeter sensor = new OpalVoltmeter("Voltmeter" + i, new float[]{0, 0}, jProperties,
+                    jGlobalProperties);
+            slots.add(new SensorSlot(sensor));
+        }
+        frame = new float[frameLength];
+        packet = ByteBuffer.allocateDirect(frameLength * Float.BYTES);
+        for (int i = 0; i < frameLength; i++) {
+            packet.putFloat(230f + i);
+        }
+        packet.flip();
+    }
+
+    @Benchmark
+    public float[] decodeFrame() {
+        packet.rewind();
+        OpalComm.decodeFrame(packet, frame);
+        return frame;
+    }
+
+    @Benchmark
+    public List<SensorSlot> distributeValues() {
+        OpalComm.distributeValues(frame, slots, CommUtils.epochNanos());
+        return slots;
+    }
+}
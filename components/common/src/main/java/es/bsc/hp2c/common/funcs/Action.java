@@ -16,11 +16,15 @@ public class Action {
     private final Class<?> c;
 
     private final COMPSsHandler compssHandler;
+    private final ActionExecutor.State executionState = new ActionExecutor.State();
+    private volatile int maxConcurrency = 1;
+    private volatile boolean coalesce;
 
     public Action(Object classInstance, Class<?> c, COMPSsHandler compssHandler) {
         this.classInstance = classInstance;
         this.c = c;
         this.compssHandler = compssHandler;
+        this.coalesce = !(classInstance instanceof Func) || ((Func) classInstance).coalescesTriggers();
     }
 
     public Object getInstance() {
@@ -39,6 +43,42 @@ public class Action {
         }
     }
 
+    /** Name used to identify the action in logs. */
+    public String getName() {
+        return c != null ? c.getSimpleName() : String.valueOf(classInstance);
+    }
+
+    /** Maximum number of runs of this action that the ActionExecutor executes at once. */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(maxConcurrency, 1);
+    }
+
+    /** Whether triggers may be merged and run on the ActionExecutor, instead of running once per trigger. */
+    public boolean isCoalesced() {
+        return coalesce;
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public ActionExecutor.State getExecutionState() {
+        return executionState;
+    }
+
+    /**
+     * Run the action asynchronously on the default ActionExecutor. Triggers received while the action is already
+     * running at its concurrency limit are coalesced into a single run, unless the action is not coalesced: then it
+     * runs on the calling thread, once per trigger.
+     */
+    public void submit() {
+        ActionExecutor.getDefault().submit(this);
+    }
+
     public void run() {
         if (classInstance instanceof Runnable) {
             Runnable r = (Runnable) classInstance;
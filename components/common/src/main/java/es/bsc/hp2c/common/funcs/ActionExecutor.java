@@ -0,0 +1,224 @@
+package es.bsc.hp2c.common.funcs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs triggered Actions on a bounded pool of worker threads, so the thread that triggers them (e.g., the UDP/TCP
+ * ingest threads of the edge or the ingest pipeline of the server) never waits for the function logic.
+ * <ul>
+ *     <li>Every Action runs at most maxConcurrency times at once (1 by default).</li>
+ *     <li>Triggers received while an Action is at its limit are coalesced into a single pending run, that starts
+ *     as soon as a running one finishes. Funcs read the current values of their sensors, so one run after a burst
+ *     of triggers sees the same data as running them all.</li>
+ *     <li>If the queue of the pool is full the trigger is dropped and counted instead of blocking the caller.</li>
+ * </ul>
+ * Merging does not hold for Actions whose output depends on every trigger (e.g., AmqpPublish sends the window as
+ * it is at each read). Those are not coalesced (Action.isCoalesced()) and run on the triggering thread, once per
+ * trigger, as before the executor existed.
+ */
+public class ActionExecutor {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static volatile ActionExecutor defaultExecutor = null;
+
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong triggers = new AtomicLong(0);
+    private final AtomicLong executions = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+
+    public ActionExecutor(int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger(0);
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "FuncExecutor-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Replace the default executor with the one described in the "func-executor" section of the global properties.
+     * Missing values take the defaults: one thread per available processor and DEFAULT_QUEUE_SIZE.
+     *
+     * @param jGlobalProperties Global properties of the setup file, or null
+     */
+    public static synchronized void configure(JSONObject jGlobalProperties) {
+        JSONObject jExecutor = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("func-executor");
+        if (jExecutor == null) {
+            jExecutor = new JSONObject();
+        }
+        int threads = Math.max(jExecutor.optInt("threads", Runtime.getRuntime().availableProcessors()), 1);
+        int queueSize = Math.max(jExecutor.optInt("queue-size", DEFAULT_QUEUE_SIZE), 1);
+        ActionExecutor previous = defaultExecutor;
+        defaultExecutor = new ActionExecutor(threads, queueSize);
+        if (previous != null) {
+            previous.shutdown();
+        }
+        logger.info("[ActionExecutor] " + threads + " threads (queue " + queueSize + ")");
+    }
+
+    /** Executor used by Action.submit(), created with the default configuration if none was set. */
+    public static ActionExecutor getDefault() {
+        ActionExecutor executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (ActionExecutor.class) {
+                if (defaultExecutor == null) {
+                    configure(null);
+                }
+                executor = defaultExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Request a run of the action. Returns immediately.
+     *
+     * @param action Action to run
+     */
+    public void submit(Action action) {
+        triggers.incrementAndGet();
+        State state = action.getExecutionState();
+        if (!action.isCoalesced()) {
+            state.inFlight.incrementAndGet();
+            execute(action, state);
+            return;
+        }
+        if (state.pending.getAndSet(true)) {
+            coalesced.incrementAndGet();
+            state.coalesced.incrementAndGet();
+        }
+        drain(action, state);
+    }
+
+    /** Start the pending run of the action if it is below its concurrency limit. */
+    private void drain(Action action, State state) {
+        while (state.pending.get()) {
+            int inFlight = state.inFlight.get();
+            if (inFlight >= action.getMaxConcurrency()) {
+                return; // The run that finishes next will start the pending one
+            }
+            if (!state.inFlight.compareAndSet(inFlight, inFlight + 1)) {
+                continue;
+            }
+            if (!state.pending.getAndSet(false)) {
+                // Another thread took the pending run
+                state.inFlight.decrementAndGet();
+                continue;
+            }
+            dispatch(action, state);
+        }
+    }
+
+    private void dispatch(Action action, State state) {
+        try {
+            pool.execute(() -> execute(action, state));
+        } catch (RejectedExecutionException e) {
+            state.inFlight.decrementAndGet();
+            state.dropped.incrementAndGet();
+            if (dropped.getAndIncrement() == 0) {
+                logger.warn("[ActionExecutor] Queue full, dropping triggers of " + action.getName()
+                        + ". Further drops are only counted");
+            }
+        }
+    }
+
+    private void execute(Action action, State state) {
+        try {
+            action.run();
+        } catch (Throwable t) {
+            failed.incrementAndGet();
+            logger.error("[ActionExecutor] Error running " + action.getName() + ": " + t.getMessage());
+        } finally {
+            executions.incrementAndGet();
+            state.executions.incrementAndGet();
+            state.inFlight.decrementAndGet();
+            if (action.isCoalesced()) {
+                drain(action, state);
+            }
+        }
+    }
+
+    /** Number of runs waiting for a free thread. */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public int getActiveThreads() {
+        return pool.getActiveCount();
+    }
+
+    public long getTriggers() {
+        return triggers.get();
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /** Stop accepting triggers and let the queued runs finish. */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Execution state of one Action: runs queued or in progress, whether a coalesced run is pending, and its own
+     * counters.
+     */
+    public static final class State {
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private final AtomicBoolean pending = new AtomicBoolean(false);
+        private final AtomicLong executions = new AtomicLong(0);
+        private final AtomicLong coalesced = new AtomicLong(0);
+        private final AtomicLong dropped = new AtomicLong(0);
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public boolean isPending() {
+            return pending.get();
+        }
+
+        public long getExecutions() {
+            return executions.get();
+        }
+
+        public long getCoalesced() {
+            return coalesced.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+    }
+}
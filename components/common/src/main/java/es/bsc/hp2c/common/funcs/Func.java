@@ -37,6 +37,15 @@ import static es.bsc.hp2c.common.utils.FileUtils.getJsonObject;
  */
 public abstract class Func implements Runnable {
 
+    /**
+     * Whether the triggers received while the function is busy may be merged into a single run (see
+     * ActionExecutor). Functions whose output depends on every trigger, such as publishers, return false and run
+     * once per trigger on the triggering thread. The "coalesce" option of the function overrides it.
+     */
+    public boolean coalescesTriggers() {
+        return true;
+    }
+
     /**
      * Exception raised during the instantiation of the function.
      */
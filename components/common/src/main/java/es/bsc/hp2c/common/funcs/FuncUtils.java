@@ -4,6 +4,7 @@ import es.bsc.hp2c.common.types.Actuator;
 import es.bsc.hp2c.common.types.Device;
 import es.bsc.hp2c.common.types.Sensor;
 import es.bsc.hp2c.common.utils.EdgeMap;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
 import javassist.CannotCompileException;
 import javassist.NotFoundException;
 import org.json.JSONArray;
@@ -325,7 +326,13 @@ public class FuncUtils {
         Map<String, ArrayList<Actuator<?>>> actuators = processDevices(jActuators, edgeMap, funcLabel, false
         );
 
-        return getAction(funcLabel, driver, parameters, sensors, actuators, lang, functionType, runtimeHostClass);
+        Action action = getAction(funcLabel, driver, parameters, sensors, actuators, lang, functionType,
+                runtimeHostClass);
+        action.setMaxConcurrency(jFunc.optInt("max-concurrency", 1));
+        if (jFunc.has("coalesce")) {
+            action.setCoalesce(jFunc.getBoolean("coalesce"));
+        }
+        return action;
     }
 
 
@@ -376,12 +383,7 @@ public class FuncUtils {
         switch (triggerType) {
             case "onFrequency":
                 int freq = triggerParams.getInt("frequency");
-                new Timer().scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        action.run();
-                    }
-                }, 0, freq);
+                PeriodicScheduler.getDefault().scheduleAtFixedRate("Func " + label, action::submit, 0, freq);
                 break;
 
             case "onRead":
@@ -23,6 +23,8 @@ import es.bsc.hp2c.common.types.Actuator;
 import es.bsc.hp2c.common.types.Device;
 import es.bsc.hp2c.common.types.Sensor;
 import es.bsc.hp2c.common.utils.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
 
@@ -31,8 +33,11 @@ import org.json.JSONObject;
  */
 public abstract class Generator<R> extends Device implements Sensor<R, Float[]>, Actuator<Float[]> {
 
-    protected Float[] voltageSetpoint = null;
-    protected Float[] powerSetpoint = null;
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    // Last set points, kept as primitives so that storing a sample does not allocate
+    protected float voltageSetpoint;
+    protected float powerSetpoint;
+    private volatile boolean hasSetpoints = false;
     private MeasurementWindow<Float[]> window;
     private OnReadFunctions onReadFunctions;
 
@@ -44,7 +49,7 @@ public abstract class Generator<R> extends Device implements Sensor<R, Float[]>,
      */
     protected Generator(String label, float[] position, JSONObject jProperties, JSONObject jGlobalProperties) {
         super(label, position);
-        window = new MeasurementWindow(FileUtils.getWindowSize(jProperties, jGlobalProperties, label));
+        window = FileUtils.createFloatWindow(jProperties, jGlobalProperties, label);
         this.onReadFunctions = new OnReadFunctions();
     }
 
@@ -53,7 +58,12 @@ public abstract class Generator<R> extends Device implements Sensor<R, Float[]>,
 
     @Override
     public MeasurementWindow<Float[]> sensed(byte[] bWindow) {
-        MeasurementWindow<Float[]> window = MeasurementWindow.decode(bWindow);
+        return sensed(MeasurementWindow.decode(bWindow));
+    }
+
+    @Override
+    public MeasurementWindow<Float[]> sensed(MeasurementWindow<?> decodedWindow) {
+        MeasurementWindow<Float[]> window = (MeasurementWindow<Float[]>) decodedWindow;
         MeasurementWindow<Float[]> returnWindow = new MeasurementWindow<>(window.getCapacity());
         for (Measurement<Float[]> m : window.getMeasurementsOlderToNewer()){
             Object value = m.getValue();
@@ -98,11 +108,11 @@ public abstract class Generator<R> extends Device implements Sensor<R, Float[]>,
         for (OnReadFunction orf : this.onReadFunctions.getOnReadFuncs()) {
             if (orf.isOnChange()) {
                 if (orf.changed(this.getCurrentValues())){ //changed() will update its last value if needed
-                    orf.getAction().run();
+                    orf.getAction().submit();
                 }
             } else {
                 if (orf.getCounter() == orf.getInterval()) {
-                    orf.getAction().run();
+                    orf.getAction().submit();
                     orf.resetCounter();
                 } else {
                     orf.incrementCounter();
@@ -124,11 +134,8 @@ public abstract class Generator<R> extends Device implements Sensor<R, Float[]>,
 
     @Override
     public final Float[] getCurrentValues() {
-        Float[] combinedValues = new Float[2];
-        if (voltageSetpoint == null || powerSetpoint == null) return null;
-        combinedValues[0] = this.voltageSetpoint[0];
-        combinedValues[1] = this.powerSetpoint[0];
-        return combinedValues;
+        if (!hasSetpoints) return null;
+        return new Float[]{this.voltageSetpoint, this.powerSetpoint};
     }
 
     public MeasurementWindow<Float[]> getWindow(){
@@ -137,13 +144,38 @@ public abstract class Generator<R> extends Device implements Sensor<R, Float[]>,
 
     protected void setValues(Float[] values, Instant timestamp) {
         if (values.length == 2) {
-            voltageSetpoint = new Float[1];
-            powerSetpoint = new Float[1];
-            voltageSetpoint[0] = values[0];
-            powerSetpoint[0] = values[1];
+            voltageSetpoint = values[0];
+            powerSetpoint = values[1];
+            hasSetpoints = true;
             this.window.addMeasurement(timestamp, values);
         } else {
-            System.err.println("Values length must be 2 (voltageSetpoint and powerSetpoint)");
+            logger.error("[Generator] " + getLabel() + ": values length must be 2 (voltageSetpoint and powerSetpoint)");
+        }
+    }
+
+    /**
+     * Store primitive values. With a columnar window the measurement is copied into the window without boxing,
+     * otherwise the values are boxed and stored as in setValues(Float[], Instant).
+     *
+     * @param values Voltage and power set points
+     * @param epochNanos Timestamp in nanoseconds since the Unix epoch
+     */
+    protected void setValues(float[] values, long epochNanos) {
+        if (!(this.window instanceof FloatMeasurementWindow)) {
+            Float[] boxed = new Float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                boxed[i] = values[i];
+            }
+            setValues(boxed, CommUtils.fromEpochNanos(epochNanos));
+            return;
+        }
+        if (values.length == 2) {
+            voltageSetpoint = values[0];
+            powerSetpoint = values[1];
+            hasSetpoints = true;
+            ((FloatMeasurementWindow) this.window).addMeasurement(epochNanos, values);
+        } else {
+            logger.error("[Generator] " + getLabel() + ": values length must be 2 (voltageSetpoint and powerSetpoint)");
         }
     }
 
@@ -75,7 +75,12 @@ public abstract class SmokeSensor<R> extends Device implements Sensor<R, SmokeSe
 
     @Override
     public MeasurementWindow<Float[]> sensed(byte[] bWindow) {
-        MeasurementWindow<Float[]> window = MeasurementWindow.decode(bWindow);
+        return sensed(MeasurementWindow.decode(bWindow));
+    }
+
+    @Override
+    public MeasurementWindow<Float[]> sensed(MeasurementWindow<?> decodedWindow) {
+        MeasurementWindow<Float[]> window = (MeasurementWindow<Float[]>) decodedWindow;
         MeasurementWindow<Float[]> returnWindow = new MeasurementWindow<>(window.getCapacity());
         for (Measurement<Float[]> m : window.getMeasurementsOlderToNewer()){
             sensed((R) m.getValue(), m.getTimestamp());
@@ -89,7 +89,12 @@ public abstract class Switch<R> extends Device implements Sensor<R, Switch.State
 
     @Override
     public MeasurementWindow<Float[]> sensed(byte[] bWindow) {
-        MeasurementWindow<State[]> window = MeasurementWindow.decode(bWindow);
+        return sensed(MeasurementWindow.decode(bWindow));
+    }
+
+    @Override
+    public MeasurementWindow<Float[]> sensed(MeasurementWindow<?> decodedWindow) {
+        MeasurementWindow<State[]> window = (MeasurementWindow<State[]>) decodedWindow;
         MeasurementWindow<Float[]> returnWindow = new MeasurementWindow<>(window.getCapacity());
         for (Measurement<State[]> m : window.getMeasurementsOlderToNewer()){
             Float[] value = actuatedValues(m.getValue());
@@ -99,6 +104,16 @@ public abstract class Switch<R> extends Device implements Sensor<R, Switch.State
         return returnWindow;
     }
 
+    @Override
+    public MeasurementWindow<Float[]> toFloatWindow(MeasurementWindow<?> decodedWindow) {
+        MeasurementWindow<State[]> window = (MeasurementWindow<State[]>) decodedWindow;
+        MeasurementWindow<Float[]> returnWindow = new MeasurementWindow<>(window.getCapacity());
+        for (Measurement<State[]> m : window.getMeasurementsOlderToNewer()){
+            returnWindow.addMeasurement(m.getTimestamp(), actuatedValues(m.getValue()));
+        }
+        return returnWindow;
+    }
+
     @Override
     public abstract void actuate(State[] values) throws IOException;
 
@@ -125,11 +140,11 @@ public abstract class Switch<R> extends Device implements Sensor<R, Switch.State
         for (OnReadFunction orf : this.onReadFunctions.getOnReadFuncs()) {
             if (orf.isOnChange()) {
                 if (orf.changed(this.getCurrentValues())){ //changed() will update its last value if needed
-                    orf.getAction().run();
+                    orf.getAction().submit();
                 }
             } else {
                 if (orf.getCounter() == orf.getInterval()) {
-                    orf.getAction().run();
+                    orf.getAction().submit();
                     orf.resetCounter();
                 } else {
                     orf.incrementCounter();
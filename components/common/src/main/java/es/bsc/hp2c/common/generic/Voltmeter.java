@@ -29,6 +29,8 @@ import org.json.JSONObject;
 public abstract class Voltmeter<R> extends Device implements Sensor<R, Float[]> {
 
     private Float[] values = null;
+    private float[] rawValues = null;
+    private boolean rawValuesPending = false;
     private MeasurementWindow<Float[]> window;
     private OnReadFunctions onReadFunctions;
 
@@ -40,7 +42,7 @@ public abstract class Voltmeter<R> extends Device implements Sensor<R, Float[]>
      */
     protected Voltmeter(String label, float[] position, JSONObject jProperties, JSONObject jGlobalProperties) {
         super(label, position);
-        window = new MeasurementWindow(FileUtils.getWindowSize(jProperties, jGlobalProperties, label));
+        window = FileUtils.createFloatWindow(jProperties, jGlobalProperties, label);
         this.onReadFunctions = new OnReadFunctions();
     }
 
@@ -62,11 +64,11 @@ public abstract class Voltmeter<R> extends Device implements Sensor<R, Float[]>
         for (OnReadFunction orf : this.onReadFunctions.getOnReadFuncs()) {
             if (orf.isOnChange()) {
                 if (orf.changed(this.getCurrentValues())){ //changed() will update its last value if needed
-                    orf.getAction().run();
+                    orf.getAction().submit();
                 }
             } else {
                 if (orf.getCounter() == orf.getInterval()) {
-                    orf.getAction().run();
+                    orf.getAction().submit();
                     orf.resetCounter();
                 } else {
                     orf.incrementCounter();
@@ -80,7 +82,12 @@ public abstract class Voltmeter<R> extends Device implements Sensor<R, Float[]>
 
     @Override
     public MeasurementWindow<Float[]> sensed(byte[] bWindow) {
-        MeasurementWindow<Float[]> window = MeasurementWindow.decode(bWindow);
+        return sensed(MeasurementWindow.decode(bWindow));
+    }
+
+    @Override
+    public MeasurementWindow<Float[]> sensed(MeasurementWindow<?> decodedWindow) {
+        MeasurementWindow<Float[]> window = (MeasurementWindow<Float[]>) decodedWindow;
         MeasurementWindow<Float[]> returnWindow = new MeasurementWindow<>(window.getCapacity());
         for (Measurement<Float[]> m : window.getMeasurementsOlderToNewer()){
             Object value = m.getValue();
@@ -108,18 +115,54 @@ public abstract class Voltmeter<R> extends Device implements Sensor<R, Float[]>
     protected abstract Float[] sensedValues(R input);
 
     @Override
-    public final Float[] getCurrentValues() { return this.values; }
+    public final synchronized Float[] getCurrentValues() {
+        if (this.rawValuesPending) {
+            Float[] boxed = new Float[this.rawValues.length];
+            for (int i = 0; i < boxed.length; i++) {
+                boxed[i] = this.rawValues[i];
+            }
+            this.values = boxed;
+            this.rawValuesPending = false;
+        }
+        return this.values;
+    }
 
     public MeasurementWindow<Float[]> getWindow(){
         return this.window;
     }
 
-    protected void setValues(Float[] values, Instant timestamp) {
+    protected synchronized void setValues(Float[] values, Instant timestamp) {
         this.values = values;
+        this.rawValuesPending = false;
         this.window.addMeasurement(timestamp, values);
         this.setLastUpdate();
     }
 
+    /**
+     * Store primitive values. With a columnar window nothing is boxed until getCurrentValues() is called, otherwise
+     * the values are boxed and stored as in setValues(Float[], Instant). The input array is copied.
+     *
+     * @param values Values sensed
+     * @param epochNanos Timestamp in nanoseconds since the Unix epoch
+     */
+    protected synchronized void setValues(float[] values, long epochNanos) {
+        if (!(this.window instanceof FloatMeasurementWindow)) {
+            Float[] boxed = new Float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                boxed[i] = values[i];
+            }
+            setValues(boxed, CommUtils.fromEpochNanos(epochNanos));
+            return;
+        }
+        if (this.rawValues == null || this.rawValues.length != values.length) {
+            this.rawValues = new float[values.length];
+        }
+        System.arraycopy(values, 0, this.rawValues, 0, values.length);
+        this.rawValuesPending = true;
+        ((FloatMeasurementWindow) this.window).addMeasurement(epochNanos, values);
+        this.setLastUpdate();
+    }
+
     @Override
     public final byte[] encodeValuesSensor() {
         Float[] values = this.getCurrentValues();
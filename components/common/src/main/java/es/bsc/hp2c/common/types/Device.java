@@ -16,8 +16,6 @@
 package es.bsc.hp2c.common.types;
 
 import java.lang.reflect.Constructor;
-import java.time.Duration;
-import java.time.LocalTime;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -90,7 +88,7 @@ public abstract class Device {
     private final float[] position;
     private boolean sensorAvailability = false;
     private boolean actuatorAvailability = false;
-    private LocalTime lastUpdate;
+    private volatile long lastUpdate = -1; // epoch milliseconds, -1 if never updated
     private long maxTimeWithoutUpdate = Long.MAX_VALUE; // measured in milliseconds
 
     protected Device(String label, float[] position) {
@@ -113,7 +111,7 @@ public abstract class Device {
 
     public void setMaxTimeWithoutUpdate(int m){ maxTimeWithoutUpdate = m; }
 
-    public void setLastUpdate(){ lastUpdate = LocalTime.now(); }
+    public void setLastUpdate(){ lastUpdate = System.currentTimeMillis(); }
 
     /*
     * If the device has a specific maximum time without updates (maxTimeWithoutUpdate different to initial value
@@ -125,9 +123,9 @@ public abstract class Device {
             System.err.println("Device " + label + " is not a sensor");
             throw new UnsupportedOperationException();
         }
-        if (maxTimeWithoutUpdate != Long.MAX_VALUE && lastUpdate != null){
-            Duration timeDifference = Duration.between(lastUpdate, LocalTime.now());
-            sensorAvailability = timeDifference.getSeconds() * 1000 < maxTimeWithoutUpdate;;
+        if (maxTimeWithoutUpdate != Long.MAX_VALUE && lastUpdate != -1){
+            long secondsWithoutUpdate = (System.currentTimeMillis() - lastUpdate) / 1000;
+            sensorAvailability = secondsWithoutUpdate * 1000 < maxTimeWithoutUpdate;
         }
         return sensorAvailability;
     }
@@ -16,6 +16,7 @@
 package es.bsc.hp2c.common.types;
 
 import es.bsc.hp2c.common.funcs.Action;
+import es.bsc.hp2c.common.utils.Measurement;
 import es.bsc.hp2c.common.utils.MeasurementWindow;
 
 import java.time.Instant;
@@ -58,6 +59,41 @@ public interface Sensor<R, V> {
      */
     public MeasurementWindow<Float[]> sensed(byte[] bWindow);
 
+    /**
+     * Same as sensed(byte[]), for a MeasurementWindow that has already been decoded. Implementations that do not
+     * override it get the window encoded again and passed to sensed(byte[]).
+     *
+     * @param window Decoded MeasurementWindow.
+     * @return MeasurementWindow<Float[]>
+     */
+    default MeasurementWindow<Float[]> sensed(MeasurementWindow<?> window) {
+        return sensed(window.encodeLegacy());
+    }
+
+    /**
+     * Convert a decoded window to Float[] values, as sensed(window) does, without setting them as the current values
+     * of the sensor. Used for windows older than the current state, e.g., replayed from the journal of an edge.
+     *
+     * @param window Decoded MeasurementWindow.
+     * @return MeasurementWindow<Float[]>
+     */
+    default MeasurementWindow<Float[]> toFloatWindow(MeasurementWindow<?> window) {
+        MeasurementWindow<Float[]> floatWindow = new MeasurementWindow<>(window.getCapacity());
+        for (Measurement<?> m : window.getMeasurementsOlderToNewer()) {
+            Object value = m.getValue();
+            if (!(value instanceof Number[])) {
+                throw new IllegalArgumentException("Expected Number[], got: " + value.getClass());
+            }
+            Number[] numbers = (Number[]) value;
+            Float[] floats = new Float[numbers.length];
+            for (int i = 0; i < numbers.length; i++) {
+                floats[i] = numbers[i] == null ? null : numbers[i].floatValue();
+            }
+            floatWindow.addMeasurement(m.getTimestamp(), floats);
+        }
+        return floatWindow;
+    }
+
     /**
      * Get the value stored.
      *
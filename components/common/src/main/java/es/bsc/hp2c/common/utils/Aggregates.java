@@ -3,6 +3,8 @@ package es.bsc.hp2c.common.utils;
 import org.json.JSONObject;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.time.Instant;
 import java.time.Duration;
 import org.apache.logging.log4j.LogManager;
@@ -12,8 +14,21 @@ import static es.bsc.hp2c.common.utils.CommUtils.divideArray;
 
 public class Aggregates {
     private static final Logger logger = LogManager.getLogger("appLogger");
+    private static final Set<String> RUNNING_AGGREGATES =
+            new HashSet<>(Arrays.asList("sum", "avg", "min", "max", "var", "rms"));
+
+    /**
+     * Check whether an aggregate can be served in O(1) from the RunningStatistics of the window, so callers know
+     * when it is worth enabling them with MeasurementWindow.enableStatistics().
+     */
+    public static boolean isRunning(String aggregateName) {
+        return RUNNING_AGGREGATES.contains(aggregateName);
+    }
 
     public static MeasurementWindow<Number[]> sum(MeasurementWindow<?> window, JSONObject jArgs) {
+        if (window.getStatistics() != null) {
+            return running(window, "sum");
+        }
         MeasurementWindow<Number[]> resultWindow = new MeasurementWindow<>(1);
 
         Measurement<?> latestMeasurement = window.getLastMeasurement();
@@ -40,6 +55,9 @@ public class Aggregates {
     }
 
     public static MeasurementWindow<Number[]> avg(MeasurementWindow<?> window, JSONObject jArgs) {
+        if (window.getStatistics() != null) {
+            return running(window, "avg");
+        }
         MeasurementWindow<Number[]> resultWindow = new MeasurementWindow<>(1);
 
         MeasurementWindow<Number[]> sumWindow = sum(window, jArgs);
@@ -51,6 +69,46 @@ public class Aggregates {
         return resultWindow;
     }
 
+    public static MeasurementWindow<Number[]> min(MeasurementWindow<?> window, JSONObject jArgs) {
+        return running(window, "min");
+    }
+
+    public static MeasurementWindow<Number[]> max(MeasurementWindow<?> window, JSONObject jArgs) {
+        return running(window, "max");
+    }
+
+    /** Population variance of each phase. */
+    public static MeasurementWindow<Number[]> var(MeasurementWindow<?> window, JSONObject jArgs) {
+        return running(window, "var");
+    }
+
+    public static MeasurementWindow<Number[]> rms(MeasurementWindow<?> window, JSONObject jArgs) {
+        return running(window, "rms");
+    }
+
+    /**
+     * Read an aggregate from the running statistics of the window. If they are not enabled, they are computed once
+     * over the current measurements.
+     */
+    private static MeasurementWindow<Number[]> running(MeasurementWindow<?> window, String name) {
+        RunningStatistics statistics = window.getStatistics();
+        if (statistics == null) {
+            statistics = new RunningStatistics(Math.max(window.getCapacity(), 1));
+            for (Measurement<?> m : window.getMeasurementsOlderToNewer()) {
+                if (!(m.getValue() instanceof Number[])) {
+                    throw new IllegalArgumentException("The MeasurementWindow does not contain Number[] values.");
+                }
+                statistics.add((Number[]) m.getValue());
+            }
+        }
+        MeasurementWindow<Number[]> resultWindow = new MeasurementWindow<>(1);
+        Double[] values = statistics.get(name);
+        if (values != null) {
+            resultWindow.addMeasurement(Instant.now(), values);
+        }
+        return resultWindow;
+    }
+
     public static MeasurementWindow<?> all(MeasurementWindow<?> window, JSONObject jArgs) {
         MeasurementWindow<Object> resultWindow = new MeasurementWindow<>(window.getCapacity());
         for (Measurement<?> measurement : window.getMeasurementsNewerToOlder()) {
@@ -75,29 +133,81 @@ public class Aggregates {
             return null;
         }
 
-        double frequency; 
-        if (jArgs.keySet().contains("phasor-freq")){
-            frequency = jArgs.getDouble("phasor-freq");
-        }
-        else{
-            frequency = 50.0; // Assumed frequency
-        }
-
-        logger.info("[phasor] Using phasor frequency " + frequency);
+        double frequency = getPhasorFrequency(jArgs);
+        logger.debug("[phasor] Using phasor frequency " + frequency);
 
         Instant aggregateTime = window.getLastMeasurement().getTimestamp();
         MeasurementWindow<Number[]> resultWindow = new MeasurementWindow<>(1);
 
+        // Use the sliding estimator of the window if it is tracking this frequency
+        SlidingPhasorEstimator estimator = readyEstimator(window, frequency);
+        if (estimator != null) {
+            resultWindow.addMeasurement(aggregateTime, new Number[]{estimator.getMagnitude(0), estimator.getAngle(0)});
+            return resultWindow;
+        }
+
         // Check data type and ensure the window contains measurements
         Measurement<?> latestMeasurement = window.getLastMeasurement();
         if (latestMeasurement == null || !(latestMeasurement.getValue() instanceof Number[])) {
             throw new IllegalArgumentException("The MeasurementWindow does not contain Number[] values.");
         }
-        Number[] phasor = phasorEstimationDFT(window, frequency);
+        Number[] phasor = phasorEstimationDFT(window, frequency, 0);
         resultWindow.addMeasurement(aggregateTime, phasor);
         return resultWindow;
     }
 
+    /**
+     * Phasors of every phase of the window.
+     *
+     * @return Window with one measurement of 3 values per phase: magnitude, angle (degrees, referenced to the Unix
+     *         epoch) and frequency deviation from "phasor-freq" (Hz, 0 when it cannot be estimated)
+     */
+    public static MeasurementWindow<Number[]> phasors(MeasurementWindow<?> window, JSONObject jArgs) {
+        if (window.getSize() < 2) {
+            return null;
+        }
+        double frequency = getPhasorFrequency(jArgs);
+        Instant aggregateTime = window.getLastMeasurement().getTimestamp();
+        MeasurementWindow<Number[]> resultWindow = new MeasurementWindow<>(1);
+
+        SlidingPhasorEstimator estimator = readyEstimator(window, frequency);
+        if (estimator != null) {
+            resultWindow.addMeasurement(aggregateTime, estimator.getPhasors());
+            return resultWindow;
+        }
+
+        Object lastValue = window.getLastMeasurement().getValue();
+        if (!(lastValue instanceof Number[])) {
+            throw new IllegalArgumentException("The MeasurementWindow does not contain Number[] values.");
+        }
+        int width = ((Number[]) lastValue).length;
+        Number[] result = new Number[3 * width];
+        for (int j = 0; j < width; j++) {
+            Number[] phasor = phasorEstimationDFT(window, frequency, j);
+            result[3 * j] = phasor[0];
+            result[3 * j + 1] = phasor[1];
+            result[3 * j + 2] = 0.0;
+        }
+        resultWindow.addMeasurement(aggregateTime, result);
+        return resultWindow;
+    }
+
+    /** Nominal frequency given in the "phasor-freq" argument, 50 Hz by default. */
+    public static double getPhasorFrequency(JSONObject jArgs) {
+        if (jArgs != null && jArgs.has("phasor-freq")) {
+            return jArgs.getDouble("phasor-freq");
+        }
+        return 50.0; // Assumed frequency
+    }
+
+    private static SlidingPhasorEstimator readyEstimator(MeasurementWindow<?> window, double frequency) {
+        SlidingPhasorEstimator estimator = window.getPhasorEstimator();
+        if (estimator != null && estimator.getFrequency() == frequency && estimator.isReady()) {
+            return estimator;
+        }
+        return null;
+    }
+
     /**
      * Estimates the phasor properties (magnitude and angle) of a sinusoidal signal from a
      * measurement window using the Discrete Fourier Transform (DFT). Also adjusts the angle
@@ -106,11 +216,12 @@ public class Aggregates {
      *
      * @param window       The measurement window containing the sampled signal and its start time.
      * @param f            The frequency of the sinusoidal signal (in Hz).
+     * @param phase        Index of the phase to estimate.
      * @return A `Number[]` containing:
      *         [0] - The magnitude of the phasor (double).
      *         [1] - The angle of the phasor (double, in radians), adjusted to the Unix epoch.
      */
-    private static Number[] phasorEstimationDFT(MeasurementWindow<?> window, double f) {
+    private static Number[] phasorEstimationDFT(MeasurementWindow<?> window, double f, int phase) {
         // Checks
         double samplingRate = window.getSamplingRate();
         double timeSpan = (double) window.getTotalTimeSpan().toMillis() / 1000;  // seconds
@@ -135,7 +246,7 @@ public class Aggregates {
         int i = 0;
         for (Measurement<?> m : window.getMeasurementsOlderToNewer()) {
             Number[] signals = (Number[]) m.getValue();
-            double value = signals[0].doubleValue();  // Use only first phase for phasor calculations
+            double value = signals[phase].doubleValue();
             double angle = 2 * Math.PI * k * i / N;
             realPart += value * Math.cos(angle);
             imagPart -= value * Math.sin(angle);
@@ -0,0 +1,388 @@
+package es.bsc.hp2c.common.utils;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous AMQP publisher with publisher confirms. Every publication returns a CompletableFuture completed when
+ * the broker acknowledges the message, instead of blocking on waitForConfirms().
+ *
+ * The publisher owns a channel in confirm mode and keeps at most maxOutstanding unconfirmed messages on the wire;
+ * the rest wait in a local queue of at most maxQueued messages (further publications fail immediately). Confirms for
+ * several messages at once (multiple=true) are handled in one step. Nacked messages, and messages outstanding when the
+ * channel shuts down, are resent first, up to maxRetries times, before their future fails. If the channel is closed by
+ * the broker while the connection stays open (e.g., a channel error), it is replaced by a new channel in confirm mode;
+ * while the connection itself is down, the client library recovers the channel.
+ *
+ * With ordered=true, messages of the same routing key are never outstanding at the same time, so they reach the broker
+ * in publication order even if some of them are resent; messages of different routing keys are still pipelined.
+ *
+ * All the state is confined to a single thread, which also runs the callbacks of the futures: they should not block.
+ */
+public class AmqpConfirmPublisher implements Closeable {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int DEFAULT_MAX_OUTSTANDING = 1024;
+    public static final int DEFAULT_MAX_QUEUED = 65536;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_INTERVAL_MS = 1000;
+
+    private volatile Channel channel;
+    private final int maxOutstanding;
+    private final int maxQueued;
+    private final int maxRetries;
+    private final long retryIntervalMs;
+    private final boolean ordered;
+    private final ScheduledExecutorService executor;
+    // Confined to the executor thread
+    private final NavigableMap<Long, Message> outstanding = new TreeMap<>();
+    private final ArrayDeque<Message> ready = new ArrayDeque<>();
+    private final Map<String, ArrayDeque<Message>> waiting = new HashMap<>();
+    private final Set<String> busyKeys = new HashSet<>();
+    private boolean retryScheduled = false;
+    private boolean closed = false;
+    // Read from any thread
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong acked = new AtomicLong(0);
+    private final AtomicLong nacked = new AtomicLong(0);
+    private final AtomicLong resent = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private volatile int outstandingCount = 0;
+
+    /**
+     * Put a channel in confirm mode and publish through it. The channel should not be used by other publishers, as
+     * their messages would shift the delivery tags.
+     */
+    public AmqpConfirmPublisher(Channel channel, int maxOutstanding, int maxQueued, int maxRetries,
+                                long retryIntervalMs, boolean ordered) throws IOException {
+        this.channel = channel;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.maxQueued = maxQueued;
+        this.maxRetries = maxRetries;
+        this.retryIntervalMs = retryIntervalMs;
+        this.ordered = ordered;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AmqpConfirmPublisher");
+            t.setDaemon(true);
+            return t;
+        });
+        init(channel);
+    }
+
+    /** Put a channel in confirm mode and listen to its confirms and shutdown. */
+    private void init(Channel channel) throws IOException {
+        channel.confirmSelect();
+        channel.addConfirmListener(
+                (tag, multiple) -> execute(() -> confirmed(tag, multiple, true)),
+                (tag, multiple) -> execute(() -> confirmed(tag, multiple, false)));
+        channel.addShutdownListener(cause -> execute(() -> channelShutdown(channel)));
+    }
+
+    /**
+     * Create a confirm publisher on a new channel of the connection from the "amqp-confirms" section of the global
+     * properties, if it is enabled.
+     *
+     * @param jGlobalProperties Global properties of the edge or server
+     * @param connection AMQP connection where the channel is created
+     * @return The publisher, or null if confirms are not enabled or the channel cannot be created
+     */
+    public static AmqpConfirmPublisher fromConfig(JSONObject jGlobalProperties, Connection connection) {
+        JSONObject jConfirms = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("amqp-confirms");
+        if (jConfirms == null || !jConfirms.optBoolean("enabled", true)) {
+            return null;
+        }
+        int maxOutstanding = jConfirms.optInt("max-outstanding", DEFAULT_MAX_OUTSTANDING);
+        int maxQueued = jConfirms.optInt("max-queued", DEFAULT_MAX_QUEUED);
+        int maxRetries = jConfirms.optInt("max-retries", DEFAULT_MAX_RETRIES);
+        long retryIntervalMs = jConfirms.optLong("retry-interval", DEFAULT_RETRY_INTERVAL_MS);
+        boolean ordered = jConfirms.optBoolean("ordered", false);
+        try {
+            AmqpConfirmPublisher publisher = new AmqpConfirmPublisher(connection.createChannel(), maxOutstanding,
+                    maxQueued, maxRetries, retryIntervalMs, ordered);
+            logger.info("[AmqpConfirmPublisher] Publishing with confirms (max " + maxOutstanding
+                    + " outstanding, max " + maxRetries + " retries" + (ordered ? ", ordered by routing key)" : ")"));
+            return publisher;
+        } catch (IOException e) {
+            logger.error("[AmqpConfirmPublisher] Cannot create confirm channel: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Publish a message asynchronously.
+     *
+     * @return Future completed when the broker confirms the message, or completed exceptionally if it is nacked more
+     * than maxRetries times, the local queue is full or the publisher is closed
+     */
+    public CompletableFuture<Void> publish(String exchange, String routingKey, AMQP.BasicProperties props,
+                                           byte[] body) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            failed.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("Too many unconfirmed AMQP messages"));
+            return future;
+        }
+        Message message = new Message(exchange, routingKey, props, body, future);
+        try {
+            executor.execute(() -> enqueue(message));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            failed.incrementAndGet();
+            future.completeExceptionally(new IOException("Publisher closed"));
+        }
+        return future;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed: remaining futures were failed on close
+        }
+    }
+
+    private void enqueue(Message message) {
+        if (closed) {
+            complete(message, new IOException("Publisher closed"));
+            return;
+        }
+        if (ordered && !busyKeys.add(message.routingKey)) {
+            // Wait until the previous message of the routing key is confirmed
+            waiting.computeIfAbsent(message.routingKey, k -> new ArrayDeque<>()).add(message);
+            return;
+        }
+        ready.add(message);
+        pump();
+    }
+
+    /** Send ready messages while the window of outstanding messages has room. */
+    private void pump() {
+        while (!ready.isEmpty() && outstanding.size() < maxOutstanding) {
+            if (!channel.isOpen() && !reopen()) {
+                scheduleRetry();
+                return;
+            }
+            Message message = ready.peek();
+            long tag = channel.getNextPublishSeqNo();
+            try {
+                channel.basicPublish(message.exchange, message.routingKey, message.props, message.body);
+            } catch (Exception e) {
+                logger.warn("[AmqpConfirmPublisher] Error publishing to " + message.routingKey + ": "
+                        + e.getMessage());
+                scheduleRetry();
+                return;
+            }
+            ready.poll();
+            outstanding.put(tag, message);
+        }
+        outstandingCount = outstanding.size();
+    }
+
+    private void scheduleRetry() {
+        outstandingCount = outstanding.size();
+        if (retryScheduled || closed) {
+            return;
+        }
+        retryScheduled = true;
+        executor.schedule(() -> {
+            retryScheduled = false;
+            pump();
+        }, retryIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void confirmed(long tag, boolean multiple, boolean ack) {
+        List<Message> messages;
+        if (multiple) {
+            NavigableMap<Long, Message> head = outstanding.headMap(tag, true);
+            messages = new ArrayList<>(head.values());
+            head.clear();
+        } else {
+            Message message = outstanding.remove(tag);
+            messages = new ArrayList<>(1);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        if (ack) {
+            acked.addAndGet(messages.size());
+            for (Message message : messages) {
+                complete(message, null);
+            }
+        } else {
+            nacked.addAndGet(messages.size());
+            resend(messages);
+        }
+        pump();
+    }
+
+    /** Put messages back at the front of the ready queue, in their original order, or fail them. */
+    private void resend(List<Message> messages) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            Message message = messages.get(i);
+            if (message.attempts >= maxRetries) {
+                complete(message, new IOException("Message to " + message.routingKey + " nacked by the broker"));
+            } else {
+                message.attempts++;
+                resent.incrementAndGet();
+                ready.addFirst(message);
+            }
+        }
+    }
+
+    /**
+     * Replace a channel closed while its connection is still open, as ChannelPool does.
+     *
+     * @return Whether a new channel is open
+     */
+    private boolean reopen() {
+        Channel old = channel;
+        Connection connection = old.getConnection();
+        if (connection == null || !connection.isOpen()) {
+            return false;
+        }
+        // The confirms of the old channel will never arrive, and the new one numbers its messages from 1 again
+        channelShutdown(old);
+        Channel replacement;
+        try {
+            replacement = connection.createChannel();
+            if (replacement == null) {
+                return false;
+            }
+            init(replacement);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("[AmqpConfirmPublisher] Cannot replace closed confirm channel: " + e.getMessage());
+            return false;
+        }
+        channel = replacement;
+        logger.warn("[AmqpConfirmPublisher] Replaced closed confirm channel: " + old.getCloseReason());
+        return true;
+    }
+
+    private void channelShutdown(Channel closedChannel) {
+        if (closedChannel != channel || outstanding.isEmpty()) {
+            // Already replaced, its outstanding messages were moved to the ready queue then
+            return;
+        }
+        // Confirms of outstanding messages will never arrive: resend them once the channel is recovered
+        logger.warn("[AmqpConfirmPublisher] Channel closed with " + outstanding.size() + " unconfirmed messages");
+        List<Message> messages = new ArrayList<>(outstanding.values());
+        outstanding.clear();
+        resend(messages);
+        scheduleRetry();
+    }
+
+    /** Complete the future of a message and release its routing key. */
+    private void complete(Message message, Exception error) {
+        queued.decrementAndGet();
+        if (ordered) {
+            ArrayDeque<Message> next = waiting.get(message.routingKey);
+            if (next == null || next.isEmpty() || closed) {
+                waiting.remove(message.routingKey);
+                busyKeys.remove(message.routingKey);
+            } else {
+                ready.add(next.poll());
+            }
+        }
+        if (error == null) {
+            message.future.complete(null);
+        } else {
+            failed.incrementAndGet();
+            message.future.completeExceptionally(error);
+        }
+    }
+
+    /** Messages sent and not confirmed yet. */
+    public int getOutstanding() {
+        return outstandingCount;
+    }
+
+    /** Messages published and not completed yet, including the outstanding ones. */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getAcked() {
+        return acked.get();
+    }
+
+    public long getNacked() {
+        return nacked.get();
+    }
+
+    public long getResent() {
+        return resent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /** Stop publishing and fail every message not confirmed yet. */
+    @Override
+    public void close() {
+        try {
+            executor.submit(() -> {
+                closed = true;
+                List<Message> pending = new ArrayList<>(outstanding.values());
+                pending.addAll(ready);
+                for (ArrayDeque<Message> keyQueue : waiting.values()) {
+                    pending.addAll(keyQueue);
+                }
+                outstanding.clear();
+                ready.clear();
+                waiting.clear();
+                for (Message message : pending) {
+                    complete(message, new IOException("Publisher closed"));
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            logger.warn("[AmqpConfirmPublisher] Error closing publisher: " + e.getMessage());
+        }
+        executor.shutdownNow();
+    }
+
+    private static final class Message {
+        private final String exchange;
+        private final String routingKey;
+        private final AMQP.BasicProperties props;
+        private final byte[] body;
+        private final CompletableFuture<Void> future;
+        private int attempts = 0;
+
+        private Message(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+                        CompletableFuture<Void> future) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package es.bsc.hp2c.common.utils;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out the AMQP channels of a connection, so that no channel is used concurrently by several threads and an
+ * error in one channel (e.g., a publication to a missing exchange, which closes the channel) does not stop the others.
+ *
+ * Channels are given per thread (forThread(), for publishers running on pools of workers) or per subsystem
+ * (get(name), for consumers and long-lived publishers). A channel found closed while its connection is open is
+ * replaced by a new one. While the connection itself is down, the same channel is returned: channels of an
+ * automatically recovering connection are reopened by the client library once the broker is back.
+ *
+ * Consumers are set up with subscribe(name, subscriber), which runs the subscriber again on a new channel of the
+ * subsystem when the broker closes its channel while the connection stays open, since nothing else would reopen it.
+ */
+public class ChannelPool implements Closeable {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final long RESUBSCRIBE_INTERVAL_MS = 1000;
+
+    /** Setup run on every new channel, e.g., declaring the exchange. */
+    public interface Initializer {
+        void init(Channel channel) throws IOException;
+    }
+
+    /** Setup of a consumer on its channel, e.g., basicQos, queue declarations and basicConsume. */
+    public interface Subscriber {
+        void subscribe(Channel channel) throws IOException;
+    }
+
+    private final Connection connection;
+    private final Initializer initializer;
+    private final Map<String, Channel> subsystems = new ConcurrentHashMap<>();
+    private final ThreadLocal<Channel> threadChannels = new ThreadLocal<>();
+    private final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong replaced = new AtomicLong(0);
+
+    public ChannelPool(Connection connection, Initializer initializer) {
+        this.connection = connection;
+        this.initializer = initializer;
+    }
+
+    /** Channel of the calling thread, created on first use. */
+    public Channel forThread() throws IOException {
+        Channel channel = threadChannels.get();
+        if (channel == null || needsReplacement(channel)) {
+            channel = replace(channel, Thread.currentThread().getName());
+            threadChannels.set(channel);
+        }
+        return channel;
+    }
+
+    /** Channel of a subsystem, created on first use and shared by every caller with the same name. */
+    public Channel get(String subsystem) throws IOException {
+        Channel channel = subsystems.get(subsystem);
+        if (channel != null && !needsReplacement(channel)) {
+            return channel;
+        }
+        synchronized (subsystems) {
+            channel = subsystems.get(subsystem);
+            if (channel == null || needsReplacement(channel)) {
+                channel = replace(channel, subsystem);
+                subsystems.put(subsystem, channel);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Run the setup of a consumer on the channel of a subsystem, and again on a new channel every time the broker
+     * closes it (e.g., a channel error) while the connection stays open. Closes of the application and of the
+     * connection are left to their owners and to the automatic recovery of the connection.
+     */
+    public void subscribe(String subsystem, Subscriber subscriber) throws IOException {
+        Channel channel = get(subsystem);
+        subscriber.subscribe(channel);
+        channel.addShutdownListener(cause -> {
+            if (cause.isHardError() || cause.isInitiatedByApplication() || !connection.isOpen()) {
+                return;
+            }
+            logger.warn("[ChannelPool] Consumer channel of " + subsystem + " closed by the broker: "
+                    + cause.getMessage());
+            // Not on the connection thread, which must stay free to answer the new channel requests
+            AtomicReference<PeriodicScheduler.ScheduledTask> retry = new AtomicReference<>();
+            retry.set(PeriodicScheduler.getDefault().scheduleWithFixedDelay("Resubscribe-" + subsystem, () -> {
+                if (connection.isOpen()) {
+                    try {
+                        subscribe(subsystem, subscriber);
+                        logger.info("[ChannelPool] Consumer of " + subsystem + " subscribed on a new channel");
+                    } catch (IOException | RuntimeException e) {
+                        logger.warn("[ChannelPool] Error subscribing consumer of " + subsystem + ", retrying: "
+                                + e.getMessage());
+                        return;
+                    }
+                }
+                retry.get().cancel();
+            }, RESUBSCRIBE_INTERVAL_MS, RESUBSCRIBE_INTERVAL_MS));
+        });
+    }
+
+    private boolean needsReplacement(Channel channel) {
+        return !channel.isOpen() && connection.isOpen();
+    }
+
+    private Channel replace(Channel old, String owner) throws IOException {
+        Channel channel;
+        try {
+            channel = connection.createChannel();
+        } catch (ShutdownSignalException e) {
+            throw new IOException("AMQP connection closed", e);
+        }
+        if (channel == null) {
+            throw new IOException("No AMQP channel available");
+        }
+        if (initializer != null) {
+            initializer.init(channel);
+        }
+        if (old != null) {
+            channels.remove(old);
+            replaced.incrementAndGet();
+            logger.warn("[ChannelPool] Replaced closed AMQP channel of " + owner + ": " + old.getCloseReason());
+        }
+        channels.add(channel);
+        created.incrementAndGet();
+        return channel;
+    }
+
+    /** Number of channels opened since the pool was created. */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /** Number of closed channels that were replaced. */
+    public long getReplaced() {
+        return replaced.get();
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        for (Channel channel : channels) {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (Exception e) {
+                logger.warn("[ChannelPool] Error closing AMQP channel: " + e.getMessage());
+            }
+        }
+        channels.clear();
+        subsystems.clear();
+    }
+}
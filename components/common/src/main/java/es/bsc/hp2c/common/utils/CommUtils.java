@@ -25,6 +25,13 @@ import static es.bsc.hp2c.common.utils.FileUtils.getJsonObject;
  */
 public final class CommUtils {
     private static final Logger logger = LogManager.getLogger("appLogger");
+    private static final long CLOCK_RESYNC_NANOS = 1_000_000_000L;
+    /**
+     * Header of the messages forwarded from the journal of an edge once the broker is reachable again. They are older
+     * than the live ones, so the server only stores them.
+     */
+    public static final String REPLAY_HEADER = "replay";
+    private static volatile ClockAnchor clockAnchor = new ClockAnchor(toEpochNanos(Instant.now()), System.nanoTime());
     private CommUtils(){}
 
     public static Number[] divideArray(Number[] array, double divisor) {
@@ -185,9 +192,16 @@ public final class CommUtils {
 
     /** Create RabbitMQ BasicProperties object with the current nanoseconds timestamp inserted in headers. */
     public static AMQP.BasicProperties createAmqpPropertiesNanos() {
-        Instant now = Instant.now();
-        long epochSeconds = now.getEpochSecond();
-        int nanos = now.getNano();
+        return createAmqpPropertiesNanos(Instant.now());
+    }
+
+    /**
+     * Create AMQP properties whose timestamp headers hold the given time instead of the current one, e.g., the time
+     * at which a message was stored while the broker was unreachable.
+     */
+    public static AMQP.BasicProperties createAmqpPropertiesNanos(Instant time) {
+        long epochSeconds = time.getEpochSecond();
+        int nanos = time.getNano();
         Map<String, Object> headers = new HashMap<>();
         headers.put("epochSeconds", epochSeconds);
         headers.put("nanos", nanos);
@@ -196,6 +210,54 @@ public final class CommUtils {
                 .build();
     }
 
+    /**
+     * Create the AMQP properties of a message forwarded from a journal: the timestamp headers of the time it was
+     * stored, and REPLAY_HEADER.
+     */
+    public static AMQP.BasicProperties createAmqpReplayProperties(Instant storedTime) {
+        Map<String, Object> headers = new HashMap<>(createAmqpPropertiesNanos(storedTime).getHeaders());
+        headers.put(REPLAY_HEADER, true);
+        return new AMQP.BasicProperties.Builder()
+                .headers(headers)
+                .build();
+    }
+
+    /** Whether a message was forwarded from a journal (see createAmqpReplayProperties). */
+    public static boolean isReplay(AMQP.BasicProperties props) {
+        if (props == null || props.getHeaders() == null) {
+            return false;
+        }
+        Object replay = props.getHeaders().get(REPLAY_HEADER);
+        return replay instanceof Boolean && (Boolean) replay;
+    }
+
+    /**
+     * Current wall-clock time in nanoseconds since the Unix epoch. The value is extrapolated from System.nanoTime()
+     * and an anchor taken with Instant.now(), so it does not allocate on the hot path. The anchor is refreshed every
+     * second and never moves the clock backwards.
+     */
+    public static long epochNanos() {
+        long mono = System.nanoTime();
+        ClockAnchor anchor = clockAnchor;
+        long estimate = anchor.epochNanos + (mono - anchor.monoNanos);
+        if (mono - anchor.monoNanos > CLOCK_RESYNC_NANOS) {
+            long resynced = Math.max(toEpochNanos(Instant.now()), estimate);
+            clockAnchor = new ClockAnchor(resynced, mono);
+            return resynced;
+        }
+        return estimate;
+    }
+
+    /** Convert an Instant into nanoseconds since the Unix epoch. */
+    public static long toEpochNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    /** Convert nanoseconds since the Unix epoch into an Instant. */
+    public static Instant fromEpochNanos(long epochNanos) {
+        return Instant.ofEpochSecond(0, epochNanos);
+    }
+
     /** Extract nanos timestamp from RabbitMQ headers and compose them into an Instant object. */
     public static Instant extractNanosFromHeaders(Map<String, Object> headers) {
         if (headers == null || !headers.containsKey("epochSeconds") || !headers.containsKey("nanos")) {
@@ -237,4 +299,15 @@ public final class CommUtils {
 
         return amqpPublishFunctions;
     }
+
+    /** Pair of wall-clock and monotonic readings taken at the same instant. */
+    private static final class ClockAnchor {
+        private final long epochNanos;
+        private final long monoNanos;
+
+        private ClockAnchor(long epochNanos, long monoNanos) {
+            this.epochNanos = epochNanos;
+            this.monoNanos = monoNanos;
+        }
+    }
 }
@@ -139,6 +139,35 @@ public final class FileUtils {
         return windowSize;
     }
 
+    /**
+     * Check whether a device should store its measurements in a columnar FloatMeasurementWindow. The
+     * "columnar-window" flag of the device takes precedence over the one in global properties. Defaults to false.
+     */
+    public static boolean getColumnarWindow(JSONObject jProperties, JSONObject jGlobalProperties, String label) {
+        boolean columnar;
+        if (jProperties.has("columnar-window")) {
+            columnar = jProperties.getBoolean("columnar-window");
+        } else if (jGlobalProperties.has("columnar-window")) {
+            columnar = jGlobalProperties.getBoolean("columnar-window");
+        } else {
+            columnar = false;
+        }
+        if (columnar) {
+            logger.info(label + " uses a columnar measurement window");
+        }
+        return columnar;
+    }
+
+    /** Create the Float[] measurement window of a device according to its window size and columnar flag. */
+    public static MeasurementWindow<Float[]> createFloatWindow(JSONObject jProperties, JSONObject jGlobalProperties,
+                                                               String label) {
+        int windowSize = getWindowSize(jProperties, jGlobalProperties, label);
+        if (getColumnarWindow(jProperties, jGlobalProperties, label)) {
+            return new FloatMeasurementWindow(windowSize);
+        }
+        return new MeasurementWindow<>(windowSize);
+    }
+
     public static JSONObject getSensorUnits(String setupFile, String defaultUnitsPath,
                                             Map<String, Device> devices) throws IOException {
         JSONObject sensorUnits = new JSONObject();
@@ -0,0 +1,243 @@
+package es.bsc.hp2c.common.utils;
+
+import org.json.JSONObject;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+
+/**
+ * Columnar MeasurementWindow for Float[] measurements. Timestamps are kept as epoch nanoseconds in a long[] and values
+ * in a flat float[] of capacity * width, so inserting does not allocate once the window has been created. The width
+ * (number of phases) is fixed by the first inserted measurement. Null elements are stored as NaN.
+ *
+ * Measurement objects are only built when they are requested through the generic MeasurementWindow methods. On the
+ * wire the window is encoded as a regular MeasurementWindow, so receivers do not need to know about this class.
+ */
+public class FloatMeasurementWindow extends MeasurementWindow<Float[]> {
+    private final long[] timestamps;
+    private float[] values;
+    private int width = -1;
+    private int start = 0;  // Points to the oldest element
+    private int size = 0;   // Current number of elements
+
+    public FloatMeasurementWindow(int capacity) {
+        super(0);
+        this.timestamps = new long[capacity];
+    }
+
+    public FloatMeasurementWindow(int capacity, int width) {
+        this(capacity);
+        initValues(width);
+    }
+
+    @Override
+    public synchronized void addMeasurement(Instant timestamp, Float[] value) {
+        int index = nextIndex(value.length);
+        int offset = index * width;
+        for (int i = 0; i < width; i++) {
+            Float element = value[i];
+            values[offset + i] = element == null ? Float.NaN : element;
+        }
+        timestamps[index] = CommUtils.toEpochNanos(timestamp);
+        advance();
+        onInsert(timestamp, value);
+    }
+
+    /**
+     * Add a measurement from primitive values. The array is copied, so the caller can reuse it.
+     *
+     * @param epochNanos Timestamp in nanoseconds since the Unix epoch
+     * @param value Values of the measurement, one per phase
+     */
+    public synchronized void addMeasurement(long epochNanos, float[] value) {
+        int index = nextIndex(value.length);
+        System.arraycopy(value, 0, values, index * width, width);
+        timestamps[index] = epochNanos;
+        advance();
+        onInsert(epochNanos, value);
+    }
+
+    @Override
+    public synchronized Measurement<Float[]>[] getMeasurementsNewerToOlder() {
+        Measurement<Float[]>[] result = new Measurement[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = toMeasurement(physicalIndex(size - 1 - i));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Measurement<Float[]>[] getMeasurementsOlderToNewer() {
+        Measurement<Float[]>[] result = new Measurement[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = toMeasurement(physicalIndex(i));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Measurement<Float[]> getLastMeasurement() {
+        if (size == 0) { return null; }
+        return toMeasurement(physicalIndex(size - 1));
+    }
+
+    @Override
+    public synchronized Measurement<Float[]> getFirstMeasurement() {
+        if (size == 0) { return null; }
+        return toMeasurement(start);
+    }
+
+    @Override
+    public synchronized Duration getTotalTimeSpan() {
+        if (size < 2) {
+            return Duration.ZERO; // Not enough measurements to calculate a span
+        }
+        return Duration.ofNanos(timestamps[physicalIndex(size - 1)] - timestamps[start]);
+    }
+
+    @Override
+    public synchronized double getSamplingRate() {
+        if (size < 2) {
+            return 0.0; // Not enough data to calculate a rate
+        }
+        long totalNanos = timestamps[physicalIndex(size - 1)] - timestamps[start];
+        if (totalNanos == 0) {
+            return 0.0; // Avoid division by zero
+        }
+        return (double) (size - 1) / (totalNanos / 1_000_000_000.0);
+    }
+
+    @Override
+    public int getStart() {
+        return this.start;
+    }
+
+    @Override
+    public int getSize() {
+        return this.size;
+    }
+
+    @Override
+    public int getCapacity() {
+        return this.timestamps.length;
+    }
+
+    /** Number of values per measurement, or -1 if nothing has been inserted yet. */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Timestamp of a stored measurement.
+     *
+     * @param i Position of the measurement, 0 being the oldest
+     * @return Epoch nanoseconds of the measurement
+     */
+    public synchronized long getTimestampNanos(int i) {
+        checkPosition(i);
+        return timestamps[physicalIndex(i)];
+    }
+
+    /**
+     * Value of one phase of a stored measurement.
+     *
+     * @param i Position of the measurement, 0 being the oldest
+     * @param phase Index of the value within the measurement
+     * @return Stored value
+     */
+    public synchronized float getValue(int i, int phase) {
+        checkPosition(i);
+        if (phase < 0 || phase >= width) {
+            throw new IndexOutOfBoundsException("Phase " + phase + " out of range (width " + width + ")");
+        }
+        return values[physicalIndex(i) * width + phase];
+    }
+
+    /**
+     * Copy the values of the newest measurement into dst.
+     *
+     * @param dst Destination array, at least as long as the window width
+     * @return Epoch nanoseconds of the newest measurement, or -1 if the window is empty
+     */
+    public synchronized long copyLastValues(float[] dst) {
+        if (size == 0) { return -1; }
+        int index = physicalIndex(size - 1);
+        System.arraycopy(values, index * width, dst, 0, width);
+        return timestamps[index];
+    }
+
+    /** Copy the stored measurements into a regular MeasurementWindow with the same capacity. */
+    public synchronized MeasurementWindow<Float[]> toMeasurementWindow() {
+        MeasurementWindow<Float[]> result = new MeasurementWindow<>(getCapacity());
+        for (int i = 0; i < size; i++) {
+            Measurement<Float[]> m = toMeasurement(physicalIndex(i));
+            result.addMeasurement(m.getTimestamp(), m.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] encodeLegacy() {
+        return toMeasurementWindow().encodeLegacy();
+    }
+
+    @Override
+    public synchronized ArrayList<JSONObject> getMeasurementsArray() {
+        ArrayList<JSONObject> measurementsList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int index = physicalIndex(i);
+            JSONObject json = new JSONObject();
+            json.put("timestamp", CommUtils.fromEpochNanos(timestamps[index]).toString());
+            json.put("value", boxValues(index));
+            measurementsList.add(json);
+        }
+        return measurementsList;
+    }
+
+    private int nextIndex(int valueWidth) {
+        if (width < 0) {
+            initValues(valueWidth);
+        } else if (valueWidth != width) {
+            throw new IllegalArgumentException("FloatMeasurementWindow: Wrong input length " +
+                    "(actual: " + valueWidth + ", expected: " + width + ").");
+        }
+        return (start + size) % timestamps.length;
+    }
+
+    private void advance() {
+        if (size < timestamps.length) {
+            size++; // Increase size if not full
+        } else {
+            start = (start + 1) % timestamps.length; // Advance start if full
+        }
+    }
+
+    private void initValues(int width) {
+        this.width = width;
+        this.values = new float[timestamps.length * width];
+    }
+
+    private int physicalIndex(int i) {
+        return (start + i) % timestamps.length;
+    }
+
+    private void checkPosition(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Position " + i + " out of range (size " + size + ")");
+        }
+    }
+
+    private Float[] boxValues(int index) {
+        Float[] result = new Float[width];
+        int offset = index * width;
+        for (int i = 0; i < width; i++) {
+            result[i] = values[offset + i];
+        }
+        return result;
+    }
+
+    private Measurement<Float[]> toMeasurement(int index) {
+        return new Measurement<>(CommUtils.fromEpochNanos(timestamps[index]), boxValues(index));
+    }
+}
@@ -0,0 +1,124 @@
+package es.bsc.hp2c.common.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Compact heartbeat of an edge, sent instead of its full setup while the setup does not change:
+ * <pre>
+ *   {
+ *     "global-properties": {"label": ..., "heartbeat": ..., "available": true},
+ *     "setup-hash": hash of the setup, without the fields that change on every heartbeat,
+ *     "availability": base64 bitmap with bit i set if the i-th device of the setup is available,
+ *     "device-count": number of devices of the setup
+ *   }
+ * </pre>
+ * The full setup also carries its "setup-hash". The server applies deltas to the digital twins registered with the
+ * same hash and asks the edge for its full setup, publishing to "edge.LABEL.setup-request", when the hash is not
+ * known (e.g., the edge changed its setup or the server restarted).
+ */
+public final class HeartbeatDelta {
+    public static final String SETUP_HASH = "setup-hash";
+    public static final String AVAILABILITY = "availability";
+    public static final String DEVICE_COUNT = "device-count";
+
+    private HeartbeatDelta(){}
+
+    /** Routing key of the setup requests sent by the server to an edge. */
+    public static String setupRequestRoutingKey(String edgeLabel) {
+        return "edge." + edgeLabel + ".setup-request";
+    }
+
+    /** Check whether a heartbeat message is a delta (otherwise it is a full setup). */
+    public static boolean isDelta(JSONObject jHeartbeat) {
+        return !jHeartbeat.has("devices") && jHeartbeat.has(SETUP_HASH);
+    }
+
+    /**
+     * Hash of an edge setup. Keys are sorted, so that the hash does not depend on the order of the JSON objects,
+     * and the heartbeat timestamp and the availability flags are left out.
+     */
+    public static String setupHash(JSONObject jEdgeSetup) {
+        StringBuilder sb = new StringBuilder();
+        canonical(jEdgeSetup, sb, 0);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static void canonical(Object value, StringBuilder sb, int depth) {
+        if (value instanceof JSONObject) {
+            JSONObject jObject = (JSONObject) value;
+            sb.append('{');
+            for (String key : new TreeSet<>(jObject.keySet())) {
+                if (isVolatileField(key, depth)) {
+                    continue;
+                }
+                sb.append(JSONObject.quote(key)).append(':');
+                canonical(jObject.get(key), sb, depth + 1);
+                sb.append(',');
+            }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            sb.append('[');
+            Iterator<Object> it = ((JSONArray) value).iterator();
+            while (it.hasNext()) {
+                // Array items keep the depth of their array, so devices are at depth 1 like global-properties
+                canonical(it.next(), sb, depth);
+                sb.append(',');
+            }
+            sb.append(']');
+        } else {
+            sb.append(value instanceof String ? JSONObject.quote((String) value) : String.valueOf(value));
+        }
+    }
+
+    /** Fields of the global properties and of the devices that change on every heartbeat. */
+    private static boolean isVolatileField(String key, int depth) {
+        return depth == 1 && (key.equals("heartbeat") || key.equals("available") || key.equals("availability"));
+    }
+
+    /** Encode the availability of the devices, in the order of the setup, as a base64 bitmap. */
+    public static String encodeAvailability(boolean[] availability) {
+        BitSet bits = new BitSet(availability.length);
+        for (int i = 0; i < availability.length; i++) {
+            bits.set(i, availability[i]);
+        }
+        return Base64.getEncoder().encodeToString(bits.toByteArray());
+    }
+
+    /** Decode an availability bitmap of the given number of devices. */
+    public static boolean[] decodeAvailability(String encoded, int deviceCount) {
+        BitSet bits = BitSet.valueOf(Base64.getDecoder().decode(encoded));
+        boolean[] availability = new boolean[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            availability[i] = bits.get(i);
+        }
+        return availability;
+    }
+
+    /** Build the delta heartbeat of an edge. */
+    public static JSONObject build(String edgeLabel, String setupHash, boolean[] availability, long heartbeat) {
+        JSONObject jGlobalProps = new JSONObject()
+                .put("label", edgeLabel)
+                .put("heartbeat", heartbeat)
+                .put("available", true);
+        return new JSONObject()
+                .put("global-properties", jGlobalProps)
+                .put(SETUP_HASH, setupHash)
+                .put(AVAILABILITY, encodeAvailability(availability))
+                .put(DEVICE_COUNT, availability.length);
+    }
+}
@@ -0,0 +1,131 @@
+package es.bsc.hp2c.common.utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Group of encoded MeasurementWindows of several devices of the same edge, sent as a single AMQP message. The frame
+ * format is:
+ * <pre>
+ *   magic      2 bytes   0x48 0x42 ("HB")
+ *   version    1 byte
+ *   count      varint    number of entries
+ *   entries    for each entry: varint label length, UTF-8 device label, varint window length, encoded window
+ * </pre>
+ * Windows are stored as returned by MeasurementWindow.encode(), so each one keeps its own format.
+ */
+public class MeasurementBatch {
+    public static final byte VERSION = 1;
+    private static final byte MAGIC_0 = 0x48;
+    private static final byte MAGIC_1 = 0x42;
+    private static final int HEADER_BYTES = 3;
+    private static final int MAX_VARINT_BYTES = 5;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int encodedSize = HEADER_BYTES + MAX_VARINT_BYTES;
+
+    /**
+     * Add the encoded window of a device.
+     *
+     * @param device Device label
+     * @param window Encoded MeasurementWindow
+     */
+    public void add(String device, byte[] window) {
+        Entry entry = new Entry(device, window);
+        entries.add(entry);
+        encodedSize += 2 * MAX_VARINT_BYTES + entry.label.length + window.length;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /** Upper bound of the size of the encoded batch, in bytes. */
+    public int getEncodedSize() {
+        return encodedSize;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize);
+        buffer.put(MAGIC_0).put(MAGIC_1).put(VERSION);
+        MeasurementWindowCodec.putVarint(buffer, entries.size());
+        for (Entry entry : entries) {
+            MeasurementWindowCodec.putVarint(buffer, entry.label.length);
+            buffer.put(entry.label);
+            MeasurementWindowCodec.putVarint(buffer, entry.window.length);
+            buffer.put(entry.window);
+        }
+        byte[] result = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /** Check whether a message is a batch. */
+    public static boolean isBatch(byte[] data) {
+        return data.length >= HEADER_BYTES && data[0] == MAGIC_0 && data[1] == MAGIC_1;
+    }
+
+    public static MeasurementBatch decode(byte[] data) {
+        if (!isBatch(data)) {
+            throw new IllegalArgumentException("Message is not a MeasurementBatch");
+        }
+        if (data[2] != VERSION) {
+            throw new IllegalArgumentException("Unsupported MeasurementBatch format version " + data[2]);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, HEADER_BYTES, data.length - HEADER_BYTES);
+            int count = readLength(buffer);
+            MeasurementBatch batch = new MeasurementBatch();
+            for (int i = 0; i < count; i++) {
+                byte[] label = new byte[readLength(buffer)];
+                buffer.get(label);
+                byte[] window = new byte[readLength(buffer)];
+                buffer.get(window);
+                batch.add(new String(label, StandardCharsets.UTF_8), window);
+            }
+            return batch;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated MeasurementBatch message", e);
+        }
+    }
+
+    private static int readLength(ByteBuffer buffer) {
+        long length = MeasurementWindowCodec.getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed MeasurementBatch message");
+        }
+        return (int) length;
+    }
+
+    /** Encoded window of one device. */
+    public static final class Entry {
+        private final byte[] label;
+        private final String device;
+        private final byte[] window;
+
+        private Entry(String device, byte[] window) {
+            this.device = device;
+            this.label = device.getBytes(StandardCharsets.UTF_8);
+            this.window = window;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public byte[] getWindow() {
+            return window;
+        }
+    }
+}
@@ -16,6 +16,9 @@ public class MeasurementWindow<T> implements Serializable{
     private final Measurement<T>[] window;
     private int start = 0;  // Points to the oldest element
     private int size = 0;   // Current number of elements
+    transient RunningStatistics statistics = null;
+    transient SlidingPhasorEstimator phasors = null;
+    transient double phasorFrequency = 0;  // Nominal frequency of the phasors, 0 if they are not tracked
 
     public MeasurementWindow(int capacity) {
         this.window = new Measurement[capacity];
@@ -31,6 +34,33 @@ public class MeasurementWindow<T> implements Serializable{
         } else {
             start = (start + 1) % window.length; // Advance start if full
         }
+        if (value instanceof Number[]) {
+            onInsert(timestamp, (Number[]) value);
+        }
+    }
+
+    /** Update the running statistics and phasors with a new measurement. Called with the lock held. */
+    void onInsert(Instant timestamp, Number[] value) {
+        if (statistics != null) {
+            statistics.add(value);
+        }
+        if (phasors != null) {
+            phasors.add(CommUtils.toEpochNanos(timestamp), value);
+        } else if (phasorFrequency > 0) {
+            createPhasorEstimator();
+        }
+    }
+
+    /** Update the running statistics and phasors with a new measurement. Called with the lock held. */
+    void onInsert(long epochNanos, float[] value) {
+        if (statistics != null) {
+            statistics.add(value);
+        }
+        if (phasors != null) {
+            phasors.add(epochNanos, value);
+        } else if (phasorFrequency > 0) {
+            createPhasorEstimator();
+        }
     }
 
     public synchronized Measurement<T>[] getMeasurementsNewerToOlder() {
@@ -96,6 +126,70 @@ public class MeasurementWindow<T> implements Serializable{
         return (double) (size - 1) / (totalNanos / 1_000_000_000.0);
     }
 
+    /**
+     * Keep running statistics (sum, mean, min, max, variance, RMS) of the window, updated on every insertion. The
+     * statistics are initialized with the measurements already stored.
+     *
+     * @return Statistics of the window
+     */
+    public synchronized RunningStatistics enableStatistics() {
+        if (statistics == null) {
+            RunningStatistics newStatistics = new RunningStatistics(Math.max(getCapacity(), 1));
+            for (Measurement<T> m : getMeasurementsOlderToNewer()) {
+                if (m.getValue() instanceof Number[]) {
+                    newStatistics.add((Number[]) m.getValue());
+                }
+            }
+            statistics = newStatistics;
+        }
+        return statistics;
+    }
+
+    /** Running statistics of the window, or null if they have not been enabled. */
+    public RunningStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Track the phasors of every phase of the window with a SlidingPhasorEstimator. The sampling rate of the
+     * estimator is measured once the window is full for the first time, and from then on it is updated on every
+     * insertion.
+     *
+     * @param frequency Nominal frequency of the signal (Hz)
+     */
+    public synchronized void enablePhasors(double frequency) {
+        if (phasorFrequency == frequency) {
+            return;
+        }
+        phasorFrequency = frequency;
+        phasors = null;
+        createPhasorEstimator();
+    }
+
+    /** Phasor estimator of the window, or null if it is not enabled or the window has not been full yet. */
+    public SlidingPhasorEstimator getPhasorEstimator() {
+        return phasors;
+    }
+
+    private void createPhasorEstimator() {
+        if (getSize() < Math.max(getCapacity(), 2)) {
+            return;
+        }
+        Measurement<T>[] measurements = getMeasurementsOlderToNewer();
+        Object first = measurements[0].getValue();
+        double samplingRate = getSamplingRate();
+        if (!(first instanceof Number[]) || ((Number[]) first).length == 0 || samplingRate <= 0) {
+            phasorFrequency = 0;  // Phasors cannot be tracked for this window
+            return;
+        }
+        SlidingPhasorEstimator estimator = new SlidingPhasorEstimator(phasorFrequency, samplingRate,
+                getCapacity(), ((Number[]) first).length);
+        for (Measurement<T> m : measurements) {
+            estimator.add(CommUtils.toEpochNanos(m.getTimestamp()), (Number[]) m.getValue());
+        }
+        phasors = estimator;
+    }
+
     public int getStart(){
         return this.start;
     }
@@ -124,7 +218,20 @@ public class MeasurementWindow<T> implements Serializable{
         return result.toString();
     }
 
+    /**
+     * Encode the window with the binary MeasurementWindowCodec format, or with Java serialization if its values
+     * are not numeric.
+     */
     public byte[] encode(){
+        byte[] binary = MeasurementWindowCodec.encode(this);
+        if (binary != null) {
+            return binary;
+        }
+        return encodeLegacy();
+    }
+
+    /** Encode the window with Java serialization, as done before the binary format existed. */
+    public byte[] encodeLegacy(){
         try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
              ObjectOutputStream oos = new ObjectOutputStream(baos)) {
             oos.writeObject(this);
@@ -134,7 +241,11 @@ public class MeasurementWindow<T> implements Serializable{
         }
     }
 
-    public synchronized static MeasurementWindow decode(byte[] data) {
+    /** Decode a window encoded either with the binary format or with Java serialization. */
+    public static MeasurementWindow decode(byte[] data) {
+        if (MeasurementWindowCodec.isBinary(data)) {
+            return MeasurementWindowCodec.decode(data);
+        }
         try (ByteArrayInputStream bais = new ByteArrayInputStream(data);
              ObjectInputStream ois = new ObjectInputStream(bais)) {
             return (MeasurementWindow) ois.readObject();
@@ -0,0 +1,222 @@
+package es.bsc.hp2c.common.utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Binary wire format for numeric MeasurementWindows. All integers are big-endian:
+ * <pre>
+ *   magic      2 bytes   0x48 0x57 ("HW")
+ *   version    1 byte
+ *   flags      1 byte    bit 0 set if values are float64, float32 otherwise
+ *   capacity   varint
+ *   count      varint    number of measurements, from older to newer
+ *   width      varint    number of values per measurement
+ *   base       8 bytes   timestamp of the oldest measurement in epoch nanoseconds
+ *   deltas     zigzag varint per remaining measurement, difference with the previous timestamp
+ *   values     count * width packed float32 or float64
+ * </pre>
+ * Windows that do not hold Float[] or Double[] values of a fixed width without nulls (e.g., Switch states) cannot
+ * be represented and are still sent with Java serialization. Java serialization streams start with 0xACED, so both
+ * formats can be told apart by their first bytes.
+ */
+public final class MeasurementWindowCodec {
+    public static final byte VERSION = 1;
+    private static final byte MAGIC_0 = 0x48;
+    private static final byte MAGIC_1 = 0x57;
+    private static final byte FLAG_FLOAT64 = 0x01;
+    private static final int HEADER_BYTES = 4;
+    private static final int MAX_VARINT_BYTES = 10;
+    // Largest window capacity accepted from the wire, so a malformed header cannot allocate an unbounded window
+    public static final int MAX_CAPACITY = 1 << 20;
+
+    private MeasurementWindowCodec(){}
+
+    /** Check whether a message is a Java serialized window instead of the binary format. */
+    public static boolean isLegacy(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    /** Check whether a message starts with the binary format magic. */
+    public static boolean isBinary(byte[] data) {
+        return data.length >= HEADER_BYTES && data[0] == MAGIC_0 && data[1] == MAGIC_1;
+    }
+
+    /**
+     * Encode a window in the binary format.
+     *
+     * @param window Window to encode
+     * @return Encoded window, or null if its values cannot be represented in this format
+     */
+    public static byte[] encode(MeasurementWindow<?> window) {
+        if (window instanceof FloatMeasurementWindow) {
+            return encodeColumnar((FloatMeasurementWindow) window);
+        }
+        Measurement<?>[] measurements = window.getMeasurementsOlderToNewer();
+        int width = -1;
+        boolean float64 = false;
+        for (Measurement<?> m : measurements) {
+            if (m == null || m.getTimestamp() == null || !(m.getValue() instanceof Number[])) {
+                return null;
+            }
+            Number[] values = (Number[]) m.getValue();
+            if (width == -1) {
+                width = values.length;
+            } else if (values.length != width) {
+                return null;
+            }
+            for (Number value : values) {
+                if (value instanceof Double) {
+                    float64 = true;
+                } else if (!(value instanceof Float)) {
+                    return null;
+                }
+            }
+        }
+        int count = measurements.length;
+        width = Math.max(width, 0);
+
+        ByteBuffer buffer = allocate(count, width, float64);
+        putHeader(buffer, float64, window.getCapacity(), count, width);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long nanos = CommUtils.toEpochNanos(measurements[i].getTimestamp());
+            putTimestamp(buffer, i, nanos, previous);
+            previous = nanos;
+        }
+        for (Measurement<?> m : measurements) {
+            for (Number value : (Number[]) m.getValue()) {
+                if (float64) {
+                    buffer.putDouble(value.doubleValue());
+                } else {
+                    buffer.putFloat(value.floatValue());
+                }
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] encodeColumnar(FloatMeasurementWindow window) {
+        synchronized (window) {
+            int count = window.getSize();
+            int width = Math.max(window.getWidth(), 0);
+            ByteBuffer buffer = allocate(count, width, false);
+            putHeader(buffer, false, window.getCapacity(), count, width);
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                long nanos = window.getTimestampNanos(i);
+                putTimestamp(buffer, i, nanos, previous);
+                previous = nanos;
+            }
+            for (int i = 0; i < count; i++) {
+                for (int j = 0; j < width; j++) {
+                    buffer.putFloat(window.getValue(i, j));
+                }
+            }
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+
+    /**
+     * Decode a window in the binary format. Values are returned as Float[] or Double[] depending on the encoded
+     * precision.
+     *
+     * @param data Encoded window
+     * @return Decoded window
+     */
+    public static MeasurementWindow<Number[]> decode(byte[] data) {
+        if (!isBinary(data)) {
+            throw new IllegalArgumentException("Message is not a binary MeasurementWindow");
+        }
+        if (data[2] != VERSION) {
+            throw new IllegalArgumentException("Unsupported MeasurementWindow format version " + data[2]);
+        }
+        boolean float64 = (data[3] & FLAG_FLOAT64) != 0;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, HEADER_BYTES, data.length - HEADER_BYTES);
+            long capacity = getVarint(buffer);
+            long count = getVarint(buffer);
+            long width = getVarint(buffer);
+            int valueBytes = float64 ? Double.BYTES : Float.BYTES;
+            // Check the sizes against the bytes actually received before allocating anything
+            if (capacity <= 0 || capacity > MAX_CAPACITY || count < 0 || count > capacity
+                    || count > buffer.remaining() || width < 0 || width > buffer.remaining()
+                    || (width > 0 && count > buffer.remaining() / (width * valueBytes))) {
+                throw new IllegalArgumentException("Malformed MeasurementWindow header (capacity " + capacity
+                        + ", count " + count + ", width " + width + ", " + buffer.remaining() + " bytes left)");
+            }
+            return decodeBody(buffer, float64, (int) capacity, (int) count, (int) width);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated MeasurementWindow message", e);
+        }
+    }
+
+    private static MeasurementWindow<Number[]> decodeBody(ByteBuffer buffer, boolean float64, int capacity, int count,
+                                                         int width) {
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = i == 0 ? buffer.getLong() : timestamps[i - 1] + zigzagDecode(getVarint(buffer));
+        }
+        MeasurementWindow<Number[]> window = new MeasurementWindow<>(capacity);
+        for (int i = 0; i < count; i++) {
+            Number[] values = float64 ? new Double[width] : new Float[width];
+            for (int j = 0; j < width; j++) {
+                values[j] = float64 ? (Number) buffer.getDouble() : (Number) buffer.getFloat();
+            }
+            Instant timestamp = CommUtils.fromEpochNanos(timestamps[i]);
+            window.addMeasurement(timestamp, values);
+        }
+        return window;
+    }
+
+    private static ByteBuffer allocate(int count, int width, boolean float64) {
+        int valueBytes = float64 ? Double.BYTES : Float.BYTES;
+        return ByteBuffer.allocate(HEADER_BYTES + 3 * MAX_VARINT_BYTES + Long.BYTES
+                + count * MAX_VARINT_BYTES + count * width * valueBytes);
+    }
+
+    private static void putHeader(ByteBuffer buffer, boolean float64, int capacity, int count, int width) {
+        buffer.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(float64 ? FLAG_FLOAT64 : 0);
+        putVarint(buffer, capacity);
+        putVarint(buffer, count);
+        putVarint(buffer, width);
+    }
+
+    private static void putTimestamp(ByteBuffer buffer, int i, long nanos, long previous) {
+        if (i == 0) {
+            buffer.putLong(nanos);
+        } else {
+            putVarint(buffer, zigzagEncode(nanos - previous));
+        }
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in MeasurementWindow message");
+    }
+
+    private static long zigzagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigzagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,289 @@
+package es.bsc.hp2c.common.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single scheduler for the periodic tasks of a process (onFrequency Funcs, heartbeats, connection testers, metrics),
+ * replacing one java.util.Timer thread per task.
+ *
+ * One timer thread only produces the ticks; the tasks run on a small bounded pool of workers, so a slow task does not
+ * delay the others. A task never runs concurrently with itself: a tick received while the previous run is still
+ * going is an overrun, and is either skipped (MissedTicks.SKIP) or run right after the current run finishes
+ * (MissedTicks.CATCH_UP, as java.util.Timer does for fixed-rate tasks). The start delay and run time of every task are
+ * recorded in LatencyHistograms.
+ */
+public class PeriodicScheduler {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private static volatile PeriodicScheduler defaultScheduler = null;
+
+    public enum MissedTicks { SKIP, CATCH_UP }
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final ThreadPoolExecutor workers;
+    private final List<ScheduledTask> tasks = new CopyOnWriteArrayList<>();
+
+    public PeriodicScheduler(int threads, int queueSize) {
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "PeriodicScheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+        AtomicInteger counter = new AtomicInteger(0);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "PeriodicWorker-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Create the default scheduler from the "scheduler" section of the global properties: "threads" (default
+     * DEFAULT_THREADS), "queue-size" (default DEFAULT_QUEUE_SIZE) and "report-interval" (milliseconds between logs of
+     * the task statistics, 0 to disable). Has no effect if the default scheduler is already in use.
+     *
+     * @param jGlobalProperties Global properties of the setup file, or null
+     */
+    public static synchronized void configure(JSONObject jGlobalProperties) {
+        if (defaultScheduler != null) {
+            logger.warn("[PeriodicScheduler] Already started, ignoring new configuration");
+            return;
+        }
+        JSONObject jScheduler = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("scheduler");
+        if (jScheduler == null) {
+            jScheduler = new JSONObject();
+        }
+        int threads = Math.max(jScheduler.optInt("threads", DEFAULT_THREADS), 1);
+        int queueSize = Math.max(jScheduler.optInt("queue-size", DEFAULT_QUEUE_SIZE), 1);
+        long reportInterval = jScheduler.optLong("report-interval", 0);
+        PeriodicScheduler scheduler = new PeriodicScheduler(threads, queueSize);
+        if (reportInterval > 0) {
+            scheduler.scheduleWithFixedDelay("SchedulerReport", scheduler::logStatistics, reportInterval,
+                    reportInterval);
+        }
+        defaultScheduler = scheduler;
+        logger.info("[PeriodicScheduler] " + threads + " threads (queue " + queueSize + ")");
+    }
+
+    /** Scheduler shared by the whole process, created with the default configuration if none was set. */
+    public static PeriodicScheduler getDefault() {
+        PeriodicScheduler scheduler = defaultScheduler;
+        if (scheduler == null) {
+            synchronized (PeriodicScheduler.class) {
+                if (defaultScheduler == null) {
+                    configure(null);
+                }
+                scheduler = defaultScheduler;
+            }
+        }
+        return scheduler;
+    }
+
+    /** Run a task every periodMs milliseconds, skipping the ticks missed while a run overruns its period. */
+    public ScheduledTask scheduleAtFixedRate(String name, Runnable task, long initialDelayMs, long periodMs) {
+        return scheduleAtFixedRate(name, task, initialDelayMs, periodMs, MissedTicks.SKIP);
+    }
+
+    /**
+     * Run a task every periodMs milliseconds.
+     *
+     * @param name Name of the task in logs and statistics
+     * @param task Task to run
+     * @param initialDelayMs Delay before the first tick
+     * @param periodMs Time between ticks
+     * @param missedTicks What to do with the ticks received while the previous run is still going
+     * @return Handle of the scheduled task
+     */
+    public ScheduledTask scheduleAtFixedRate(String name, Runnable task, long initialDelayMs, long periodMs,
+                                             MissedTicks missedTicks) {
+        ScheduledTask scheduledTask = new ScheduledTask(name, task, periodMs, true, missedTicks);
+        tasks.add(scheduledTask);
+        scheduledTask.future = timer.scheduleAtFixedRate(scheduledTask::tick, initialDelayMs, periodMs,
+                TimeUnit.MILLISECONDS);
+        return scheduledTask;
+    }
+
+    /** Run a task repeatedly, waiting delayMs milliseconds between the end of a run and the start of the next. */
+    public ScheduledTask scheduleWithFixedDelay(String name, Runnable task, long initialDelayMs, long delayMs) {
+        ScheduledTask scheduledTask = new ScheduledTask(name, task, delayMs, false, MissedTicks.SKIP);
+        tasks.add(scheduledTask);
+        scheduledTask.future = timer.schedule(scheduledTask::tick, initialDelayMs, TimeUnit.MILLISECONDS);
+        return scheduledTask;
+    }
+
+    public List<ScheduledTask> getTasks() {
+        return tasks;
+    }
+
+    /** Log the statistics of every scheduled task. */
+    public void logStatistics() {
+        for (ScheduledTask task : tasks) {
+            logger.info("[PeriodicScheduler] " + task);
+        }
+    }
+
+    /** Cancel every task and stop the threads of the scheduler. */
+    public void shutdown() {
+        for (ScheduledTask task : tasks) {
+            task.cancel();
+        }
+        timer.shutdownNow();
+        workers.shutdown();
+    }
+
+    /**
+     * A task registered in the scheduler, with its counters and latency histograms.
+     */
+    public final class ScheduledTask {
+        private final String name;
+        private final Runnable task;
+        private final long periodMs;
+        private final boolean fixedRate;
+        private final MissedTicks missedTicks;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final AtomicInteger missed = new AtomicInteger(0);
+        private final AtomicLong runs = new AtomicLong(0);
+        private final AtomicLong overruns = new AtomicLong(0);
+        private final AtomicLong skipped = new AtomicLong(0);
+        private final AtomicLong failures = new AtomicLong(0);
+        private final LatencyHistogram startDelays = new LatencyHistogram();
+        private final LatencyHistogram runTimes = new LatencyHistogram();
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean cancelled = false;
+
+        private ScheduledTask(String name, Runnable task, long periodMs, boolean fixedRate, MissedTicks missedTicks) {
+            this.name = name;
+            this.task = task;
+            this.periodMs = periodMs;
+            this.fixedRate = fixedRate;
+            this.missedTicks = missedTicks;
+        }
+
+        /** Called on the timer thread: hand the run to a worker unless the previous one is still going. */
+        private void tick() {
+            if (cancelled) {
+                return;
+            }
+            if (!running.compareAndSet(false, true)) {
+                if (overruns.getAndIncrement() == 0) {
+                    logger.warn("[PeriodicScheduler] Task " + name + " overran its period of " + periodMs
+                            + " ms. Further overruns are only counted");
+                }
+                if (missedTicks == MissedTicks.CATCH_UP) {
+                    missed.incrementAndGet();
+                } else {
+                    skipped.incrementAndGet();
+                }
+                return;
+            }
+            long tickNanos = System.nanoTime();
+            try {
+                workers.execute(() -> runTicks(tickNanos));
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+                skipped.incrementAndGet();
+                rescheduleIfFixedDelay();
+            }
+        }
+
+        private void runTicks(long tickNanos) {
+            startDelays.record(System.nanoTime() - tickNanos);
+            try {
+                do {
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                        logger.error("[PeriodicScheduler] Error running task " + name + ": " + t.getMessage());
+                    }
+                    runTimes.record(System.nanoTime() - start);
+                    runs.incrementAndGet();
+                } while (!cancelled && missed.getAndUpdate(m -> m > 0 ? m - 1 : 0) > 0);
+            } finally {
+                running.set(false);
+                rescheduleIfFixedDelay();
+            }
+        }
+
+        private void rescheduleIfFixedDelay() {
+            if (!fixedRate && !cancelled) {
+                try {
+                    future = timer.schedule(this::tick, periodMs, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The scheduler is shutting down
+                }
+            }
+        }
+
+        /** Stop scheduling the task. A run in progress is not interrupted. */
+        public void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+            tasks.remove(this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public long getRuns() {
+            return runs.get();
+        }
+
+        /** Ticks received while the previous run was still going. */
+        public long getOverruns() {
+            return overruns.get();
+        }
+
+        /** Ticks that did not produce a run, either skipped after an overrun or rejected by a full queue. */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /** Time between a tick and the start of its run on a worker. */
+        public LatencyHistogram getStartDelays() {
+            return startDelays;
+        }
+
+        public LatencyHistogram getRunTimes() {
+            return runTimes;
+        }
+
+        @Override
+        public String toString() {
+            return name + " {runs=" + runs.get() + ", overruns=" + overruns.get() + ", skipped=" + skipped.get()
+                    + ", failures=" + failures.get() + ", start delay: " + startDelays + ", run time: " + runTimes
+                    + "}";
+        }
+    }
+}
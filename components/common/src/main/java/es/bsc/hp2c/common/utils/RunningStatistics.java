@@ -0,0 +1,277 @@
+package es.bsc.hp2c.common.utils;
+
+/**
+ * Sum, mean, min, max, variance and RMS of the values in a sliding window, kept up to date on every insertion instead
+ * of being recomputed over the whole window. It mirrors a MeasurementWindow of the same capacity: once full, every
+ * new measurement evicts the oldest one.
+ * <ul>
+ *     <li>Sums are accumulated relative to a per-phase shift to avoid cancellation in the variance, and recomputed
+ *     exactly once every capacity insertions so that rounding errors do not build up (amortized O(1)).</li>
+ *     <li>Min and max use monotonic queues (amortized O(1) per insertion).</li>
+ *     <li>NaN values are tracked apart: while the window holds one, sum, mean, variance and RMS of that phase are NaN
+ *     and min and max ignore it.</li>
+ * </ul>
+ * Values are statistics of the population (the variance is divided by the number of elements).
+ */
+public class RunningStatistics {
+    private final int capacity;
+    private int width = -1;
+    private double[] values;    // Ring with capacity * width values
+    private int start = 0;
+    private int size = 0;
+    private long inserted = 0;  // Sequence number of the next measurement
+    private int sinceRebuild = 0;
+
+    private double[] shift;
+    private double[] sum;
+    private double[] sumSq;
+    private int[] nanCount;
+    private MonotonicQueue[] minQueues;
+    private MonotonicQueue[] maxQueues;
+
+    public RunningStatistics(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("RunningStatistics capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /** Add a measurement. Null values are taken as NaN. */
+    public synchronized void add(Number[] measurement) {
+        int offset = nextOffset(measurement.length);
+        for (int j = 0; j < width; j++) {
+            Number value = measurement[j];
+            values[offset + j] = value == null ? Double.NaN : value.doubleValue();
+        }
+        insert(offset);
+    }
+
+    /** Add a measurement from primitive values. */
+    public synchronized void add(float[] measurement) {
+        int offset = nextOffset(measurement.length);
+        for (int j = 0; j < width; j++) {
+            values[offset + j] = measurement[j];
+        }
+        insert(offset);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getCount() {
+        return size;
+    }
+
+    /** Number of values per measurement, or -1 if nothing has been added yet. */
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized double getSum(int phase) {
+        checkPhase(phase);
+        if (nanCount[phase] > 0) {
+            return Double.NaN;
+        }
+        return shift[phase] * size + sum[phase];
+    }
+
+    public synchronized double getMean(int phase) {
+        checkPhase(phase);
+        if (size == 0 || nanCount[phase] > 0) {
+            return Double.NaN;
+        }
+        return shift[phase] + sum[phase] / size;
+    }
+
+    public synchronized double getVariance(int phase) {
+        checkPhase(phase);
+        if (size == 0 || nanCount[phase] > 0) {
+            return Double.NaN;
+        }
+        double shiftedMean = sum[phase] / size;
+        return Math.max(sumSq[phase] / size - shiftedMean * shiftedMean, 0.0);
+    }
+
+    public synchronized double getRms(int phase) {
+        double mean = getMean(phase);
+        return Math.sqrt(getVariance(phase) + mean * mean);
+    }
+
+    public synchronized double getMin(int phase) {
+        checkPhase(phase);
+        return minQueues[phase].peek();
+    }
+
+    public synchronized double getMax(int phase) {
+        checkPhase(phase);
+        return maxQueues[phase].peek();
+    }
+
+    /**
+     * Current value of an aggregate for every phase.
+     *
+     * @param name One of "sum", "avg", "min", "max", "var" or "rms"
+     * @return Aggregated values, or null if nothing has been added yet
+     */
+    public synchronized Double[] get(String name) {
+        if (width < 0) {
+            return null;
+        }
+        Double[] result = new Double[width];
+        for (int j = 0; j < width; j++) {
+            switch (name) {
+                case "sum": result[j] = getSum(j); break;
+                case "avg": result[j] = getMean(j); break;
+                case "min": result[j] = getMin(j); break;
+                case "max": result[j] = getMax(j); break;
+                case "var": result[j] = getVariance(j); break;
+                case "rms": result[j] = getRms(j); break;
+                default: throw new IllegalArgumentException("Unknown running aggregate " + name);
+            }
+        }
+        return result;
+    }
+
+    private int nextOffset(int measurementWidth) {
+        if (width < 0) {
+            init(measurementWidth);
+        } else if (measurementWidth != width) {
+            throw new IllegalArgumentException("RunningStatistics: Wrong input length " +
+                    "(actual: " + measurementWidth + ", expected: " + width + ").");
+        }
+        if (size == capacity) {
+            evictOldest();
+        }
+        return ((start + size) % capacity) * width;
+    }
+
+    private void init(int width) {
+        this.width = width;
+        this.values = new double[capacity * width];
+        this.shift = new double[width];
+        this.sum = new double[width];
+        this.sumSq = new double[width];
+        this.nanCount = new int[width];
+        this.minQueues = new MonotonicQueue[width];
+        this.maxQueues = new MonotonicQueue[width];
+        for (int j = 0; j < width; j++) {
+            minQueues[j] = new MonotonicQueue(capacity, true);
+            maxQueues[j] = new MonotonicQueue(capacity, false);
+        }
+    }
+
+    private void insert(int offset) {
+        long seq = inserted++;
+        for (int j = 0; j < width; j++) {
+            double value = values[offset + j];
+            if (Double.isNaN(value)) {
+                nanCount[j]++;
+                continue;
+            }
+            if (size == 0 && nanCount[j] == 0) {
+                shift[j] = value;
+            }
+            double shifted = value - shift[j];
+            sum[j] += shifted;
+            sumSq[j] += shifted * shifted;
+            minQueues[j].push(seq, value);
+            maxQueues[j].push(seq, value);
+        }
+        size++;
+        if (++sinceRebuild >= capacity) {
+            rebuildSums();
+        }
+    }
+
+    private void evictOldest() {
+        int offset = start * width;
+        long seq = inserted - size;
+        for (int j = 0; j < width; j++) {
+            double value = values[offset + j];
+            if (Double.isNaN(value)) {
+                nanCount[j]--;
+                continue;
+            }
+            double shifted = value - shift[j];
+            sum[j] -= shifted;
+            sumSq[j] -= shifted * shifted;
+            minQueues[j].evict(seq);
+            maxQueues[j].evict(seq);
+        }
+        start = (start + 1) % capacity;
+        size--;
+    }
+
+    /** Recompute the sums from the stored values, shifting them by the current mean. */
+    private void rebuildSums() {
+        sinceRebuild = 0;
+        for (int j = 0; j < width; j++) {
+            double newShift = nanCount[j] == 0 && size > 0 ? shift[j] + sum[j] / size : shift[j];
+            double s = 0.0;
+            double sq = 0.0;
+            for (int i = 0; i < size; i++) {
+                double value = values[((start + i) % capacity) * width + j];
+                if (!Double.isNaN(value)) {
+                    double shifted = value - newShift;
+                    s += shifted;
+                    sq += shifted * shifted;
+                }
+            }
+            shift[j] = newShift;
+            sum[j] = s;
+            sumSq[j] = sq;
+        }
+    }
+
+    private void checkPhase(int phase) {
+        if (phase < 0 || phase >= width) {
+            throw new IndexOutOfBoundsException("Phase " + phase + " out of range (width " + width + ")");
+        }
+    }
+
+    /**
+     * Queue of (sequence, value) pairs kept monotonic so that its head is the min (or max) of the values still in
+     * the window.
+     */
+    private static final class MonotonicQueue {
+        private final long[] seqs;
+        private final double[] values;
+        private final boolean min;
+        private int head = 0;
+        private int count = 0;
+
+        MonotonicQueue(int capacity, boolean min) {
+            this.seqs = new long[capacity];
+            this.values = new double[capacity];
+            this.min = min;
+        }
+
+        void push(long seq, double value) {
+            // Drop the values that can no longer be the extreme, as the new one will outlive them
+            while (count > 0) {
+                double tail = values[(head + count - 1) % values.length];
+                if (min ? tail >= value : tail <= value) {
+                    count--;
+                } else {
+                    break;
+                }
+            }
+            int index = (head + count) % values.length;
+            seqs[index] = seq;
+            values[index] = value;
+            count++;
+        }
+
+        void evict(long seq) {
+            if (count > 0 && seqs[head] == seq) {
+                head = (head + 1) % values.length;
+                count--;
+            }
+        }
+
+        double peek() {
+            return count == 0 ? Double.NaN : values[head];
+        }
+    }
+}
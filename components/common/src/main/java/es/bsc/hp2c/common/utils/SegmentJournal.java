@@ -0,0 +1,427 @@
+package es.bsc.hp2c.common.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of byte records stored in memory-mapped segment files of a directory, used to keep data on
+ * local disk while its destination (the database, the broker) is unavailable.
+ *
+ * Every record is stored as [int length][int crc32][long timestamp][payload], and its length is written last, so a
+ * record interrupted by a crash is never read: on open, every segment is scanned up to its first empty or corrupt
+ * record. Records are consumed with peek() and commit(): the committed position is the checkpoint, written atomically
+ * to a separate file, and segments behind it are deleted. Records are therefore delivered at least once.
+ *
+ * Disk usage is bounded by maxBytes: when a new segment does not fit, the oldest one is deleted and its unread records
+ * are counted as dropped.
+ */
+public class SegmentJournal implements Closeable {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int HEADER_BYTES = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final File dir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private Segment head; // Segment where records are appended
+    private long readSegment;
+    private int readOffset;
+    private long appendedRecords = 0;
+    private long droppedRecords = 0;
+    private boolean closed = false;
+
+    /**
+     * Open the journal stored in a directory, creating it if needed, and recover its records and checkpoint.
+     *
+     * @param dir Directory of the segments
+     * @param segmentSize Size in bytes of every segment file, which also bounds the size of a record
+     * @param maxBytes Maximum disk usage; at least two segments are always kept
+     */
+    public SegmentJournal(File dir, int segmentSize, long maxBytes) throws IOException {
+        if (segmentSize <= HEADER_BYTES) {
+            throw new IllegalArgumentException("Segment size must be larger than " + HEADER_BYTES + " bytes");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = Math.max(maxBytes, 2L * segmentSize);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String number = file.getName().substring(SEGMENT_PREFIX.length(),
+                        file.getName().length() - SEGMENT_SUFFIX.length());
+                long id;
+                try {
+                    id = Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (file.length() != segmentSize) {
+                    logger.warn("[SegmentJournal] Ignoring segment " + file + " of unexpected size " + file.length());
+                    continue;
+                }
+                Segment segment = new Segment(id, file);
+                segment.limit = scan(segment.buffer, segmentSize);
+                segments.put(id, segment);
+            }
+        }
+        // Read position: the checkpoint if its segment still exists, or the oldest record
+        readSegment = -1;
+        readOffset = 0;
+        File checkpoint = new File(dir, CHECKPOINT);
+        if (checkpoint.isFile()) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(checkpoint.toPath()));
+            if (data.remaining() == 16) {
+                long segment = data.getLong();
+                int offset = data.getInt();
+                int checksum = data.getInt();
+                if (checksum == (int) (segment * 31 + offset) && segments.containsKey(segment)) {
+                    readSegment = segment;
+                    readOffset = Math.min(offset, segments.get(segment).limit);
+                }
+            }
+        }
+        // Segments behind the checkpoint were already consumed
+        while (!segments.isEmpty() && readSegment >= 0 && segments.firstKey() < readSegment) {
+            delete(segments.firstEntry().getValue());
+        }
+        if (segments.isEmpty()) {
+            head = createSegment(0);
+        } else {
+            head = segments.lastEntry().getValue();
+        }
+        if (readSegment < 0) {
+            readSegment = segments.firstKey();
+            readOffset = 0;
+        }
+        if (!isEmpty()) {
+            logger.info("[SegmentJournal] Recovered " + segments.size() + " segments with "
+                    + getPendingBytes() + " pending bytes from " + dir);
+        }
+    }
+
+    /** Find the end of the valid records of a segment. */
+    private int scan(ByteBuffer buffer, int limit) {
+        int offset = 0;
+        while (offset + HEADER_BYTES <= limit) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > limit) {
+                break;
+            }
+            if (buffer.getInt(offset + 4) != checksum(buffer, offset, length)) {
+                logger.warn("[SegmentJournal] Corrupt record at offset " + offset + ", ignoring the rest of segment");
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + HEADER_BYTES + length);
+        view.position(offset + 8);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append a record with the current time as timestamp.
+     *
+     * @return false if the record is larger than a segment and cannot be stored
+     */
+    public synchronized boolean append(byte[] payload) throws IOException {
+        return append(payload, System.currentTimeMillis());
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param payload Bytes of the record
+     * @param timestamp Time of the record, in milliseconds since the epoch
+     * @return false if the record is larger than a segment and cannot be stored
+     */
+    public synchronized boolean append(byte[] payload, long timestamp) throws IOException {
+        checkOpen();
+        int size = HEADER_BYTES + payload.length;
+        if (payload.length == 0 || size > segmentSize) {
+            return false;
+        }
+        if (head.limit + size > segmentSize) {
+            head.buffer.force();
+            head = createSegment(head.id + 1);
+        }
+        MappedByteBuffer buffer = head.buffer;
+        int offset = head.limit;
+        buffer.putLong(offset + 8, timestamp);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_BYTES);
+        view.put(payload);
+        buffer.putInt(offset + 4, checksum(buffer, offset, payload.length));
+        // The length makes the record visible, so it goes last
+        buffer.putInt(offset, payload.length);
+        head.limit = offset + size;
+        appendedRecords++;
+        return true;
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        // Keep the disk usage bounded by deleting the oldest segments
+        while (!segments.isEmpty() && (segments.size() + 1L) * segmentSize > maxBytes) {
+            Segment oldest = segments.firstEntry().getValue();
+            int from = oldest.id == readSegment ? readOffset : 0;
+            long lost = countRecords(oldest, from);
+            if (lost > 0 && droppedRecords == 0) {
+                logger.warn("[SegmentJournal] " + dir + " is full, dropping its oldest records");
+            }
+            droppedRecords += lost;
+            delete(oldest);
+            if (oldest.id >= readSegment) {
+                readSegment = segments.isEmpty() ? id : segments.firstKey();
+                readOffset = 0;
+            }
+        }
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+        }
+        Segment segment = new Segment(id, file);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private long countRecords(Segment segment, int from) {
+        long count = 0;
+        int offset = from;
+        while (offset < segment.limit) {
+            offset += HEADER_BYTES + segment.buffer.getInt(offset);
+            count++;
+        }
+        return count;
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment.id);
+        if (!segment.file.delete()) {
+            logger.warn("[SegmentJournal] Cannot delete " + segment.file);
+        }
+    }
+
+    /**
+     * Read records after the checkpoint without consuming them.
+     *
+     * @param maxRecords Maximum number of records to return
+     * @param maxBytes Maximum sum of payload sizes; at least one record is returned if any is pending
+     * @return Records in append order, possibly empty
+     */
+    public synchronized List<Record> peek(int maxRecords, long maxBytes) {
+        return peekAfter(null, maxRecords, maxBytes);
+    }
+
+    /**
+     * Read the records that follow one returned by a previous peek without consuming them, so several batches can be
+     * read before the first one is committed.
+     *
+     * @param last Record after which to read, or null to read after the checkpoint
+     * @param maxRecords Maximum number of records to return
+     * @param maxBytes Maximum sum of payload sizes; at least one record is returned if any is pending
+     * @return Records in append order, possibly empty
+     */
+    public synchronized List<Record> peekAfter(Record last, int maxRecords, long maxBytes) {
+        checkOpen();
+        List<Record> records = new ArrayList<>();
+        long bytes = 0;
+        long segmentId = readSegment;
+        int offset = readOffset;
+        if (last != null && (last.segment > readSegment || (last.segment == readSegment && last.end > readOffset))) {
+            // Otherwise the record was committed or dropped meanwhile, so read after the checkpoint
+            segmentId = last.segment;
+            offset = last.end;
+        }
+        while (records.size() < maxRecords) {
+            Segment segment = segments.get(segmentId);
+            if (segment == null) {
+                break;
+            }
+            if (offset >= segment.limit) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(segmentId);
+                if (next == null) {
+                    break;
+                }
+                segmentId = next.getKey();
+                offset = 0;
+                continue;
+            }
+            int length = segment.buffer.getInt(offset);
+            if (!records.isEmpty() && bytes + length > maxBytes) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset + HEADER_BYTES);
+            view.get(payload);
+            long timestamp = segment.buffer.getLong(offset + 8);
+            offset += HEADER_BYTES + length;
+            records.add(new Record(payload, timestamp, segmentId, offset));
+            bytes += length;
+        }
+        return records;
+    }
+
+    /**
+     * Consume every record up to the given one (included), persist the new checkpoint and delete the segments that
+     * were fully consumed.
+     */
+    public synchronized void commit(Record last) throws IOException {
+        checkOpen();
+        if (last.segment < readSegment || (last.segment == readSegment && last.end <= readOffset)) {
+            return; // Already committed, or dropped meanwhile
+        }
+        readSegment = last.segment;
+        readOffset = last.end;
+        writeCheckpoint();
+        while (segments.firstKey() < readSegment) {
+            delete(segments.firstEntry().getValue());
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(16);
+        data.putLong(readSegment).putInt(readOffset).putInt((int) (readSegment * 31 + readOffset));
+        data.flip();
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Write the appended records of the current segment to disk. */
+    public synchronized void flush() {
+        if (!closed) {
+            head.buffer.force();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return getPendingBytes() == 0;
+    }
+
+    /** Bytes of the records not consumed yet, headers included. */
+    public synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            if (segment.id > readSegment) {
+                bytes += segment.limit;
+            } else if (segment.id == readSegment) {
+                bytes += segment.limit - readOffset;
+            }
+        }
+        return bytes;
+    }
+
+    public synchronized long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    /** Records deleted before being consumed because the journal reached maxBytes. */
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Journal " + dir + " is closed");
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            head.buffer.force();
+            closed = true;
+            segments.clear();
+        }
+    }
+
+    /**
+     * Record read from the journal, together with its position to commit it.
+     */
+    public static final class Record {
+        private final byte[] payload;
+        private final long timestamp;
+        private final long segment;
+        private final int end;
+
+        private Record(byte[] payload, long timestamp, long segment, int end) {
+            this.payload = payload;
+            this.timestamp = timestamp;
+            this.segment = segment;
+            this.end = end;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int limit = 0; // End of the valid records
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package es.bsc.hp2c.common.utils;
+
+/**
+ * Recursive sliding-DFT phasor estimator for every phase of a sensor.
+ *
+ * The DFT bin of the nominal frequency is kept over the last N samples, N being the number of samples of an integer
+ * number of cycles. Every sample updates it in O(1) with a precomputed twiddle table:
+ * <pre>
+ *   S += (x[m] - x[m - N]) * W[m mod N],   W[n] = exp(-j * 2 * pi * k * n / N)
+ * </pre>
+ * so no sine or cosine is evaluated per sample. The sum is recomputed exactly every N samples to drop the rounding
+ * error of the recursive updates (amortized O(1)), and at that point the frequency deviation is estimated from the
+ * rotation of the phasor since the previous recomputation.
+ *
+ * Angles are given in degrees in [0, 360), referenced to the Unix epoch as in Aggregates.phasor, so that phasors of
+ * different sensors can be compared.
+ */
+public class SlidingPhasorEstimator {
+    private static final double TWO_PI = 2 * Math.PI;
+
+    private final double frequency;
+    private final double samplingRate;
+    private final int width;
+    private final int length;        // N, number of samples in the DFT window
+    private final int cycles;        // k, number of cycles of the nominal frequency in the DFT window
+    private final double[] cosTable;
+    private final double[] sinTable;
+    private final double[] samples;  // Ring of N * width samples, sample m at position (m mod N)
+    private final double[] re;
+    private final double[] im;
+    private final double[] lastAngle;
+    private final double[] deviation;
+    private long count = 0;
+    private long lastEpochNanos = 0;
+    private long lastRebuildNanos = -1;
+
+    /**
+     * Create an estimator covering as many full cycles of the nominal frequency as fit in windowSamples samples.
+     *
+     * @param frequency Nominal frequency of the signal (Hz)
+     * @param samplingRate Sampling rate of the sensor (Hz)
+     * @param windowSamples Maximum number of samples of the DFT window
+     * @param width Number of phases
+     */
+    public SlidingPhasorEstimator(double frequency, double samplingRate, int windowSamples, int width) {
+        if (frequency <= 0 || samplingRate <= 0 || windowSamples <= 0 || width <= 0) {
+            throw new IllegalArgumentException("Invalid phasor estimator parameters (frequency " + frequency
+                    + ", sampling rate " + samplingRate + ", window " + windowSamples + ", width " + width + ")");
+        }
+        this.frequency = frequency;
+        this.samplingRate = samplingRate;
+        this.width = width;
+        double samplesPerCycle = samplingRate / frequency;
+        this.cycles = Math.max((int) Math.floor(windowSamples / samplesPerCycle), 1);
+        this.length = Math.max((int) Math.round(cycles * samplesPerCycle), 1);
+        this.cosTable = new double[length];
+        this.sinTable = new double[length];
+        for (int n = 0; n < length; n++) {
+            double angle = TWO_PI * cycles * n / length;
+            cosTable[n] = Math.cos(angle);
+            sinTable[n] = Math.sin(angle);
+        }
+        this.samples = new double[length * width];
+        this.re = new double[width];
+        this.im = new double[width];
+        this.lastAngle = new double[width];
+        this.deviation = new double[width];
+    }
+
+    /** Add a sample of every phase. Null values are taken as 0. */
+    public synchronized void add(long epochNanos, Number[] values) {
+        checkWidth(values.length);
+        int n = (int) (count % length);
+        for (int j = 0; j < width; j++) {
+            update(n, j, values[j] == null ? 0.0 : values[j].doubleValue());
+        }
+        advance(epochNanos, n);
+    }
+
+    /** Add a sample of every phase from primitive values. */
+    public synchronized void add(long epochNanos, float[] values) {
+        checkWidth(values.length);
+        int n = (int) (count % length);
+        for (int j = 0; j < width; j++) {
+            update(n, j, values[j]);
+        }
+        advance(epochNanos, n);
+    }
+
+    private void update(int n, int phase, double value) {
+        int index = n * width + phase;
+        double delta = value - samples[index];
+        samples[index] = value;
+        re[phase] += delta * cosTable[n];
+        im[phase] -= delta * sinTable[n];
+    }
+
+    private void advance(long epochNanos, int n) {
+        count++;
+        lastEpochNanos = epochNanos;
+        if (n == length - 1) {
+            rebuild();
+        }
+    }
+
+    /** Recompute the DFT bins from the stored samples and update the frequency deviation. */
+    private void rebuild() {
+        for (int j = 0; j < width; j++) {
+            double r = 0.0;
+            double i = 0.0;
+            for (int n = 0; n < length; n++) {
+                double value = samples[n * width + j];
+                r += value * cosTable[n];
+                i -= value * sinTable[n];
+            }
+            re[j] = r;
+            im[j] = i;
+            double angle = epochAngle(j);
+            if (lastRebuildNanos >= 0 && lastEpochNanos > lastRebuildNanos) {
+                double seconds = (lastEpochNanos - lastRebuildNanos) / 1e9;
+                deviation[j] = wrap(angle - lastAngle[j]) / (TWO_PI * seconds);
+            }
+            lastAngle[j] = angle;
+        }
+        lastRebuildNanos = lastEpochNanos;
+    }
+
+    /** Whether a whole DFT window of samples has been received. */
+    public synchronized boolean isReady() {
+        return count >= length;
+    }
+
+    public double getFrequency() {
+        return frequency;
+    }
+
+    public double getSamplingRate() {
+        return samplingRate;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /** Number of samples of the DFT window. */
+    public int getLength() {
+        return length;
+    }
+
+    /** Amplitude of the nominal frequency component of a phase. */
+    public synchronized double getMagnitude(int phase) {
+        checkPhase(phase);
+        return 2.0 / length * Math.hypot(re[phase], im[phase]);
+    }
+
+    /** Angle of a phase at the newest sample, in degrees in [0, 360) referenced to the Unix epoch. */
+    public synchronized double getAngle(int phase) {
+        checkPhase(phase);
+        double angle = epochAngle(phase) % TWO_PI;
+        if (angle < 0) {
+            angle += TWO_PI;
+        }
+        return Math.toDegrees(angle);
+    }
+
+    /**
+     * Difference between the actual frequency of a phase and the nominal one (Hz), estimated from the rotation of its
+     * phasor over the last DFT window. It is 0 until two windows have been received.
+     */
+    public synchronized double getFrequencyDeviation(int phase) {
+        checkPhase(phase);
+        return deviation[phase];
+    }
+
+    /**
+     * Magnitude, angle and frequency deviation of every phase.
+     *
+     * @return Array of 3 * width values: magnitude, angle and deviation of phase 0, then phase 1, and so on
+     */
+    public synchronized Double[] getPhasors() {
+        Double[] result = new Double[3 * width];
+        for (int j = 0; j < width; j++) {
+            result[3 * j] = getMagnitude(j);
+            result[3 * j + 1] = getAngle(j);
+            result[3 * j + 2] = getFrequencyDeviation(j);
+        }
+        return result;
+    }
+
+    /**
+     * Angle of a phase at the newest sample minus the angle of the nominal frequency at that time since the epoch,
+     * in radians (not normalized).
+     */
+    private double epochAngle(int phase) {
+        // The bin holds the phase at the samples with m mod N == 0. Rotate it to the newest sample
+        int newest = (int) ((count - 1) % length);
+        double rawAngle = Math.atan2(im[phase], re[phase]) + TWO_PI * cycles * newest / length;
+        // Split seconds and nanoseconds to keep the precision of the nominal angle at the current epoch
+        long seconds = Math.floorDiv(lastEpochNanos, 1_000_000_000L);
+        long nanos = Math.floorMod(lastEpochNanos, 1_000_000_000L);
+        double nominalCycles = frac(frequency * seconds) + frequency * nanos / 1e9;
+        return rawAngle - TWO_PI * frac(nominalCycles);
+    }
+
+    private static double frac(double value) {
+        return value - Math.floor(value);
+    }
+
+    /** Wrap an angle in radians to [-pi, pi). */
+    private static double wrap(double angle) {
+        return angle - TWO_PI * Math.floor((angle + Math.PI) / TWO_PI);
+    }
+
+    private void checkWidth(int valueWidth) {
+        if (valueWidth != width) {
+            throw new IllegalArgumentException("SlidingPhasorEstimator: Wrong input length " +
+                    "(actual: " + valueWidth + ", expected: " + width + ").");
+        }
+    }
+
+    private void checkPhase(int phase) {
+        if (phase < 0 || phase >= width) {
+            throw new IndexOutOfBoundsException("Phase " + phase + " out of range (width " + width + ")");
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package es.bsc.hp2c.common.funcs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ActionExecutorTest {
+    private ActionExecutor executor;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void testSubmitDoesNotBlockAndCoalesces() throws InterruptedException {
+        executor = new ActionExecutor(2, 16);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger(0);
+        Action action = new Action((Runnable) () -> {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, null, null);
+
+        executor.submit(action);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // The action is blocked: further triggers return immediately and collapse into one pending run
+        for (int i = 0; i < 100; i++) {
+            executor.submit(action);
+        }
+        assertEquals(1, action.getExecutionState().getInFlight());
+        assertTrue(action.getExecutionState().isPending());
+        assertEquals(99, executor.getCoalesced());
+
+        release.countDown();
+        waitFor(() -> executor.getExecutions() == 2);
+        assertEquals(2, runs.get());
+        assertEquals(0, action.getExecutionState().getInFlight());
+        assertFalse(action.getExecutionState().isPending());
+        assertEquals(101, executor.getTriggers());
+    }
+
+    @Test
+    void testMaxConcurrency() throws InterruptedException {
+        executor = new ActionExecutor(4, 16);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        Action action = new Action((Runnable) () -> {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+        }, null, null);
+        action.setMaxConcurrency(2);
+
+        for (int i = 0; i < 10; i++) {
+            executor.submit(action);
+        }
+        waitFor(() -> running.get() == 2);
+        assertEquals(2, action.getExecutionState().getInFlight());
+        release.countDown();
+        waitFor(() -> action.getExecutionState().getInFlight() == 0);
+        assertEquals(2, maxRunning.get());
+        assertEquals(3, executor.getExecutions());
+    }
+
+    @Test
+    void testDropWhenQueueIsFull() throws InterruptedException {
+        executor = new ActionExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        Action first = new Action(blocking, null, null);
+        Action second = new Action(blocking, null, null);
+        Action third = new Action(blocking, null, null);
+
+        executor.submit(first);
+        waitFor(() -> executor.getActiveThreads() == 1);
+        executor.submit(second);
+        executor.submit(third);
+        assertEquals(1, executor.getQueueDepth());
+        assertEquals(1, executor.getDropped());
+        assertEquals(1, third.getExecutionState().getDropped());
+        assertEquals(0, third.getExecutionState().getInFlight());
+
+        release.countDown();
+        waitFor(() -> executor.getExecutions() == 2);
+    }
+
+    @Test
+    void testFailingActionIsCounted() throws InterruptedException {
+        executor = new ActionExecutor(1, 4);
+        Action action = new Action((Runnable) () -> {
+            throw new IllegalStateException("boom");
+        }, null, null);
+        executor.submit(action);
+        waitFor(() -> executor.getExecutions() == 1);
+        assertEquals(1, executor.getFailed());
+        // The action can still be triggered after a failure
+        executor.submit(action);
+        waitFor(() -> executor.getExecutions() == 2);
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.holds()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for condition");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package es.bsc.hp2c.common.utils;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AmqpConfirmPublisherTest {
+
+    /** Channel that records the routing keys of basicPublish calls and lets the test send confirms. */
+    private static final class FakeChannel {
+        final List<String> routingKeys = Collections.synchronizedList(new ArrayList<>());
+        final AtomicLong nextSeqNo = new AtomicLong(1);
+        ConfirmCallback ack;
+        ConfirmCallback nack;
+        ShutdownListener shutdown;
+        volatile boolean open = true;
+        Connection connection;
+
+        Channel proxy() {
+            return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "isOpen":
+                                return open;
+                            case "getConnection":
+                                return connection;
+                            case "addShutdownListener":
+                                shutdown = (ShutdownListener) args[0];
+                                return null;
+                            case "getNextPublishSeqNo":
+                                return nextSeqNo.get();
+                            case "basicPublish":
+                                nextSeqNo.incrementAndGet();
+                                routingKeys.add((String) args[1]);
+                                return null;
+                            case "addConfirmListener":
+                                if (args.length == 2) {
+                                    ack = (ConfirmCallback) args[0];
+                                    nack = (ConfirmCallback) args[1];
+                                }
+                                return null;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void testWindowOfOutstandingMessages() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        AmqpConfirmPublisher publisher = new AmqpConfirmPublisher(channel.proxy(), 2, 100, 3, 1000, false);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(publisher.publish("measurements", "key" + i, null, new byte[]{(byte) i}));
+        }
+
+        // Assert only two messages are sent until they are confirmed
+        waitFor(() -> channel.routingKeys.size() == 2);
+        assertEquals(5, publisher.getQueued());
+
+        // Confirm both at once and assert the next two are sent
+        channel.ack.handle(2, true);
+        futures.get(1).get(5, TimeUnit.SECONDS);
+        assertTrue(futures.get(0).isDone());
+        assertFalse(futures.get(2).isDone());
+        waitFor(() -> channel.routingKeys.size() == 4);
+
+        channel.ack.handle(3, false);
+        channel.ack.handle(5, true);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        assertEquals(5, publisher.getAcked());
+        assertEquals(0, publisher.getQueued());
+        publisher.close();
+    }
+
+    @Test
+    void testChannelClosedByTheBrokerIsReplaced() throws Exception {
+        FakeChannel first = new FakeChannel();
+        FakeChannel second = new FakeChannel();
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "createChannel":
+                            return second.proxy();
+                        default:
+                            return null;
+                    }
+                });
+        first.connection = connection;
+        second.connection = connection;
+        Channel firstChannel = first.proxy();
+        AmqpConfirmPublisher publisher = new AmqpConfirmPublisher(firstChannel, 10, 100, 3, 10, false);
+        CompletableFuture<Void> unconfirmed = publisher.publish("measurements", "key0", null, new byte[]{0});
+        waitFor(() -> first.routingKeys.size() == 1);
+
+        // Close the channel at channel level, the connection stays open
+        first.open = false;
+        first.shutdown.shutdownCompleted(new ShutdownSignalException(false, false, null, null));
+        CompletableFuture<Void> next = publisher.publish("measurements", "key1", null, new byte[]{1});
+
+        // Assert both messages are sent through a new channel in confirm mode and confirmed there
+        waitFor(() -> second.routingKeys.size() == 2);
+        assertEquals(Arrays.asList("key0", "key1"), second.routingKeys);
+        waitFor(() -> second.ack != null);
+        second.ack.handle(2, true);
+        CompletableFuture.allOf(unconfirmed, next).get(5, TimeUnit.SECONDS);
+        assertNotSame(firstChannel, publisher.getChannel());
+        assertEquals(2, publisher.getAcked());
+        publisher.close();
+    }
+
+    @Test
+    void testNackedMessagesAreResent() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        AmqpConfirmPublisher publisher = new AmqpConfirmPublisher(channel.proxy(), 10, 100, 1, 1000, false);
+        CompletableFuture<Void> future = publisher.publish("measurements", "key", null, new byte[1]);
+        waitFor(() -> channel.routingKeys.size() == 1);
+
+        // Assert the first nack resends the message and the second one fails it
+        channel.nack.handle(1, false);
+        waitFor(() -> channel.routingKeys.size() == 2);
+        assertEquals(1, publisher.getResent());
+        channel.nack.handle(2, false);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause().getMessage().contains("nacked"));
+        assertEquals(1, publisher.getFailed());
+        publisher.close();
+    }
+
+    @Test
+    void testOrderedByRoutingKey() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        AmqpConfirmPublisher publisher = new AmqpConfirmPublisher(channel.proxy(), 10, 100, 3, 1000, true);
+        publisher.publish("measurements", "a", null, new byte[1]);
+        publisher.publish("measurements", "a", null, new byte[1]);
+        publisher.publish("measurements", "b", null, new byte[1]);
+
+        // Assert the second message of "a" waits for the first one while "b" is pipelined
+        waitFor(() -> channel.routingKeys.size() == 2);
+        Thread.sleep(20);
+        assertEquals(2, channel.routingKeys.size());
+        assertEquals("b", channel.routingKeys.get(1));
+
+        // A resent message keeps its place before the next message of its routing key
+        channel.nack.handle(1, false);
+        waitFor(() -> channel.routingKeys.size() == 3);
+        channel.ack.handle(3, false);
+        waitFor(() -> channel.routingKeys.size() == 4);
+        assertEquals("a", channel.routingKeys.get(2));
+        assertEquals("a", channel.routingKeys.get(3));
+        publisher.close();
+    }
+}
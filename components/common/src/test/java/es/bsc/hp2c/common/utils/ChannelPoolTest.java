@@ -0,0 +1,165 @@
+package es.bsc.hp2c.common.utils;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChannelPoolTest {
+
+    /** Channel whose open state is controlled by the test. */
+    private static Channel channel(AtomicBoolean open) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return open.get();
+                        case "close":
+                            open.set(false);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /** Connection that creates open channels and records the state flag of the last one. */
+    private static Connection connection(AtomicBoolean connectionOpen, AtomicReference<AtomicBoolean> lastChannel) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return connectionOpen.get();
+                        case "createChannel":
+                            AtomicBoolean open = new AtomicBoolean(true);
+                            lastChannel.set(open);
+                            return channel(open);
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    @Test
+    void testChannelsPerThreadAndSubsystem() throws Exception {
+        AtomicInteger initialized = new AtomicInteger(0);
+        ChannelPool pool = new ChannelPool(connection(new AtomicBoolean(true), new AtomicReference<>()),
+                channel -> initialized.incrementAndGet());
+
+        Channel mine = pool.forThread();
+        assertSame(mine, pool.forThread());
+        AtomicReference<Channel> other = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                other.set(pool.forThread());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // Assert every thread and subsystem gets its own channel, initialized once
+        assertNotNull(other.get());
+        assertNotSame(mine, other.get());
+        Channel heartbeat = pool.get("Heartbeat");
+        assertSame(heartbeat, pool.get("Heartbeat"));
+        assertNotSame(heartbeat, pool.get("Journal"));
+        assertEquals(4, pool.getCreated());
+        assertEquals(4, initialized.get());
+
+        pool.close();
+        assertFalse(heartbeat.isOpen());
+    }
+
+    @Test
+    void testClosedChannelIsReplaced() throws Exception {
+        AtomicBoolean connectionOpen = new AtomicBoolean(true);
+        AtomicReference<AtomicBoolean> lastChannel = new AtomicReference<>();
+        ChannelPool pool = new ChannelPool(connection(connectionOpen, lastChannel), null);
+
+        Channel first = pool.get("Publisher");
+        AtomicBoolean firstOpen = lastChannel.get();
+
+        // While the connection is down, the channel is kept for the client library to recover it
+        connectionOpen.set(false);
+        firstOpen.set(false);
+        assertSame(first, pool.get("Publisher"));
+
+        // A channel closed on an open connection is replaced
+        connectionOpen.set(true);
+        Channel second = pool.get("Publisher");
+        assertNotSame(first, second);
+        assertTrue(second.isOpen());
+        assertEquals(1, pool.getReplaced());
+    }
+
+    @Test
+    void testConsumerIsSubscribedAgainWhenTheBrokerClosesItsChannel() throws Exception {
+        List<ShutdownListener> listeners = Collections.synchronizedList(new ArrayList<>());
+        List<AtomicBoolean> channelStates = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean connectionOpen = new AtomicBoolean(true);
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return connectionOpen.get();
+                        case "createChannel":
+                            AtomicBoolean open = new AtomicBoolean(true);
+                            channelStates.add(open);
+                            Channel channel = channel(open);
+                            return Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                                    new Class<?>[]{Channel.class}, (p, m, a) -> {
+                                        if (m.getName().equals("addShutdownListener")) {
+                                            listeners.add((ShutdownListener) a[0]);
+                                            return null;
+                                        }
+                                        return m.invoke(channel, a);
+                                    });
+                        default:
+                            return null;
+                    }
+                });
+        ChannelPool pool = new ChannelPool(connection, null);
+        List<Channel> subscribed = Collections.synchronizedList(new ArrayList<>());
+        pool.subscribe("Consumer", subscribed::add);
+        assertEquals(1, subscribed.size());
+
+        // A close of the application does not subscribe again
+        listeners.get(0).shutdownCompleted(new ShutdownSignalException(false, true, null, null));
+        // A channel error closes the channel while the connection stays open
+        channelStates.get(0).set(false);
+        listeners.get(0).shutdownCompleted(new ShutdownSignalException(false, false, null, null));
+
+        // Assert the consumer is set up on a new open channel, which is watched again
+        waitFor(() -> subscribed.size() == 2);
+        assertNotSame(subscribed.get(0), subscribed.get(1));
+        assertTrue(subscribed.get(1).isOpen());
+        assertEquals(2, listeners.size());
+        assertEquals(1, pool.getReplaced());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
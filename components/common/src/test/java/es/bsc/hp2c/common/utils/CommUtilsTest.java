@@ -1,6 +1,9 @@
 package es.bsc.hp2c.common.utils;
 
+import com.rabbitmq.client.AMQP;
+
 import java.nio.ByteBuffer;
+import java.time.Instant;
 
 import static es.bsc.hp2c.common.utils.CommUtils.BytesToFloatArray;
 import static es.bsc.hp2c.common.utils.CommUtils.FloatArrayToBytes;
@@ -8,6 +11,18 @@ import static org.junit.jupiter.api.Assertions.*;
 
 class CommUtilsTest {
 
+    @org.junit.jupiter.api.Test
+    void replayProperties() {
+        Instant stored = Instant.ofEpochSecond(1700000000L, 5);
+        AMQP.BasicProperties props = CommUtils.createAmqpReplayProperties(stored);
+
+        assertTrue(CommUtils.isReplay(props));
+        assertEquals(1700000000L, props.getHeaders().get("epochSeconds"));
+        assertEquals(5, props.getHeaders().get("nanos"));
+        assertFalse(CommUtils.isReplay(CommUtils.createAmqpPropertiesNanos()));
+        assertFalse(CommUtils.isReplay(null));
+    }
+
     @org.junit.jupiter.api.Test
     void floatArrayToBytes() {
         // Create a sample float array
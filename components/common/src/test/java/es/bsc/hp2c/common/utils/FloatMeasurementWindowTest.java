@@ -0,0 +1,80 @@
+package es.bsc.hp2c.common.utils;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FloatMeasurementWindowTest {
+
+    @org.junit.jupiter.api.Test
+    void testAddMeasurementAndGetMeasurementOlderToNewer() {
+        FloatMeasurementWindow window = new FloatMeasurementWindow(3);
+        Instant now = Instant.now();
+
+        // Add four measurements (exceeding capacity)
+        for (int i = 0; i < 4; i++) {
+            window.addMeasurement(now.plusSeconds(i), new Float[]{(float) i, (float) i * 10});
+        }
+
+        Measurement<Float[]>[] measurements = window.getMeasurementsOlderToNewer();
+
+        // Assert size == 3, oldest measurement was evicted and timestamps are preserved
+        assertEquals(3, window.getSize());
+        assertEquals(3, window.getCapacity());
+        assertEquals(2, window.getWidth());
+        assertArrayEquals(new Float[]{1f, 10f}, measurements[0].getValue());
+        assertArrayEquals(new Float[]{3f, 30f}, measurements[2].getValue());
+        assertEquals(now.plusSeconds(1), measurements[0].getTimestamp());
+        assertEquals(now.plusSeconds(3), window.getLastMeasurement().getTimestamp());
+        assertEquals(now.plusSeconds(1), window.getFirstMeasurement().getTimestamp());
+        assertArrayEquals(new Float[]{3f, 30f}, window.getMeasurementsNewerToOlder()[0].getValue());
+        assertEquals(Duration.ofSeconds(2), window.getTotalTimeSpan());
+        assertEquals(1.0, window.getSamplingRate(), 1e-9);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testPrimitiveInsertCopiesInput() {
+        FloatMeasurementWindow window = new FloatMeasurementWindow(2, 3);
+        float[] frame = {1f, 2f, 3f};
+
+        window.addMeasurement(100L, frame);
+        frame[0] = 42f;
+        window.addMeasurement(200L, frame);
+
+        // Assert the window kept its own copy of the first frame
+        assertEquals(1f, window.getValue(0, 0));
+        assertEquals(42f, window.getValue(1, 0));
+        assertEquals(100L, window.getTimestampNanos(0));
+
+        float[] last = new float[3];
+        assertEquals(200L, window.copyLastValues(last));
+        assertArrayEquals(new float[]{42f, 2f, 3f}, last);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testWidthMismatch() {
+        FloatMeasurementWindow window = new FloatMeasurementWindow(2);
+        window.addMeasurement(Instant.now(), new Float[]{1f});
+
+        // Assert measurements must keep the width of the first insert
+        assertThrows(IllegalArgumentException.class, () -> window.addMeasurement(0L, new float[]{1f, 2f}));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testEncodeAsMeasurementWindow() {
+        FloatMeasurementWindow window = new FloatMeasurementWindow(4);
+        Instant now = Instant.now();
+        window.addMeasurement(now, new Float[]{1f, 2f, 3f});
+        window.addMeasurement(now.plusMillis(1), new Float[]{4f, 5f, 6f});
+
+        MeasurementWindow<Float[]> decoded = MeasurementWindow.decode(window.encode());
+
+        // Assert receivers get a regular window with the same content
+        assertEquals(MeasurementWindow.class, decoded.getClass());
+        assertEquals(4, decoded.getCapacity());
+        assertEquals(2, decoded.getSize());
+        assertEquals(now, decoded.getFirstMeasurement().getTimestamp());
+        assertArrayEquals(new Float[]{4f, 5f, 6f}, decoded.getLastMeasurement().getValue());
+    }
+}
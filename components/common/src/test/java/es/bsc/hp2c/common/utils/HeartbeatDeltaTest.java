@@ -0,0 +1,42 @@
+package es.bsc.hp2c.common.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeartbeatDeltaTest {
+
+    private static JSONObject setup(long heartbeat, boolean availability, String ip) {
+        JSONObject jGlobalProps = new JSONObject()
+                .put("label", "edge1")
+                .put("heartbeat", heartbeat)
+                .put("available", true)
+                .put("comms", new JSONObject().put("opal-tcp", new JSONObject().put("ip", ip)));
+        JSONArray jDevices = new JSONArray()
+                .put(new JSONObject().put("label", "Voltmeter 1").put("availability", availability))
+                .put(new JSONObject().put("label", "Switch 1").put("availability", true));
+        return new JSONObject().put("global-properties", jGlobalProps).put("devices", jDevices);
+    }
+
+    @Test
+    void testSetupHashIgnoresHeartbeatFields() {
+        String hash = HeartbeatDelta.setupHash(setup(1000L, true, "10.0.0.1"));
+        assertEquals(hash, HeartbeatDelta.setupHash(setup(2000L, false, "10.0.0.1")));
+        assertNotEquals(hash, HeartbeatDelta.setupHash(setup(1000L, true, "10.0.0.2")));
+    }
+
+    @Test
+    void testDeltaRoundTrip() {
+        boolean[] availability = new boolean[]{true, false, false, true, true, false, true, false, true};
+        JSONObject jDelta = HeartbeatDelta.build("edge1", "hash", availability, 1234L);
+        assertTrue(HeartbeatDelta.isDelta(new JSONObject(jDelta.toString())));
+        assertFalse(HeartbeatDelta.isDelta(setup(1000L, true, "10.0.0.1")));
+
+        boolean[] decoded = HeartbeatDelta.decodeAvailability(jDelta.getString(HeartbeatDelta.AVAILABILITY),
+                jDelta.getInt(HeartbeatDelta.DEVICE_COUNT));
+        assertArrayEquals(availability, decoded);
+        assertEquals(1234L, jDelta.getJSONObject("global-properties").getLong("heartbeat"));
+    }
+}
@@ -0,0 +1,43 @@
+package es.bsc.hp2c.common.utils;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MeasurementBatchTest {
+
+    @org.junit.jupiter.api.Test
+    void testEncodeDecode() {
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(2);
+        window.addMeasurement(Instant.now(), new Float[]{1f, 2f, 3f});
+        MeasurementBatch batch = new MeasurementBatch();
+        batch.add("Voltmeter1", window.encode());
+        batch.add("Àmmeter2", new byte[0]);
+
+        byte[] data = batch.encode();
+        MeasurementBatch decoded = MeasurementBatch.decode(data);
+
+        // Assert batches are recognised and every entry keeps its label and window
+        assertTrue(MeasurementBatch.isBatch(data));
+        assertFalse(MeasurementBatch.isBatch(window.encode()));
+        assertTrue(data.length <= batch.getEncodedSize());
+        List<MeasurementBatch.Entry> entries = decoded.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("Voltmeter1", entries.get(0).getDevice());
+        assertEquals("Àmmeter2", entries.get(1).getDevice());
+        assertEquals(0, entries.get(1).getWindow().length);
+        MeasurementWindow<?> decodedWindow = MeasurementWindow.decode(entries.get(0).getWindow());
+        assertArrayEquals(new Float[]{1f, 2f, 3f}, (Float[]) decodedWindow.getLastMeasurement().getValue());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testMalformedBatch() {
+        MeasurementBatch batch = new MeasurementBatch();
+        batch.add("Voltmeter1", new byte[]{1, 2, 3});
+        byte[] data = batch.encode();
+        byte[] truncated = java.util.Arrays.copyOf(data, data.length - 1);
+
+        assertThrows(IllegalArgumentException.class, () -> MeasurementBatch.decode(truncated));
+    }
+}
@@ -0,0 +1,136 @@
+package es.bsc.hp2c.common.utils;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MeasurementWindowCodecTest {
+
+    @org.junit.jupiter.api.Test
+    void testFloatWindowRoundTrip() {
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(5);
+        Instant now = Instant.ofEpochSecond(1_700_000_000L, 123_456_789);
+        for (int i = 0; i < 7; i++) {
+            window.addMeasurement(now.plusNanos(i * 1_000_000L), new Float[]{(float) i, i + 0.5f, (float) -i});
+        }
+
+        byte[] data = window.encode();
+        MeasurementWindow<?> decoded = MeasurementWindow.decode(data);
+
+        // Assert the binary format is used and every measurement is preserved, from older to newer
+        assertTrue(MeasurementWindowCodec.isBinary(data));
+        assertFalse(MeasurementWindowCodec.isLegacy(data));
+        assertEquals(5, decoded.getCapacity());
+        assertEquals(5, decoded.getSize());
+        Measurement<Float[]>[] expected = window.getMeasurementsOlderToNewer();
+        Measurement<?>[] actual = decoded.getMeasurementsOlderToNewer();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getTimestamp(), actual[i].getTimestamp());
+            assertArrayEquals(expected[i].getValue(), (Float[]) actual[i].getValue());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void testDoubleValuesAndUnorderedTimestamps() {
+        // Aggregates such as "all" insert measurements from newer to older
+        MeasurementWindow<Number[]> window = new MeasurementWindow<>(3);
+        Instant now = Instant.now();
+        window.addMeasurement(now, new Number[]{1.0, 2.0});
+        window.addMeasurement(now.minusSeconds(1), new Number[]{3.0, 4.0f});
+
+        MeasurementWindow<?> decoded = MeasurementWindowCodec.decode(MeasurementWindowCodec.encode(window));
+
+        // Assert values are kept in double precision and negative deltas are supported
+        Measurement<?>[] measurements = decoded.getMeasurementsOlderToNewer();
+        assertEquals(now, measurements[0].getTimestamp());
+        assertEquals(now.minusSeconds(1), measurements[1].getTimestamp());
+        assertArrayEquals(new Double[]{3.0, 4.0}, (Double[]) measurements[1].getValue());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testColumnarWindowMatchesRegularWindow() {
+        FloatMeasurementWindow columnar = new FloatMeasurementWindow(4);
+        MeasurementWindow<Float[]> regular = new MeasurementWindow<>(4);
+        Instant now = Instant.now();
+        for (int i = 0; i < 6; i++) {
+            Float[] values = new Float[]{i * 1.5f};
+            columnar.addMeasurement(now.plusMillis(i), values);
+            regular.addMeasurement(now.plusMillis(i), values);
+        }
+
+        // Assert both window implementations produce the same message
+        assertArrayEquals(regular.encode(), columnar.encode());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testLegacyFormat() {
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(2);
+        window.addMeasurement(Instant.now(), new Float[]{1f, 2f});
+        MeasurementWindow<String> states = new MeasurementWindow<>(2);
+        states.addMeasurement(Instant.now(), "ON");
+
+        byte[] legacy = window.encodeLegacy();
+
+        // Assert legacy messages are still decoded and non-numeric windows fall back to Java serialization
+        assertTrue(MeasurementWindowCodec.isLegacy(legacy));
+        assertArrayEquals(new Float[]{1f, 2f}, (Float[]) MeasurementWindow.decode(legacy).getLastMeasurement().getValue());
+        assertNull(MeasurementWindowCodec.encode(states));
+        assertTrue(MeasurementWindowCodec.isLegacy(states.encode()));
+        assertEquals("ON", MeasurementWindow.decode(states.encode()).getLastMeasurement().getValue());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testBinaryIsSmallerThanLegacy() {
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(100);
+        Instant now = Instant.now();
+        for (int i = 0; i < 100; i++) {
+            window.addMeasurement(now.plusNanos(i * 200_000L), new Float[]{230f, 231f, 229f});
+        }
+
+        // Assert the binary message is at least four times smaller
+        assertTrue(window.encode().length * 4 < window.encodeLegacy().length);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testTruncatedMessage() {
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(2);
+        window.addMeasurement(Instant.now(), new Float[]{1f, 2f});
+        byte[] data = window.encode();
+        byte[] truncated = java.util.Arrays.copyOf(data, data.length - 1);
+
+        assertThrows(IllegalArgumentException.class, () -> MeasurementWindowCodec.decode(truncated));
+    }
+
+    /** Binary message with the given header, followed by a timestamp and the given number of value bytes. */
+    private static byte[] message(long capacity, long count, long width, int valueBytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 + valueBytes);
+        buffer.put((byte) 0x48).put((byte) 0x57).put(MeasurementWindowCodec.VERSION).put((byte) 0);
+        MeasurementWindowCodec.putVarint(buffer, capacity);
+        MeasurementWindowCodec.putVarint(buffer, count);
+        MeasurementWindowCodec.putVarint(buffer, width);
+        buffer.putLong(System.nanoTime());
+        buffer.position(buffer.position() + valueBytes);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testMalformedHeadersAreRejected() {
+        // A well-formed header is accepted
+        assertEquals(1, MeasurementWindowCodec.decode(message(4, 1, 2, 2 * Float.BYTES)).getSize());
+
+        // Assert sizes that do not match the received bytes are rejected before allocating the window or the values
+        assertThrows(IllegalArgumentException.class, () -> MeasurementWindowCodec.decode(message(0, 0, 2, 0)));
+        assertThrows(IllegalArgumentException.class,
+                () -> MeasurementWindowCodec.decode(message(Integer.MAX_VALUE, 1, 2, 2 * Float.BYTES)));
+        assertThrows(IllegalArgumentException.class,
+                () -> MeasurementWindowCodec.decode(message(-1L, 1, 2, 2 * Float.BYTES)));
+        assertThrows(IllegalArgumentException.class,
+                () -> MeasurementWindowCodec.decode(message(4, 1, Integer.MAX_VALUE, 2 * Float.BYTES)));
+        assertThrows(IllegalArgumentException.class,
+                () -> MeasurementWindowCodec.decode(message(4, 2, 2, 2 * Float.BYTES)));
+        assertThrows(IllegalArgumentException.class,
+                () -> MeasurementWindowCodec.decode(message(4, 1, 3, 2 * Float.BYTES)));
+    }
+}
@@ -0,0 +1,147 @@
+package es.bsc.hp2c.common.utils;
+
+import es.bsc.hp2c.common.utils.PeriodicScheduler.MissedTicks;
+import es.bsc.hp2c.common.utils.PeriodicScheduler.ScheduledTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeriodicSchedulerTest {
+    private PeriodicScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void testFixedRateRunsPeriodically() throws InterruptedException {
+        scheduler = new PeriodicScheduler(2, 16);
+        AtomicInteger counter = new AtomicInteger(0);
+        ScheduledTask task = scheduler.scheduleAtFixedRate("counter", counter::incrementAndGet, 0, 5);
+
+        waitFor(() -> task.getRuns() >= 5);
+        assertTrue(counter.get() >= 5);
+        assertTrue(task.getRunTimes().getCount() >= 5);
+        assertTrue(task.getStartDelays().getCount() >= 5);
+    }
+
+    @Test
+    void testOverrunsAreSkipped() throws InterruptedException {
+        scheduler = new PeriodicScheduler(2, 16);
+        AtomicInteger concurrent = new AtomicInteger(0);
+        AtomicInteger maxConcurrent = new AtomicInteger(0);
+        ScheduledTask task = scheduler.scheduleAtFixedRate("slow", () -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            sleep(30);
+            concurrent.decrementAndGet();
+        }, 0, 5, MissedTicks.SKIP);
+
+        waitFor(() -> task.getRuns() >= 3);
+        task.cancel();
+        // Ticks during a run never start a second run of the same task
+        assertEquals(1, maxConcurrent.get());
+        assertTrue(task.getOverruns() > 0);
+        assertEquals(task.getOverruns(), task.getSkipped());
+    }
+
+    @Test
+    void testCatchUpRunsMissedTicks() throws InterruptedException {
+        scheduler = new PeriodicScheduler(1, 16);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger(0);
+        ScheduledTask task = scheduler.scheduleAtFixedRate("blocked", () -> {
+            if (runs.incrementAndGet() == 1) {
+                await(release);
+            }
+        }, 0, 5, MissedTicks.CATCH_UP);
+
+        waitFor(() -> task.getOverruns() >= 3);
+        long missed = task.getOverruns();
+        release.countDown();
+        // The first run is followed by one run per tick missed while it was blocked
+        waitFor(() -> task.getRuns() >= 1 + missed);
+        assertEquals(0, task.getSkipped());
+    }
+
+    @Test
+    void testSlowTaskDoesNotDelayOthers() throws InterruptedException {
+        scheduler = new PeriodicScheduler(2, 16);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.scheduleAtFixedRate("stuck", () -> await(release), 0, 5);
+        CountDownLatch latch = new CountDownLatch(5);
+        scheduler.scheduleAtFixedRate("fast", latch::countDown, 0, 5);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    void testFixedDelayAndCancel() throws InterruptedException {
+        scheduler = new PeriodicScheduler(1, 16);
+        CountDownLatch latch = new CountDownLatch(3);
+        ScheduledTask task = scheduler.scheduleWithFixedDelay("delay", latch::countDown, 0, 5);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        task.cancel();
+        long runs = task.getRuns();
+        Thread.sleep(50);
+        assertTrue(task.getRuns() <= runs + 1);
+        assertFalse(scheduler.getTasks().contains(task));
+    }
+
+    @Test
+    void testLatencyHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.getMaxNanos());
+        // Percentiles are bucket upper bounds, within a factor of two of the recorded value
+        long p50 = histogram.getPercentileNanos(50);
+        assertTrue(p50 >= TimeUnit.MICROSECONDS.toNanos(100) && p50 <= TimeUnit.MICROSECONDS.toNanos(200));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.getPercentileNanos(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileNanos(99));
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.holds()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for condition");
+            Thread.sleep(1);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
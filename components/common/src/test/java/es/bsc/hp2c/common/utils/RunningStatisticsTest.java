@@ -0,0 +1,123 @@
+package es.bsc.hp2c.common.utils;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RunningStatisticsTest {
+    private static final double DELTA = 1e-6;
+
+    @Test
+    void testMatchesRecomputationOverSlidingWindow() {
+        int capacity = 50;
+        RunningStatistics statistics = new RunningStatistics(capacity);
+        float[][] history = new float[1000][];
+        Random random = new Random(42);
+        for (int n = 0; n < history.length; n++) {
+            // Large offset with small noise, where naive sums of squares lose precision
+            history[n] = new float[]{230f + random.nextFloat(), -5f + 10 * random.nextFloat()};
+            statistics.add(history[n]);
+
+            int from = Math.max(0, n - capacity + 1);
+            for (int phase = 0; phase < 2; phase++) {
+                double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+                for (int i = from; i <= n; i++) {
+                    sum += history[i][phase];
+                    min = Math.min(min, history[i][phase]);
+                    max = Math.max(max, history[i][phase]);
+                }
+                int count = n - from + 1;
+                double mean = sum / count;
+                double var = 0, sumSq = 0;
+                for (int i = from; i <= n; i++) {
+                    var += (history[i][phase] - mean) * (history[i][phase] - mean);
+                    sumSq += (double) history[i][phase] * history[i][phase];
+                }
+                var /= count;
+
+                assertEquals(count, statistics.getCount());
+                assertEquals(sum, statistics.getSum(phase), 1e-3);
+                assertEquals(mean, statistics.getMean(phase), DELTA);
+                assertEquals(min, statistics.getMin(phase), 0.0);
+                assertEquals(max, statistics.getMax(phase), 0.0);
+                assertEquals(var, statistics.getVariance(phase), DELTA);
+                assertEquals(Math.sqrt(sumSq / count), statistics.getRms(phase), DELTA);
+            }
+        }
+    }
+
+    @Test
+    void testNaNValues() {
+        RunningStatistics statistics = new RunningStatistics(3);
+        statistics.add(new Float[]{1f});
+        statistics.add(new Float[]{null});
+        statistics.add(new Float[]{3f});
+
+        // Assert NaN spoils the sums while it is in the window, but not min and max
+        assertTrue(Double.isNaN(statistics.getMean(0)));
+        assertEquals(1.0, statistics.getMin(0));
+        assertEquals(3.0, statistics.getMax(0));
+
+        statistics.add(new Float[]{5f});
+        statistics.add(new Float[]{7f});
+        assertEquals(5.0, statistics.getMean(0), DELTA);
+        assertEquals(3.0, statistics.getMin(0));
+    }
+
+    @Test
+    void testWrongWidth() {
+        RunningStatistics statistics = new RunningStatistics(3);
+        statistics.add(new float[]{1f, 2f});
+        assertThrows(IllegalArgumentException.class, () -> statistics.add(new float[]{1f}));
+    }
+
+    @Test
+    void testWindowStatistics() {
+        FloatMeasurementWindow window = new FloatMeasurementWindow(4, 1);
+        window.addMeasurement(Instant.now(), new Float[]{1f});
+        window.addMeasurement(Instant.now(), new Float[]{2f});
+        // Enabling statistics takes the measurements already stored
+        RunningStatistics statistics = window.enableStatistics();
+        assertEquals(2, statistics.getCount());
+        for (int i = 3; i <= 6; i++) {
+            window.addMeasurement(CommUtils.epochNanos(), new float[]{i});
+        }
+        assertEquals(4, statistics.getCount());
+        assertEquals(18.0, statistics.getSum(0), DELTA);
+        assertSame(statistics, window.enableStatistics());
+    }
+
+    @Test
+    void testAggregatesWithAndWithoutStatistics() {
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(3);
+        for (int i = 1; i <= 5; i++) {
+            window.addMeasurement(Instant.now(), new Float[]{(float) i, (float) -i});
+        }
+        JSONObject jArgs = new JSONObject();
+
+        // Without statistics the aggregates are computed over the window
+        Number[] sum = Aggregates.sum(window, jArgs).getLastMeasurement().getValue();
+        Number[] max = Aggregates.max(window, jArgs).getLastMeasurement().getValue();
+        assertEquals(12.0, sum[0].doubleValue(), DELTA);
+        assertEquals(-12.0, sum[1].doubleValue(), DELTA);
+        assertEquals(5.0, max[0].doubleValue(), DELTA);
+        assertEquals(-3.0, max[1].doubleValue(), DELTA);
+
+        window.enableStatistics();
+        window.addMeasurement(Instant.now(), new Float[]{6f, -6f});
+        Number[] avg = Aggregates.avg(window, jArgs).getLastMeasurement().getValue();
+        Number[] min = Aggregates.min(window, jArgs).getLastMeasurement().getValue();
+        Number[] var = Aggregates.var(window, jArgs).getLastMeasurement().getValue();
+        Number[] rms = Aggregates.rms(window, jArgs).getLastMeasurement().getValue();
+        assertEquals(5.0, avg[0].doubleValue(), DELTA);
+        assertEquals(4.0, min[0].doubleValue(), DELTA);
+        assertEquals(2.0 / 3.0, var[0].doubleValue(), DELTA);
+        assertEquals(Math.sqrt(77.0 / 3.0), rms[1].doubleValue(), DELTA);
+        assertTrue(Aggregates.isRunning("rms"));
+        assertFalse(Aggregates.isRunning("phasor"));
+    }
+}
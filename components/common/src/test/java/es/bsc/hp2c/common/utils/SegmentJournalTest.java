@@ -0,0 +1,122 @@
+package es.bsc.hp2c.common.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentJournalTest {
+    private static final int SEGMENT_SIZE = 1024;
+
+    @TempDir
+    File dir;
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> drain(SegmentJournal journal) throws IOException {
+        List<String> result = new ArrayList<>();
+        List<SegmentJournal.Record> records;
+        while (!(records = journal.peek(7, Long.MAX_VALUE)).isEmpty()) {
+            for (SegmentJournal.Record r : records) {
+                result.add(new String(r.getPayload(), StandardCharsets.UTF_8));
+            }
+            journal.commit(records.get(records.size() - 1));
+        }
+        return result;
+    }
+
+    @Test
+    void testRecordsAreReadInOrderAcrossSegments() throws IOException {
+        try (SegmentJournal journal = new SegmentJournal(dir, SEGMENT_SIZE, 1024 * SEGMENT_SIZE)) {
+            for (int i = 0; i < 200; i++) {
+                assertTrue(journal.append(record(i), 1000 + i));
+            }
+            assertTrue(journal.getSegments() > 1);
+            List<SegmentJournal.Record> first = journal.peek(1, Long.MAX_VALUE);
+            assertEquals(1000, first.get(0).getTimestamp());
+
+            List<String> read = drain(journal);
+            assertEquals(200, read.size());
+            for (int i = 0; i < 200; i++) {
+                assertEquals("record-" + i, read.get(i));
+            }
+            // Consumed segments are deleted
+            assertTrue(journal.isEmpty());
+            assertEquals(1, journal.getSegments());
+        }
+    }
+
+    @Test
+    void testRecoversUncommittedRecordsAfterReopen() throws IOException {
+        try (SegmentJournal journal = new SegmentJournal(dir, SEGMENT_SIZE, 1024 * SEGMENT_SIZE)) {
+            for (int i = 0; i < 100; i++) {
+                journal.append(record(i));
+            }
+            List<SegmentJournal.Record> records = journal.peek(40, Long.MAX_VALUE);
+            journal.commit(records.get(records.size() - 1));
+            // Read but not committed: must be delivered again
+            journal.peek(10, Long.MAX_VALUE);
+        }
+        try (SegmentJournal journal = new SegmentJournal(dir, SEGMENT_SIZE, 1024 * SEGMENT_SIZE)) {
+            List<String> read = drain(journal);
+            assertEquals(60, read.size());
+            assertEquals("record-40", read.get(0));
+            assertEquals("record-99", read.get(59));
+        }
+    }
+
+    @Test
+    void testIgnoresTornRecord() throws IOException {
+        try (SegmentJournal journal = new SegmentJournal(dir, SEGMENT_SIZE, 1024 * SEGMENT_SIZE)) {
+            for (int i = 0; i < 3; i++) {
+                journal.append(record(i));
+            }
+        }
+        // Corrupt the payload of the last record, as a crash in the middle of a write would
+        File segment = dir.listFiles((d, name) -> name.startsWith("segment-"))[0];
+        int lastRecord = 2 * (SegmentJournal.HEADER_BYTES + record(0).length);
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(lastRecord + SegmentJournal.HEADER_BYTES);
+            raf.write('X');
+        }
+        try (SegmentJournal journal = new SegmentJournal(dir, SEGMENT_SIZE, 1024 * SEGMENT_SIZE)) {
+            assertEquals(2, drain(journal).size());
+            // New records are appended after the last valid one
+            journal.append(record(3));
+            assertEquals("record-3", drain(journal).get(0));
+        }
+    }
+
+    @Test
+    void testDiskUsageIsBounded() throws IOException {
+        try (SegmentJournal journal = new SegmentJournal(dir, SEGMENT_SIZE, 4 * SEGMENT_SIZE)) {
+            for (int i = 0; i < 1000; i++) {
+                journal.append(record(i));
+            }
+            assertTrue(journal.getSegments() <= 4);
+            assertTrue(journal.getDroppedRecords() > 0);
+            List<String> read = drain(journal);
+            // The oldest records were dropped and the newest kept
+            assertEquals(1000, read.size() + journal.getDroppedRecords());
+            assertEquals("record-999", read.get(read.size() - 1));
+        }
+        assertTrue(dir.listFiles((d, name) -> name.startsWith("segment-")).length <= 4);
+    }
+
+    @Test
+    void testRejectsRecordsLargerThanSegment() throws IOException {
+        try (SegmentJournal journal = new SegmentJournal(dir, SEGMENT_SIZE, 4 * SEGMENT_SIZE)) {
+            assertFalse(journal.append(new byte[SEGMENT_SIZE]));
+            assertTrue(journal.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package es.bsc.hp2c.common.utils;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlidingPhasorEstimatorTest {
+    private static final double FREQUENCY = 5.0; // Hz, as in PhasorTest
+    private static final long START_NANOS = 1_700_000_000_123_456_789L;
+
+    /** Three phases 120 degrees apart, phase 0 being a cosine of the given amplitude and frequency. */
+    private static float[] sample(double amplitude, double frequency, long epochNanos) {
+        double t = (epochNanos - START_NANOS) / 1e9;
+        float[] values = new float[3];
+        for (int j = 0; j < 3; j++) {
+            values[j] = (float) (amplitude * Math.cos(2 * Math.PI * frequency * t - j * 2 * Math.PI / 3));
+        }
+        return values;
+    }
+
+    private static double angleDifference(double a, double b) {
+        double diff = Math.abs(a - b) % 360;
+        return diff > 180 ? 360 - diff : diff;
+    }
+
+    @Test
+    void testMagnitudeAndPhaseAngles() {
+        double[] periodsMs = {10.0, 20.0, 50.0};
+        for (double periodMs : periodsMs) {
+            double samplingRate = 1000 / periodMs;
+            int windowSamples = (int) (10000 / periodMs);
+            SlidingPhasorEstimator estimator = new SlidingPhasorEstimator(FREQUENCY, samplingRate, windowSamples, 3);
+            for (int i = 0; i < 2 * windowSamples; i++) {
+                long nanos = START_NANOS + (long) (i * periodMs * 1e6);
+                estimator.add(nanos, sample(2.0, FREQUENCY, nanos));
+            }
+            assertTrue(estimator.isReady());
+            for (int j = 0; j < 3; j++) {
+                assertEquals(2.0, estimator.getMagnitude(j), 1e-3, "Magnitude of phase " + j);
+                assertEquals(0.0, estimator.getFrequencyDeviation(j), 1e-3);
+            }
+            // Assert the phases keep their 120 degree shifts
+            assertEquals(120.0, angleDifference(estimator.getAngle(0), estimator.getAngle(1)), 0.1);
+            assertEquals(120.0, angleDifference(estimator.getAngle(1), estimator.getAngle(2)), 0.1);
+        }
+    }
+
+    @Test
+    void testAngleIsReferencedToEpoch() {
+        // Two estimators fed with the same signal starting at different times must agree on the angle
+        SlidingPhasorEstimator early = new SlidingPhasorEstimator(FREQUENCY, 100, 100, 3);
+        SlidingPhasorEstimator late = new SlidingPhasorEstimator(FREQUENCY, 100, 100, 3);
+        for (int i = 0; i < 400; i++) {
+            long nanos = START_NANOS + i * 10_000_000L;
+            early.add(nanos, sample(1.0, FREQUENCY, nanos));
+            if (i >= 137) {
+                late.add(nanos, sample(1.0, FREQUENCY, nanos));
+            }
+        }
+        assertEquals(0.0, angleDifference(early.getAngle(0), late.getAngle(0)), 0.01);
+        // The angle does not drift with the sample in which it is read
+        long nanos = START_NANOS + 400 * 10_000_000L;
+        double before = early.getAngle(0);
+        early.add(nanos, sample(1.0, FREQUENCY, nanos));
+        assertEquals(0.0, angleDifference(before, early.getAngle(0)), 0.01);
+    }
+
+    @Test
+    void testFrequencyDeviation() {
+        double actual = 50.2;
+        SlidingPhasorEstimator estimator = new SlidingPhasorEstimator(50.0, 2000, 400, 3);
+        for (int i = 0; i < 4000; i++) {
+            long nanos = START_NANOS + i * 500_000L;
+            estimator.add(nanos, sample(230.0, actual, nanos));
+        }
+        for (int j = 0; j < 3; j++) {
+            assertEquals(0.2, estimator.getFrequencyDeviation(j), 0.01, "Deviation of phase " + j);
+        }
+        assertEquals(230.0, estimator.getMagnitude(0), 230.0 * 0.01);
+    }
+
+    @Test
+    void testMatchesFullDftAggregate() {
+        // The same window through the DFT of Aggregates.phasor and through the sliding estimator
+        MeasurementWindow<Number[]> window = new MeasurementWindow<>(200);
+        Instant start = Instant.ofEpochSecond(1_700_000_000L);
+        for (int i = 0; i < 200; i++) {
+            long nanos = CommUtils.toEpochNanos(start) + i * 10_000_000L;
+            float[] values = sample(1.0, FREQUENCY, nanos);
+            window.addMeasurement(CommUtils.fromEpochNanos(nanos), new Number[]{values[0], values[1], values[2]});
+        }
+        JSONObject jArgs = new JSONObject().put("phasor-freq", FREQUENCY);
+        Number[] dft = Aggregates.phasor(window, jArgs).getLastMeasurement().getValue();
+        Number[] dftPhasors = Aggregates.phasors(window, jArgs).getLastMeasurement().getValue();
+        assertEquals(9, dftPhasors.length);
+
+        window.enablePhasors(FREQUENCY);
+        assertNotNull(window.getPhasorEstimator());
+        Number[] sliding = Aggregates.phasor(window, jArgs).getLastMeasurement().getValue();
+        Number[] slidingPhasors = Aggregates.phasors(window, jArgs).getLastMeasurement().getValue();
+
+        // The DFT references the oldest sample and the estimator the newest, both aligned to the epoch
+        assertEquals(dft[0].doubleValue(), sliding[0].doubleValue(), 1e-3);
+        assertEquals(0.0, angleDifference(dft[1].doubleValue(), sliding[1].doubleValue()), 0.5);
+        for (int j = 0; j < 3; j++) {
+            assertEquals(dftPhasors[3 * j].doubleValue(), slidingPhasors[3 * j].doubleValue(), 1e-3);
+            assertEquals(0.0, angleDifference(dftPhasors[3 * j + 1].doubleValue(),
+                    slidingPhasors[3 * j + 1].doubleValue()), 0.5);
+        }
+    }
+
+    @Test
+    void testWindowEnablesEstimatorWhenFull() {
+        FloatMeasurementWindow window = new FloatMeasurementWindow(100, 3);
+        window.enablePhasors(FREQUENCY);
+        for (int i = 0; i < 99; i++) {
+            long nanos = START_NANOS + i * 10_000_000L;
+            window.addMeasurement(nanos, sample(1.0, FREQUENCY, nanos));
+        }
+        // The sampling rate is only known once the window is full
+        assertNull(window.getPhasorEstimator());
+        long nanos = START_NANOS + 99 * 10_000_000L;
+        window.addMeasurement(nanos, sample(1.0, FREQUENCY, nanos));
+        SlidingPhasorEstimator estimator = window.getPhasorEstimator();
+        assertNotNull(estimator);
+        assertEquals(100, estimator.getLength());
+        assertTrue(estimator.isReady());
+        assertEquals(1.0, estimator.getMagnitude(2), 1e-3);
+    }
+}
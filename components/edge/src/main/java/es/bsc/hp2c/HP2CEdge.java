@@ -15,11 +15,18 @@
  */
 package es.bsc.hp2c;
 
+import es.bsc.hp2c.common.utils.AmqpConfirmPublisher;
+import es.bsc.hp2c.common.utils.ChannelPool;
 import es.bsc.hp2c.common.utils.CommUtils;
 import es.bsc.hp2c.common.utils.EdgeMap;
+import es.bsc.hp2c.common.utils.HeartbeatDelta;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
+import es.bsc.hp2c.edge.amqp.AmqpBatchPublisher;
+import es.bsc.hp2c.edge.amqp.AmqpJournal;
 import es.bsc.hp2c.edge.opalrt.OpalComm;
 import es.bsc.hp2c.common.types.Device;
 
+import es.bsc.hp2c.common.funcs.ActionExecutor;
 import es.bsc.hp2c.common.funcs.Func;
 
 import com.rabbitmq.client.*;
@@ -71,6 +78,8 @@ public class HP2CEdge {
         }
         String edgeLabel = readEdgeLabel(setupFile);
         setEdgeLabel(edgeLabel);
+        // Periodic tasks of the edge (heartbeat, connection testers, onFrequency Funcs) share one scheduler
+        PeriodicScheduler.configure(getJsonObject(setupFile).getJSONObject("global-properties"));
 
         // get default units path
         String defaultUnitsPath = "/data/default_units.json";
@@ -89,6 +98,27 @@ public class HP2CEdge {
         devices = loadDevices(setupFile, "driver", true);
         // Set up AMQP messaging
         boolean amqpOn = setUpMessaging(brokerIp, brokerPort);
+        if (amqpOn) {
+            JSONObject jGlobalProperties = getJsonObject(setupFile).getJSONObject("global-properties");
+            setConfirmPublisher(AmqpConfirmPublisher.fromConfig(jGlobalProperties, connection));
+            setJournal(AmqpJournal.fromConfig(jGlobalProperties, getChannelPool(), getExchangeName()));
+            setBatchPublisher(AmqpBatchPublisher.fromConfig(jGlobalProperties, getChannelPool(),
+                    getExchangeName(), edgeLabel));
+            if (getConfirmPublisher() != null) {
+                if (getJournal() != null) {
+                    getJournal().setConfirmPublisher(getConfirmPublisher());
+                }
+                if (getBatchPublisher() != null) {
+                    getBatchPublisher().setConfirmPublisher(getConfirmPublisher());
+                }
+            }
+            if (getJournal() != null) {
+                getJournal().start();
+                if (getBatchPublisher() != null) {
+                    getBatchPublisher().setJournal(getJournal());
+                }
+            }
+        }
         OpalComm.setLoadedDevices(true);
 
         // Convert to EdgeMap if type is edge
@@ -101,7 +131,8 @@ public class HP2CEdge {
         // Add resources to edge agent
         setResources(setupFile);
 
-        //Load funcs
+        //Load funcs, triggered on the executor described in the global properties
+        ActionExecutor.configure(getJsonObject(setupFile).getJSONObject("global-properties"));
         Func.loadFunctions(setupFile, edgeMap, HP2CEdge.class);
         Map<String, String> amqpAggregates = Func.loadGlobalFunctions(setupFile, defaultsPath, devices, amqpOn);
         JSONObject sensorUnits = getSensorUnits(setupFile, defaultUnitsPath, devices);
@@ -134,9 +165,9 @@ public class HP2CEdge {
                 }
             }
 
-            Timer timer = new Timer();
             Heartbeat heartbeat = new Heartbeat(jEdgeSetup, edgeLabel, devices);
-            timer.scheduleAtFixedRate(heartbeat, 0, HEARTBEAT_RATE);
+            heartbeat.listenSetupRequests();
+            PeriodicScheduler.getDefault().scheduleAtFixedRate("Heartbeat", heartbeat, 0, HEARTBEAT_RATE);
         } else {
             logger.warn("Heartbeat could not start. AMQP not available");
         }
@@ -145,12 +176,11 @@ public class HP2CEdge {
     private static boolean setUpMessaging(String ip, int port) {
         // Try connecting to a RabbitMQ server until success
         connection = CommUtils.AmqpConnectAndRetry(ip, port);
-        // After establishing a connection, set up channel and exchange
+        // After establishing a connection, set up the channels, each of them declaring the exchange
+        String EXCHANGE_NAME = getExchangeName();
+        setChannelPool(new ChannelPool(connection, channel -> channel.exchangeDeclare(EXCHANGE_NAME, "topic")));
         try {
-            Channel channel = connection.createChannel();
-            setChannel(channel);
-            String EXCHANGE_NAME = getExchangeName();
-            channel.exchangeDeclare(EXCHANGE_NAME, "topic");
+            getChannel("Heartbeat");
         } catch (IOException e) {
             logger.error("Error setting up RabbitMQ channel and exchange: " + e.getMessage());
             throw new RuntimeException(e);
@@ -161,26 +191,49 @@ public class HP2CEdge {
 
 
     /**
-     * TimerTask that sends a periodic heartbeat message to the server.
+     * Task that sends a periodic heartbeat message to the server.
+     * The full setup is sent on the first heartbeat and whenever the server requests it; otherwise, the heartbeat is
+     * a HeartbeatDelta with the hash of the setup and the availability of the devices.
      */
-    static class Heartbeat extends TimerTask {
+    static class Heartbeat implements Runnable {
         private final JSONObject jEdgeSetup;
         private final String routingKey;
         private final String edgeLabel;
         private final Map<String, Device> devices;
+        private final String setupHash;
+        private volatile boolean sendSetup = true;
         public Heartbeat(JSONObject jEdgeSetup, String edgeLabel, Map<String, Device> devices) {
             this.jEdgeSetup = jEdgeSetup;
             this.edgeLabel = edgeLabel;
             this.devices = devices;
             this.routingKey = "edge" + "." + edgeLabel + "." + "heartbeat";
+            this.setupHash = HeartbeatDelta.setupHash(jEdgeSetup);
+            jEdgeSetup.put(HeartbeatDelta.SETUP_HASH, setupHash);
             logger.info("[Heartbeat] Instantiating heartbeat scheduler for edge " + edgeLabel);
         }
+
+        /** Send the full setup on the next heartbeat when the server asks for it. */
+        void listenSetupRequests() {
+            try {
+                Channel channel = getChannel("HeartbeatSetupRequests");
+                String queue = channel.queueDeclare().getQueue();
+                channel.queueBind(queue, getExchangeName(), HeartbeatDelta.setupRequestRoutingKey(edgeLabel));
+                channel.basicConsume(queue, true, (consumerTag, delivery) -> {
+                    logger.info("[Heartbeat] Server requested the setup of edge " + edgeLabel);
+                    sendSetup = true;
+                }, consumerTag -> {});
+            } catch (IOException e) {
+                logger.error("[Heartbeat] Error listening to setup requests: " + e.getMessage());
+            }
+        }
+
         @Override
         public void run() {
             try {
                 // Add timestamp and status to the JSON object
                 JSONObject jGlobalProps = jEdgeSetup.getJSONObject("global-properties");
                 JSONArray jDevices = jEdgeSetup.getJSONArray("devices");
+                boolean[] availabilities = new boolean[jDevices.length()];
                 int index = 0;
                 for (Object d : jDevices) {
                     JSONObject jD = (JSONObject) d;
@@ -194,18 +247,25 @@ public class HP2CEdge {
                         availability = false;
                     }
                     jD.put("availability", availability);
-                    jDevices.put(index, jD);
+                    availabilities[index] = availability;
                     index += 1;
                 }
-                jGlobalProps.put("heartbeat", System.currentTimeMillis());
+                long heartbeat = System.currentTimeMillis();
+                jGlobalProps.put("heartbeat", heartbeat);
                 jGlobalProps.put("available", true);
 
                 // Convert the string to bytes
-                byte[] message = jEdgeSetup.toString().getBytes();
+                boolean full = sendSetup;
+                JSONObject jHeartbeat = full ? jEdgeSetup
+                        : HeartbeatDelta.build(edgeLabel, setupHash, availabilities, heartbeat);
+                byte[] message = jHeartbeat.toString().getBytes();
                 try {
-                    Channel channel = getChannel();
+                    Channel channel = getChannel("Heartbeat");
                     String EXCHANGE_NAME = getExchangeName();
                     channel.basicPublish(EXCHANGE_NAME, routingKey, null, message);
+                    if (full) {
+                        sendSetup = false;
+                    }
                 } catch (IOException e) {
                     logger.error("Exception in " + edgeLabel + " edge heartbeat: " + e.getMessage());
                 }
@@ -1,6 +1,10 @@
 package es.bsc.hp2c;
 
 import com.rabbitmq.client.Channel;
+import es.bsc.hp2c.common.utils.AmqpConfirmPublisher;
+import es.bsc.hp2c.common.utils.ChannelPool;
+import es.bsc.hp2c.edge.amqp.AmqpBatchPublisher;
+import es.bsc.hp2c.edge.amqp.AmqpJournal;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -10,23 +14,63 @@ import static es.bsc.hp2c.common.utils.FileUtils.getJsonObject;
 
 public class HP2CEdgeContext {
     private static String edgeLabel;
-    private static Channel channel;
+    private static ChannelPool channelPool;
+    private static AmqpBatchPublisher batchPublisher;
+    private static AmqpJournal journal;
+    private static AmqpConfirmPublisher confirmPublisher;
     private static final String EXCHANGE_NAME = "measurements";
 
     public static void setEdgeLabel(String e){
         edgeLabel = e;
     }
 
-    public static void setChannel(Channel c){
-        channel = c;
+    public static void setChannelPool(ChannelPool p){
+        channelPool = p;
     }
 
     public static String getEdgeLabel() {
         return edgeLabel;
     }
 
-    public static Channel getChannel() {
-        return channel;
+    public static ChannelPool getChannelPool() {
+        return channelPool;
+    }
+
+    /** AMQP channel of the calling thread, so that publishers running on different threads do not share one. */
+    public static Channel getChannel() throws IOException {
+        return channelPool.forThread();
+    }
+
+    /** AMQP channel of a subsystem of the edge (heartbeat, journal, consumer of an actuator...). */
+    public static Channel getChannel(String subsystem) throws IOException {
+        return channelPool.get(subsystem);
+    }
+
+    public static void setBatchPublisher(AmqpBatchPublisher b){
+        batchPublisher = b;
+    }
+
+    /** Batch publisher of the edge, or null if AMQP publications are not batched. */
+    public static AmqpBatchPublisher getBatchPublisher() {
+        return batchPublisher;
+    }
+
+    public static void setJournal(AmqpJournal j){
+        journal = j;
+    }
+
+    /** Journal where AMQP publications are stored while the broker is unreachable, or null if disabled. */
+    public static AmqpJournal getJournal() {
+        return journal;
+    }
+
+    public static void setConfirmPublisher(AmqpConfirmPublisher p){
+        confirmPublisher = p;
+    }
+
+    /** Publisher with broker confirms, or null if AMQP publications are fire-and-forget. */
+    public static AmqpConfirmPublisher getConfirmPublisher() {
+        return confirmPublisher;
     }
 
     public static String getExchangeName() {
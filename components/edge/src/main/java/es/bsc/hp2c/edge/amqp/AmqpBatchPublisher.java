@@ -0,0 +1,175 @@
+package es.bsc.hp2c.edge.amqp;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ShutdownSignalException;
+import es.bsc.hp2c.common.utils.AmqpConfirmPublisher;
+import es.bsc.hp2c.common.utils.ChannelPool;
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.MeasurementBatch;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the windows published by the AmqpPublish functions of an edge into MeasurementBatch messages sent to
+ * the routing key edge.<EDGE_ID>.batch. A batch is sent when the linger time since its first window expires, or
+ * earlier if it reaches the maximum number of windows or bytes. Sensors fed by the same OpalRT frame are published
+ * within microseconds, so with a small linger time a frame becomes a single message.
+ */
+public class AmqpBatchPublisher {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final long DEFAULT_LINGER_MS = 5;
+    public static final int DEFAULT_MAX_MESSAGES = 256;
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+    private static final String SUBSYSTEM = "AmqpBatchPublisher";
+
+    // Channels are looked up on every use, so a channel replaced by the pool after an error is picked up
+    private final ChannelPool pool;
+    private final String exchangeName;
+    private final String routingKey;
+    private final long lingerMs;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final ScheduledExecutorService scheduler;
+    private AmqpJournal journal;
+    private AmqpConfirmPublisher confirms;
+    private MeasurementBatch batch = new MeasurementBatch();
+    private long batchesSent = 0;
+    private long windowsSent = 0;
+
+    public AmqpBatchPublisher(ChannelPool pool, String exchangeName, String edgeLabel,
+                              long lingerMs, int maxMessages, int maxBytes) {
+        this.pool = pool;
+        this.exchangeName = exchangeName;
+        this.routingKey = "edge" + "." + edgeLabel + "." + "batch";
+        this.lingerMs = lingerMs;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AmqpBatchPublisher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Create a batch publisher from the "amqp-batch" section of the edge global properties, if it is enabled.
+     *
+     * @param jGlobalProperties Global properties of the edge
+     * @param pool Channels of the AMQP connection used to publish
+     * @param exchangeName Exchange where batches are published
+     * @param edgeLabel Label of the edge
+     * @return The batch publisher, or null if batching is not enabled
+     */
+    public static AmqpBatchPublisher fromConfig(JSONObject jGlobalProperties, ChannelPool pool, String exchangeName,
+                                                String edgeLabel) {
+        JSONObject jBatch = jGlobalProperties.optJSONObject("amqp-batch");
+        if (jBatch == null || !jBatch.optBoolean("enabled", true)) {
+            return null;
+        }
+        long lingerMs = jBatch.optLong("linger-ms", DEFAULT_LINGER_MS);
+        int maxMessages = jBatch.optInt("max-messages", DEFAULT_MAX_MESSAGES);
+        int maxBytes = jBatch.optInt("max-bytes", DEFAULT_MAX_BYTES);
+        logger.info("[AmqpBatchPublisher] Batching AMQP publications of edge " + edgeLabel + " (linger " + lingerMs
+                + " ms, max " + maxMessages + " messages, max " + maxBytes + " bytes)");
+        return new AmqpBatchPublisher(pool, exchangeName, edgeLabel, lingerMs, maxMessages, maxBytes);
+    }
+
+    /**
+     * Add the encoded window of a device to the current batch.
+     *
+     * @param device Device label
+     * @param window Encoded MeasurementWindow
+     */
+    public synchronized void publish(String device, byte[] window) throws IOException {
+        boolean first = batch.isEmpty();
+        batch.add(device, window);
+        if (batch.size() >= maxMessages || batch.getEncodedSize() >= maxBytes || lingerMs <= 0) {
+            flush();
+        } else if (first) {
+            MeasurementBatch scheduled = batch;
+            scheduler.schedule(() -> flushScheduled(scheduled), lingerMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Send the current batch, if it has any window. */
+    public synchronized void flush() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        MeasurementBatch toSend = batch;
+        batch = new MeasurementBatch();
+        byte[] body = toSend.encode();
+        if (journal != null && !journal.isForwarding()) {
+            journal.store(journal.getPriority(toSend), routingKey, body);
+            return;
+        }
+        AMQP.BasicProperties props = CommUtils.createAmqpPropertiesNanos();
+        if (confirms != null) {
+            AmqpJournal journal = this.journal;
+            int windows = toSend.size();
+            int priority = journal != null ? journal.getPriority(toSend) : 0;
+            confirms.publish(exchangeName, routingKey, props, body).whenCompleteAsync((v, e) -> {
+                if (e != null && (journal == null || !journal.store(priority, routingKey, body))) {
+                    logger.error("[AmqpBatchPublisher] Batch of " + windows + " windows to " + routingKey
+                            + " not confirmed: " + e.getMessage());
+                }
+            });
+            batchesSent++;
+            windowsSent += toSend.size();
+            return;
+        }
+        try {
+            pool.get(SUBSYSTEM).basicPublish(exchangeName, routingKey, props, body);
+        } catch (IOException | ShutdownSignalException e) {
+            if (journal == null || !journal.store(journal.getPriority(toSend), routingKey, body)) {
+                throw e;
+            }
+            return;
+        }
+        batchesSent++;
+        windowsSent += toSend.size();
+        if (logger.isDebugEnabled()) {
+            logger.debug("[AmqpBatchPublisher] Sent batch of " + toSend.size() + " windows to " + routingKey);
+        }
+    }
+
+    private synchronized void flushScheduled(MeasurementBatch scheduled) {
+        // The batch may have been sent already because it reached its size limits
+        if (batch != scheduled) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("[AmqpBatchPublisher] Error publishing batch to " + routingKey + ": " + e.getMessage());
+        }
+    }
+
+    /** Store the batches in the journal, instead of dropping them, while they cannot be published. */
+    public synchronized void setJournal(AmqpJournal journal) {
+        this.journal = journal;
+    }
+
+    /** Publish batches with broker confirms, storing them in the journal (if any) when they are not confirmed. */
+    public synchronized void setConfirmPublisher(AmqpConfirmPublisher confirms) {
+        this.confirms = confirms;
+    }
+
+    public synchronized long getBatchesSent() {
+        return batchesSent;
+    }
+
+    public synchronized long getWindowsSent() {
+        return windowsSent;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+}
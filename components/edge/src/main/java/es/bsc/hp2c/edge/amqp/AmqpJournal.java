@@ -0,0 +1,423 @@
+package es.bsc.hp2c.edge.amqp;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ShutdownSignalException;
+import es.bsc.hp2c.common.utils.AmqpConfirmPublisher;
+import es.bsc.hp2c.common.utils.ChannelPool;
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.MeasurementBatch;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
+import es.bsc.hp2c.common.utils.SegmentJournal;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Store-and-forward of the AMQP publications of an edge. While the channel is closed (broker unreachable or
+ * connection being recovered), or when a publication fails, messages are appended to memory-mapped journals on local
+ * disk instead of being dropped. Once the channel is open again, a periodic task drains the journals in batches, at
+ * most drain-rate messages per second, from the highest to the lowest priority, so critical devices catch up first.
+ *
+ * There is one SegmentJournal per priority level, in the subdirectory priority-N of the journal directory, and every
+ * record holds the routing key and the body of a message. Messages older than the retention horizon are discarded
+ * instead of forwarded, and disk usage of every level is bounded by max-bytes (oldest segments are dropped first).
+ * Messages are republished with the timestamp headers of the time they were stored. New publications are sent
+ * directly while the backlog drains, so the server may receive them before older stored windows.
+ */
+public class AmqpJournal implements Closeable {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final String DEFAULT_DIR = "amqp-journal";
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_MS = 3_600_000;
+    public static final long DEFAULT_DRAIN_INTERVAL_MS = 100;
+    public static final int DEFAULT_DRAIN_BATCH = 50;
+    public static final int DEFAULT_DRAIN_RATE = 500;
+    public static final int DEFAULT_PRIORITY = 0;
+    private static final long CONFIRM_TIMEOUT_MS = 30_000;
+    private static final String PRIORITY_PREFIX = "priority-";
+    private static final String SUBSYSTEM = "AmqpJournal";
+
+    // Channels are looked up on every use, so a channel replaced by the pool after an error is picked up
+    private final ChannelPool pool;
+    private final String exchangeName;
+    private final File dir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long retentionMs;
+    private final long drainIntervalMs;
+    private final int drainBatch;
+    private final int drainRate;
+    private final Map<String, Integer> priorities;
+    private final int defaultPriority;
+    // Journals by priority, highest first
+    private final TreeMap<Integer, SegmentJournal> journals = new TreeMap<>(Collections.reverseOrder());
+    private volatile AmqpConfirmPublisher confirms;
+    private PeriodicScheduler.ScheduledTask drainTask;
+    private boolean backlog = false;
+    // Confirmations of the last forwarded records, which are committed once they complete
+    private CompletableFuture<Void> unconfirmed;
+    private long unconfirmedSince;
+    private long stored = 0;
+    private long forwarded = 0;
+    private long expired = 0;
+    private long lost = 0;
+
+    public AmqpJournal(ChannelPool pool, String exchangeName, File dir, int segmentSize, long maxBytes,
+                       long retentionMs, long drainIntervalMs, int drainBatch, int drainRate,
+                       Map<String, Integer> priorities, int defaultPriority) throws IOException {
+        this.pool = pool;
+        this.exchangeName = exchangeName;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.retentionMs = retentionMs;
+        this.drainIntervalMs = drainIntervalMs;
+        this.drainBatch = Math.max(1, drainBatch);
+        this.drainRate = drainRate;
+        this.priorities = priorities;
+        this.defaultPriority = defaultPriority;
+        // Recover the messages stored before a restart
+        File[] levels = dir.listFiles((d, name) -> name.startsWith(PRIORITY_PREFIX));
+        if (levels != null) {
+            for (File level : levels) {
+                try {
+                    getJournal(Integer.parseInt(level.getName().substring(PRIORITY_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("[AmqpJournal] Ignoring unexpected directory " + level);
+                }
+            }
+        }
+        backlog = !isEmpty();
+    }
+
+    /**
+     * Create the journal from the "amqp-journal" section of the edge global properties, if it is enabled.
+     *
+     * @param jGlobalProperties Global properties of the edge
+     * @param pool Channels of the AMQP connection used to publish
+     * @param exchangeName Exchange where messages are published
+     * @return The journal, or null if it is not enabled or cannot be opened
+     */
+    public static AmqpJournal fromConfig(JSONObject jGlobalProperties, ChannelPool pool, String exchangeName) {
+        JSONObject jJournal = jGlobalProperties.optJSONObject("amqp-journal");
+        if (jJournal == null || !jJournal.optBoolean("enabled", true)) {
+            return null;
+        }
+        File dir = new File(jJournal.optString("dir", DEFAULT_DIR));
+        int segmentSize = jJournal.optInt("segment-size", DEFAULT_SEGMENT_SIZE);
+        long maxBytes = jJournal.optLong("max-bytes", DEFAULT_MAX_BYTES);
+        long retentionMs = jJournal.optLong("retention", DEFAULT_RETENTION_MS);
+        long drainIntervalMs = jJournal.optLong("drain-interval", DEFAULT_DRAIN_INTERVAL_MS);
+        int drainBatch = jJournal.optInt("drain-batch", DEFAULT_DRAIN_BATCH);
+        int drainRate = jJournal.optInt("drain-rate", DEFAULT_DRAIN_RATE);
+        int defaultPriority = jJournal.optInt("default-priority", DEFAULT_PRIORITY);
+        Map<String, Integer> priorities = new HashMap<>();
+        JSONObject jPriorities = jJournal.optJSONObject("priorities");
+        if (jPriorities != null) {
+            for (String device : jPriorities.keySet()) {
+                priorities.put(device, jPriorities.getInt(device));
+            }
+        }
+        try {
+            AmqpJournal journal = new AmqpJournal(pool, exchangeName, dir, segmentSize, maxBytes, retentionMs,
+                    drainIntervalMs, drainBatch, drainRate, priorities, defaultPriority);
+            logger.info("[AmqpJournal] Journaling AMQP publications in " + dir + " (retention " + retentionMs
+                    + " ms, drain rate " + drainRate + " messages/s, " + priorities.size() + " device priorities)");
+            return journal;
+        } catch (IOException e) {
+            logger.error("[AmqpJournal] Cannot open journal in " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Start draining the journal periodically on the default scheduler. */
+    public void start() {
+        drainTask = PeriodicScheduler.getDefault().scheduleAtFixedRate("AmqpJournal", this::drain,
+                drainIntervalMs, drainIntervalMs);
+    }
+
+    /** Publish and forward messages with broker confirms; unconfirmed messages are stored again. */
+    public synchronized void setConfirmPublisher(AmqpConfirmPublisher confirms) {
+        this.confirms = confirms;
+    }
+
+    /** Whether messages can be sent to the broker right now. */
+    public boolean isForwarding() {
+        try {
+            return pool.get(SUBSYSTEM).isOpen();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Priority of a device, or the default priority if it has none. */
+    public int getPriority(String device) {
+        Integer priority = priorities.get(device);
+        return priority != null ? priority : defaultPriority;
+    }
+
+    /** Priority of a batch: the highest priority of its devices. */
+    public int getPriority(MeasurementBatch batch) {
+        int priority = Integer.MIN_VALUE;
+        for (MeasurementBatch.Entry entry : batch.getEntries()) {
+            priority = Math.max(priority, getPriority(entry.getDevice()));
+        }
+        return batch.isEmpty() ? defaultPriority : priority;
+    }
+
+    /**
+     * Publish the message of a device, or store it if the channel is closed or the publication fails.
+     *
+     * @param device Device label, which sets the priority of the message
+     * @param routingKey Routing key of the message
+     * @param message Body of the message
+     */
+    public void publish(String device, String routingKey, byte[] message) {
+        AmqpConfirmPublisher confirms = this.confirms;
+        if (isForwarding() && confirms != null) {
+            // Store the message if the broker does not confirm it. Stored off the confirm thread, which drain() may
+            // be waiting on
+            int priority = getPriority(device);
+            confirms.publish(exchangeName, routingKey, CommUtils.createAmqpPropertiesNanos(), message)
+                    .whenCompleteAsync((v, e) -> {
+                        if (e != null) {
+                            store(priority, routingKey, message);
+                        }
+                    });
+            return;
+        }
+        if (isForwarding()) {
+            try {
+                pool.get(SUBSYSTEM).basicPublish(exchangeName, routingKey, CommUtils.createAmqpPropertiesNanos(),
+                        message);
+                return;
+            } catch (IOException | ShutdownSignalException e) {
+                logger.warn("[AmqpJournal] Error publishing to " + routingKey + ", storing message: "
+                        + e.getMessage());
+            }
+        }
+        store(getPriority(device), routingKey, message);
+    }
+
+    /**
+     * Store a message to be forwarded once the channel is open.
+     *
+     * @return false if the message could not be stored
+     */
+    public synchronized boolean store(int priority, String routingKey, byte[] message) {
+        byte[] key = routingKey.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(2 + key.length + message.length);
+        record.putShort((short) key.length).put(key).put(message);
+        try {
+            if (getJournal(priority).append(record.array())) {
+                if (!backlog) {
+                    logger.warn("[AmqpJournal] Broker unavailable, storing AMQP publications in " + dir);
+                    backlog = true;
+                }
+                stored++;
+                return true;
+            }
+            logger.error("[AmqpJournal] Message to " + routingKey + " is larger than a journal segment");
+        } catch (IOException e) {
+            logger.error("[AmqpJournal] Error storing message to " + routingKey + ": " + e.getMessage());
+        }
+        lost++;
+        return false;
+    }
+
+    /**
+     * Forward stored messages if the channel is open, highest priority first, up to the number of messages allowed
+     * by the drain rate in one drain interval.
+     *
+     * With confirms enabled the forwarded records are committed when the broker confirms all of them, on the thread
+     * that completes the confirmations, so the drain task and the lock are not held while waiting. No more records are
+     * forwarded until then; if the confirmations take longer than the confirm timeout, the next drain resends them.
+     *
+     * @return Number of messages forwarded
+     */
+    public synchronized int drain() {
+        if (!backlog || !isForwarding()) {
+            return 0;
+        }
+        if (unconfirmed != null) {
+            if (System.currentTimeMillis() - unconfirmedSince < CONFIRM_TIMEOUT_MS) {
+                return 0;
+            }
+            logger.warn("[AmqpJournal] Forwarded messages were not confirmed by the broker, retrying");
+            unconfirmed = null;
+        }
+        int budget = (int) Math.max(1, drainRate * drainIntervalMs / 1000);
+        int sent = 0;
+        long oldest = System.currentTimeMillis() - retentionMs;
+        // Last record forwarded from every journal, to be committed once the broker confirms them
+        Map<SegmentJournal, SegmentJournal.Record> done = new HashMap<>();
+        List<CompletableFuture<Void>> confirmations = new ArrayList<>();
+        // Counted once committed, a round that is not confirmed is sent again
+        int expiring = 0;
+        try {
+            for (SegmentJournal journal : journals.values()) {
+                while (sent < budget) {
+                    List<SegmentJournal.Record> records = journal.peekAfter(done.get(journal),
+                            Math.min(drainBatch, budget - sent), Long.MAX_VALUE);
+                    if (records.isEmpty()) {
+                        break;
+                    }
+                    for (SegmentJournal.Record record : records) {
+                        if (record.getTimestamp() < oldest) {
+                            expiring++;
+                        } else {
+                            CompletableFuture<Void> confirmation = forward(record);
+                            if (confirmation != null) {
+                                confirmations.add(confirmation);
+                            }
+                            sent++;
+                        }
+                        done.put(journal, record);
+                    }
+                }
+                if (sent >= budget) {
+                    break;
+                }
+            }
+        } catch (IOException | ShutdownSignalException e) {
+            logger.warn("[AmqpJournal] Error forwarding stored messages, retrying later: " + e.getMessage());
+        }
+        int roundForwarded = sent;
+        int roundExpired = expiring;
+        if (confirmations.isEmpty()) {
+            commit(done, roundForwarded, roundExpired);
+            return sent;
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(confirmations.toArray(new CompletableFuture<?>[0]));
+        unconfirmed = all;
+        unconfirmedSince = System.currentTimeMillis();
+        // Committed off the confirm thread, so it does not wait for the lock nor for the disk
+        all.whenCompleteAsync((v, e) -> {
+            synchronized (this) {
+                if (unconfirmed != all) {
+                    return; // Timed out, the records were sent again
+                }
+                unconfirmed = null;
+                if (e != null) {
+                    logger.warn("[AmqpJournal] Forwarded messages were not confirmed by the broker, retrying: "
+                            + e.getMessage());
+                    return;
+                }
+                commit(done, roundForwarded, roundExpired);
+            }
+        });
+        return sent;
+    }
+
+    /** Consume the forwarded records of every journal, and leave backlog mode once the journals are empty. */
+    private void commit(Map<SegmentJournal, SegmentJournal.Record> done, int roundForwarded, int roundExpired) {
+        try {
+            for (Map.Entry<SegmentJournal, SegmentJournal.Record> entry : done.entrySet()) {
+                entry.getKey().commit(entry.getValue());
+            }
+        } catch (IOException | IllegalStateException e) {
+            logger.warn("[AmqpJournal] Error committing forwarded messages, retrying later: " + e.getMessage());
+            return;
+        }
+        forwarded += roundForwarded;
+        expired += roundExpired;
+        if (backlog && isEmpty()) {
+            backlog = false;
+            logger.info("[AmqpJournal] Journal drained (" + forwarded + " messages forwarded, " + expired
+                    + " expired, " + getDroppedMessages() + " dropped)");
+        }
+    }
+
+    /** Republish a stored message, returning its confirmation if confirms are enabled. */
+    private CompletableFuture<Void> forward(SegmentJournal.Record record) throws IOException {
+        ByteBuffer payload = ByteBuffer.wrap(record.getPayload());
+        byte[] key = new byte[payload.getShort()];
+        payload.get(key);
+        byte[] message = new byte[payload.remaining()];
+        payload.get(message);
+        String routingKey = new String(key, StandardCharsets.UTF_8);
+        AMQP.BasicProperties props = CommUtils.createAmqpReplayProperties(Instant.ofEpochMilli(record.getTimestamp()));
+        if (confirms != null) {
+            return confirms.publish(exchangeName, routingKey, props, message);
+        }
+        pool.get(SUBSYSTEM).basicPublish(exchangeName, routingKey, props, message);
+        return null;
+    }
+
+    private SegmentJournal getJournal(int priority) throws IOException {
+        SegmentJournal journal = journals.get(priority);
+        if (journal == null) {
+            journal = new SegmentJournal(new File(dir, PRIORITY_PREFIX + priority), segmentSize, maxBytes);
+            journals.put(priority, journal);
+        }
+        return journal;
+    }
+
+    /** Whether there are no stored messages waiting to be forwarded. */
+    public synchronized boolean isEmpty() {
+        for (SegmentJournal journal : journals.values()) {
+            if (!journal.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Bytes of the messages waiting to be forwarded. */
+    public synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (SegmentJournal journal : journals.values()) {
+            bytes += journal.getPendingBytes();
+        }
+        return bytes;
+    }
+
+    public synchronized long getStoredMessages() {
+        return stored;
+    }
+
+    public synchronized long getForwardedMessages() {
+        return forwarded;
+    }
+
+    /** Messages discarded on drain because they were older than the retention horizon. */
+    public synchronized long getExpiredMessages() {
+        return expired;
+    }
+
+    /** Messages that could not be stored, or were deleted to keep the journal within max-bytes. */
+    public synchronized long getDroppedMessages() {
+        long dropped = lost;
+        for (SegmentJournal journal : journals.values()) {
+            dropped += journal.getDroppedRecords();
+        }
+        return dropped;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (drainTask != null) {
+            drainTask.cancel();
+        }
+        unconfirmed = null;
+        for (SegmentJournal journal : journals.values()) {
+            journal.close();
+        }
+        journals.clear();
+    }
+}
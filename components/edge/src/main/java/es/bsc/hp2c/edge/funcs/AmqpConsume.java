@@ -28,7 +28,6 @@ public class AmqpConsume extends Func {
     private final String actuatorLabel;
     private static String EXCHANGE_NAME;
     private final String routingKey;
-    private final Channel channel;
     private static final Logger logger = LogManager.getLogger("appLogger");
 
     /**
@@ -61,7 +60,6 @@ public class AmqpConsume extends Func {
 
         // Initialize AMQP communication
         edgeLabel = HP2CEdgeContext.getEdgeLabel();
-        channel = HP2CEdgeContext.getChannel();
         EXCHANGE_NAME = HP2CEdgeContext.getExchangeName();
         String baseTopic = "edge";
         String intermediateTopic = "actuators";
@@ -72,7 +70,10 @@ public class AmqpConsume extends Func {
     public void run() {
         // Setup RabbitMQ channel
         String queueName;
+        Channel channel;
         try {
+            // Own channel, so that an error in this consumer does not close the channels of other functions
+            channel = HP2CEdgeContext.getChannel("AmqpConsume." + actuatorLabel);
             queueName = channel.queueDeclare().getQueue();
             channel.queueBind(queueName, EXCHANGE_NAME, routingKey);
         } catch (IOException e) {
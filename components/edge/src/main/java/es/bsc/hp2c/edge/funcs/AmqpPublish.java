@@ -11,6 +11,8 @@ import es.bsc.hp2c.common.funcs.Func;
 import es.bsc.hp2c.common.types.Sensor;
 
 import com.rabbitmq.client.Channel;
+import es.bsc.hp2c.common.utils.Aggregates;
+import es.bsc.hp2c.common.utils.AmqpConfirmPublisher;
 import es.bsc.hp2c.common.utils.CommUtils;
 import es.bsc.hp2c.common.utils.MeasurementWindow;
 import org.json.JSONObject;
@@ -21,6 +23,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Map;
 import es.bsc.hp2c.HP2CEdgeContext;
+import es.bsc.hp2c.edge.amqp.AmqpBatchPublisher;
+import es.bsc.hp2c.edge.amqp.AmqpJournal;
 
 /**
  * Publish current measurement to the corresponding AMQP topic if the requirements are satisfied.
@@ -29,9 +33,9 @@ import es.bsc.hp2c.HP2CEdgeContext;
  */
 public class AmqpPublish extends Func {
     private final Sensor<?, ?> sensor;
-    private final Channel channel;
     private final String EXCHANGE_NAME;
     private final String routingKey;
+    private final String sensorLabel;
     private final Method aggregate;
     private JSONObject aggArgs;
     private static final Logger logger = LogManager.getLogger("appLogger");
@@ -78,17 +82,29 @@ public class AmqpPublish extends Func {
         }
         // Sensor setup (remove whitespaces and dashes to avoid Influx especial characters)
         sensor = sensorsList.get(0);
-        String sensorLabel = ((Device) sensor).getLabel();
+        sensorLabel = ((Device) sensor).getLabel();
+        // Keep the statistics of the window up to date instead of traversing it on every publication
+        if (Aggregates.isRunning(aggName) && sensor.getWindow() != null) {
+            sensor.getWindow().enableStatistics();
+        }
+        if ((aggName.equals("phasor") || aggName.equals("phasors")) && sensor.getWindow() != null) {
+            sensor.getWindow().enablePhasors(Aggregates.getPhasorFrequency(aggArgs));
+        }
 
         // Initialize AMQP communication
         String edgeLabel = HP2CEdgeContext.getEdgeLabel();
-        channel = HP2CEdgeContext.getChannel();
         EXCHANGE_NAME = HP2CEdgeContext.getExchangeName();
         String intermediateTopic = "sensors";
         String baseTopic = "edge";
         routingKey = baseTopic + "." + edgeLabel+ "." + intermediateTopic + "." + sensorLabel;
     }
 
+    /** Every read must be published (e.g., with the "last" aggregate or an amqp-interval), so triggers are not merged. */
+    @Override
+    public boolean coalescesTriggers() {
+        return false;
+    }
+
     @Override
     public void run() {
         try {
@@ -112,10 +128,36 @@ public class AmqpPublish extends Func {
             // Prepare body message
             byte[] message = aggregateWindow.encode();
 
+            // Coalesce with the windows of other sensors if batching is enabled
+            AmqpBatchPublisher batchPublisher = HP2CEdgeContext.getBatchPublisher();
+            if (batchPublisher != null) {
+                batchPublisher.publish(sensorLabel, message);
+                return;
+            }
+
+            // Store the window instead of dropping it if the broker is unreachable
+            AmqpJournal journal = HP2CEdgeContext.getJournal();
+            if (journal != null) {
+                journal.publish(sensorLabel, routingKey, message);
+                return;
+            }
+
             // Set up timestamping in nanoseconds
             AMQP.BasicProperties props = CommUtils.createAmqpPropertiesNanos();
 
-            // Deliver message
+            // Deliver message, asynchronously confirmed by the broker if confirms are enabled
+            AmqpConfirmPublisher confirms = HP2CEdgeContext.getConfirmPublisher();
+            if (confirms != null) {
+                confirms.publish(EXCHANGE_NAME, routingKey, props, message).whenComplete((v, e) -> {
+                    if (e != null) {
+                        logger.error("[AMQPPublish] Publication to " + routingKey + " not confirmed: "
+                                + e.getMessage());
+                    }
+                });
+                return;
+            }
+            // Every thread running publications has its own channel
+            Channel channel = HP2CEdgeContext.getChannel();
             channel.basicPublish(EXCHANGE_NAME, routingKey, props, message);
         } catch (IOException e) {
             logger.error("IOException during AMQP publishing");
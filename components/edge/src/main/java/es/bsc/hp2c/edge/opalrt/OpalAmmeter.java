@@ -76,6 +76,16 @@ public class OpalAmmeter extends Ammeter<Float[]> implements OpalSensor<Float[]>
         }
     }
 
+    @Override
+    public void sensedPrimitive(float[] values, long epochNanos) {
+        super.setValues(values, epochNanos);
+        if (logger.isDebugEnabled()) {
+            for (float value : values) {
+                logger.debug("[Sensed] Device " + getLabel() + " sensed " + value + " A");
+            }
+        }
+    }
+
     @Override
     protected Float[] sensedValues(Float[] input) {
         return input;
@@ -4,6 +4,8 @@ import es.bsc.hp2c.HP2CEdge;
 import es.bsc.hp2c.common.types.Device;
 import es.bsc.hp2c.common.types.Actuator;
 import es.bsc.hp2c.common.types.Sensor;
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.apache.logging.log4j.LogManager;
@@ -12,7 +14,7 @@ import org.apache.logging.log4j.Logger;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.time.Instant;
+import java.nio.channels.DatagramChannel;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -25,6 +27,8 @@ public class OpalComm {
     private static final List<OpalSensor<?>> udpSensorsList = new ArrayList<>();
     private static final List<OpalSensor<?>> tcpSensorsList = new ArrayList<>();
     private static final List<OpalActuator<?>> actuatorsList = new ArrayList<>();
+    private static final List<SensorSlot> udpSlots = new ArrayList<>();
+    private static final List<SensorSlot> tcpSlots = new ArrayList<>();
     private static int maxUdpIndexesLength = 25;
     private static int udpPORT;
     private static int tcpPORT;
@@ -32,7 +36,7 @@ public class OpalComm {
     private static String udpIP;
     private static String tcpIP;
     private static String actuationIP;
-    private static DatagramSocket udpSocket;
+    private static DatagramChannel udpChannel;
     private static ServerSocket tcpSocket;
     private static Socket actuationSocket;
     private static boolean useTCPActuators = false;
@@ -41,6 +45,7 @@ public class OpalComm {
     private static boolean connectedOnce = false;
     private static HashMap<OpalActuator<?>, Float[]> missedValues = new HashMap<>();
     private static final Logger logger = LogManager.getLogger("appLogger");
+    private static final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
 
 
     //=======================================
@@ -159,40 +164,39 @@ public class OpalComm {
 
 
     /*
-     * Starts and handles UDP Server for receiving UDP Sensors data.
+     * Starts and handles UDP Server for receiving UDP Sensors data. The receive buffer, the decoded frame and the
+     * per-sensor slices are allocated once and reused for every packet, so the loop does not generate garbage.
      * */
     private static void startUDPServer() {
         Thread UDPSensorsThread = new Thread(() -> {
-            // Initialize UDP server socket to read measurements
+            // Initialize UDP server channel to read measurements
             try {
                 InetAddress serverAddress = InetAddress.getByName(udpIP);
                 if (udpPORT == 0) {
                     throw new SocketException();
                 }
-                udpSocket = new DatagramSocket(udpPORT, serverAddress);
-            } catch (SocketException e) {
-                logger.error("Error initializing UDP Sensors socket at IP " + udpIP +" and port " + udpPORT);
-                throw new RuntimeException(e);
+                udpChannel = DatagramChannel.open();
+                udpChannel.bind(new InetSocketAddress(serverAddress, udpPORT));
             } catch (UnknownHostException e) {
                 logger.error("Unable to resolve " + udpIP + " for the specified host.");
                 throw new RuntimeException(e);
+            } catch (IOException e) {
+                logger.error("Error initializing UDP Sensors socket at IP " + udpIP +" and port " + udpPORT);
+                throw new RuntimeException(e);
             }
             logger.info("\nUDP Sensors socket running on port: " + udpPORT + "\n");
 
+            ByteBuffer buffer = ByteBuffer.allocateDirect(maxUdpIndexesLength * Float.BYTES);
+            float[] frame = new float[maxUdpIndexesLength];
             while (true) {
                 // Print time each iteration
                 printCurrentTime();
                 try {
-                    byte[] buffer = new byte[maxUdpIndexesLength * Float.BYTES];
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    udpSocket.receive(packet);
-                    ByteBuffer byteBuffer = ByteBuffer.wrap(packet.getData());
-                    //convert bytebuffer to Float array (readable values)
-                    Float[] messageValues = new Float[maxUdpIndexesLength];
-                    for (int i = 0; i < messageValues.length; i++) {
-                        messageValues[i] = byteBuffer.getFloat();
-                    }
-                    distributeValues(messageValues, udpSensorsList, Instant.now());
+                    buffer.clear();
+                    udpChannel.receive(buffer);
+                    buffer.flip();
+                    decodeFrame(buffer, frame);
+                    distributeValues(frame, udpSlots, CommUtils.epochNanos());
                     logger.debug(""); // Add empty line at the end of each measurement
                 } catch (Exception e) {
                     logger.error("Error receiving UDP message: " + e.getMessage());
@@ -204,17 +208,34 @@ public class OpalComm {
     }
 
 
-    private static void distributeValues(Float[] messageValues, List<OpalSensor<?>> sensors, Instant timestamp) {
-        synchronized (sensors) {
+    /**
+     * Decode the big-endian floats in the buffer into the frame. Positions not covered by a short packet are set
+     * to zero, as they were when every packet was copied into a freshly allocated buffer.
+     *
+     * @param buffer Buffer ready to be read
+     * @param frame Reusable array of decoded values
+     */
+    static void decodeFrame(ByteBuffer buffer, float[] frame) {
+        int nFloat = Math.min(buffer.remaining() / Float.BYTES, frame.length);
+        for (int i = 0; i < nFloat; i++) {
+            frame[i] = buffer.getFloat();
+        }
+        Arrays.fill(frame, nFloat, frame.length, 0f);
+    }
+
+
+    static void distributeValues(float[] frame, List<SensorSlot> slots, long epochNanos) {
+        synchronized (slots) {
             //distribute values to their respective sensors
-            for (OpalSensor<?> sensor : sensors){
-                int[] indexes = sensor.getIndexes();
-                Float[] sensedValues = new Float[indexes.length];
+            for (int i = 0; i < slots.size(); i++) {
+                SensorSlot slot = slots.get(i);
+                int[] indexes = slot.indexes;
+                float[] sensedValues = slot.values;
                 for (int j = 0; j < indexes.length; ++j) {
-                    sensedValues[j] = messageValues[indexes[j]];
+                    sensedValues[j] = frame[indexes[j]];
                 }
-                sensor.sensed(sensedValues, timestamp);
-                sensor.onRead();
+                slot.sensor.sensedPrimitive(sensedValues, epochNanos);
+                slot.sensor.onRead();
             }
         }
     }
@@ -270,13 +291,20 @@ public class OpalComm {
      */
     private static void processTCPConnection(Socket clientSocket) {
         try {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            byte[] buffer = new byte[0];
+            float[] frame = new float[0];
             while (true) {
                 // Print time each iteration
                 printCurrentTime();
-                DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
                 int messageLength = inputStream.readInt();
-
-                byte[] buffer = new byte[messageLength * Float.BYTES];
+                if (messageLength < 0) {
+                    throw new IOException("Invalid message length: " + messageLength);
+                }
+                if (frame.length != messageLength) {
+                    buffer = new byte[messageLength * Float.BYTES];
+                    frame = new float[messageLength];
+                }
                 inputStream.readFully(buffer);
 
                 char endChar = inputStream.readChar();
@@ -284,13 +312,8 @@ public class OpalComm {
                     throw new IOException("End character not found.");
                 }
 
-                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-                //convert bytebuffer to Float array (readable values)
-                Float[] messageValues = new Float[messageLength];
-                for (int i = 0; i < messageLength; i++) {
-                    messageValues[i] = byteBuffer.getFloat();
-                }
-                distributeValues(messageValues, tcpSensorsList, Instant.now());
+                decodeFrame(ByteBuffer.wrap(buffer), frame);
+                distributeValues(frame, tcpSlots, CommUtils.epochNanos());
                 logger.debug(""); // Add empty line at the end of each measurement
             }
         } catch (IOException e){
@@ -348,7 +371,8 @@ public class OpalComm {
                 logger.info("Connected to server " + ip + " through port " + port);
                 connectedOnce = true;
                 //send empty message every 2 seconds to test the connection
-                new Timer().scheduleAtFixedRate(new connectionTester(), 0, 5000);
+                PeriodicScheduler.getDefault().scheduleAtFixedRate("OpalConnectionTester", new connectionTester(),
+                        0, 5000);
                 break;
             } catch (IOException e) {
                 logger.error("Failed to connect to actuation ip " + ip + " through port " + port + ": " +
@@ -483,7 +507,7 @@ public class OpalComm {
     /*
     * Tests the connection periodically by sending an empty message. If the connection is not established, it will retry
     */
-    private static class connectionTester extends TimerTask {
+    private static class connectionTester implements Runnable {
         public void run(){
             try{
                 // count the number of floats to be sent
@@ -518,6 +542,37 @@ public class OpalComm {
 
     protected interface OpalSensor<V> extends Sensor<Float[], V>, OpalDevice {
         int[] getIndexes();
+
+        /**
+         * Receive a slice of the incoming frame. The array is reused by OpalComm for the next frame, so
+         * implementations must copy whatever they keep. By default the values are boxed and passed to sensed().
+         *
+         * @param values Values sensed, ordered as in getIndexes()
+         * @param epochNanos Timestamp in nanoseconds since the Unix epoch
+         */
+        default void sensedPrimitive(float[] values, long epochNanos) {
+            Float[] boxed = new Float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                boxed[i] = values[i];
+            }
+            sensed(boxed, CommUtils.fromEpochNanos(epochNanos));
+        }
+    }
+
+
+    /*
+     * Sensor together with its frame indexes and the reusable array where its slice of the frame is copied.
+     */
+    static final class SensorSlot {
+        final OpalSensor<?> sensor;
+        final int[] indexes;
+        final float[] values;
+
+        SensorSlot(OpalSensor<?> sensor) {
+            this.sensor = sensor;
+            this.indexes = sensor.getIndexes().clone();
+            this.values = new float[indexes.length];
+        }
     }
 
 
@@ -568,12 +623,18 @@ public class OpalComm {
             synchronized (udpSensorsList) {
                 udpSensorsList.add(sensor);
             }
+            synchronized (udpSlots) {
+                udpSlots.add(new SensorSlot(sensor));
+            }
             ((Device) sensor).setMaxTimeWithoutUpdate(10000);
         }
         if (commType.equals("opal-tcp")){
             synchronized (tcpSensorsList) {
                 tcpSensorsList.add(sensor);
             }
+            synchronized (tcpSlots) {
+                tcpSlots.add(new SensorSlot(sensor));
+            }
         }
     }
 
@@ -609,9 +670,10 @@ public class OpalComm {
 
 
     private static void printCurrentTime() {
-        LocalTime currentTime = LocalTime.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
-        String formattedTime = currentTime.format(formatter);
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
+        String formattedTime = LocalTime.now().format(timeFormatter);
         logger.debug("Current time: " + formattedTime);
     }
 
@@ -71,8 +71,17 @@ public class OpalGenerator extends Generator<Float[]> implements OpalSensor<Floa
     @Override
     public void sensed(Float[] values, Instant timestamp) {
         super.setValues(sensedValues(values), timestamp);
-        logger.debug("[Sensed] Device " + getLabel() + " voltage set point is " + this.voltageSetpoint[0] + " V");
-        logger.debug("[Sensed] Device " + getLabel() + " power set point is " + this.powerSetpoint[0] + " W");
+        logger.debug("[Sensed] Device " + getLabel() + " voltage set point is " + this.voltageSetpoint + " V");
+        logger.debug("[Sensed] Device " + getLabel() + " power set point is " + this.powerSetpoint + " W");
+    }
+
+    @Override
+    public void sensedPrimitive(float[] values, long epochNanos) {
+        super.setValues(values, epochNanos);
+        if (logger.isDebugEnabled()) {
+            logger.debug("[Sensed] Device " + getLabel() + " voltage set point is " + this.voltageSetpoint + " V");
+            logger.debug("[Sensed] Device " + getLabel() + " power set point is " + this.powerSetpoint + " W");
+        }
     }
 
     @Override
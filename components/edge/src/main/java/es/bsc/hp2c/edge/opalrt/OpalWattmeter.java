@@ -81,6 +81,16 @@ public class OpalWattmeter extends Wattmeter<Float[]> implements OpalSensor<Floa
         }
     }
 
+    @Override
+    public void sensedPrimitive(float[] values, long epochNanos) {
+        super.setValues(values, epochNanos);
+        if (logger.isDebugEnabled()) {
+            for (float value : values) {
+                logger.debug("[Sensed] Device " + getLabel() + " sensed " + value + " W");
+            }
+        }
+    }
+
     @Override
     public final Float[] decodeValuesSensor(byte[] message) {
         return BytesToFloatArray(message);
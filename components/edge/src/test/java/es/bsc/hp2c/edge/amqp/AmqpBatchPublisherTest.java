@@ -0,0 +1,112 @@
+package es.bsc.hp2c.edge.amqp;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import es.bsc.hp2c.common.utils.ChannelPool;
+import es.bsc.hp2c.common.utils.MeasurementBatch;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AmqpBatchPublisherTest {
+
+    /** Channel that records the routing keys and bodies of basicPublish calls. */
+    private static Channel recordingChannel(List<String> routingKeys, List<byte[]> bodies) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "basicPublish":
+                            routingKeys.add((String) args[1]);
+                            bodies.add((byte[]) args[args.length - 1]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /** Pool handing out the given channel. */
+    private static ChannelPool pool(Channel channel) {
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "createChannel":
+                            return channel;
+                        default:
+                            return null;
+                    }
+                });
+        return new ChannelPool(connection, null);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testFlushOnMaxMessages() throws Exception {
+        List<String> routingKeys = Collections.synchronizedList(new ArrayList<>());
+        List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+        AmqpBatchPublisher publisher = new AmqpBatchPublisher(pool(recordingChannel(routingKeys, bodies)),
+                "measurements", "edge1", 60_000, 3, 1 << 20);
+
+        for (int i = 0; i < 7; i++) {
+            publisher.publish("Device" + i, new byte[]{(byte) i});
+        }
+
+        // Assert two full batches were sent and the remaining window waits for the linger time
+        assertEquals(2, bodies.size());
+        assertEquals("edge.edge1.batch", routingKeys.get(0));
+        MeasurementBatch batch = MeasurementBatch.decode(bodies.get(1));
+        assertEquals(3, batch.size());
+        assertEquals("Device3", batch.getEntries().get(0).getDevice());
+
+        publisher.flush();
+        assertEquals(3, bodies.size());
+        assertEquals(7, publisher.getWindowsSent());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testFlushAfterLinger() throws Exception {
+        List<String> routingKeys = Collections.synchronizedList(new ArrayList<>());
+        List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+        AmqpBatchPublisher publisher = new AmqpBatchPublisher(pool(recordingChannel(routingKeys, bodies)),
+                "measurements", "edge1", 20, 100, 1 << 20);
+
+        publisher.publish("Voltmeter", new byte[16]);
+        publisher.publish("Ammeter", new byte[16]);
+        assertTrue(bodies.isEmpty());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bodies.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        // Assert both windows were sent together once the linger time expired
+        assertEquals(1, bodies.size());
+        assertEquals(2, MeasurementBatch.decode(bodies.get(0)).size());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testFlushOnMaxBytes() throws Exception {
+        List<String> routingKeys = new ArrayList<>();
+        List<byte[]> bodies = new ArrayList<>();
+        AmqpBatchPublisher publisher = new AmqpBatchPublisher(pool(recordingChannel(routingKeys, bodies)),
+                "measurements", "edge1", 60_000, 100, 1000);
+
+        publisher.publish("Voltmeter", new byte[600]);
+        assertTrue(bodies.isEmpty());
+        publisher.publish("Ammeter", new byte[600]);
+
+        // Assert the batch was sent as soon as it exceeded the byte limit
+        assertEquals(1, bodies.size());
+    }
+}
@@ -0,0 +1,254 @@
+package es.bsc.hp2c.edge.amqp;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+import es.bsc.hp2c.common.utils.AmqpConfirmPublisher;
+import es.bsc.hp2c.common.utils.ChannelPool;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AmqpJournalTest {
+
+    @TempDir
+    File dir;
+
+    /** Channel that records the routing keys of basicPublish calls while it is open, and fails while it is not. */
+    private static Channel switchableChannel(AtomicBoolean open, List<String> routingKeys) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return open.get();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "basicPublish":
+                            if (!open.get()) {
+                                throw new AlreadyClosedException(new ShutdownSignalException(false, false, null, null));
+                            }
+                            routingKeys.add((String) args[1]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /** Pool handing out the given channel, whose connection is up while the channel is open. */
+    private static ChannelPool pool(Channel channel) {
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return channel.isOpen();
+                        case "createChannel":
+                            return channel;
+                        default:
+                            return null;
+                    }
+                });
+        return new ChannelPool(connection, null);
+    }
+
+    /** Channel in confirm mode that records the routing keys of basicPublish calls and lets the test ack them. */
+    private static Channel confirmChannel(List<String> routingKeys, AtomicReference<ConfirmCallback> ack) {
+        AtomicLong nextSeqNo = new AtomicLong(1);
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "getNextPublishSeqNo":
+                            return nextSeqNo.get();
+                        case "basicPublish":
+                            nextSeqNo.incrementAndGet();
+                            routingKeys.add((String) args[1]);
+                            return null;
+                        case "addConfirmListener":
+                            if (args.length == 2) {
+                                ack.set((ConfirmCallback) args[0]);
+                            }
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private AmqpJournal journal(ChannelPool pool, long retentionMs, int drainRate) throws Exception {
+        Map<String, Integer> priorities = new HashMap<>();
+        priorities.put("Critical", 10);
+        return new AmqpJournal(pool, "measurements", dir, 4096, 1 << 20, retentionMs, 100, 4, drainRate,
+                priorities, 0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testStoreWhileClosedAndDrainByPriority() throws Exception {
+        AtomicBoolean open = new AtomicBoolean(false);
+        List<String> routingKeys = Collections.synchronizedList(new ArrayList<>());
+        AmqpJournal journal = journal(pool(switchableChannel(open, routingKeys)), 60_000, 1000);
+
+        journal.publish("Normal", "edge.edge1.sensors.Normal", new byte[]{1});
+        journal.publish("Critical", "edge.edge1.sensors.Critical", new byte[]{2});
+        assertEquals(0, journal.drain());
+        assertEquals(2, journal.getStoredMessages());
+
+        open.set(true);
+        assertEquals(2, journal.drain());
+
+        // Assert the critical device was forwarded first and nothing is left
+        assertEquals("edge.edge1.sensors.Critical", routingKeys.get(0));
+        assertEquals("edge.edge1.sensors.Normal", routingKeys.get(1));
+        assertTrue(journal.isEmpty());
+
+        // Assert publications go straight to the broker once the channel is open
+        journal.publish("Normal", "edge.edge1.sensors.Normal", new byte[]{3});
+        assertEquals(3, routingKeys.size());
+        assertEquals(2, journal.getStoredMessages());
+        journal.close();
+    }
+
+    @org.junit.jupiter.api.Test
+    void testDrainIsRateLimited() throws Exception {
+        AtomicBoolean open = new AtomicBoolean(false);
+        List<String> routingKeys = new ArrayList<>();
+        // 50 messages per second with a drain interval of 100 ms: 5 messages per drain
+        AmqpJournal journal = journal(pool(switchableChannel(open, routingKeys)), 60_000, 50);
+        for (int i = 0; i < 12; i++) {
+            journal.publish("Normal", "edge.edge1.sensors.Normal", new byte[]{(byte) i});
+        }
+
+        open.set(true);
+        assertEquals(5, journal.drain());
+        assertEquals(5, journal.drain());
+        assertEquals(2, journal.drain());
+        assertEquals(12, journal.getForwardedMessages());
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @org.junit.jupiter.api.Test
+    void testExpiredMessagesAreDiscarded() throws Exception {
+        AtomicBoolean open = new AtomicBoolean(false);
+        List<String> routingKeys = new ArrayList<>();
+        AmqpJournal journal = journal(pool(switchableChannel(open, routingKeys)), 20, 1000);
+        journal.publish("Normal", "edge.edge1.sensors.Normal", new byte[]{1});
+        Thread.sleep(50);
+        journal.publish("Critical", "edge.edge1.sensors.Critical", new byte[]{2});
+
+        open.set(true);
+        assertEquals(1, journal.drain());
+        assertEquals(1, journal.getExpiredMessages());
+        assertEquals(Collections.singletonList("edge.edge1.sensors.Critical"), routingKeys);
+        journal.close();
+    }
+
+    @org.junit.jupiter.api.Test
+    void testMessagesSurviveRestart() throws Exception {
+        AtomicBoolean open = new AtomicBoolean(false);
+        List<String> routingKeys = new ArrayList<>();
+        AmqpJournal journal = journal(pool(switchableChannel(open, routingKeys)), 60_000, 1000);
+        journal.publish("Critical", "edge.edge1.sensors.Critical", new byte[100]);
+        journal.publish("Normal", "edge.edge1.sensors.Normal", new byte[100]);
+        journal.close();
+
+        open.set(true);
+        AmqpJournal reopened = journal(pool(switchableChannel(open, routingKeys)), 60_000, 1000);
+        assertFalse(reopened.isEmpty());
+        assertEquals(2, reopened.drain());
+        assertEquals("edge.edge1.sensors.Critical", routingKeys.get(0));
+        reopened.close();
+    }
+
+    @org.junit.jupiter.api.Test
+    void testDrainDoesNotWaitForConfirms() throws Exception {
+        AtomicBoolean open = new AtomicBoolean(false);
+        AmqpJournal journal = journal(pool(switchableChannel(open, new ArrayList<>())), 60_000, 1000);
+        for (int i = 0; i < 3; i++) {
+            journal.publish("Normal", "edge.edge1.sensors.Normal", new byte[]{(byte) i});
+        }
+        List<String> routingKeys = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<ConfirmCallback> ack = new AtomicReference<>();
+        AmqpConfirmPublisher confirms = new AmqpConfirmPublisher(confirmChannel(routingKeys, ack), 100, 100, 3,
+                1000, false);
+        journal.setConfirmPublisher(confirms);
+
+        // Assert the drain returns before the broker confirms, and nothing more is sent until it does
+        open.set(true);
+        assertEquals(3, journal.drain());
+        waitFor(() -> routingKeys.size() == 3);
+        assertEquals(0, journal.drain());
+        assertEquals(0, journal.getForwardedMessages());
+        long recordBytes = journal.getPendingBytes() / 3;
+        journal.store(0, "edge.edge1.sensors.Normal", new byte[]{3});
+
+        // Assert the forwarded records are committed once confirmed, and the stored one is forwarded next
+        ack.get().handle(3, true);
+        waitFor(() -> journal.getPendingBytes() == recordBytes);
+        assertEquals(3, journal.getForwardedMessages());
+        assertEquals(1, journal.drain());
+        waitFor(() -> routingKeys.size() == 4);
+        ack.get().handle(4, false);
+        waitFor(journal::isEmpty);
+        confirms.close();
+        journal.close();
+    }
+
+    @org.junit.jupiter.api.Test
+    void testChannelReplacedByThePoolIsUsed() throws Exception {
+        AtomicBoolean firstOpen = new AtomicBoolean(true);
+        List<String> routingKeys = new ArrayList<>();
+        List<Channel> channels = new ArrayList<>();
+        channels.add(switchableChannel(firstOpen, routingKeys));
+        channels.add(switchableChannel(new AtomicBoolean(true), routingKeys));
+        AtomicInteger created = new AtomicInteger(0);
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "createChannel":
+                            return channels.get(created.getAndIncrement());
+                        default:
+                            return null;
+                    }
+                });
+        AmqpJournal journal = journal(new ChannelPool(connection, null), 60_000, 1000);
+        journal.publish("Normal", "edge.edge1.sensors.Normal", new byte[]{1});
+
+        // Assert a channel closed by an error while the connection is up is replaced instead of storing messages
+        firstOpen.set(false);
+        assertTrue(journal.isForwarding());
+        journal.publish("Normal", "edge.edge1.sensors.Normal", new byte[]{2});
+        assertEquals(2, routingKeys.size());
+        assertEquals(0, journal.getStoredMessages());
+        assertEquals(2, created.get());
+        journal.close();
+    }
+}
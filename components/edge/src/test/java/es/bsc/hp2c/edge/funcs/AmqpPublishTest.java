@@ -0,0 +1,103 @@
+package es.bsc.hp2c.edge.funcs;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import es.bsc.hp2c.HP2CEdgeContext;
+import es.bsc.hp2c.common.funcs.Action;
+import es.bsc.hp2c.common.types.Actuator;
+import es.bsc.hp2c.common.types.Sensor;
+import es.bsc.hp2c.common.utils.ChannelPool;
+import es.bsc.hp2c.common.utils.MeasurementBatch;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import es.bsc.hp2c.edge.amqp.AmqpBatchPublisher;
+import es.bsc.hp2c.edge.opalrt.OpalVoltmeter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AmqpPublishTest {
+
+    /** Channel that records the bodies of basicPublish calls. */
+    private static Channel recordingChannel(List<byte[]> bodies) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "basicPublish":
+                            bodies.add((byte[]) args[args.length - 1]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /** Pool handing out the given channel. */
+    private static ChannelPool pool(Channel channel) {
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "createChannel":
+                            return channel;
+                        default:
+                            return null;
+                    }
+                });
+        return new ChannelPool(connection, null);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testBurstOfReadsIsPublishedOncePerTrigger() throws Exception {
+        List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+        HP2CEdgeContext.setEdgeLabel("edge1");
+        HP2CEdgeContext.setBatchPublisher(new AmqpBatchPublisher(pool(recordingChannel(bodies)),
+                "measurements", "edge1", 0, 100, 1 << 20));
+        try {
+            OpalVoltmeter voltmeter = new OpalVoltmeter("Voltmeter", new float[]{0, 0},
+                    new JSONObject().put("indexes", new JSONArray().put(0)).put("comm-type", "udp")
+                            .put("window-size", 1).put("columnar-window", false),
+                    new JSONObject().put("label", "edge1").put("executeOpalComm", false));
+            Map<String, ArrayList<Sensor<?, ?>>> sensors = new HashMap<>();
+            sensors.put("edge1", new ArrayList<>(Collections.<Sensor<?, ?>>singletonList(voltmeter)));
+            AmqpPublish publish = new AmqpPublish(sensors, new HashMap<String, ArrayList<Actuator<?>>>(),
+                    new JSONObject().put("aggregate", new JSONObject().put("type", "last")));
+            Action action = new Action(publish, AmqpPublish.class, null);
+            assertFalse(action.isCoalesced());
+            voltmeter.addOnReadFunction(action, 1, "AmqpPublish", true);
+
+            int n = 100;
+            for (int i = 0; i < n; i++) {
+                voltmeter.sensed(new Float[]{(float) i}, Instant.now());
+                voltmeter.onRead();
+            }
+
+            // Assert every read was published with the value it carried, none merged nor dropped
+            assertEquals(n, bodies.size());
+            for (int i = 0; i < n; i++) {
+                MeasurementBatch batch = MeasurementBatch.decode(bodies.get(i));
+                MeasurementWindow<Float[]> window = MeasurementWindow.decode(batch.getEntries().get(0).getWindow());
+                assertEquals(i, window.getLastMeasurement().getValue()[0], 0f);
+            }
+            assertEquals(n, action.getExecutionState().getExecutions());
+        } finally {
+            HP2CEdgeContext.setBatchPublisher(null);
+            HP2CEdgeContext.setEdgeLabel(null);
+        }
+    }
+}
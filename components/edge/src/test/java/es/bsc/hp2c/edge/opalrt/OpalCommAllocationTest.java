@@ -0,0 +1,227 @@
+package es.bsc.hp2c.edge.opalrt;
+
+import es.bsc.hp2c.common.funcs.Action;
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import es.bsc.hp2c.edge.opalrt.OpalComm.OpalSensor;
+import es.bsc.hp2c.edge.opalrt.OpalComm.SensorSlot;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpalCommAllocationTest {
+
+    private static final int FRAME_LENGTH = 25;
+    private static final int N_SENSORS = 8;
+
+    @org.junit.jupiter.api.Test
+    void testDecodeFrameFillsShortPackets() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FRAME_LENGTH * Float.BYTES);
+        buffer.putFloat(1f).putFloat(2f);
+        buffer.flip();
+        float[] frame = new float[FRAME_LENGTH];
+        frame[2] = 42f;
+
+        OpalComm.decodeFrame(buffer, frame);
+
+        // Assert the received values are decoded and the rest of the frame is zeroed
+        assertEquals(1f, frame[0]);
+        assertEquals(2f, frame[1]);
+        assertEquals(0f, frame[2]);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testDistributeValuesSlicesFrame() {
+        StubSensor sensor = new StubSensor(new int[]{3, 1, 2});
+        List<SensorSlot> slots = new ArrayList<>();
+        slots.add(new SensorSlot(sensor));
+        float[] frame = {0f, 10f, 20f, 30f};
+        long now = CommUtils.epochNanos();
+
+        OpalComm.distributeValues(frame, slots, now);
+
+        // Assert the sensor received its indexes in declaration order and onRead was called
+        assertArrayEquals(new float[]{30f, 10f, 20f}, sensor.lastValues);
+        assertEquals(now, sensor.lastEpochNanos);
+        assertEquals(1, sensor.reads);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testDefaultSensedPrimitiveBoxesValues() {
+        BoxingSensor sensor = new BoxingSensor();
+        Instant timestamp = Instant.now();
+
+        sensor.sensedPrimitive(new float[]{1.5f, 2.5f}, CommUtils.toEpochNanos(timestamp));
+
+        // Assert the default implementation falls back on sensed(Float[], Instant)
+        assertArrayEquals(new Float[]{1.5f, 2.5f}, sensor.lastValues);
+        assertEquals(timestamp, sensor.lastTimestamp);
+    }
+
+    @org.junit.jupiter.api.Test
+    void testIngestLoopDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.jupiter.api.Assumptions.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        List<SensorSlot> slots = new ArrayList<>();
+        for (int i = 0; i < N_SENSORS; i++) {
+            slots.add(new SensorSlot(new StubSensor(new int[]{3 * i, 3 * i + 1, 3 * i + 2})));
+        }
+        ByteBuffer packet = ByteBuffer.allocateDirect(FRAME_LENGTH * Float.BYTES);
+        float[] frame = new float[FRAME_LENGTH];
+
+        // Warm up so that the loop is compiled before measuring
+        runFrames(packet, frame, slots, 200_000);
+
+        // Keep the best of a few rounds, so a late JIT recompilation does not count as ingest allocation
+        long threadId = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 5 && allocated > 0; round++) {
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            runFrames(packet, frame, slots, 1_000_000);
+            allocated = Math.min(allocated, threadBean.getThreadAllocatedBytes(threadId) - before);
+        }
+
+        // Assert one million frames allocate less than a single boxed frame would
+        assertTrue(allocated < FRAME_LENGTH * 16L, "Ingest loop allocated " + allocated + " bytes");
+    }
+
+    @org.junit.jupiter.api.Test
+    void testGeneratorSensedPrimitiveDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.jupiter.api.Assumptions.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        JSONObject jProperties = new JSONObject().put("indexes", new JSONArray().put(0).put(1))
+                .put("comm-type", "udp").put("window-size", 16).put("columnar-window", true);
+        JSONObject jGlobalProperties = new JSONObject().put("label", "edge1").put("executeOpalComm", false);
+        OpalGenerator generator = new OpalGenerator("Generator1", new float[]{0, 0}, jProperties, jGlobalProperties);
+        float[] values = new float[2];
+
+        runGenerator(generator, values, 200_000);
+        long threadId = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 5 && allocated > 0; round++) {
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            runGenerator(generator, values, 1_000_000);
+            allocated = Math.min(allocated, threadBean.getThreadAllocatedBytes(threadId) - before);
+        }
+
+        // Assert the set points are stored without boxing and are still readable
+        assertTrue(allocated < 2 * 16L, "Generator allocated " + allocated + " bytes");
+        assertArrayEquals(new Float[]{values[0], values[1]}, generator.getCurrentValues());
+    }
+
+    private static void runGenerator(OpalGenerator generator, float[] values, int nSamples) {
+        for (int n = 0; n < nSamples; n++) {
+            values[0] = n;
+            values[1] = 2 * n;
+            generator.sensedPrimitive(values, CommUtils.epochNanos());
+        }
+    }
+
+    private static void runFrames(ByteBuffer packet, float[] frame, List<SensorSlot> slots, int nFrames) {
+        for (int n = 0; n < nFrames; n++) {
+            packet.clear();
+            for (int i = 0; i < FRAME_LENGTH; i++) {
+                packet.putFloat(n + i);
+            }
+            packet.flip();
+            OpalComm.decodeFrame(packet, frame);
+            OpalComm.distributeValues(frame, slots, CommUtils.epochNanos());
+        }
+    }
+
+    /** Sensor consuming the primitive slice without keeping any reference to it. */
+    private static class StubSensor extends BaseSensor {
+        private final int[] indexes;
+        private final float[] lastValues;
+        private long lastEpochNanos;
+        private int reads;
+
+        StubSensor(int[] indexes) {
+            this.indexes = indexes;
+            this.lastValues = new float[indexes.length];
+        }
+
+        @Override
+        public int[] getIndexes() {
+            return indexes;
+        }
+
+        @Override
+        public void sensedPrimitive(float[] values, long epochNanos) {
+            System.arraycopy(values, 0, lastValues, 0, values.length);
+            lastEpochNanos = epochNanos;
+        }
+
+        @Override
+        public void onRead() {
+            reads++;
+        }
+    }
+
+    /** Sensor relying on the default boxing implementation of sensedPrimitive. */
+    private static class BoxingSensor extends BaseSensor {
+        private Float[] lastValues;
+        private Instant lastTimestamp;
+
+        @Override
+        public int[] getIndexes() {
+            return new int[]{0, 1};
+        }
+
+        @Override
+        public void sensed(Float[] values, Instant timestamp) {
+            lastValues = values;
+            lastTimestamp = timestamp;
+        }
+    }
+
+    private abstract static class BaseSensor implements OpalSensor<Float[]> {
+        @Override
+        public void addOnReadFunction(Action action, int interval, String label, boolean onRead) { }
+
+        @Override
+        public void onRead() { }
+
+        @Override
+        public void sensed(Float[] values, Instant timestamp) { }
+
+        @Override
+        public MeasurementWindow<Float[]> sensed(byte[] bWindow) {
+            return null;
+        }
+
+        @Override
+        public Float[] getCurrentValues() {
+            return null;
+        }
+
+        @Override
+        public byte[] encodeValuesSensor() {
+            return new byte[0];
+        }
+
+        @Override
+        public MeasurementWindow<Float[]> getWindow() {
+            return null;
+        }
+
+        @Override
+        public Float[] decodeValuesSensor(byte[] messageBytes) {
+            return null;
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package es.bsc.hp2c;
 
+import es.bsc.hp2c.common.funcs.ActionExecutor;
 import es.bsc.hp2c.common.generic.Switch;
 import es.bsc.hp2c.common.types.Device;
 import es.bsc.hp2c.common.types.Sensor;
 import es.bsc.hp2c.common.utils.EdgeMap;
-import es.bsc.hp2c.server.device.VirtualComm;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
+import es.bsc.hp2c.server.edge.EdgeRegistry;
 import es.bsc.hp2c.server.edge.VirtualEdge;
 import es.bsc.hp2c.server.modules.*;
 import org.json.JSONObject;
@@ -12,6 +14,7 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static es.bsc.hp2c.common.utils.COMPSsUtils.setResources;
@@ -24,7 +27,7 @@ public class HP2CServerContext {
     public static CLI cli;
     private static EdgeHeartbeat heartbeat;
     private static AlarmHandler alarms;
-    private static final Map<String, VirtualEdge> edgeMap = new HashMap<>();
+    private static final EdgeRegistry edges = new EdgeRegistry();
     private static boolean verbose = true;
     private static boolean useMetrics = false;
     private static String pathToSetup = "deployments/simple/setup/server.json";
@@ -75,13 +78,20 @@ public class HP2CServerContext {
      */
     public static void init(String hostIp, Class<?> runtimeHost) throws IOException, TimeoutException {
 
+        // Executors of the periodic tasks and of the Funcs triggered by the digital twins
+        JSONObject jGlobalProperties = getJsonObject(pathToSetup).optJSONObject("global-properties");
+        PeriodicScheduler.configure(jGlobalProperties);
+        ActionExecutor.configure(jGlobalProperties);
+
         // Initialize modules
-        db = new DatabaseHandler(hostIp);
+        db = new DatabaseHandler(hostIp, jGlobalProperties);
         alarms = new AlarmHandler(pathToSetup, db);
-        amqp = new AmqpManager(hostIp, edgeMap, db);
-        heartbeat = new EdgeHeartbeat(amqp, edgeMap, runtimeHost);
-        restServer = new RestListener(edgeMap);
-        cli = new CLI(edgeMap);
+        amqp = new AmqpManager(hostIp, edges, db);
+        heartbeat = new EdgeHeartbeat(amqp, edges, runtimeHost);
+        MeasurementStream stream = MeasurementStream.fromConfig(jGlobalProperties);
+        amqp.setMeasurementStream(stream);
+        restServer = new RestListener(edges, jGlobalProperties, stream);
+        cli = new CLI(edges);
         if (useMetrics) {
             metrics = new MetricsHandler();
         }
@@ -117,10 +127,22 @@ public class HP2CServerContext {
         // Start Server modules
         heartbeat.start();
         db.start();
+        alarms.loadAlarmIndex();
+        // Flush the received measurements when the server terminates: first the pipeline, then the database
+        Runtime.getRuntime().addShutdownHook(new Thread(HP2CServerContext::shutdown, "ServerShutdown"));
         amqp.startListener();
         restServer.start();
     }
 
+    private static void shutdown() {
+        try {
+            amqp.shutdown(10, TimeUnit.SECONDS);
+            db.close(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public static String getHostIp() {
         // Get IP and setup directory
         String hostIp = System.getenv("LOCAL_IP");
@@ -134,6 +156,7 @@ public class HP2CServerContext {
     public static ActuatorValidity checkActuator(String edgeLabel, String actuatorName) {
         // Check if the provided actuator name exists in the map of edge nodes
         StringBuilder msg = new StringBuilder();
+        Map<String, VirtualEdge> edgeMap = edges.asMap();
         if (!isInMap(edgeLabel, actuatorName, edgeMap)) {
             msg.append("Edge " + edgeLabel + ", Device " + actuatorName + " not listed.\n");
             msg.append("Options are:\n");
@@ -201,22 +224,24 @@ public class HP2CServerContext {
      */
     public static EdgeMap getDevicesMap() {
         EdgeMap edgeDevices = new EdgeMap();
-        for (VirtualEdge virtualEdge : edgeMap.values()) {
-            Map<String, VirtualComm.VirtualDevice> devices = virtualEdge.getDeviceMap();
-            for (String deviceLabel : devices.keySet()) {
-                edgeDevices.addDevice(virtualEdge.getLabel(), deviceLabel, (Device) devices.get(deviceLabel));
+        EdgeRegistry.Snapshot snapshot = edges.snapshot();
+        for (String edgeLabel : snapshot.getEdgeLabels()) {
+            for (Device device : snapshot.getDevices(edgeLabel)) {
+                edgeDevices.addDevice(edgeLabel, device.getLabel(), device);
             }
         }
         return edgeDevices;
     }
 
     public static VirtualEdge findEdgeByDevice(Device device) {
-        for (VirtualEdge edge : edgeMap.values()) {
-            if (edge.getDeviceMap().equals(device)) {
-                return edge;
-            }
-        }
-        return null;
+        EdgeRegistry.Snapshot snapshot = edges.snapshot();
+        String edgeLabel = snapshot.getEdgeLabel(device);
+        return edgeLabel == null ? null : snapshot.getEdge(edgeLabel);
+    }
+
+    /** Registry of the edge nodes, whose snapshots index the devices by edge, type and capability. */
+    public static EdgeRegistry getEdgeRegistry() {
+        return edges;
     }
 
     public static String getPathToSetup() {
@@ -225,41 +250,30 @@ public class HP2CServerContext {
 
     public static ArrayList<Sensor> getSensorsByType(String type) {
         ArrayList<Sensor> sensors = new ArrayList<>();
-        for (VirtualEdge e : edgeMap.values()) {
-            for (VirtualComm.VirtualDevice d : e.getDeviceMap().values()) {
-                if (((Device) d).isSensitive() &&
-                        Objects.equals(((Device) d).getType(), type)) {
-                    sensors.add((Sensor) d);
-                }
+        for (Device d : edges.snapshot().getDevicesByType(type)) {
+            if (d.isSensitive()) {
+                sensors.add((Sensor) d);
             }
         }
         return sensors;
     }
 
-    public static ArrayList<Device> getDevicesByTypeAndEdge(String type, String edgeLabel) {
-        ArrayList<Device> devices = new ArrayList<>();
-        if (edgeMap.containsKey(edgeLabel)) {
-            VirtualEdge e = edgeMap.get(edgeLabel);
-            for (VirtualComm.VirtualDevice d : e.getDeviceMap().values()) {
-                Device device = (Device) d;
-                if ((Objects.equals(device.getType(), type))) {
-                    devices.add(device);
-                }
-            }
-        }
-        return devices;
+    /** Devices of the given type in an edge, from the current snapshot of the registry (immutable list). */
+    public static List<Device> getDevicesByTypeAndEdge(String type, String edgeLabel) {
+        return edges.snapshot().getDevicesByTypeAndEdge(type, edgeLabel);
     }
 
-    public static ArrayList<String> getEdgeLabels() {
-        ArrayList<String> edgeLabels = new ArrayList<>();
-        for (String edgeLabel : edgeMap.keySet()) {
-            edgeLabels.add(edgeLabel);
-        }
-        return edgeLabels;
+    /** Devices of the given type grouped by edge, from the current snapshot of the registry (immutable map). */
+    public static Map<String, List<Device>> getDevicesByTypePerEdge(String type) {
+        return edges.snapshot().getDevicesByTypePerEdge(type);
+    }
+
+    public static List<String> getEdgeLabels() {
+        return edges.snapshot().getEdgeLabels();
     }
 
     public static void turnOffSwitches(String edgeLabel) throws IOException {
-        if (edgeMap.containsKey(edgeLabel)) {
+        if (edges.contains(edgeLabel)) {
             for (Device d : getDevicesByTypeAndEdge("Switch", edgeLabel)) {
                 Switch sw = (Switch) d;
                 int size = sw.getCurrentValues().length;
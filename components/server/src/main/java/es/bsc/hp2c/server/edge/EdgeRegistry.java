@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.edge;
+
+import es.bsc.hp2c.common.types.Actuator;
+import es.bsc.hp2c.common.types.Device;
+import es.bsc.hp2c.common.types.Sensor;
+import es.bsc.hp2c.server.device.VirtualComm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the edge nodes known by the server.
+ *
+ * Edges are registered and updated by EdgeHeartbeat from the AMQP thread, while the REST server, the AMQP consumers
+ * and the Funcs read them. Every change publishes a new immutable Snapshot with the edges and their devices indexed
+ * by edge, by type and by capability (sensor/actuator); readers never lock, iterate a consistent view and get the
+ * device lists already built.
+ */
+public class EdgeRegistry {
+    private volatile Snapshot snapshot = new Snapshot(Collections.<String, VirtualEdge>emptyMap());
+
+    /** Current snapshot of the registry. Its maps and lists are immutable and never change. */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public VirtualEdge get(String edgeLabel) {
+        return snapshot.edges.get(edgeLabel);
+    }
+
+    public boolean contains(String edgeLabel) {
+        return snapshot.edges.containsKey(edgeLabel);
+    }
+
+    /** Immutable map of the registered edges by label. */
+    public Map<String, VirtualEdge> asMap() {
+        return snapshot.edges;
+    }
+
+    /** Register a new edge, or replace the edge with the same label. */
+    public synchronized void register(VirtualEdge edge) {
+        Map<String, VirtualEdge> edges = new LinkedHashMap<>(snapshot.edges);
+        edges.put(edge.getLabel(), edge);
+        snapshot = new Snapshot(edges);
+    }
+
+    /**
+     * Update a registered edge with the devices and properties of a newer version of it, and index its devices again.
+     *
+     * @return False if the edge was not registered
+     */
+    public synchronized boolean update(String edgeLabel, VirtualEdge newEdge) {
+        VirtualEdge edge = snapshot.edges.get(edgeLabel);
+        if (edge == null) {
+            return false;
+        }
+        edge.update(newEdge);
+        snapshot = new Snapshot(snapshot.edges);
+        return true;
+    }
+
+    /** Immutable view of the edges and of their devices at a point in time. */
+    public static final class Snapshot {
+        private final Map<String, VirtualEdge> edges;
+        private final List<String> labels;
+        private final Map<String, List<Device>> devicesByEdge = new LinkedHashMap<>();
+        private final Map<String, List<Device>> devicesByType = new LinkedHashMap<>();
+        private final Map<String, Map<String, List<Device>>> devicesByTypeAndEdge = new LinkedHashMap<>();
+        private final List<Sensor<?, ?>> sensors;
+        private final List<Actuator<?>> actuators;
+        private final Map<Device, String> edgeByDevice = new IdentityHashMap<>();
+
+        private Snapshot(Map<String, VirtualEdge> edges) {
+            this.edges = Collections.unmodifiableMap(new LinkedHashMap<>(edges));
+            this.labels = Collections.unmodifiableList(new ArrayList<>(edges.keySet()));
+            List<Sensor<?, ?>> sensors = new ArrayList<>();
+            List<Actuator<?>> actuators = new ArrayList<>();
+            for (VirtualEdge edge : this.edges.values()) {
+                String edgeLabel = edge.getLabel();
+                List<Device> edgeDevices = new ArrayList<>();
+                for (VirtualComm.VirtualDevice d : edge.getDevices()) {
+                    if (!(d instanceof Device)) {
+                        continue;
+                    }
+                    Device device = (Device) d;
+                    edgeDevices.add(device);
+                    edgeByDevice.put(device, edgeLabel);
+                    devicesByType.computeIfAbsent(device.getType(), k -> new ArrayList<>()).add(device);
+                    devicesByTypeAndEdge.computeIfAbsent(device.getType(), k -> new LinkedHashMap<>())
+                            .computeIfAbsent(edgeLabel, k -> new ArrayList<>()).add(device);
+                    if (device.isSensitive()) {
+                        sensors.add((Sensor<?, ?>) device);
+                    }
+                    if (device.isActionable()) {
+                        actuators.add((Actuator<?>) device);
+                    }
+                }
+                devicesByEdge.put(edgeLabel, Collections.unmodifiableList(edgeDevices));
+            }
+            devicesByType.replaceAll((type, devices) -> Collections.unmodifiableList(devices));
+            for (Map<String, List<Device>> perEdge : devicesByTypeAndEdge.values()) {
+                perEdge.replaceAll((edgeLabel, devices) -> Collections.unmodifiableList(devices));
+            }
+            devicesByTypeAndEdge.replaceAll((type, perEdge) -> Collections.unmodifiableMap(perEdge));
+            this.sensors = Collections.unmodifiableList(sensors);
+            this.actuators = Collections.unmodifiableList(actuators);
+        }
+
+        /** Registered edges by label, in registration order. */
+        public Map<String, VirtualEdge> getEdges() {
+            return edges;
+        }
+
+        public List<String> getEdgeLabels() {
+            return labels;
+        }
+
+        public VirtualEdge getEdge(String edgeLabel) {
+            return edges.get(edgeLabel);
+        }
+
+        /** Devices of an edge, or an empty list if the edge is not registered. */
+        public List<Device> getDevices(String edgeLabel) {
+            return orEmpty(devicesByEdge.get(edgeLabel));
+        }
+
+        /** Devices of the given type (e.g., "Voltmeter") in every edge. */
+        public List<Device> getDevicesByType(String type) {
+            return orEmpty(devicesByType.get(type));
+        }
+
+        /** Devices of the given type in an edge. */
+        public List<Device> getDevicesByTypeAndEdge(String type, String edgeLabel) {
+            return orEmpty(getDevicesByTypePerEdge(type).get(edgeLabel));
+        }
+
+        /** Devices of the given type grouped by edge. Edges without devices of that type are not included. */
+        public Map<String, List<Device>> getDevicesByTypePerEdge(String type) {
+            Map<String, List<Device>> perEdge = devicesByTypeAndEdge.get(type);
+            return perEdge == null ? Collections.<String, List<Device>>emptyMap() : perEdge;
+        }
+
+        public List<Sensor<?, ?>> getSensors() {
+            return sensors;
+        }
+
+        public List<Actuator<?>> getActuators() {
+            return actuators;
+        }
+
+        /** Label of the edge of a device, or null if the device is not registered. */
+        public String getEdgeLabel(Device device) {
+            return edgeByDevice.get(device);
+        }
+
+        private static List<Device> orEmpty(List<Device> devices) {
+            return devices == null ? Collections.<Device>emptyList() : devices;
+        }
+    }
+}
@@ -16,13 +16,16 @@
 package es.bsc.hp2c.server.edge;
 
 import es.bsc.hp2c.common.types.Device;
+import es.bsc.hp2c.common.utils.HeartbeatDelta;
 import es.bsc.hp2c.server.device.VirtualComm;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static es.bsc.hp2c.common.utils.CommUtils.parseAmqpPublishFunctions;
 import static es.bsc.hp2c.common.utils.FileUtils.loadDevices;
@@ -30,18 +33,25 @@ import static es.bsc.hp2c.common.utils.FileUtils.loadDevices;
 /**
  * Edge representation in the Server.
  * It contains a map of devices and other properties such as availability.
+ * Edges are updated by the heartbeat listener while other threads read them, so their state is kept in concurrent
+ * maps and volatile fields.
  */
 public class VirtualEdge {
+    // Incremented on every change of any edge, so that views of the edges (e.g., the REST edges info) know when to
+    // build again
+    private static final AtomicLong version = new AtomicLong(0);
     private final String label;
     private final Map<String, VirtualComm.VirtualDevice> devices;
-    private boolean isAvailable;
-    private long lastHeartbeat;
+    private volatile boolean isAvailable;
+    private volatile long lastHeartbeat;
 
-    private float x;
+    private volatile float x;
 
-    private float y;
-    private ArrayList<String> connections;
-    private boolean modified;
+    private volatile float y;
+    private volatile ArrayList<String> connections;
+    private volatile boolean modified;
+    private volatile List<String> deviceOrder;
+    private volatile String setupHash;
     /**
      * Basic constructor when passing all the essential parameters explicitly.
      * @param label Edge label
@@ -50,7 +60,8 @@ public class VirtualEdge {
      */
     public VirtualEdge(String label, Map<String, VirtualComm.VirtualDevice> devices, Long currentTime) {
         this.label = label;
-        this.devices = devices;
+        this.devices = new ConcurrentHashMap<>(devices);
+        this.deviceOrder = new ArrayList<>(this.devices.keySet());
         this.isAvailable = true;
         this.lastHeartbeat = currentTime;
     }
@@ -64,15 +75,17 @@ public class VirtualEdge {
         JSONObject jGlobalProps = jEdgeSetup.getJSONObject("global-properties");
         this.label = jGlobalProps.getString("label");
         Map<String, Device> devicesMap = loadDevices(jEdgeSetup, "driver-dt", false);
-        devices = new HashMap<>();
+        devices = new ConcurrentHashMap<>();
         for (String d : devicesMap.keySet()){
             devices.put(d, (VirtualComm.VirtualDevice) devicesMap.get(d));
         }
         // Set devices' availability
         JSONArray jDevices = jEdgeSetup.getJSONArray("devices");
+        List<String> order = new ArrayList<>();
         for (Object device : jDevices){
             JSONObject jDevice = (JSONObject) device;
             String deviceLabel = jDevice.getString("label").replace(" ", "").replace("-","");
+            order.add(deviceLabel);
             boolean availability = jDevice.getBoolean("availability");
             this.setDeviceAvailability(deviceLabel, availability);
             String amqpAggregate = jDevice.getJSONObject("properties").optString("amqp-aggregate", "");
@@ -92,6 +105,8 @@ public class VirtualEdge {
             }
         }
 
+        this.deviceOrder = order;
+        this.setupHash = jEdgeSetup.optString(HeartbeatDelta.SETUP_HASH, null);
         this.isAvailable = jGlobalProps.getBoolean("available");
         this.lastHeartbeat = jGlobalProps.getLong("heartbeat");
         // Collect edge geospatial data
@@ -121,6 +136,46 @@ public class VirtualEdge {
         this.y = newEdge.getY();
         this.connections = newEdge.getConnections();
         this.isAvailable = newEdge.isAvailable();
+        this.deviceOrder = newEdge.deviceOrder;
+        this.setupHash = newEdge.getSetupHash();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Keep the setup hash and device order of a setup equal to the registered one (e.g., only the order of its
+     * devices changed), so the heartbeat deltas sent with the new hash are applied instead of requesting the setup.
+     */
+    public void adoptSetup(VirtualEdge newEdge) {
+        this.deviceOrder = newEdge.deviceOrder;
+        this.setupHash = newEdge.getSetupHash();
+    }
+
+    /**
+     * Apply the availability of a heartbeat to the devices, without loading them again.
+     *
+     * @param availability Availability of the devices, in the order of the edge setup
+     * @param available Availability of the edge
+     * @return True if the availability of the edge or of any of its devices changed
+     */
+    public boolean applyAvailability(boolean[] availability, boolean available) {
+        List<String> order = deviceOrder;
+        if (availability.length != order.size()) {
+            throw new IllegalArgumentException("Edge " + label + " has " + order.size() + " devices but "
+                    + availability.length + " availabilities were received");
+        }
+        boolean changed = isAvailable != available;
+        isAvailable = available;
+        for (int i = 0; i < availability.length; i++) {
+            Device device = (Device) devices.get(order.get(i));
+            if (device != null && device.getDeviceAvailability() != availability[i]) {
+                device.setDeviceAvailability(availability[i]);
+                changed = true;
+            }
+        }
+        if (changed) {
+            version.incrementAndGet();
+        }
+        return changed;
     }
 
     public boolean equals(VirtualEdge oldEdge){
@@ -187,6 +242,8 @@ public class VirtualEdge {
                 jDevice.put("aggregate", aggregate);
                 if (aggregate.equals("phasor")) {
                     jDevice.put("size", 2);
+                } else if (aggregate.equals("phasors")) {
+                    jDevice.put("size", 3 * sensor.getSize());
                 } else {
                     jDevice.put("size", sensor.getSize());
                 }
@@ -209,6 +266,7 @@ public class VirtualEdge {
 
     public void setDeviceAvailability(String deviceLabel, boolean availability){
         ((Device) devices.get(deviceLabel)).setDeviceAvailability(availability);
+        version.incrementAndGet();
     }
 
     public boolean getDeviceAvailability(String deviceLabel){
@@ -233,6 +291,7 @@ public class VirtualEdge {
 
     public void setModified(boolean b){
         this.modified = b;
+        version.incrementAndGet();
     }
 
     public boolean getModified(){
@@ -255,6 +314,16 @@ public class VirtualEdge {
         return connections;
     }
 
+    /** Hash of the edge setup the devices were loaded from, or null if the edge did not send it. */
+    public String getSetupHash() {
+        return setupHash;
+    }
+
+    /** Version of the state of the edges, incremented whenever any of them changes. */
+    public static long getVersion() {
+        return version.get();
+    }
+
     public long getLastHeartbeat() {
         return lastHeartbeat;
     }
@@ -265,6 +334,7 @@ public class VirtualEdge {
 
     public void setAvailable(boolean available) {
         isAvailable = available;
+        version.incrementAndGet();
     }
 
     public Map<String, VirtualComm.VirtualDevice> getDeviceMap(){
@@ -34,10 +34,10 @@ public class LoadBalanceAlarm extends Func {
     public void run() {
         // Map to store edge-device measurements
         Map<String, Map<String, Float>> edgeDeviceMeasurements = new HashMap<>();
-        for (String edgeLabel : getEdgeLabels()) {
-            ArrayList<Device> ammetersEdge = getDevicesByTypeAndEdge("Ammeter", edgeLabel);
+        for (Map.Entry<String, List<Device>> ammetersEdge : getDevicesByTypePerEdge("Ammeter").entrySet()) {
+            String edgeLabel = ammetersEdge.getKey();
 
-            for (Device d : ammetersEdge) {
+            for (Device d : ammetersEdge.getValue()) {
                 if (!d.getDeviceAvailability()){
                     System.out.println("[LoadBalanceAlarm] Ammeter " + d.getLabel() + " is not available");
                     continue;
@@ -55,12 +55,8 @@ public class VoltageFaultDetection extends Func {
 
     @Override
     public void run() {
-        // Retrieve edge labels and map voltmeters to their edges
-        ArrayList<String> edgeLabels = getEdgeLabels();
-        Map<String, ArrayList<Device>> voltmetersEdge = new HashMap<>();
-        for (String edgeLabel : edgeLabels) {
-            voltmetersEdge.put(edgeLabel, getDevicesByTypeAndEdge("Voltmeter", edgeLabel));
-        }
+        // Voltmeters of every edge, indexed in advance by the edge registry
+        Map<String, List<Device>> voltmetersEdge = getDevicesByTypePerEdge("Voltmeter");
 
         // Store current measurements for each edge
         Map<String, Map<String, Float>> currentMeasurements = new HashMap<>();
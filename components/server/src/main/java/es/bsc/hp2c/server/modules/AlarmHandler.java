@@ -3,161 +3,301 @@ package es.bsc.hp2c.server.modules;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static es.bsc.hp2c.common.utils.FileUtils.getJsonObject;
 
+/**
+ * Status of the alarms declared by the server funcs.
+ *
+ * Every alarm-edge-device triple (or global alarm) is a small state machine: it is raised by a true status and
+ * cleared by a false status once no true status arrived for alarm-off-delay. Only the first report of a triple and
+ * its transitions are written to alarms.json, so funcs can report their status on every run without any I/O while
+ * nothing changes. They are also stored in InfluxDB (through the write-behind buffer of the DatabaseHandler), where an
+ * active alarm is stored again on the first report after every alarm-refresh-interval milliseconds, so it keeps
+ * showing in queries over a recent time range (e.g., the Grafana alert rules, which look at the last 600 seconds).
+ * The JSON file is
+ * written by a background thread, at most once every alarm-write-delay milliseconds, to a temporary file that then
+ * replaces alarms.json atomically.
+ */
 public class AlarmHandler {
+    public static final long DEFAULT_WRITE_DELAY = 1000;
+    public static final long DEFAULT_REFRESH_INTERVAL = 60000;
+    private static final List<String> GLOBAL = Arrays.asList(null, null);
 
-    private String alarmFilePath;
-    private JSONObject alarms = new JSONObject();
+    private final Path alarmFile;
+    // States of every func, by [edge, device] (GLOBAL for the global alarm), guarded by this
+    private final Map<String, Map<List<String>, AlarmState>> alarms = new LinkedHashMap<>();
     private float alarmOffDelay = 60f; // timeout to turn off an alarm (in seconds)
-    private DatabaseHandler db;
+    private long writeDelay = DEFAULT_WRITE_DELAY;
+    private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private final DatabaseHandler db;
+    // [alarm, edge, device] triples written to the database, served by /getAlarms
+    private final Set<ArrayList<String>> alarmIndex = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "AlarmWriter");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final AtomicLong writes = new AtomicLong(0);
+    private final AtomicLong storedReports = new AtomicLong(0);
+    private final Object fileLock = new Object();
 
     public AlarmHandler (String pathToSetup, DatabaseHandler database){
-        db = database;
-
-        // Check if the server is running in Docker (look for a random file)
-        File setup = new File("/data/setup.json");
-        if (setup.exists()) {
-            alarmFilePath = "/tmp/alarms.json"; // Docker path
-        } else {
-            String cwd = Paths.get("").toAbsolutePath().toString();
-            alarmFilePath = cwd + "/alarms.json"; // Local path
-        }
+        this(Paths.get(getDefaultAlarmFilePath()), database);
         try {
             // Load setup file
             JSONObject object = getJsonObject(pathToSetup);
-            String timeoutValue = object.getJSONObject("global-properties").optString("alarm-off-delay");
+            JSONObject jGlobalProperties = object.getJSONObject("global-properties");
+            String timeoutValue = jGlobalProperties.optString("alarm-off-delay");
             if(timeoutValue != null){
                 setAlarmOffDelay(timeoutValue);
             }
+            writeDelay = jGlobalProperties.optLong("alarm-write-delay", DEFAULT_WRITE_DELAY);
+            refreshInterval = jGlobalProperties.optLong("alarm-refresh-interval", DEFAULT_REFRESH_INTERVAL);
         } catch (Exception e){
             System.err.println("Error loading server json from: " + pathToSetup);
         }
     }
 
+    /**
+     * @param alarmFile JSON file with the status of the alarms
+     * @param database Database where alarm transitions are stored, or null to only keep the JSON file
+     */
+    AlarmHandler(Path alarmFile, DatabaseHandler database) {
+        this.alarmFile = alarmFile;
+        this.db = database;
+        // Write the last transitions before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    private static String getDefaultAlarmFilePath() {
+        // Check if the server is running in Docker (look for a random file)
+        File setup = new File("/data/setup.json");
+        if (setup.exists()) {
+            return "/tmp/alarms.json"; // Docker path
+        } else {
+            String cwd = Paths.get("").toAbsolutePath().toString();
+            return cwd + "/alarms.json"; // Local path
+        }
+    }
+
     public void addNewAlarm(String funcLabel) {
-        try {
-            if (!alarms.has(funcLabel)) {
-                JSONObject newAlarm = new JSONObject();
-                alarms.put(funcLabel, newAlarm);
-                writeToFile();
+        synchronized (this) {
+            if (alarms.containsKey(funcLabel)) {
+                return;
             }
-        } catch (Exception e) {
-            System.err.println(e);
+            alarms.put(funcLabel, new LinkedHashMap<>());
         }
+        scheduleWrite();
     }
 
+    /**
+     * Report the status of an alarm. Funcs may call it on every run: the database and the JSON file are only
+     * updated when the alarm is reported for the first time, raised or cleared, and the database also when an active
+     * alarm was last stored alarm-refresh-interval milliseconds ago or more.
+     *
+     * @param funcLabel Label of the func declaring the alarm
+     * @param edge Edge of the alarm, or null for a global alarm
+     * @param device Device of the alarm, or null for a global alarm
+     * @param infoMessage Info message of a raised alarm, or null
+     * @param alarmStatus Whether the condition of the alarm holds
+     */
     public void writeAlarm(String funcLabel, String edge, String device, String infoMessage, boolean alarmStatus) {
-        if (!alarms.has(funcLabel)) {
-            System.out.println("[Error] Function label does not exist: " + funcLabel);
+        Instant now = Instant.now();
+        boolean active;
+        boolean refresh;
+        String info;
+        synchronized (this) {
+            Map<List<String>, AlarmState> funcAlarm = alarms.get(funcLabel);
+            if (funcAlarm == null) {
+                System.out.println("[Error] Function label does not exist: " + funcLabel);
+                return;
+            }
+            List<String> location = edge == null || device == null ? GLOBAL : Arrays.asList(edge, device);
+            AlarmState state = funcAlarm.get(location);
+            boolean transition = false;
+            if (state == null) {
+                // First report of the triple
+                state = new AlarmState();
+                funcAlarm.put(location, state);
+                transition = true;
+            }
+            if (alarmStatus) {
+                transition |= !state.active;
+                state.active = true;
+                state.time = now;
+                state.info = infoMessage;
+            } else if (state.active && Duration.between(state.time, now).toMillis() >= alarmOffDelay * 1000) {
+                // Clear the alarm if the alarm off delay has expired
+                state.active = false;
+                state.time = null;
+                state.info = null;
+                transition = true;
+            }
+            // Keep an active alarm within the time range of the queries of the database
+            refresh = !transition && state.active && refreshInterval > 0
+                    && Duration.between(state.stored, now).toMillis() >= refreshInterval;
+            if (!transition && !refresh) {
+                return;
+            }
+            state.stored = now;
+            active = state.active;
+            info = active ? state.info : infoMessage;
+        }
+
+        if (db != null) {
+            db.writeAlarmDB(now, funcLabel, edge, device, active, info);
+        }
+        storedReports.incrementAndGet();
+        if (refresh) {
             return;
         }
+        indexAlarm(funcLabel, edge, device);
+        scheduleWrite();
+    }
 
-        JSONObject funcAlarm = alarms.getJSONObject(funcLabel);
-        funcAlarm.put("alarm", alarmStatus);
+    /** Milliseconds after which an active alarm is stored again in the database on its next report (0 to disable). */
+    void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
 
-        if (alarmStatus) {
-            // Handle the edge-device pair (if edge and device are not null)
-            if (edge != null && device != null) {
-                JSONObject location = funcAlarm.optJSONObject("location");
-                if (location == null) {
-                    location = new JSONObject();
+    /** Status of the alarms in the format of alarms.json. */
+    public synchronized JSONObject toJSON() {
+        JSONObject jAlarms = new JSONObject();
+        for (Map.Entry<String, Map<List<String>, AlarmState>> funcAlarm : alarms.entrySet()) {
+            JSONObject jFuncAlarm = new JSONObject();
+            boolean active = false;
+            for (Map.Entry<List<String>, AlarmState> e : funcAlarm.getValue().entrySet()) {
+                AlarmState state = e.getValue();
+                if (!state.active) {
+                    continue;
                 }
-
-                JSONObject edgeData = location.optJSONObject(edge);
-                if (edgeData == null) {
-                    edgeData = new JSONObject();
+                active = true;
+                JSONObject jState = jFuncAlarm;
+                if (e.getKey() != GLOBAL) {
+                    String edge = e.getKey().get(0);
+                    JSONObject location = jFuncAlarm.optJSONObject("location");
+                    if (location == null) {
+                        location = new JSONObject();
+                        jFuncAlarm.put("location", location);
+                    }
+                    JSONObject edgeData = location.optJSONObject(edge);
+                    if (edgeData == null) {
+                        edgeData = new JSONObject();
+                        location.put(edge, edgeData);
+                    }
+                    jState = new JSONObject();
+                    edgeData.put(e.getKey().get(1), jState);
                 }
-
-                JSONObject jDevice = new JSONObject();
-                jDevice.put("time", Instant.now());
-                if (infoMessage != null){
-                    jDevice.put("info", infoMessage);
-                }
-
-                // Add or update the device with the current timestamp
-                edgeData.put(device, jDevice);
-                location.put(edge, edgeData);
-                funcAlarm.put("location", location);
-
-            } else {
-                funcAlarm.put("time", Instant.now());
-                if (infoMessage != null){
-                    funcAlarm.put("info", infoMessage);
+                jState.put("time", state.time.toString());
+                if (state.info != null) {
+                    jState.put("info", state.info);
                 }
             }
-        } else {
-            // Handle the case when alarmStatus is false
-            JSONObject location = funcAlarm.optJSONObject("location");
-
-            if (edge == null && device == null) {
-                // Check the "time" key for timestamp
-                if (funcAlarm.has("time")) {
-                    Instant alarmTime = (Instant) funcAlarm.get("time");
-                    Instant now = Instant.now();
-
-                    if (Duration.between(alarmTime, now).getSeconds() >= alarmOffDelay) {
-                        // Clear the alarm entirely if the alarm off delay has expired
-                        funcAlarm.put("alarm", false);
-                        funcAlarm.remove("time");
-                        funcAlarm.remove("info");
-                    }
-                } else {
-                    funcAlarm.put("alarm", false);
-                    System.out.println("[Update] No global timestamp found for function: " + funcLabel);
-                }
-
-
-            } else {
-                // Handle edge and device-specific case
-                if (location != null && location.has(edge)) {
-                    JSONObject edgeData = location.getJSONObject(edge);
-                    if (!edgeData.has(device)) {
-                        System.out.println("[Update] Device not found in edge: " + edge);
-                        return;
-                    }
+            jFuncAlarm.put("alarm", active);
+            jAlarms.put(funcAlarm.getKey(), jFuncAlarm);
+        }
+        return jAlarms;
+    }
 
-                    JSONObject jDevice = edgeData.getJSONObject(device);
+    /** Write the JSON file alarm-write-delay milliseconds after a change, coalescing the changes made meanwhile. */
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            try {
+                writer.schedule(this::writeToFile, writeDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                writeScheduled.set(false);
+            }
+        }
+    }
 
-                    // Check the timestamp for the device
-                    Instant alarmTime = (Instant) jDevice.get("time");
+    /** Write the pending changes now, if any. */
+    public void flush() {
+        writeToFile();
+    }
 
-                    if (Duration.between(alarmTime, Instant.now()).getSeconds() >= alarmOffDelay) {
-                        // Remove the device if the timeout has passed
-                        edgeData.remove(device);
-                        if (edgeData.isEmpty()) {
-                            location.remove(edge);
-                        }
-                        if (location.isEmpty()) {
-                            funcAlarm.put("alarm", false);
-                        }
-                    }
+    private void writeToFile() {
+        // Changes made from now on schedule another write. Nothing to do if flush() already wrote them
+        if (!writeScheduled.getAndSet(false)) {
+            return;
+        }
+        byte[] content = toJSON().toString(4).getBytes(StandardCharsets.UTF_8);
+        synchronized (fileLock) {
+            Path tmp = alarmFile.resolveSibling(alarmFile.getFileName() + ".tmp");
+            try {
+                Files.write(tmp, content);
+                try {
+                    Files.move(tmp, alarmFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, alarmFile, StandardCopyOption.REPLACE_EXISTING);
                 }
+                writes.incrementAndGet();
+                System.out.println("[AlarmHandler] Alarms written to " + alarmFile);
+            } catch (IOException e) {
+                System.err.println("[AlarmHandler] Failed to write alarms to file: " + e.getMessage());
             }
         }
+    }
 
-        // Update the alarms attribute and write to file
-        alarms.put(funcLabel, funcAlarm);
-        writeToFile();
-        db.writeAlarmDB(Instant.now(), funcLabel, edge, device, alarmStatus, infoMessage);
+    /** Number of times the JSON file was written. */
+    public long getWrites() {
+        return writes.get();
     }
 
+    /** Number of reports stored in the database: first reports, transitions and refreshes of active alarms. */
+    public long getStoredReports() {
+        return storedReports.get();
+    }
 
-    private void writeToFile() {
-        try (FileWriter fileWriter = new FileWriter(alarmFilePath)) {
-            fileWriter.write(alarms.toString(4));
-            System.out.println("[AlarmHandler] Alarm written to " + alarmFilePath);
-        } catch (IOException e) {
-            System.err.println("[AlarmHandler] Failed to write alarm to file: " + e.getMessage());
+    /**
+     * Fill the alarm index with the triples already stored in the database (e.g., before a restart of the server).
+     * Called once the database is started.
+     */
+    public void loadAlarmIndex() {
+        try {
+            Set<ArrayList<String>> triples = db.getUniqueAlarmTriples();
+            alarmIndex.addAll(triples);
+            System.out.println("[AlarmHandler] Loaded " + triples.size() + " alarm triples from the database");
+        } catch (Exception e) {
+            System.err.println("[AlarmHandler] Failed to load alarm triples from the database: " + e.getMessage());
         }
     }
 
+    /** Record an [alarm, edge, device] triple, using "global" for a missing edge or device as the database does. */
+    void indexAlarm(String funcLabel, String edge, String device) {
+        alarmIndex.add(new ArrayList<>(Arrays.asList(funcLabel,
+                edge != null ? edge : "global", device != null ? device : "global")));
+    }
+
+    /** Unique [alarm, edge, device] triples written since the start of the server or found in the database. */
+    public Set<ArrayList<String>> getAlarmTriples() {
+        return new HashSet<>(alarmIndex);
+    }
+
     public void setAlarmOffDelay(String timeValue) {
         try {
             if (timeValue == null || timeValue.isEmpty()) {
@@ -199,5 +339,12 @@ public class AlarmHandler {
             System.err.println("[AlarmHandler] " + e.getMessage());
         }
     }
-}
 
+    /** State of an alarm-edge-device triple or of a global alarm. */
+    private static final class AlarmState {
+        private boolean active;
+        private Instant time; // Last time the alarm was reported active
+        private String info;
+        private Instant stored; // Last time the state was stored in the database
+    }
+}
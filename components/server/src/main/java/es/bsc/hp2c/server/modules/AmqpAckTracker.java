@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.modules;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
+import es.bsc.hp2c.server.modules.WriteBehindBuffer.SettleCallback;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manual acknowledgement of the deliveries of a consumer once their windows are settled in the database stage.
+ *
+ * Deliveries are registered in arrival order and settled in any order, as their windows go through different shards
+ * and batches of the write-behind buffer. Acks are sent with multiple=true up to the newest delivery whose older
+ * deliveries are all settled, every ack-batch settled deliveries or every ack-interval milliseconds, whichever comes
+ * first. Deliveries not acknowledged when the server stops are redelivered by the broker; as a point with the same
+ * series and timestamp overwrites the previous one in InfluxDB, the redelivered windows do not duplicate values.
+ *
+ * A delivery with values dropped by the write-behind buffer is rejected instead (basicNack with requeue), so the
+ * broker delivers it again rather than losing it. Acks never cover a rejected delivery tag.
+ *
+ * When the consumer moves to a new channel (rebind), the deliveries of the closed channel are forgotten: the broker
+ * redelivers them, and their tags would be meaningless on the new channel.
+ */
+public class AmqpAckTracker {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int DEFAULT_PREFETCH = 5000;
+    public static final int DEFAULT_ACK_BATCH = 100;
+    public static final long DEFAULT_ACK_INTERVAL = 100;
+    public static final String DEFAULT_QUEUE = "measurements";
+
+    private Channel channel;
+    // Incremented on every rebind, deliveries of previous channels are not acknowledged
+    private long generation = 0;
+    private final int ackBatch;
+    private final long ackInterval;
+    private final TreeSet<Long> unsettled = new TreeSet<>();
+    // Rejected deliveries newer than the last ack
+    private final TreeSet<Long> rejected = new TreeSet<>();
+    private long newestSettled = 0;
+    private long lastAcked = 0;
+    private int settledSinceAck = 0;
+    private long settled = 0;
+    private long acks = 0;
+    private long rejections = 0;
+    private PeriodicScheduler.ScheduledTask ackTask;
+
+    public AmqpAckTracker(Channel channel, int ackBatch, long ackInterval) {
+        this.channel = channel;
+        this.ackBatch = Math.max(ackBatch, 1);
+        this.ackInterval = ackInterval;
+    }
+
+    /**
+     * Create the tracker from the "amqp-consumer" section of the server global properties, if manual acknowledgement
+     * is enabled ("manual-ack", default true).
+     *
+     * @param jGlobalProperties Global properties of the server setup, or null
+     * @param channel Channel of the consumer
+     * @return The tracker, or null if deliveries are acknowledged automatically
+     */
+    public static AmqpAckTracker fromConfig(JSONObject jGlobalProperties, Channel channel) {
+        JSONObject jConsumer = getConsumerProperties(jGlobalProperties);
+        if (!jConsumer.optBoolean("manual-ack", true)) {
+            return null;
+        }
+        return new AmqpAckTracker(channel, jConsumer.optInt("ack-batch", DEFAULT_ACK_BATCH),
+                jConsumer.optLong("ack-interval", DEFAULT_ACK_INTERVAL));
+    }
+
+    /** Prefetch of the consumers of the server, from the "amqp-consumer" section (0 for no limit). */
+    public static int getPrefetch(JSONObject jGlobalProperties) {
+        return getConsumerProperties(jGlobalProperties).optInt("prefetch", DEFAULT_PREFETCH);
+    }
+
+    /**
+     * Name of the durable queue of the measurements consumer, from the "amqp-consumer" section. It outlives the
+     * consumer, so the messages not acknowledged yet, and those published while the server is down, are kept.
+     */
+    public static String getQueueName(JSONObject jGlobalProperties) {
+        return getConsumerProperties(jGlobalProperties).optString("queue", DEFAULT_QUEUE);
+    }
+
+    private static JSONObject getConsumerProperties(JSONObject jGlobalProperties) {
+        JSONObject jConsumer = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("amqp-consumer");
+        return jConsumer == null ? new JSONObject() : jConsumer;
+    }
+
+    /** Send the pending acks periodically, so that deliveries are acknowledged when traffic stops. */
+    public void start() {
+        if (ackInterval > 0) {
+            ackTask = PeriodicScheduler.getDefault().scheduleAtFixedRate("AmqpAcks", this::flush, ackInterval,
+                    ackInterval);
+        }
+    }
+
+    /**
+     * Register a delivery. Must be called in delivery order, from the consumer thread.
+     *
+     * @return Handle whose holds settle the delivery once all of them, and the handle itself, are released
+     */
+    public synchronized Delivery register(long deliveryTag) {
+        return register(channel, deliveryTag);
+    }
+
+    /**
+     * Register a delivery received on a given channel. Deliveries of a channel other than the current one (e.g., late
+     * deliveries of a closed channel) are never acknowledged.
+     */
+    public synchronized Delivery register(Channel deliveryChannel, long deliveryTag) {
+        if (deliveryChannel != channel) {
+            return new Delivery(deliveryTag, -1);
+        }
+        unsettled.add(deliveryTag);
+        return new Delivery(deliveryTag, generation);
+    }
+
+    /**
+     * Acknowledge the deliveries of a new channel of the consumer. Must be called before consuming from it.
+     */
+    public synchronized void rebind(Channel channel) {
+        if (channel == this.channel) {
+            return;
+        }
+        this.channel = channel;
+        generation++;
+        unsettled.clear();
+        rejected.clear();
+        newestSettled = 0;
+        lastAcked = 0;
+        settledSinceAck = 0;
+    }
+
+    private synchronized void settle(long deliveryTag, long deliveryGeneration) {
+        if (deliveryGeneration != generation) {
+            return;
+        }
+        unsettled.remove(deliveryTag);
+        newestSettled = Math.max(newestSettled, deliveryTag);
+        settled++;
+        if (++settledSinceAck >= ackBatch) {
+            flush();
+        }
+    }
+
+    /** Reject a delivery whose values were dropped, so the broker delivers it again. */
+    private synchronized void reject(long deliveryTag, long deliveryGeneration) {
+        if (deliveryGeneration != generation) {
+            return;
+        }
+        unsettled.remove(deliveryTag);
+        rejected.add(deliveryTag);
+        try {
+            channel.basicNack(deliveryTag, false, true);
+            rejections++;
+        } catch (IOException | ShutdownSignalException e) {
+            // If the channel was closed, its deliveries are redelivered by the broker anyway
+            logger.warn("[AmqpAckTracker] Error rejecting delivery " + deliveryTag + ": " + e.getMessage());
+        }
+    }
+
+    /** Acknowledge every delivery up to the newest one whose older deliveries are all settled. */
+    public synchronized void flush() {
+        long ackable = unsettled.isEmpty() ? newestSettled : Math.min(newestSettled, unsettled.first() - 1);
+        // The broker no longer knows rejected tags, so an ack must end at an accepted one
+        while (ackable > lastAcked && rejected.contains(ackable)) {
+            ackable--;
+        }
+        if (ackable <= lastAcked) {
+            return;
+        }
+        try {
+            channel.basicAck(ackable, true);
+            rejected.headSet(ackable).clear();
+            lastAcked = ackable;
+            settledSinceAck = 0;
+            acks++;
+        } catch (IOException | ShutdownSignalException e) {
+            // Retried on the next flush. If the channel was closed, its deliveries are redelivered by the broker
+            logger.warn("[AmqpAckTracker] Error acknowledging deliveries up to " + ackable + ": " + e.getMessage());
+        }
+    }
+
+    /** Deliveries registered and not settled yet. */
+    public synchronized int getUnsettled() {
+        return unsettled.size();
+    }
+
+    public synchronized long getSettled() {
+        return settled;
+    }
+
+    /** Number of basicAck calls sent. */
+    public synchronized long getAcks() {
+        return acks;
+    }
+
+    /** Number of deliveries rejected because their values were dropped. */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    public void stop() {
+        if (ackTask != null) {
+            ackTask.cancel();
+        }
+        flush();
+    }
+
+    /**
+     * Delivery being processed. Every hold() returns a callback to run once a part of the delivery (e.g., a window
+     * of a batch) is settled; the delivery is settled once every callback has run and release() has been called, and
+     * rejected if any part was dropped.
+     */
+    public final class Delivery {
+        private final long deliveryTag;
+        private final long generation;
+        private final AtomicInteger holds = new AtomicInteger(1);
+        private volatile boolean dropped = false;
+
+        private Delivery(long deliveryTag, long generation) {
+            this.deliveryTag = deliveryTag;
+            this.generation = generation;
+        }
+
+        public SettleCallback hold() {
+            holds.incrementAndGet();
+            AtomicBoolean released = new AtomicBoolean(false);
+            return kept -> {
+                if (released.compareAndSet(false, true)) {
+                    if (!kept) {
+                        dropped = true;
+                    }
+                    release();
+                }
+            };
+        }
+
+        /** Release the hold taken on creation, once every part of the delivery has been handed out. */
+        public void release() {
+            if (holds.decrementAndGet() == 0) {
+                if (dropped) {
+                    reject(deliveryTag, generation);
+                } else {
+                    settle(deliveryTag, generation);
+                }
+            }
+        }
+
+        public long getDeliveryTag() {
+            return deliveryTag;
+        }
+    }
+}
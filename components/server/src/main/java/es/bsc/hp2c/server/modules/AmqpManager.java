@@ -20,26 +20,35 @@ import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.DeliverCallback;
 import es.bsc.hp2c.HP2CServerContext;
 import es.bsc.hp2c.common.types.Device;
-import es.bsc.hp2c.common.types.Sensor;
+import es.bsc.hp2c.common.utils.AmqpConfirmPublisher;
+import es.bsc.hp2c.common.utils.ChannelPool;
 import es.bsc.hp2c.common.utils.CommUtils;
-import es.bsc.hp2c.common.utils.Measurement;
-import es.bsc.hp2c.common.utils.MeasurementWindow;
+import es.bsc.hp2c.common.utils.MeasurementBatch;
+import es.bsc.hp2c.common.utils.MeasurementWindowCodec;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
 import es.bsc.hp2c.server.device.VirtualComm.VirtualActuator;
-import es.bsc.hp2c.server.edge.VirtualEdge;
+import es.bsc.hp2c.server.edge.EdgeRegistry;
+import org.json.JSONObject;
 
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.Timer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import static es.bsc.hp2c.common.utils.FileUtils.getJsonObject;
+
 
 public class AmqpManager {
     private final DatabaseHandler db;
-    private static Channel channel = null;
-    private final Map<String, VirtualEdge> edgeMap;
+    private final IngestPipeline pipeline;
+    private volatile Channel consumerChannel;
+    private volatile String consumerTag;
+    private static ChannelPool channels = null;
+    private static AmqpConfirmPublisher confirms = null;
+    private final EdgeRegistry edges;
+    private final DeviceRoutingTable routes = new DeviceRoutingTable();
     private static final String EXCHANGE_NAME = "measurements";
     private static MetricsHandler metrics = null;
     private static final Logger logger = LogManager.getLogger("appLogger");
@@ -49,12 +58,14 @@ public class AmqpManager {
      *
      * @param localIp local IP address where the RabbitMQ broker is deployed
      *                if IP is not configured in deployment_setup.json
-     * @param edgeMap Map of the edge nodes and their devices
+     * @param edges Registry of the edge nodes and their devices
      */
-    public AmqpManager(String localIp, Map<String, VirtualEdge> edgeMap, DatabaseHandler db)
+    public AmqpManager(String localIp, EdgeRegistry edges, DatabaseHandler db)
             throws IOException, TimeoutException {
-        this.edgeMap = edgeMap;
+        this.edges = edges;
         this.db = db;
+        this.pipeline = IngestPipeline.fromConfig(loadGlobalProperties(), db);
+        this.routes.rebuild(edges.asMap());
         // Select broker IP
         HashMap<String, Object> connectionMap = CommUtils.parseRemoteIp("broker", localIp);
         // Start connection
@@ -63,11 +74,24 @@ public class AmqpManager {
         connect(brokerIp, brokerPort);
     }
 
+    /** Load the global properties of the server setup file, if available. */
+    private static JSONObject loadGlobalProperties() {
+        String pathToSetup = HP2CServerContext.getPathToSetup();
+        try {
+            return getJsonObject(pathToSetup).optJSONObject("global-properties");
+        } catch (Exception e) {
+            logger.warn("[AmqpManager] Could not read global properties from " + pathToSetup + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     /** Start AMQP connection with broker. */
     private void connect(String setupIp, int port) throws IOException {
         // Try connecting to a RabbitMQ server until success
         Connection connection = CommUtils.AmqpConnectAndRetry(setupIp, port);
-        channel = connection.createChannel();
+        channels = new ChannelPool(connection, channel -> channel.exchangeDeclare(EXCHANGE_NAME, "topic"));
+        // Actuations are confirmed by the broker on their own channel if "amqp-confirms" is configured
+        confirms = AmqpConfirmPublisher.fromConfig(loadGlobalProperties(), connection);
         logger.info("RabbitMQ Connection successful");
     }
 
@@ -79,52 +103,157 @@ public class AmqpManager {
      */
     public void startListener() throws IOException {
         String routingKey = "edge.*.sensors.*";
-        // Set up connections
-        channel.exchangeDeclare(EXCHANGE_NAME, "topic");
-        String queueName = channel.queueDeclare().getQueue();
-        channel.queueBind(queueName, EXCHANGE_NAME, routingKey);
-        logger.info("[AmqpManager] Awaiting requests");
+        String batchRoutingKey = "edge.*.batch";
+        // Bound the deliveries held by the server, and acknowledge them once their values are settled in the database
+        JSONObject jGlobalProperties = loadGlobalProperties();
+        int prefetch = AmqpAckTracker.getPrefetch(jGlobalProperties);
+        String queueName = AmqpAckTracker.getQueueName(jGlobalProperties);
+        AmqpAckTracker acks = AmqpAckTracker.fromConfig(jGlobalProperties, channels.get("AmqpManager"));
+        if (acks != null) {
+            acks.start();
+        }
 
         metrics = HP2CServerContext.getMetrics();
-        Timer timer = new Timer();
         if (metrics != null) {
-            timer.scheduleAtFixedRate(metrics, 10000, 30000);
+            PeriodicScheduler.getDefault().scheduleAtFixedRate("Metrics", metrics, 10000, 30000);
         }
 
-        DeliverCallback callback = (consumerTag, delivery) -> {
+        // Set up connections, on a channel of its own (actuations and heartbeats use others). If the broker closes
+        // the channel, the consumer is set up again on a new one
+        channels.subscribe("AmqpManager", channel -> {
+            channel.basicQos(prefetch);
+            if (acks != null) {
+                acks.rebind(channel);
+            }
+            // Durable and shared, so unacknowledged deliveries survive the consumer and are delivered again
+            channel.queueDeclare(queueName, true, false, false, null);
+            channel.queueBind(queueName, EXCHANGE_NAME, routingKey);
+            channel.queueBind(queueName, EXCHANGE_NAME, batchRoutingKey);
+            consumerChannel = channel;
+            consumerTag = channel.basicConsume(queueName, acks == null, deliverCallback(channel, acks), tag -> {
+            });
+            logger.info("[AmqpManager] Awaiting requests");
+        });
+    }
+
+    /**
+     * Callback of the measurements consumer of a channel, which hands every received window to the ingest pipeline.
+     *
+     * @param channel Channel of the consumer
+     * @param acks Tracker of the deliveries, or null with automatic acks
+     */
+    private DeliverCallback deliverCallback(Channel channel, AmqpAckTracker acks) {
+        return (consumerTag, delivery) -> {
             String senderRoutingKey = delivery.getEnvelope().getRoutingKey();
+            // Forwarded from the journal of the edge after an outage, older than the current state of its devices
+            boolean replay = CommUtils.isReplay(delivery.getProperties());
+            AmqpAckTracker.Delivery tracked = acks != null
+                    ? acks.register(channel, delivery.getEnvelope().getDeliveryTag()) : null;
             try {
-                // Parse message. For instance: routingKey = "edge.edge1.sensors.voltmeter1"
+                // Parse message. For instance: routingKey = "edge.edge1.sensors.voltmeter1" or "edge.edge1.batch"
                 byte[] message = delivery.getBody();
                 if (metrics != null) {
                     metrics.recordMessage(message.length);
                 }
-                // Check existence of pair edge-device
-                String edgeLabel = getEdgeLabel(senderRoutingKey);
-                String deviceName = getDeviceName(senderRoutingKey);
-                if (!HP2CServerContext.isInMap(edgeLabel, deviceName, edgeMap)) {
-                    logger.error("Edge " + edgeLabel + ", Device " + deviceName
-                            + ": message received but device not listed as " + edgeLabel + " digital twin devices.");
-                    return;
-                }
-
-                Sensor<?, ?> sensor = (Sensor<?, ?>) edgeMap.get(edgeLabel).getDevice(deviceName);
-                // Decode the MeasurementWindow, setValues in the sensors, and get the new
-                // MeasurementWindow<Float[]>
-                MeasurementWindow<Float[]> window = sensor.sensed(message);
-                sensor.onRead();
-
-                for (Measurement<Float[]> m : window.getMeasurementsOlderToNewer()) {
-                    // Store the values in the database
-                    db.write(m.getValue(), m.getTimestamp(), edgeLabel, deviceName);
+                DeviceRoutingTable.Route route = routes.get(senderRoutingKey);
+                if (route == null) {
+                    logUnknownRoute(senderRoutingKey);
+                } else if (route.isBatch()) {
+                    // Fan out the windows of every device in the batch
+                    MeasurementBatch batch = MeasurementBatch.decode(message);
+                    if (metrics != null) {
+                        metrics.recordBatch();
+                    }
+                    for (MeasurementBatch.Entry entry : batch.getEntries()) {
+                        recordWindow(entry.getWindow());
+                        DeviceRoutingTable.Route deviceRoute = route.getDevice(entry.getDevice());
+                        if (deviceRoute == null) {
+                            logUnknownDevice(route.getEdgeLabel(), entry.getDevice());
+                            continue;
+                        }
+                        try {
+                            processWindow(deviceRoute, entry.getWindow(), replay, tracked);
+                        } catch (Exception e) {
+                            logger.error("[AmqpManager] Error sensing batched window of device " + entry.getDevice()
+                                    + " for routing key " + senderRoutingKey + ": " + e.getMessage());
+                        }
+                    }
+                } else {
+                    recordWindow(message);
+                    processWindow(route, message, replay, tracked);
                 }
             } catch (Exception e) {
                 logger.error("[AmqpManager] Error sensing incoming message for routing key " + senderRoutingKey
                         + ": " + e.getMessage());
+            } finally {
+                if (tracked != null) {
+                    tracked.release();
+                }
             }
         };
-        channel.basicConsume(queueName, true, callback, consumerTag -> {
-        });
+    }
+
+    /**
+     * Stop consuming measurements and wait for the windows already received to be handed to the database.
+     * The database must be closed afterwards to flush them.
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        Channel channel = consumerChannel;
+        if (channel != null && consumerTag != null) {
+            try {
+                channel.basicCancel(consumerTag);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("[AmqpManager] Error cancelling the measurements consumer: " + e.getMessage());
+            }
+        }
+        pipeline.shutdown(timeout, unit);
+    }
+
+    /** Count a received window in the metrics, split by encoding (legacy Java serialization or binary). */
+    private static void recordWindow(byte[] window) {
+        if (metrics != null) {
+            metrics.recordWindow(MeasurementWindowCodec.isLegacy(window));
+        }
+    }
+
+    /**
+     * Hand the window of a device to the ingest pipeline, which decodes it, sets the values in its digital twin,
+     * runs its functions and stores the values in the database. Replayed windows are only stored.
+     *
+     * @param route Resolved device
+     * @param message Encoded MeasurementWindow
+     * @param replay Whether the message was forwarded from the journal of the edge
+     * @param tracked Delivery of the message, held until the window is settled, or null with automatic acks
+     */
+    private void processWindow(DeviceRoutingTable.Route route, byte[] message, boolean replay,
+                               AmqpAckTracker.Delivery tracked) {
+        pipeline.submit(route.getEdgeLabel(), route.getDeviceName(), route.getSensor(), message, replay,
+                tracked != null ? tracked.hold() : null);
+    }
+
+    /** Send the windows sensed by the ingest pipeline to the clients of the live measurement stream. */
+    public void setMeasurementStream(MeasurementStream stream) {
+        pipeline.setStream(stream);
+    }
+
+    /** Log a message whose routing key does not resolve to a known sensor (not on the hot path). */
+    private void logUnknownRoute(String routingKey) {
+        String[] routingKeyParts = routingKey.split("\\.");
+        String edgeLabel = routingKeyParts.length > 1 ? routingKeyParts[1] : routingKey;
+        String deviceName = routingKeyParts.length > 3 ? routingKeyParts[3] : "";
+        logUnknownDevice(edgeLabel, deviceName);
+    }
+
+    private void logUnknownDevice(String edgeLabel, String deviceName) {
+        logger.error("Edge " + edgeLabel + ", Device " + deviceName
+                + ": message received but device not listed as " + edgeLabel + " digital twin devices.");
+    }
+
+    /**
+     * Resolve again the routing keys of the measurements, after an edge registers or its devices change.
+     */
+    public void updateRoutes() {
+        routes.rebuild(edges.asMap());
     }
 
     public void virtualActuate(VirtualActuator actuator, String edgeLabel, byte[] message)
@@ -137,23 +266,21 @@ public class AmqpManager {
         logger.info("VirtualComm.virtualActuate: Sending actuation to " + edgeLabel + "." + actuatorLabel);
         logger.info("VirtualComm.virtualActuate: Using routingKey " + routingKey);
         // Publish message
-        channel.basicPublish(EXCHANGE_NAME, routingKey, null, message);
-    }
-
-    /** Parse device name from the routing key in deliverer's message. */
-    private String getEdgeLabel(String routingKey) {
-        String[] routingKeyParts = routingKey.split("\\.");
-        return routingKeyParts[1];
-    }
-
-    /** Parse device name from the routing key in deliverer's message. */
-    private String getDeviceName(String routingKey) {
-        String[] routingKeyParts = routingKey.split("\\.");
-        return routingKeyParts[3];
+        if (confirms != null) {
+            confirms.publish(EXCHANGE_NAME, routingKey, null, message).whenComplete((v, e) -> {
+                if (e != null) {
+                    logger.error("VirtualComm.virtualActuate: Actuation to " + routingKey + " not confirmed: "
+                            + e.getMessage());
+                }
+            });
+            return;
+        }
+        channels.forThread().basicPublish(EXCHANGE_NAME, routingKey, null, message);
     }
 
-    public Channel getChannel() {
-        return channel;
+    /** Pool of the AMQP channels of the server. */
+    public ChannelPool getChannelPool() {
+        return channels;
     }
 
     public String getExchangeName() {
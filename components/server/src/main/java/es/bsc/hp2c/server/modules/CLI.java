@@ -18,10 +18,9 @@ package es.bsc.hp2c.server.modules;
 import es.bsc.hp2c.HP2CServerContext.ActuatorValidity;
 import es.bsc.hp2c.server.device.VirtualComm;
 import es.bsc.hp2c.server.device.VirtualComm.VirtualActuator;
-import es.bsc.hp2c.server.edge.VirtualEdge;
+import es.bsc.hp2c.server.edge.EdgeRegistry;
 
 import java.io.IOException;
-import java.util.Map;
 import java.util.Scanner;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -32,10 +31,10 @@ import static es.bsc.hp2c.HP2CServerContext.setVerbose;
 public class CLI implements Runnable {
     private static final Logger logger = LogManager.getLogger("appLogger");
     private boolean isRunning = false;
-    private final Map<String, VirtualEdge> edgeMap;
+    private final EdgeRegistry edges;
 
-    public CLI(Map<String, VirtualEdge> edgeMap) {
-        this.edgeMap = edgeMap;
+    public CLI(EdgeRegistry edges) {
+        this.edges = edges;
     }
 
     public void start() {
@@ -127,7 +126,7 @@ public class CLI implements Runnable {
         }
 
         // Actuate
-        VirtualComm.VirtualDevice device = edgeMap.get(edgeLabel).getDevice(actuatorLabel);
+        VirtualComm.VirtualDevice device = edges.get(edgeLabel).getDevice(actuatorLabel);
         VirtualActuator<?> actuator = (VirtualActuator<?>) device;
         actuator.actuate(stringValues);
     }
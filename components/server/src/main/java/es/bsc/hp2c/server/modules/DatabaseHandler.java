@@ -16,7 +16,8 @@
 package es.bsc.hp2c.server.modules;
 
 import es.bsc.hp2c.common.utils.CommUtils;
-import org.influxdb.BatchOptions;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import es.bsc.hp2c.server.modules.WriteBehindBuffer.SettleCallback;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
 import org.influxdb.dto.Point;
@@ -38,14 +39,33 @@ import static es.bsc.hp2c.common.utils.FileUtils.getJsonObject;
 public class DatabaseHandler {
     private static final Logger logger = LogManager.getLogger("appLogger");
     private final InfluxDB influxDB;
+    private final InfluxLineProtocol.Schema schema;
+    // Line protocol buffer of every writing thread, reused across windows
+    private final ThreadLocal<InfluxLineProtocol> lineProtocol;
+    private final WriteBehindBuffer buffer;
 
     /**
-     * Initializes the "hp2cdt" InfluxDB database instance.
+     * Initializes the "hp2cdt" InfluxDB database instance with the per-phase schema.
      * localIp is provided in case the proper IP address is not set up in deployment_setup.json
      *
      * @param localIp local IP (server)
      */
     public DatabaseHandler(String localIp) throws IOException {
+        this(localIp, null);
+    }
+
+    /**
+     * Initializes the "hp2cdt" InfluxDB database instance.
+     * localIp is provided in case the proper IP address is not set up in deployment_setup.json
+     *
+     * @param localIp local IP (server)
+     * @param jGlobalProperties Global properties of the server setup, or null. Its "influx-schema" selects how
+     *                          measurements are stored: "per-phase" (default) or "fields".
+     */
+    public DatabaseHandler(String localIp, JSONObject jGlobalProperties) throws IOException {
+        schema = InfluxLineProtocol.parseSchema(
+                jGlobalProperties == null ? null : jGlobalProperties.optString("influx-schema", null));
+        lineProtocol = ThreadLocal.withInitial(() -> new InfluxLineProtocol(schema));
         // Select database IP
         HashMap<String, Object> connectionMap = CommUtils.parseRemoteIp("database", localIp);
         String ip = (String) connectionMap.get("ip");
@@ -57,7 +77,8 @@ public class DatabaseHandler {
         String username = auth[0];
         String password = auth[1];
         influxDB = InfluxDBFactory.connect(databaseURL, username, password);
-        logger.info("InfluxDB Connection successful");
+        buffer = WriteBehindBuffer.fromConfig(jGlobalProperties, influxDB::write);
+        logger.info("InfluxDB Connection successful (schema " + schema + ")");
     }
 
     public void start() {
@@ -72,18 +93,17 @@ public class DatabaseHandler {
                 + " ON " + databaseName + " DURATION 1d REPLICATION 1 DEFAULT"));
         influxDB.setRetentionPolicy(retentionPolicyName);
 
-        // Enable batch writes to get better performance.
-        influxDB.enableBatch(
-                BatchOptions.DEFAULTS
-                        .threadFactory(runnable -> {
-                            Thread thread = new Thread(runnable);
-                            thread.setDaemon(true);
-                            return thread;
-                        })
-        );
+        // Batch writes in the background to get better performance.
+        buffer.start();
+    }
 
-        // Close when application terminates.
-        Runtime.getRuntime().addShutdownHook(new Thread(influxDB::close));
+    /** Flush the points queued in the write-behind buffer and close the connection. */
+    public void close(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            buffer.close(timeout, unit);
+        } finally {
+            influxDB.close();
+        }
     }
 
     /**
@@ -99,19 +119,63 @@ public class DatabaseHandler {
      *                   the name of the device.
      */
     public void write(Float[] values, Instant timestamp, String edgeLabel, String deviceName) {
-        long epochNanos = timestamp.getEpochSecond() * 1_000_000_000L + timestamp.getNano();
-        for (int i = 0; i < values.length; i++) {
-            String tagName = deviceName + "Sensor" + i;
-            if (isVerbose()) {
-                logger.debug("[DatabaseHandler] Writing DB with '" + edgeLabel + "." +
-                        deviceName + "':'" + values[i] + "'");
+        InfluxLineProtocol lines = lineProtocol.get();
+        lines.reset();
+        lines.append(edgeLabel, deviceName, CommUtils.toEpochNanos(timestamp), values);
+        flush(lines, edgeLabel, deviceName);
+    }
+
+    /**
+     * Queue every measurement of a window for the Influx database as a single chunk of the write-behind buffer, with
+     * one line per timestamp (fields v0..vN) or one line per timestamp and phase (per-phase schema).
+     *
+     * @param window     Window of measurements of the device.
+     * @param edgeLabel  Name of the Influx measurement (series) where we
+     *                   will write. Typically, the name of the edge node.
+     * @param deviceName Name of the Influx tag where we will write. Typically,
+     *                   the name of the device.
+     */
+    public void write(MeasurementWindow<Float[]> window, String edgeLabel, String deviceName) {
+        write(window, edgeLabel, deviceName, null);
+    }
+
+    /**
+     * Queue every measurement of a window for the Influx database, running onSettled once its lines are written,
+     * spooled or dropped by the write-behind buffer.
+     */
+    public void write(MeasurementWindow<Float[]> window, String edgeLabel, String deviceName,
+                      SettleCallback onSettled) {
+        InfluxLineProtocol lines = lineProtocol.get();
+        lines.reset();
+        lines.appendWindow(edgeLabel, deviceName, window);
+        flush(lines, edgeLabel, deviceName, onSettled);
+    }
+
+    private void flush(InfluxLineProtocol lines, String edgeLabel, String deviceName) {
+        flush(lines, edgeLabel, deviceName, null);
+    }
+
+    private void flush(InfluxLineProtocol lines, String edgeLabel, String deviceName,
+                       SettleCallback onSettled) {
+        if (lines.isEmpty()) {
+            if (onSettled != null) {
+                onSettled.settled(true);
             }
-            influxDB.write(Point.measurement(edgeLabel)
-                    .time(epochNanos, TimeUnit.NANOSECONDS)
-                    .tag("device", tagName)
-                    .addField("value", values[i])
-                    .build());
+            return;
         }
+        if (isVerbose()) {
+            logger.debug("[DatabaseHandler] Writing DB with '" + edgeLabel + "." + deviceName + "': "
+                    + lines.getLines() + " lines");
+        }
+        buffer.offer(lines.toString(), lines.getLines(), onSettled);
+    }
+
+    public WriteBehindBuffer getBuffer() {
+        return buffer;
+    }
+
+    public InfluxLineProtocol.Schema getSchema() {
+        return schema;
     }
 
     /**
@@ -150,7 +214,7 @@ public class DatabaseHandler {
                     ", edge label: " + safeEdgeLabel + ", device label: " + safeDeviceName + ", status: " + alarmStatus);
         }
 
-        influxDB.write(pointBuilder.build());
+        buffer.offer(pointBuilder.build().lineProtocol(), 1);
     }
 
 
@@ -175,76 +239,43 @@ public class DatabaseHandler {
         return getAuth(configPath);
     }
 
-    /*
-    * Function to get unique combinations of alarmName, deviceName, and edgeName.
-    * A measurement is considered an alarm if it has both 'edge' and 'device' tags.
-    *
-    * @return Set of unique triples
-    * */
+    /**
+     * Get the combinations of alarm, edge and device with some point in the alarms measurement, using a single query
+     * grouped by the three tags (one series per combination). Points without edge or device use "global".
+     *
+     * @return Set of [alarm, edge, device] triples
+     */
     public Set<ArrayList<String>> getUniqueAlarmTriples() {
-        String databaseName = "hp2cdt";
-        Set<ArrayList<String>> uniqueTriples = new HashSet<>();
-
-        // Query unique tag values
-        String tagQuery = "SHOW TAG VALUES FROM alarms WITH KEY IN (\"alarm\", \"edge\", \"device\")";
-        QueryResult queryResult = influxDB.query(new Query(tagQuery, databaseName));
-
+        String query = "SELECT last(status) FROM alarms GROUP BY \"alarm\", \"edge\", \"device\"";
+        QueryResult queryResult = influxDB.query(new Query(query, "hp2cdt"));
         if (queryResult.hasError() || queryResult.getResults() == null) {
-            logger.error("Error retrieving tag values: " + queryResult.getError());
-            return uniqueTriples;
+            logger.error("Error retrieving alarm triples: " + queryResult.getError());
+            return new HashSet<>();
         }
+        return parseAlarmTriples(queryResult);
+    }
 
-        // Store results separately
-        List<String> alarms = new ArrayList<>();
-        List<String> edges = new ArrayList<>();
-        List<String> devices = new ArrayList<>();
-
+    static Set<ArrayList<String>> parseAlarmTriples(QueryResult queryResult) {
+        Set<ArrayList<String>> triples = new HashSet<>();
         for (QueryResult.Result result : queryResult.getResults()) {
-            if (result.getSeries() == null) continue;
-
+            if (result.getSeries() == null) {
+                continue;
+            }
             for (QueryResult.Series series : result.getSeries()) {
-                String tagKey = series.getName(); // e.g., "alarm", "edge", or "device"
-
-                for (List<Object> value : series.getValues()) {
-                    String tagValue = value.get(1).toString(); // Extract actual tag value
-
-                    if ("alarm".equals(value.get(0).toString())) alarms.add(tagValue);
-                    if ("edge".equals(value.get(0).toString())) edges.add(tagValue);
-                    if ("device".equals(value.get(0).toString())) devices.add(tagValue);
+                Map<String, String> tags = series.getTags();
+                if (tags == null || series.getValues() == null || series.getValues().isEmpty()) {
+                    continue;
                 }
-            }
-        }
-
-        // Create unique triples
-        for (String alarm : alarms) {
-            for (String edge : edges) {
-                for (String device : devices) {
-                    if (alarm.isEmpty() || edge.isEmpty() || device.isEmpty()) continue;
-
-                    ArrayList<String> triple = new ArrayList<>();
-                    triple.add(alarm);
-                    triple.add(edge);
-                    triple.add(device);
-                    uniqueTriples.add(triple);
+                String alarm = tags.get("alarm");
+                String edge = tags.get("edge");
+                String device = tags.get("device");
+                if (alarm == null || edge == null || device == null
+                        || alarm.isEmpty() || edge.isEmpty() || device.isEmpty()) {
+                    continue;
                 }
+                triples.add(new ArrayList<>(Arrays.asList(alarm, edge, device)));
             }
         }
-        Set<ArrayList<String>> finalTriples = new HashSet<>();
-        for (ArrayList<String> triple: uniqueTriples){
-            String queryStr = "SELECT status FROM alarms WHERE " +
-                    "alarm='" + triple.get(0) + "' AND " +
-                    "edge='" + triple.get(1) + "' AND " +
-                    "device='" + triple.get(2) + "' LIMIT 1";
-
-            QueryResult result = influxDB.query(new Query(queryStr, databaseName));
-            if(result.getResults().stream()
-                    .flatMap(r -> r.getSeries() != null ? r.getSeries().stream() : null)
-                    .flatMap(series -> series.getValues() != null ? series.getValues().stream() : null)
-                    .findAny()
-                    .isPresent()){
-                finalTriples.add(triple);
-            }
-        }
-        return finalTriples;
+        return triples;
     }
 }
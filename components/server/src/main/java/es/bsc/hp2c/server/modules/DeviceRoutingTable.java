@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.common.types.Sensor;
+import es.bsc.hp2c.server.device.VirtualComm;
+import es.bsc.hp2c.server.edge.VirtualEdge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routing keys of the measurement messages resolved in advance to the digital twins of their devices, so that the
+ * AMQP consumer handles a message with a single map lookup, without splitting its routing key or looking up the edge
+ * and the device.
+ *
+ * The table is immutable and replaced as a whole (copy-on-write) by rebuild(), which EdgeHeartbeat calls whenever an
+ * edge registers or its devices change. Readers never lock and always see a consistent snapshot.
+ */
+public class DeviceRoutingTable {
+    private volatile Map<String, Route> routes = Collections.emptyMap();
+
+    /**
+     * Resolve the routing key of a message: "edge.EDGE.sensors.DEVICE" for a device, "edge.EDGE.batch" for a batch.
+     *
+     * @return The route, or null if the edge or device is not known
+     */
+    public Route get(String routingKey) {
+        return routes.get(routingKey);
+    }
+
+    /** Replace the table with the sensors of the given edges. */
+    public void rebuild(Map<String, VirtualEdge> edgeMap) {
+        Map<String, Route> table = new HashMap<>();
+        for (VirtualEdge edge : new ArrayList<>(edgeMap.values())) {
+            String edgeLabel = edge.getLabel();
+            Map<String, Route> edgeDevices = new HashMap<>();
+            for (Map.Entry<String, VirtualComm.VirtualDevice> entry : new HashMap<>(edge.getDeviceMap()).entrySet()) {
+                if (!(entry.getValue() instanceof Sensor)) {
+                    continue;
+                }
+                Route route = new Route(edgeLabel, entry.getKey(), (Sensor<?, ?>) entry.getValue(), null);
+                edgeDevices.put(entry.getKey(), route);
+                table.put(sensorRoutingKey(edgeLabel, entry.getKey()), route);
+            }
+            table.put(batchRoutingKey(edgeLabel), new Route(edgeLabel, null, null, edgeDevices));
+        }
+        routes = table;
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    static String sensorRoutingKey(String edgeLabel, String deviceName) {
+        return "edge." + edgeLabel + ".sensors." + deviceName;
+    }
+
+    static String batchRoutingKey(String edgeLabel) {
+        return "edge." + edgeLabel + ".batch";
+    }
+
+    /** Resolved destination of a routing key: the sensor of a device, or the sensors of an edge for batches. */
+    public static final class Route {
+        private final String edgeLabel;
+        private final String deviceName;
+        private final Sensor<?, ?> sensor;
+        private final Map<String, Route> devices;
+
+        private Route(String edgeLabel, String deviceName, Sensor<?, ?> sensor, Map<String, Route> devices) {
+            this.edgeLabel = edgeLabel;
+            this.deviceName = deviceName;
+            this.sensor = sensor;
+            this.devices = devices;
+        }
+
+        public boolean isBatch() {
+            return devices != null;
+        }
+
+        /** Route of a device of the edge of a batch route, or null if the device is not known. */
+        public Route getDevice(String deviceName) {
+            return devices == null ? null : devices.get(deviceName);
+        }
+
+        public String getEdgeLabel() {
+            return edgeLabel;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        public Sensor<?, ?> getSensor() {
+            return sensor;
+        }
+    }
+}
@@ -18,16 +18,19 @@ package es.bsc.hp2c.server.modules;
 import com.rabbitmq.client.*;
 import com.rabbitmq.tools.json.JSONUtil;
 import es.bsc.hp2c.common.utils.EdgeMap;
+import es.bsc.hp2c.common.utils.HeartbeatDelta;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
+import es.bsc.hp2c.server.edge.EdgeRegistry;
 import es.bsc.hp2c.server.edge.VirtualEdge;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import static es.bsc.hp2c.HP2CServerContext.getDevicesMap;
 import static es.bsc.hp2c.HP2CServerContext.getPathToSetup;
@@ -36,7 +39,7 @@ import static es.bsc.hp2c.common.funcs.Func.loadFunctions;
 /**
  * Heartbeat handler that starts:
  * - an AMQP listener that reads every "edge.*.heartbeat" message
- * - a TimerTask that periodically checks the state of the edge nodes
+ * - a periodic task that checks the state of the edge nodes
  */
 public class EdgeHeartbeat {
     private static final Logger logger = LogManager.getLogger("appLogger");
@@ -44,17 +47,22 @@ public class EdgeHeartbeat {
     private static final String QUEUE_NAME = "heartbeats";
     private static final String routingKey = "edge.*.heartbeat";
     private static final int HEARTBEAT_TIMEOUT = 30000;  // milliseconds
-    private final Map<String, VirtualEdge> edgeMap;
-    private final Channel channel;
+    private static final int HEARTBEAT_PREFETCH = 64;
+    private static final long SETUP_REQUEST_INTERVAL = 5000;  // milliseconds
+    private final EdgeRegistry edges;
+    private final AmqpManager amqp;
+    // Channel of the consumer, replaced if the broker closes it
+    private volatile Channel channel;
     private final Class<?> runtimeHost;
+    // Last setup request sent to each edge, only accessed from the consumer thread
+    private final Map<String, Long> setupRequests = new HashMap<>();
 
-    public EdgeHeartbeat(AmqpManager amqp, Map<String, VirtualEdge> edgeMap, Class<?> runtimeHost) throws IOException {
+    public EdgeHeartbeat(AmqpManager amqp, EdgeRegistry edges, Class<?> runtimeHost) throws IOException {
         System.out.println("edge heartbeat");
-        this.channel = amqp.getChannel();
-        channel.exchangeDeclare(amqp.getExchangeName(), "topic");
-        this.channel.queueDeclare(QUEUE_NAME, true, false, false, null);
-        this.channel.queueBind(QUEUE_NAME, amqp.getExchangeName(), routingKey);
-        this.edgeMap = edgeMap;
+        this.channel = amqp.getChannelPool().get("EdgeHeartbeat");
+        declareQueue(channel, amqp.getExchangeName());
+        this.edges = edges;
+        this.amqp = amqp;
         this.runtimeHost = runtimeHost;
     }
 
@@ -63,32 +71,52 @@ public class EdgeHeartbeat {
         System.out.println("STart listenerrrrrrrrr");
         // Start heartbeat listener
         this.startListener();
-        // Start periodic checker of inactive edges (TimerTask with half of the heartbeat timeout interval)
-        Timer timer = new Timer();
+        // Start periodic checker of inactive edges (with half of the heartbeat timeout interval)
         CheckInactiveEdges checkInactiveEdges = new CheckInactiveEdges();
-        timer.scheduleAtFixedRate(checkInactiveEdges, 0, HEARTBEAT_TIMEOUT / 2);
+        PeriodicScheduler.getDefault().scheduleAtFixedRate("CheckInactiveEdges", checkInactiveEdges, 0,
+                HEARTBEAT_TIMEOUT / 2);
     }
 
-    /** Deploy the AMQP consumer thread */
+    private static void declareQueue(Channel channel, String exchangeName) throws IOException {
+        channel.queueDeclare(QUEUE_NAME, true, false, false, null);
+        channel.queueBind(QUEUE_NAME, exchangeName, routingKey);
+    }
+
+    /** Deploy the AMQP consumer thread, again on a new channel if the broker closes it */
     private void startListener() throws IOException {
-        Consumer consumer = new DefaultConsumer(channel) {
+        amqp.getChannelPool().subscribe("EdgeHeartbeat", channel -> {
+            declareQueue(channel, amqp.getExchangeName());
+            this.channel = channel;
+            channel.basicQos(HEARTBEAT_PREFETCH);
+            channel.basicConsume(QUEUE_NAME, false, heartbeatConsumer(channel));
+        });
+    }
+
+    private Consumer heartbeatConsumer(Channel channel) {
+        return new DefaultConsumer(channel) {
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
                 try {
-                    JSONObject jEdgeSetup = new JSONObject(new String(body, StandardCharsets.UTF_8));
                     processHeartbeatMessage(envelope.getRoutingKey(), body);
                 } catch (Exception e) {
                     logger.error("Error processing heartbeat message: " + e.getMessage() + ". ");
                 }
+                // Acknowledge once processed, so a heartbeat received during a crash is delivered again
+                try {
+                    channel.basicAck(envelope.getDeliveryTag(), false);
+                } catch (Exception e) {
+                    logger.warn("Error acknowledging heartbeat message: " + e.getMessage());
+                }
             }
         };
-        channel.basicConsume(QUEUE_NAME, true, consumer);
     }
 
     /**
      * Method called every time a heartbeat message is received.
      * It processes the JSON received from the edge nodes, initializes the VirtualDevices if it is the 
      * first time they register, and updates the heartbeat hash map with the current time.
+     * Heartbeats of an edge whose setup hash is known (deltas, or full setups with the same hash) only update the
+     * availability of the registered devices, without loading them again.
      * @param routingKey The "edge.*.heartbeat" routing key containing the device label
      * @param body Message sent by the edge node in JSON format, encoded in bytes
      */
@@ -99,24 +127,43 @@ public class EdgeHeartbeat {
         JSONObject jEdgeSetup = new JSONObject(new String(body, StandardCharsets.UTF_8));
         // Process the heartbeat message
         logger.debug("[processHeartbeatMessage] Received heartbeat for edge '" + edgeLabel + "'");
-        if (edgeMap.containsKey(edgeLabel)) {
+        VirtualEdge oldEdge = edges.get(edgeLabel);
+        if (HeartbeatDelta.isDelta(jEdgeSetup)) {
+            processHeartbeatDelta(edgeLabel, oldEdge, jEdgeSetup);
+            return;
+        }
+        String setupHash = jEdgeSetup.optString(HeartbeatDelta.SETUP_HASH, null);
+        if (oldEdge != null && setupHash != null && setupHash.equals(oldEdge.getSetupHash())) {
+            // Same setup, apply the availability of its devices
+            JSONArray jDevices = jEdgeSetup.getJSONArray("devices");
+            boolean[] availability = new boolean[jDevices.length()];
+            for (int i = 0; i < availability.length; i++) {
+                availability[i] = jDevices.getJSONObject(i).getBoolean("availability");
+            }
+            applyHeartbeat(oldEdge, availability, jEdgeSetup.getJSONObject("global-properties"));
+            return;
+        }
+        if (oldEdge != null) {
             // Set last heartbeat
             long heartbeatTime = jEdgeSetup.getJSONObject("global-properties").getLong("heartbeat");
             VirtualEdge newEdge = new VirtualEdge(jEdgeSetup);
-            VirtualEdge oldEdge = edgeMap.get(edgeLabel);
 
             if (!newEdge.equals(oldEdge)){
                 oldEdge.setModified(true);
-                oldEdge.update(newEdge);
+                edges.update(edgeLabel, newEdge);
+                amqp.updateRoutes();
             }
             else {
-                edgeMap.get(edgeLabel).setLastHeartbeat(heartbeatTime);
+                // Adopt the new setup hash, otherwise the deltas of the edge would keep requesting its setup
+                oldEdge.adoptSetup(newEdge);
+                oldEdge.setLastHeartbeat(heartbeatTime);
             }
         } else {
             // First time a heartbeat is received, load devices and store in the VirtualEdge object
             VirtualEdge edge = new VirtualEdge(jEdgeSetup);
             logger.info("[processHeartbeatMessage] Loaded edge '" + edgeLabel + "': " + edge);
-            edgeMap.put(edgeLabel, edge);
+            edges.register(edge);
+            amqp.updateRoutes();
             EdgeMap edgeDevices = getDevicesMap();
             String pathToSetup = getPathToSetup();
             try {
@@ -127,13 +174,49 @@ public class EdgeHeartbeat {
         }
     }
 
+    /** Apply a heartbeat delta, or ask the edge for its full setup if its setup hash is not known. */
+    private void processHeartbeatDelta(String edgeLabel, VirtualEdge edge, JSONObject jDelta) {
+        String setupHash = jDelta.getString(HeartbeatDelta.SETUP_HASH);
+        if (edge == null || !setupHash.equals(edge.getSetupHash())) {
+            requestSetup(edgeLabel);
+            return;
+        }
+        boolean[] availability = HeartbeatDelta.decodeAvailability(jDelta.getString(HeartbeatDelta.AVAILABILITY),
+                jDelta.getInt(HeartbeatDelta.DEVICE_COUNT));
+        applyHeartbeat(edge, availability, jDelta.getJSONObject("global-properties"));
+    }
+
+    private void applyHeartbeat(VirtualEdge edge, boolean[] availability, JSONObject jGlobalProps) {
+        if (edge.applyAvailability(availability, jGlobalProps.getBoolean("available"))) {
+            edge.setModified(true);
+        }
+        edge.setLastHeartbeat(jGlobalProps.getLong("heartbeat"));
+    }
+
+    /** Ask an edge to send its full setup with the next heartbeat, at most once every SETUP_REQUEST_INTERVAL. */
+    private void requestSetup(String edgeLabel) {
+        long now = System.currentTimeMillis();
+        Long lastRequest = setupRequests.get(edgeLabel);
+        if (lastRequest != null && now - lastRequest < SETUP_REQUEST_INTERVAL) {
+            return;
+        }
+        setupRequests.put(edgeLabel, now);
+        logger.info("[processHeartbeatMessage] Unknown setup of edge '" + edgeLabel + "'. Requesting it.");
+        try {
+            channel.basicPublish(amqp.getExchangeName(), HeartbeatDelta.setupRequestRoutingKey(edgeLabel), null,
+                    new byte[0]);
+        } catch (IOException e) {
+            logger.error("Error requesting the setup of edge " + edgeLabel + ": " + e.getMessage());
+        }
+    }
+
 
     /** Periodically verify the edge heartbeat and update each `isAvailable` property accordingly. */
-    class CheckInactiveEdges extends TimerTask {
+    class CheckInactiveEdges implements Runnable {
         @Override
         public void run() {
             long currentTime = System.currentTimeMillis();
-            for (VirtualEdge edge : edgeMap.values()) {
+            for (VirtualEdge edge : edges.asMap().values()) {
                 if (currentTime - edge.getLastHeartbeat() > HEARTBEAT_TIMEOUT) {
                     // Edge not available
                     logger.debug("[CheckInactiveEdges] Edge '" + edge.getLabel() + "' is inactive.");
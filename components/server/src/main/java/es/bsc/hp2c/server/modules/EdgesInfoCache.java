@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.server.edge.EdgeRegistry;
+import es.bsc.hp2c.server.edge.VirtualEdge;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoded response of /getEdgesInfo, built again only when an edge is registered or changes (VirtualEdge.getVersion()),
+ * instead of walking every device and serializing the whole JSON tree on every request of the dashboard.
+ *
+ * Entries hold the UTF-8 body, its gzip-compressed version (built on first use) and an ETag derived from the content,
+ * so that clients polling with If-None-Match get a 304 while nothing changes.
+ */
+public class EdgesInfoCache {
+    private final EdgeRegistry edges;
+    private volatile Entry entry;
+
+    public EdgesInfoCache(EdgeRegistry edges) {
+        this.edges = edges;
+    }
+
+    /** Current response, built again if the edges changed since the last one. */
+    public Entry get() {
+        Entry current = entry;
+        if (current != null && current.isValid(edges.snapshot(), VirtualEdge.getVersion())) {
+            return current;
+        }
+        synchronized (this) {
+            current = entry;
+            EdgeRegistry.Snapshot snapshot = edges.snapshot();
+            // The version is read before building, so changes made meanwhile invalidate the new entry
+            long version = VirtualEdge.getVersion();
+            if (current == null || !current.isValid(snapshot, version)) {
+                current = new Entry(snapshot, version, build(snapshot.getEdges()));
+                entry = current;
+            }
+            return current;
+        }
+    }
+
+    static JSONObject build(Map<String, VirtualEdge> edgeMap) {
+        JSONObject jEdgesInfo = new JSONObject();
+        for (Map.Entry<String, VirtualEdge> e : edgeMap.entrySet()) {
+            VirtualEdge edge = e.getValue();
+            JSONObject jEdge = new JSONObject();
+            jEdge.put("is_available", edge.isAvailable());
+            jEdge.put("modified", edge.getModified());
+            jEdge.put("info", edge.getDevicesInfo());
+            jEdgesInfo.put(e.getKey(), jEdge);
+        }
+        return jEdgesInfo;
+    }
+
+    /** Encoded edges info of a version of the edges. Immutable. */
+    public static final class Entry {
+        private final EdgeRegistry.Snapshot snapshot;
+        private final long version;
+        private final byte[] body;
+        private final String eTag;
+        private volatile byte[] gzipped;
+
+        private Entry(EdgeRegistry.Snapshot snapshot, long version, JSONObject jEdgesInfo) {
+            this.snapshot = snapshot;
+            this.version = version;
+            this.body = jEdgesInfo.toString().getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            this.eTag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length) + "\"";
+        }
+
+        private boolean isValid(EdgeRegistry.Snapshot snapshot, long version) {
+            return this.snapshot == snapshot && this.version == version;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public byte[] getGzipped() {
+            byte[] compressed = gzipped;
+            if (compressed == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                    gzip.write(body);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                compressed = bytes.toByteArray();
+                gzipped = compressed;
+            }
+            return compressed;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        /** Check whether an If-None-Match header matches the ETag of the entry. */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.Measurement;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+
+/**
+ * Builds InfluxDB line protocol for measurement windows directly into a reusable buffer, instead of creating a Point
+ * (and its builder, maps and formatters) for every value. Two schemas are supported:
+ * <ul>
+ *     <li>FIELDS: one line per timestamp, tag device=DEVICE and fields v0..vN.</li>
+ *     <li>PER_PHASE: one line per timestamp and phase, tag device=DEVICESensorI and field "value", as written by the
+ *     Point based writer.</li>
+ * </ul>
+ * NaN and infinite values cannot be represented in line protocol, so they are left out. Not thread-safe: every
+ * writing thread uses its own instance.
+ */
+public class InfluxLineProtocol {
+    public enum Schema { FIELDS, PER_PHASE }
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    private final Schema schema;
+    private final StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+    private int lines;
+
+    public InfluxLineProtocol(Schema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Parse the "influx-schema" global property: "fields" or "per-phase" (default).
+     */
+    public static Schema parseSchema(String value) {
+        if (value == null || value.isEmpty() || "per-phase".equals(value)) {
+            return Schema.PER_PHASE;
+        }
+        if ("fields".equals(value)) {
+            return Schema.FIELDS;
+        }
+        throw new IllegalArgumentException("Unknown influx-schema '" + value + "' (expected 'fields' or 'per-phase')");
+    }
+
+    /** Empty the buffer, keeping its capacity. */
+    public void reset() {
+        buffer.setLength(0);
+        lines = 0;
+    }
+
+    /**
+     * Append the lines of every measurement of the window, from older to newer.
+     */
+    public void appendWindow(String measurement, String device, MeasurementWindow<Float[]> window) {
+        String escapedMeasurement = escapeMeasurement(measurement);
+        String escapedDevice = escapeTag(device);
+        for (Measurement<Float[]> m : window.getMeasurementsOlderToNewer()) {
+            appendValues(escapedMeasurement, escapedDevice, CommUtils.toEpochNanos(m.getTimestamp()), m.getValue());
+        }
+    }
+
+    /**
+     * Append the lines of the values of a device at a given time.
+     */
+    public void append(String measurement, String device, long epochNanos, Float[] values) {
+        appendValues(escapeMeasurement(measurement), escapeTag(device), epochNanos, values);
+    }
+
+    private void appendValues(String measurement, String device, long epochNanos, Float[] values) {
+        if (schema == Schema.FIELDS) {
+            int lineStart = buffer.length();
+            buffer.append(measurement).append(",device=").append(device);
+            char separator = ' ';
+            for (int i = 0; i < values.length; i++) {
+                if (!isWritable(values[i])) {
+                    continue;
+                }
+                buffer.append(separator).append('v').append(i).append('=').append(values[i].floatValue());
+                separator = ',';
+            }
+            if (separator == ' ') {
+                // No writable field: drop the line
+                buffer.setLength(lineStart);
+                return;
+            }
+            endLine(epochNanos);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                if (!isWritable(values[i])) {
+                    continue;
+                }
+                buffer.append(measurement).append(",device=").append(device).append("Sensor").append(i)
+                        .append(" value=").append(values[i].floatValue());
+                endLine(epochNanos);
+            }
+        }
+    }
+
+    private void endLine(long epochNanos) {
+        buffer.append(' ').append(epochNanos).append('\n');
+        lines++;
+    }
+
+    private static boolean isWritable(Float value) {
+        return value != null && !value.isNaN() && !value.isInfinite();
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /** Number of lines in the buffer. */
+    public int getLines() {
+        return lines;
+    }
+
+    public boolean isEmpty() {
+        return lines == 0;
+    }
+
+    /** Lines in the buffer, separated by '\n'. */
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+
+    static String escapeMeasurement(String value) {
+        return escape(value, false);
+    }
+
+    static String escapeTag(String value) {
+        return escape(value, true);
+    }
+
+    private static String escape(String value, boolean escapeEquals) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean special = c == ',' || c == ' ' || (escapeEquals && c == '=');
+            if (special && sb == null) {
+                sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (sb != null) {
+                if (special) {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+        }
+        return sb == null ? value : sb.toString();
+    }
+}
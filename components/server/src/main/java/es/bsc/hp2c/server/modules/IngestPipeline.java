@@ -0,0 +1,321 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.common.types.Sensor;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import es.bsc.hp2c.server.modules.WriteBehindBuffer.SettleCallback;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged processing of the measurement windows received through AMQP:
+ * <ol>
+ *     <li>Sensing: windows are dispatched to a shard chosen by the hash of edge and device, so every device is
+ *     always handled by the same single-threaded worker and its windows are decoded and sensed in arrival order.
+ *     The same worker then runs sensor.onRead(), so the server Funcs of a device are triggered in order and see the
+ *     state of the window that triggered them; Funcs run on the ActionExecutor, so a slow one does not hold the
+ *     shard.</li>
+ *     <li>Database: the values are written to InfluxDB by a separate pool.</li>
+ * </ol>
+ * Every stage has a bounded queue. When a queue is full the submitting thread waits, so a stalled stage slows down
+ * the previous ones (and finally the AMQP consumer) instead of buffering without limit.
+ *
+ * Windows replayed from the journal of an edge are older than the state of the device, so they skip the sensing
+ * stage: they are only decoded and written to the database, without setting the values of the sensor, running its
+ * Funcs nor reaching the live stream.
+ *
+ * With "shards": 0 every window is processed inline on the calling thread, as before the pipeline existed.
+ */
+public class IngestPipeline {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    public static final int DEFAULT_DB_THREADS = 2;
+    public static final int DEFAULT_DB_QUEUE_SIZE = 4096;
+
+    private final WindowWriter writer;
+    private final ExecutorService[] sensingShards;
+    private final ExecutorService dbStage;
+    private final AtomicLong processedWindows = new AtomicLong(0);
+    private final AtomicLong replayedWindows = new AtomicLong(0);
+    private final AtomicLong failedWindows = new AtomicLong(0);
+    private volatile MeasurementStream stream;
+
+    /** Destination of the sensed windows, e.g., DatabaseHandler.write(window, edge, device, onSettled). */
+    interface WindowWriter {
+        void write(MeasurementWindow<Float[]> window, String edgeLabel, String deviceName, SettleCallback onSettled);
+    }
+
+    public IngestPipeline(DatabaseHandler db, int shards, int queueSize, int dbThreads, int dbQueueSize) {
+        this(db::write, shards, queueSize, dbThreads, dbQueueSize);
+    }
+
+    IngestPipeline(WindowWriter writer, int shards, int queueSize, int dbThreads, int dbQueueSize) {
+        this.writer = writer;
+        this.sensingShards = new ExecutorService[shards];
+        for (int i = 0; i < shards; i++) {
+            sensingShards[i] = boundedExecutor("IngestSensing-" + i, 1, queueSize);
+        }
+        this.dbStage = shards > 0 ? boundedExecutor("IngestDB", dbThreads, dbQueueSize) : null;
+        if (shards > 0) {
+            logger.info("[IngestPipeline] " + shards + " shards (queue " + queueSize + "), " + dbThreads
+                    + " database threads (queue " + dbQueueSize + ")");
+        } else {
+            logger.info("[IngestPipeline] Processing windows inline");
+        }
+    }
+
+    /**
+     * Create the pipeline from the "ingest" section of the server global properties. Missing values take the
+     * defaults: one shard per available processor, DEFAULT_QUEUE_SIZE, DEFAULT_DB_THREADS and DEFAULT_DB_QUEUE_SIZE.
+     *
+     * @param jGlobalProperties Global properties of the server setup, or null
+     * @param db Database handler where values are written
+     */
+    public static IngestPipeline fromConfig(JSONObject jGlobalProperties, DatabaseHandler db) {
+        JSONObject jIngest = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("ingest");
+        if (jIngest == null) {
+            jIngest = new JSONObject();
+        }
+        int shards = jIngest.optInt("shards", Runtime.getRuntime().availableProcessors());
+        int queueSize = jIngest.optInt("queue-size", DEFAULT_QUEUE_SIZE);
+        int dbThreads = jIngest.optInt("db-threads", DEFAULT_DB_THREADS);
+        int dbQueueSize = jIngest.optInt("db-queue-size", DEFAULT_DB_QUEUE_SIZE);
+        return new IngestPipeline(db, Math.max(shards, 0), queueSize, dbThreads, dbQueueSize);
+    }
+
+    /**
+     * Process the encoded window of a device. Returns once the window has been queued in its shard, or once it has
+     * been fully processed if the pipeline runs inline.
+     *
+     * @param edgeLabel Label of the edge
+     * @param deviceName Label of the device
+     * @param sensor Digital twin of the device
+     * @param message Encoded MeasurementWindow
+     */
+    public void submit(String edgeLabel, String deviceName, Sensor<?, ?> sensor, byte[] message) {
+        submit(edgeLabel, deviceName, sensor, message, null);
+    }
+
+    /**
+     * Process the encoded window of a device, running onDone once its values are settled in the database stage
+     * (written, spooled or dropped by the write-behind buffer) or once the window is discarded because it cannot be
+     * decoded, which counts as kept since it would not be decoded again either. Functions of the device are not
+     * waited for.
+     *
+     * @param onDone Callback, or null
+     */
+    public void submit(String edgeLabel, String deviceName, Sensor<?, ?> sensor, byte[] message,
+                       SettleCallback onDone) {
+        submit(edgeLabel, deviceName, sensor, message, false, onDone);
+    }
+
+    /**
+     * Process the encoded window of a device as submit(edgeLabel, deviceName, sensor, message, onDone), storing it
+     * without sensing it if it was replayed.
+     *
+     * @param replay Whether the window was replayed from the journal of the edge, so it is only stored
+     * @param onDone Callback, or null
+     */
+    public void submit(String edgeLabel, String deviceName, Sensor<?, ?> sensor, byte[] message, boolean replay,
+                       SettleCallback onDone) {
+        if (replay) {
+            if (dbStage == null) {
+                store(edgeLabel, deviceName, sensor, message, onDone);
+            } else {
+                dbStage.execute(() -> store(edgeLabel, deviceName, sensor, message, onDone));
+            }
+            return;
+        }
+        if (sensingShards.length == 0) {
+            MeasurementWindow<Float[]> window = sense(edgeLabel, deviceName, sensor, message);
+            if (window != null) {
+                onRead(edgeLabel, deviceName, sensor);
+                write(edgeLabel, deviceName, window, onDone);
+            } else {
+                done(onDone);
+            }
+            return;
+        }
+        int shard = shardOf(edgeLabel, deviceName);
+        sensingShards[shard].execute(() -> {
+            MeasurementWindow<Float[]> window = sense(edgeLabel, deviceName, sensor, message);
+            if (window == null) {
+                done(onDone);
+                return;
+            }
+            dbStage.execute(() -> write(edgeLabel, deviceName, window, onDone));
+            // Before the next window of the device is sensed
+            onRead(edgeLabel, deviceName, sensor);
+        });
+    }
+
+    private static void onRead(String edgeLabel, String deviceName, Sensor<?, ?> sensor) {
+        try {
+            sensor.onRead();
+        } catch (Exception e) {
+            logger.error("[IngestPipeline] Error running functions of " + edgeLabel + "." + deviceName + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private MeasurementWindow<Float[]> sense(String edgeLabel, String deviceName, Sensor<?, ?> sensor,
+                                             byte[] message) {
+        try {
+            // Decode the MeasurementWindow, setValues in the sensor, and get the new MeasurementWindow<Float[]>
+            MeasurementWindow<Float[]> window = sensor.sensed(MeasurementWindow.decode(message));
+            processedWindows.incrementAndGet();
+            publish(edgeLabel, deviceName, window);
+            return window;
+        } catch (Exception e) {
+            failedWindows.incrementAndGet();
+            logger.error("[IngestPipeline] Error sensing window of " + edgeLabel + "." + deviceName + ": "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Write a replayed window to the database, leaving the sensor untouched. */
+    private void store(String edgeLabel, String deviceName, Sensor<?, ?> sensor, byte[] message,
+                       SettleCallback onDone) {
+        MeasurementWindow<Float[]> window;
+        try {
+            window = sensor.toFloatWindow(MeasurementWindow.decode(message));
+            replayedWindows.incrementAndGet();
+        } catch (Exception e) {
+            failedWindows.incrementAndGet();
+            logger.error("[IngestPipeline] Error decoding replayed window of " + edgeLabel + "." + deviceName + ": "
+                    + e.getMessage());
+            done(onDone);
+            return;
+        }
+        write(edgeLabel, deviceName, window, onDone);
+    }
+
+    /** Send the new state of the device to the clients of the live stream, if any. */
+    private void publish(String edgeLabel, String deviceName, MeasurementWindow<Float[]> window) {
+        MeasurementStream stream = this.stream;
+        if (stream == null || window == null) {
+            return;
+        }
+        try {
+            stream.publish(edgeLabel, deviceName, window);
+        } catch (Exception e) {
+            logger.warn("[IngestPipeline] Error streaming " + edgeLabel + "." + deviceName + ": " + e.getMessage());
+        }
+    }
+
+    /** Publish every sensed window to a live measurement stream. */
+    public void setStream(MeasurementStream stream) {
+        this.stream = stream;
+    }
+
+    private void write(String edgeLabel, String deviceName, MeasurementWindow<Float[]> window,
+                       SettleCallback onDone) {
+        try {
+            // Store the values in the database
+            writer.write(window, edgeLabel, deviceName, onDone);
+        } catch (Exception e) {
+            logger.error("[IngestPipeline] Error writing " + edgeLabel + "." + deviceName + " to the database: "
+                    + e.getMessage());
+            done(onDone, false);
+        }
+    }
+
+    private static void done(SettleCallback onDone) {
+        done(onDone, true);
+    }
+
+    private static void done(SettleCallback onDone, boolean kept) {
+        if (onDone != null) {
+            onDone.settled(kept);
+        }
+    }
+
+    int shardOf(String edgeLabel, String deviceName) {
+        int hash = 31 * edgeLabel.hashCode() + deviceName.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), sensingShards.length);
+    }
+
+    public int getShards() {
+        return sensingShards.length;
+    }
+
+    public long getProcessedWindows() {
+        return processedWindows.get();
+    }
+
+    /** Windows replayed from the journals of the edges, which were stored without being sensed. */
+    public long getReplayedWindows() {
+        return replayedWindows.get();
+    }
+
+    public long getFailedWindows() {
+        return failedWindows.get();
+    }
+
+    /** Stop accepting windows and wait for the queued ones to be processed, stage by stage. */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        awaitStage(sensingShards, deadline);
+        if (dbStage != null) {
+            awaitStage(new ExecutorService[]{dbStage}, deadline);
+        }
+    }
+
+    private static void awaitStage(ExecutorService[] executors, long deadline) throws InterruptedException {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+        for (ExecutorService executor : executors) {
+            executor.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Fixed-size executor whose submitters wait while its queue is full.
+     */
+    private static ExecutorService boundedExecutor(String name, int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger(0);
+        RejectedExecutionHandler waitForSpace = (r, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, threads == 1 ? name : name + "-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }, waitForSpace);
+    }
+}
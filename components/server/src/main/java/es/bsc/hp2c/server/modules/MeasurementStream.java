@@ -0,0 +1,420 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.modules;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import es.bsc.hp2c.common.utils.Measurement;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-sent events (text/event-stream) with the live measurements of the digital twins, served at /stream.
+ *
+ * The ingest pipeline publishes the last measurement of every window once it is sensed. The update is encoded into
+ * a single frame only if some client subscribed to it, and the same bytes are queued to every subscriber, so the
+ * cost of serialization does not grow with the number of clients. Clients choose what they receive with the query
+ * string of the request:
+ * <ul>
+ *     <li>edge, device: comma-separated labels of the edges and devices to receive (all of them by default).</li>
+ *     <li>interval: minimum milliseconds between two updates of the same device (server-side decimation).</li>
+ *     <li>rate: maximum updates per second of the client, bounded by max-rate.</li>
+ * </ul>
+ * Frames are written to the clients by a small pool of writer threads. A client that does not keep up loses the
+ * frames that do not fit in its queue, and clients that disconnect are detected by a periodic keep-alive comment.
+ * A client that stops reading blocks the write in progress: if it is still blocked after the write timeout (the
+ * keep-alive interval by default), the writer thread is interrupted, which closes the connection of the client.
+ */
+public class MeasurementStream implements HttpHandler {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int DEFAULT_MAX_CLIENTS = 256;
+    public static final int DEFAULT_CLIENT_QUEUE_SIZE = 256;
+    public static final int DEFAULT_WRITER_THREADS = 2;
+    public static final long DEFAULT_KEEP_ALIVE = 15000;
+    private static final byte[] KEEP_ALIVE_FRAME = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int maxClients;
+    private final int clientQueueSize;
+    private final double maxRate;
+    private final ExecutorService writers;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicLong frames = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong stalled = new AtomicLong(0);
+    private PeriodicScheduler.ScheduledTask keepAliveTask;
+    private long writeTimeout;
+
+    public MeasurementStream(int maxClients, int clientQueueSize, double maxRate, int writerThreads) {
+        AtomicInteger counter = new AtomicInteger(0);
+        this.maxClients = maxClients;
+        this.clientQueueSize = Math.max(clientQueueSize, 1);
+        this.maxRate = maxRate;
+        this.writers = new ThreadPoolExecutor(Math.max(writerThreads, 1), Math.max(writerThreads, 1), 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "StreamWriter-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Create the stream described in the "stream" section of the server global properties: "max-clients" (default
+     * DEFAULT_MAX_CLIENTS), "client-queue-size", "max-rate" (updates per second of every client, 0 for no limit),
+     * "writer-threads", "keep-alive" (milliseconds between keep-alive comments) and "write-timeout" (milliseconds a
+     * write may stay blocked before its client is disconnected, the keep-alive interval by default).
+     *
+     * @param jGlobalProperties Global properties of the server setup, or null
+     */
+    public static MeasurementStream fromConfig(JSONObject jGlobalProperties) {
+        JSONObject jStream = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("stream");
+        if (jStream == null) {
+            jStream = new JSONObject();
+        }
+        MeasurementStream stream = new MeasurementStream(jStream.optInt("max-clients", DEFAULT_MAX_CLIENTS),
+                jStream.optInt("client-queue-size", DEFAULT_CLIENT_QUEUE_SIZE), jStream.optDouble("max-rate", 0),
+                jStream.optInt("writer-threads", DEFAULT_WRITER_THREADS));
+        long keepAlive = jStream.optLong("keep-alive", DEFAULT_KEEP_ALIVE);
+        stream.writeTimeout = jStream.optLong("write-timeout", keepAlive);
+        if (keepAlive > 0) {
+            stream.keepAliveTask = PeriodicScheduler.getDefault().scheduleAtFixedRate("StreamKeepAlive",
+                    stream::keepAlive, keepAlive, keepAlive);
+        }
+        return stream;
+    }
+
+    /**
+     * Publish the last measurement of a sensed window to the subscribers of its device. Called from the ingest
+     * threads; returns without encoding anything if nobody subscribed to the device.
+     */
+    public void publish(String edgeLabel, String deviceName, MeasurementWindow<?> window) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        byte[] frame = null;
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.accepts(edgeLabel, deviceName, now)) {
+                continue;
+            }
+            if (frame == null) {
+                Measurement<?> measurement = window.getLastMeasurement();
+                if (measurement == null) {
+                    return;
+                }
+                try {
+                    frame = encode(edgeLabel, deviceName, measurement);
+                } catch (RuntimeException e) {
+                    logger.debug("[MeasurementStream] Cannot encode " + edgeLabel + "." + deviceName + ": "
+                            + e.getMessage());
+                    return;
+                }
+                frames.incrementAndGet();
+            }
+            subscriber.offer(frame);
+        }
+    }
+
+    static byte[] encode(String edgeLabel, String deviceName, Measurement<?> measurement) {
+        JSONObject jUpdate = new JSONObject()
+                .put("edge", edgeLabel)
+                .put("device", deviceName)
+                .put("timestamp", measurement.getTimestamp().toString());
+        Object value = measurement.getValue();
+        if (value instanceof Object[]) {
+            jUpdate.put("values", new JSONArray(Arrays.asList((Object[]) value)));
+        } else {
+            jUpdate.put("values", new JSONArray().put(value));
+        }
+        return ("event: measurement\ndata: " + jUpdate + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Open a stream: answered on the dispatcher thread, the response is then written by the writer threads. */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+            exchange.close();
+            return;
+        }
+        if (subscribers.size() >= maxClients) {
+            exchange.getResponseHeaders().set("Retry-After", "10");
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        double rate = parseDouble(query.get("rate"), 0);
+        if (maxRate > 0 && (rate <= 0 || rate > maxRate)) {
+            rate = maxRate;
+        }
+        Subscriber subscriber = new Subscriber(exchange, parseSet(query.get("edge")), parseSet(query.get("device")),
+                TimeUnit.MILLISECONDS.toNanos((long) parseDouble(query.get("interval"), 0)), rate);
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0); // Chunked
+        subscribers.add(subscriber);
+        subscriber.offer(KEEP_ALIVE_FRAME);
+        logger.info("[MeasurementStream] Client " + exchange.getRemoteAddress() + " subscribed (" + query + ")");
+    }
+
+    private void keepAlive() {
+        if (writeTimeout > 0) {
+            closeStalled(writeTimeout);
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(KEEP_ALIVE_FRAME);
+        }
+    }
+
+    /**
+     * Disconnect the clients whose write has been blocked for longer than a timeout, so they do not hold the writer
+     * threads.
+     *
+     * @param timeoutMs Milliseconds a write may stay blocked
+     * @return Number of clients disconnected
+     */
+    int closeStalled(long timeoutMs) {
+        long now = System.nanoTime();
+        int closed = 0;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.abortIfStalled(now, TimeUnit.MILLISECONDS.toNanos(timeoutMs))) {
+                logger.info("[MeasurementStream] Client " + subscriber.exchange.getRemoteAddress()
+                        + " stopped reading, closing it");
+                stalled.incrementAndGet();
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            try {
+                String key = URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), "UTF-8");
+                String value = eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+                query.put(key, value);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.warn("[MeasurementStream] Ignoring malformed query parameter: " + param);
+            }
+        }
+        return query;
+    }
+
+    private static Set<String> parseSet(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        Set<String> set = new HashSet<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                set.add(item.trim());
+            }
+        }
+        return set;
+    }
+
+    private static double parseDouble(String value, double defaultValue) {
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public int getSubscribers() {
+        return subscribers.size();
+    }
+
+    /** Number of frames encoded, each of them shared by all the subscribers of its update. */
+    public long getFrames() {
+        return frames.get();
+    }
+
+    /** Frames lost because the queue of a client was full. */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Clients disconnected because they stopped reading. */
+    public long getStalled() {
+        return stalled.get();
+    }
+
+    public void shutdown() {
+        if (keepAliveTask != null) {
+            keepAliveTask.cancel();
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+        writers.shutdownNow();
+    }
+
+    /** Client of the stream, with its filters, its rate limit and its queue of frames. */
+    final class Subscriber {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final Set<String> edges;
+        private final Set<String> devices;
+        private final long intervalNanos;
+        private final double rate;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(clientQueueSize);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        // Thread draining the queue and start of its current write (0 if none), guarded by writerLock
+        private final Object writerLock = new Object();
+        private Thread writer;
+        private volatile long writeStart = 0;
+        // Decimation and rate limit state, guarded by this
+        private final Map<String, Long> lastSent = new HashMap<>();
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        Subscriber(HttpExchange exchange, Set<String> edges, Set<String> devices, long intervalNanos, double rate) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.edges = edges;
+            this.devices = devices;
+            this.intervalNanos = intervalNanos;
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        synchronized boolean accepts(String edgeLabel, String deviceName, long now) {
+            if ((edges != null && !edges.contains(edgeLabel)) || (devices != null && !devices.contains(deviceName))) {
+                return false;
+            }
+            String key = edgeLabel + "." + deviceName;
+            if (intervalNanos > 0) {
+                Long last = lastSent.get(key);
+                if (last != null && now - last < intervalNanos) {
+                    return false;
+                }
+            }
+            if (rate > 0) {
+                // Token bucket allowing bursts of up to one second of updates
+                tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+                lastRefill = now;
+                if (tokens < 1) {
+                    return false;
+                }
+                tokens -= 1;
+            }
+            if (intervalNanos > 0) {
+                lastSent.put(key, now);
+            }
+            return true;
+        }
+
+        void offer(byte[] frame) {
+            if (closed.get()) {
+                return;
+            }
+            if (!queue.offer(frame)) {
+                dropped.incrementAndGet();
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this::drain);
+                } catch (RuntimeException e) {
+                    close();
+                }
+            }
+        }
+
+        private void drain() {
+            synchronized (writerLock) {
+                writer = Thread.currentThread();
+            }
+            try {
+                byte[] frame;
+                while ((frame = queue.poll()) != null) {
+                    writeStart = System.nanoTime();
+                    out.write(frame);
+                }
+                writeStart = System.nanoTime();
+                out.flush();
+            } catch (IOException e) {
+                logger.info("[MeasurementStream] Client " + exchange.getRemoteAddress() + " disconnected");
+                close();
+            } finally {
+                synchronized (writerLock) {
+                    writeStart = 0;
+                    writer = null;
+                    // Clear an interrupt that arrived once the write had completed, so it does not hit other clients
+                    Thread.interrupted();
+                }
+                scheduled.set(false);
+            }
+            if (!queue.isEmpty() && !closed.get() && scheduled.compareAndSet(false, true)) {
+                writers.execute(this::drain);
+            }
+        }
+
+        /**
+         * Interrupt the writer if its write has been blocked for longer than the timeout. The blocked write on the
+         * socket channel then fails and the writer closes the client.
+         */
+        boolean abortIfStalled(long now, long timeoutNanos) {
+            synchronized (writerLock) {
+                long start = writeStart;
+                if (writer == null || start == 0 || now - start < timeoutNanos) {
+                    return false;
+                }
+                subscribers.remove(this);
+                writer.interrupt();
+                return true;
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                subscribers.remove(this);
+                queue.clear();
+                exchange.close();
+            }
+        }
+    }
+}
@@ -8,13 +8,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.Locale;
-import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
-public class MetricsHandler extends TimerTask {
+public class MetricsHandler implements Runnable {
     private AtomicLong totalMessages;
     private AtomicLong totalBytes;
+    private AtomicLong batches;
+    private AtomicLong windows;
+    private AtomicLong legacyWindows;
     private AtomicLong startTime;
     private final String csvFile;
     private static final String METRICS_DIR = "metrics";
@@ -22,6 +24,9 @@ public class MetricsHandler extends TimerTask {
     public MetricsHandler() {
         this.totalMessages = new AtomicLong(0);
         this.totalBytes = new AtomicLong(0);
+        this.batches = new AtomicLong(0);
+        this.windows = new AtomicLong(0);
+        this.legacyWindows = new AtomicLong(0);
         this.startTime = new AtomicLong(Instant.now().toEpochMilli());
 
         // Ensure metrics directory exists
@@ -35,7 +40,7 @@ public class MetricsHandler extends TimerTask {
 
         // Initialize CSV file with headers
         try (FileWriter writer = new FileWriter(csvFile, false)) {
-            writer.write("timestamp,total_messages,messages_per_millisecond,total_time_elapsed,bytes_received,bytes_per_millisecond\n");
+            writer.write("timestamp,total_messages,messages_per_millisecond,total_time_elapsed,bytes_received,bytes_per_millisecond,batches,windows,legacy_windows\n");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -52,14 +57,21 @@ public class MetricsHandler extends TimerTask {
 
         long currentTotalMessages = totalMessages.get();
         long currentTotalBytes = totalBytes.get();
+        long currentBatches = batches.get();
+        long currentWindows = windows.get();
+        long currentLegacyWindows = legacyWindows.get();
 
         // Reset interval variables
         totalBytes.set(0);
         totalMessages.set(0);
+        batches.set(0);
+        windows.set(0);
+        legacyWindows.set(0);
         startTime.set(Instant.now().toEpochMilli());
 
         // Write metrics to CSV
-        writeToCsv(elapsedTime, messagesPerMillisecond, bytesPerMillisecond, currentTotalMessages, currentTotalBytes);
+        writeToCsv(elapsedTime, messagesPerMillisecond, bytesPerMillisecond, currentTotalMessages, currentTotalBytes,
+                currentBatches, currentWindows, currentLegacyWindows);
     }
 
     private String getNextFilename() {
@@ -77,16 +89,33 @@ public class MetricsHandler extends TimerTask {
         totalBytes.addAndGet(bytes);
     }
 
+    /** Record a message holding the windows of several devices of an edge. */
+    public void recordBatch() {
+        batches.incrementAndGet();
+    }
+
+    /** Record a window, sent alone or in a batch, and whether it still uses the legacy Java serialization format. */
+    public void recordWindow(boolean legacy) {
+        windows.incrementAndGet();
+        if (legacy) {
+            legacyWindows.incrementAndGet();
+        }
+    }
+
     private void writeToCsv(long elapsedTime, double messagesPerMillisecond, double bytesPerMillisecond,
-                            long currentTotalMessages, long currentTotalBytes) {
+                            long currentTotalMessages, long currentTotalBytes, long currentBatches,
+                            long currentWindows, long currentLegacyWindows) {
         try (FileWriter writer = new FileWriter(csvFile, true)) {
-            writer.write(String.format(Locale.US, "%d,%d,%.8f,%d,%d,%.8f\n",
+            writer.write(String.format(Locale.US, "%d,%d,%.8f,%d,%d,%.8f,%d,%d,%d\n",
                     Instant.now().toEpochMilli(),
                     currentTotalMessages,
                     messagesPerMillisecond,
                     elapsedTime,
                     currentTotalBytes,
-                    bytesPerMillisecond
+                    bytesPerMillisecond,
+                    currentBatches,
+                    currentWindows,
+                    currentLegacyWindows
             ));
         } catch (IOException e) {
             e.printStackTrace();
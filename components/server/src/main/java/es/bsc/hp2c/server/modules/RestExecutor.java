@@ -0,0 +1,301 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.modules;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import es.bsc.hp2c.common.utils.LatencyHistogram;
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the requests of the REST server on a bounded pool of worker threads instead of the single dispatcher thread
+ * of the JDK HttpServer, so that a slow request (e.g., an InfluxDB query) does not stall the others.
+ * <ul>
+ *     <li>Requests wait in a priority queue: actuations (HIGH) are served before dashboard polling (LOW).</li>
+ *     <li>Every route has at most max-concurrency requests in flight (queued or running); requests over the limit,
+ *     over the queue size or that waited longer than queue-timeout are answered with 503 instead of piling up.</li>
+ *     <li>The latency (queue wait plus handling) of every route is recorded in a LatencyHistogram.</li>
+ * </ul>
+ * Handlers run on the worker threads, so the dispatcher only accepts connections and enqueues requests.
+ */
+public class RestExecutor {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 5000;
+    public static final int DEFAULT_KEEP_ALIVE = 30;
+    public static final int DEFAULT_REQUEST_TIMEOUT = 30;
+    public static final int DEFAULT_RESPONSE_TIMEOUT = 0;
+
+    public enum Priority { LOW, NORMAL, HIGH }
+
+    private final ThreadPoolExecutor pool;
+    private final int threads;
+    private final int queueSize;
+    private final long queueTimeout;
+    private final JSONObject jRoutes;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong sequence = new AtomicLong(0);
+    private PeriodicScheduler.ScheduledTask reportTask;
+
+    public RestExecutor(int threads, int queueSize, long queueTimeout, JSONObject jRoutes) {
+        AtomicInteger counter = new AtomicInteger(0);
+        this.threads = Math.max(threads, 1);
+        this.queueSize = Math.max(queueSize, 1);
+        this.queueTimeout = queueTimeout;
+        this.jRoutes = jRoutes == null ? new JSONObject() : jRoutes;
+        // Tasks are given to execute() as they are (no FutureTask wrapping), so the queue can order them
+        this.pool = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "RestWorker-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+        // Start the workers now, so that every request goes through the queue
+        this.pool.prestartAllCoreThreads();
+    }
+
+    /**
+     * Create the executor described in the "rest" section of the server global properties: "threads" (default
+     * DEFAULT_THREADS), "queue-size", "queue-timeout" (milliseconds), "routes" (e.g., {"/getAlarms":
+     * {"max-concurrency": 1}}) and "report-interval" (milliseconds between logs of the route latencies, 0 to
+     * disable). "keep-alive", "request-timeout" and "response-timeout" (seconds) set the idle time of persistent
+     * connections, the maximum time to read a request and the maximum time to write a response of the JDK
+     * HttpServer, unless they were given as system properties; they must be set before the HttpServer is created.
+     * The response timeout is disabled by default, as it would also close the long-lived responses of /stream.
+     *
+     * @param jGlobalProperties Global properties of the server setup, or null
+     */
+    public static RestExecutor fromConfig(JSONObject jGlobalProperties) {
+        JSONObject jRest = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("rest");
+        if (jRest == null) {
+            jRest = new JSONObject();
+        }
+        setIfAbsent("sun.net.httpserver.idleInterval", jRest.optInt("keep-alive", DEFAULT_KEEP_ALIVE));
+        setIfAbsent("sun.net.httpserver.maxReqTime", jRest.optInt("request-timeout", DEFAULT_REQUEST_TIMEOUT));
+        int responseTimeout = jRest.optInt("response-timeout", DEFAULT_RESPONSE_TIMEOUT);
+        if (responseTimeout > 0) {
+            setIfAbsent("sun.net.httpserver.maxRspTime", responseTimeout);
+        }
+
+        RestExecutor executor = new RestExecutor(jRest.optInt("threads", DEFAULT_THREADS),
+                jRest.optInt("queue-size", DEFAULT_QUEUE_SIZE), jRest.optLong("queue-timeout", DEFAULT_QUEUE_TIMEOUT),
+                jRest.optJSONObject("routes"));
+        long reportInterval = jRest.optLong("report-interval", 0);
+        if (reportInterval > 0) {
+            executor.reportTask = PeriodicScheduler.getDefault().scheduleAtFixedRate("RestReport",
+                    executor::logStatistics, reportInterval, reportInterval);
+        }
+        logger.info("[RestExecutor] " + executor.threads + " threads (queue " + executor.queueSize + ")");
+        return executor;
+    }
+
+    private static void setIfAbsent(String property, int value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, String.valueOf(value));
+        }
+    }
+
+    /**
+     * Wrap the handler of a route so that its requests run on the pool.
+     *
+     * @param path Path of the route, also used to look up its settings in "routes"
+     * @param priority Priority of the requests of the route in the queue
+     * @param maxConcurrency Default limit of concurrent requests of the route (at most the number of threads)
+     * @param handler Handler of the route
+     */
+    public HttpHandler route(String path, Priority priority, int maxConcurrency, HttpHandler handler) {
+        JSONObject jRoute = jRoutes.optJSONObject(path);
+        if (jRoute != null) {
+            maxConcurrency = jRoute.optInt("max-concurrency", maxConcurrency);
+        }
+        Route route = new Route(path, priority, Math.max(Math.min(maxConcurrency, threads), 1), handler);
+        routes.put(path, route);
+        return route::dispatch;
+    }
+
+    /** Wrap the handler of a route with no limit of concurrency other than the number of threads. */
+    public HttpHandler route(String path, Priority priority, HttpHandler handler) {
+        return route(path, priority, threads, handler);
+    }
+
+    public Route getRoute(String path) {
+        return routes.get(path);
+    }
+
+    public void logStatistics() {
+        for (Route route : routes.values()) {
+            logger.info("[RestExecutor] " + route);
+        }
+    }
+
+    public void shutdown() {
+        if (reportTask != null) {
+            reportTask.cancel();
+        }
+        pool.shutdownNow();
+    }
+
+    private static void reject(HttpExchange exchange, String reason) {
+        try {
+            byte[] response = reason.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, response.length);
+            exchange.getResponseBody().write(response);
+        } catch (IOException e) {
+            logger.warn("[RestExecutor] Error rejecting request: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /** Route of the REST server, with its concurrency limit and its counters. */
+    public final class Route {
+        private final String path;
+        private final Priority priority;
+        private final Semaphore permits;
+        private final HttpHandler handler;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong requests = new AtomicLong(0);
+        private final AtomicLong rejected = new AtomicLong(0);
+        private final AtomicLong expired = new AtomicLong(0);
+        private final AtomicLong failed = new AtomicLong(0);
+
+        private Route(String path, Priority priority, int maxConcurrency, HttpHandler handler) {
+            this.path = path;
+            this.priority = priority;
+            this.permits = new Semaphore(maxConcurrency);
+            this.handler = handler;
+        }
+
+        /** Called on the dispatcher thread: enqueue the request, or reject it if the route or the queue is full. */
+        private void dispatch(HttpExchange exchange) {
+            requests.incrementAndGet();
+            if (!permits.tryAcquire()) {
+                rejected.incrementAndGet();
+                reject(exchange, "Too many concurrent requests to " + path);
+                return;
+            }
+            if (queued.incrementAndGet() > queueSize) {
+                queued.decrementAndGet();
+                permits.release();
+                rejected.incrementAndGet();
+                reject(exchange, "REST server queue is full");
+                return;
+            }
+            try {
+                pool.execute(new Task(this, exchange));
+            } catch (RejectedExecutionException e) {
+                queued.decrementAndGet();
+                permits.release();
+                rejected.incrementAndGet();
+                reject(exchange, "REST server is shutting down");
+            }
+        }
+
+        private void run(HttpExchange exchange, long enqueued) {
+            queued.decrementAndGet();
+            try {
+                if (queueTimeout > 0 && System.nanoTime() - enqueued > TimeUnit.MILLISECONDS.toNanos(queueTimeout)) {
+                    expired.incrementAndGet();
+                    reject(exchange, "Request to " + path + " timed out in the queue");
+                    return;
+                }
+                handler.handle(exchange);
+            } catch (Throwable t) {
+                failed.incrementAndGet();
+                logger.error("[RestExecutor] Error handling request to " + path + ": " + t.getMessage());
+                try {
+                    exchange.sendResponseHeaders(500, -1);
+                } catch (IOException | RuntimeException ignored) {
+                    // Headers were already sent
+                }
+                exchange.close();
+            } finally {
+                permits.release();
+                latencies.record(System.nanoTime() - enqueued);
+            }
+        }
+
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /** Requests answered with 503 because the route or the queue was full. */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /** Requests answered with 503 because they waited longer than queue-timeout. */
+        public long getExpired() {
+            return expired.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return path + " (" + priority + "): requests=" + requests.get() + ", rejected=" + rejected.get()
+                    + ", expired=" + expired.get() + ", failed=" + failed.get() + ", latency " + latencies;
+        }
+    }
+
+    /** Queued request, ordered by priority and then by arrival. */
+    private final class Task implements Runnable, Comparable<Task> {
+        private final Route route;
+        private final HttpExchange exchange;
+        private final long enqueued = System.nanoTime();
+        private final long order = sequence.getAndIncrement();
+
+        private Task(Route route, HttpExchange exchange) {
+            this.route = route;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void run() {
+            route.run(exchange, enqueued);
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byPriority = other.route.priority.compareTo(route.priority);
+            return byPriority != 0 ? byPriority : Long.compare(order, other.order);
+        }
+    }
+}
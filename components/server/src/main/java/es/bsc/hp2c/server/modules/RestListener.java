@@ -15,12 +15,14 @@
  */
 package es.bsc.hp2c.server.modules;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 
 import es.bsc.hp2c.HP2CServerContext.ActuatorValidity;
 import es.bsc.hp2c.server.device.VirtualComm;
+import es.bsc.hp2c.server.edge.EdgeRegistry;
 import es.bsc.hp2c.server.edge.VirtualEdge;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -31,12 +33,10 @@ import org.apache.logging.log4j.Logger;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 
 import static es.bsc.hp2c.HP2CServerContext.checkActuator;
-import static es.bsc.hp2c.HP2CServerContext.getDB;
+import static es.bsc.hp2c.HP2CServerContext.getAlarms;
 import static es.bsc.hp2c.common.utils.CommUtils.printableArray;
 
 /**
@@ -45,21 +45,42 @@ import static es.bsc.hp2c.common.utils.CommUtils.printableArray;
 public class RestListener {
     private static final Logger logger = LogManager.getLogger("appLogger");
     private static final int REST_PORT = 8080;
-    private static Map<String, VirtualEdge> edgeMap;
-
-    public RestListener(Map<String, VirtualEdge> edgeMap) {
-        RestListener.edgeMap = edgeMap;
+    private static EdgeRegistry edges;
+    private static EdgesInfoCache edgesInfo;
+    private static boolean gzip = true;
+    private final JSONObject jGlobalProperties;
+    private final MeasurementStream stream;
+    private RestExecutor executor;
+
+    public RestListener(EdgeRegistry edges, JSONObject jGlobalProperties, MeasurementStream stream) {
+        RestListener.edges = edges;
+        this.stream = stream;
+        RestListener.edgesInfo = new EdgesInfoCache(edges);
+        this.jGlobalProperties = jGlobalProperties;
+        JSONObject jRest = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("rest");
+        if (jRest != null) {
+            RestListener.gzip = jRest.optBoolean("gzip", true);
+        }
     }
 
     public void start() throws IOException {
+        // Requests run on the pool of the executor, which also sets the HttpServer timeouts before it is created
+        executor = RestExecutor.fromConfig(jGlobalProperties);
         // Create HTTP server
         HttpServer server = HttpServer.create(new InetSocketAddress(REST_PORT), 0);
         // Create a context for actuate REST endpoint
-        server.createContext("/actuate", new ActuateHandler());
-        server.createContext("/getGeoInfo", new GetGeoInfoHandler());
-        server.createContext("/getEdgesInfo", new GetEdgesInfoHandler());
-        server.createContext("/setUpdated", new SetUpdatedHandler());
-        server.createContext("/getAlarms", new GetAlarmsHandler());
+        server.createContext("/actuate", executor.route("/actuate", RestExecutor.Priority.HIGH,
+                new ActuateHandler()));
+        server.createContext("/getGeoInfo", executor.route("/getGeoInfo", RestExecutor.Priority.LOW,
+                new GetGeoInfoHandler()));
+        server.createContext("/getEdgesInfo", executor.route("/getEdgesInfo", RestExecutor.Priority.LOW,
+                new GetEdgesInfoHandler()));
+        server.createContext("/setUpdated", executor.route("/setUpdated", RestExecutor.Priority.NORMAL,
+                new SetUpdatedHandler()));
+        server.createContext("/getAlarms", executor.route("/getAlarms", RestExecutor.Priority.LOW,
+                new GetAlarmsHandler()));
+        // Streams are opened on the dispatcher thread and written by their own writers, without holding a worker
+        server.createContext("/stream", stream);
         // Start the server
         server.start();
         logger.info("HTTP Server started on port " + REST_PORT);
@@ -79,7 +100,7 @@ public class RestListener {
             String response;
             int responseCode = 200;
             try {
-                for (VirtualEdge edge : edgeMap.values()){
+                for (VirtualEdge edge : edges.asMap().values()){
                     edge.setModified(false);
                 }
                 response = "Setting modified to false in every edge";
@@ -111,7 +132,7 @@ public class RestListener {
             try {
                 // Collect information from all edge nodes
                 jGeoInfo = new JSONObject();
-                for (VirtualEdge edge : edgeMap.values()) {
+                for (VirtualEdge edge : edges.asMap().values()) {
                     jGeoInfo.put(edge.getLabel(), edge.getEdgeGeoInfo());
                 }
             } catch (JSONException e) {
@@ -139,23 +160,36 @@ public class RestListener {
                 return;
             }
 
-            String response = "";
-            JSONObject jEdgesInfo;
-
+            EdgesInfoCache.Entry entry;
             try {
-                //response = "Received request to get edges info. ";
-                jEdgesInfo = RestUtils.getInfoFromEdgeMap();
-            } catch (JSONException e) {
+                // Built again only if an edge changed since the previous request
+                entry = edgesInfo.get();
+            } catch (JSONException | IllegalArgumentException e) {
                 logger.error("Exception handling JSON object: " + e.getMessage());
                 exchange.sendResponseHeaders(500, 0); // Internal Server Error
                 return;
             }
 
-            logger.info("[RestListener] Sending requested EdgesInfo: " + jEdgesInfo);
-            exchange.sendResponseHeaders(200, response.length() + jEdgesInfo.toString().getBytes().length);
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("ETag", entry.getETag());
+            headers.set("Cache-Control", "no-cache");
+            headers.set("Vary", "Accept-Encoding");
+            if (entry.matches(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1); // Not Modified
+                exchange.close();
+                return;
+            }
+            byte[] body = entry.getBody();
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (gzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                body = entry.getGzipped();
+                headers.set("Content-Encoding", "gzip");
+            }
+            headers.set("Content-Type", "application/json; charset=utf-8");
+            logger.debug("[RestListener] Sending requested EdgesInfo (" + body.length + " bytes)");
+            exchange.sendResponseHeaders(200, body.length);
             OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes());
-            os.write(jEdgesInfo.toString().getBytes());
+            os.write(body);
             os.close();
         }
     }
@@ -163,8 +197,7 @@ public class RestListener {
     static class GetAlarmsHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            DatabaseHandler db = getDB();
-            Set<ArrayList<String>> alarmsTriples = db.getUniqueAlarmTriples();
+            Set<ArrayList<String>> alarmsTriples = getAlarms().getAlarmTriples();
             String response = "";
 
             logger.info("[RestListener] Sending requested alarms: " + alarmsTriples);
@@ -200,7 +233,7 @@ public class RestListener {
                 ActuatorValidity checker = checkActuator(edgeLabel, actuatorLabel);
                 if (checker.isValid()) {
                     // Actuate
-                    VirtualComm.VirtualDevice device = edgeMap.get(edgeLabel).getDevice(actuatorLabel);
+                    VirtualComm.VirtualDevice device = edges.get(edgeLabel).getDevice(actuatorLabel);
                     VirtualComm.VirtualActuator<?> actuator = (VirtualComm.VirtualActuator<?>) device;
                     actuator.actuate(stringValues);
                     // Send response
@@ -237,20 +270,6 @@ public class RestListener {
             return sb.toString();
         }
 
-        static JSONObject getInfoFromEdgeMap() {
-            JSONObject jEdgesInfo = new JSONObject();
-            for (HashMap.Entry<String, VirtualEdge> entry : edgeMap.entrySet()) {
-                String edgeLabel = entry.getKey();
-                VirtualEdge edge = entry.getValue();
-                JSONObject jEdge = new JSONObject();
-                jEdge.put("is_available", edge.isAvailable());
-                jEdge.put("modified", edge.getModified());
-                jEdge.put("info", edge.getDevicesInfo());
-                jEdgesInfo.put(edgeLabel, jEdge);
-            }
-            return jEdgesInfo;
-        }
-
         static RequestData parseActuateRequestBody(String requestBody) throws JSONException {
             JSONObject jsonObject = new JSONObject(requestBody);
 
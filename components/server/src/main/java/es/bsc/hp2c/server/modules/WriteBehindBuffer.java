@@ -0,0 +1,727 @@
+/*
+ *  Copyright 2002-2023 Barcelona Supercomputing Center (www.bsc.es)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.common.utils.PeriodicScheduler;
+import es.bsc.hp2c.common.utils.SegmentJournal;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded buffer of line protocol between the writers of the server and InfluxDB.
+ *
+ * Writers queue chunks of lines (e.g., the lines of a window) and a single flusher thread sends them in batches when
+ * flush-lines lines or flush-bytes bytes are pending, or every flush-interval milliseconds (plus a random jitter of up
+ * to flush-jitter milliseconds). A failed batch is retried with exponential backoff, up to retry-max-interval, while
+ * new chunks keep accumulating. Once max-pending-lines or max-pending-bytes are reached the overflow policy applies:
+ * <ul>
+ *     <li>BLOCK: the writer waits for space, so the ingest pipeline slows down the AMQP consumer.</li>
+ *     <li>DROP: the chunk is discarded and counted as dropped.</li>
+ *     <li>SPILL: the chunk is appended to a local spool, a SegmentJournal in spool-dir.</li>
+ * </ul>
+ * With the SPILL policy the spool is also used while the database is down: a batch that fails is moved to the spool
+ * instead of being retried in memory, and new chunks go straight to the spool until a write succeeds again. Once the
+ * database accepts writes, the spool is replayed in order, in batches of up to flush-bytes bytes, between the
+ * regular flushes. As the spool survives restarts, whatever was left in it is replayed when the server starts.
+ *
+ * A chunk may carry a callback run once its lines are settled, telling whether they were kept (written to the database
+ * or spooled) or dropped. It is used to acknowledge AMQP messages only when their values no longer depend on the
+ * memory of the server, and to have the broker redeliver the messages whose values were dropped.
+ */
+public class WriteBehindBuffer {
+    private static final Logger logger = LogManager.getLogger("appLogger");
+    public static final int DEFAULT_FLUSH_LINES = 5000;
+    public static final long DEFAULT_FLUSH_BYTES = 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    public static final int DEFAULT_MAX_PENDING_LINES = 500_000;
+    public static final long DEFAULT_MAX_PENDING_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_RETRY_INTERVAL = 1000;
+    public static final long DEFAULT_RETRY_MAX_INTERVAL = 30_000;
+    public static final String DEFAULT_SPOOL_DIR = "spool";
+    public static final int DEFAULT_SPOOL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_SPOOL_MAX_BYTES = 1024L * 1024 * 1024;
+
+    public enum Overflow { BLOCK, DROP, SPILL }
+
+    /** Callback of a chunk once its lines are settled. */
+    public interface SettleCallback {
+        /**
+         * @param kept Whether the lines were written to the database or spooled, false if they were dropped
+         */
+        void settled(boolean kept);
+    }
+
+    /** Destination of the batches, e.g., InfluxDB.write(String). */
+    public interface Sink {
+        void write(String lines) throws Exception;
+    }
+
+    private final Sink sink;
+    private final int flushLines;
+    private final long flushBytes;
+    private final long flushInterval;
+    private final long flushJitter;
+    private final int maxPendingLines;
+    private final long maxPendingBytes;
+    private final Overflow overflow;
+    private final long retryInterval;
+    private final long retryMaxInterval;
+    private final File spoolDir;
+    private final int spoolSegmentSize;
+    private final long spoolMaxBytes;
+    private long reportInterval = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushNeeded = lock.newCondition();
+    private final ArrayDeque<Chunk> pending = new ArrayDeque<>();
+    private int pendingLines = 0;
+    private long pendingBytes = 0;
+    private volatile int inFlightLines = 0;
+    private volatile boolean failing = false;
+    private boolean closed = false;
+    private Thread flusher;
+    private SegmentJournal spool;
+    private long retryDelay;
+    private long failuresInARow = 0;
+
+    private final AtomicLong acceptedLines = new AtomicLong(0);
+    private final AtomicLong flushedLines = new AtomicLong(0);
+    private final AtomicLong flushes = new AtomicLong(0);
+    private final AtomicLong failedFlushes = new AtomicLong(0);
+    private final AtomicLong droppedLines = new AtomicLong(0);
+    private final AtomicLong spilledLines = new AtomicLong(0);
+    private final AtomicLong replayedLines = new AtomicLong(0);
+
+    public WriteBehindBuffer(Sink sink, int flushLines, long flushBytes, long flushInterval, long flushJitter,
+                             int maxPendingLines, long maxPendingBytes, Overflow overflow, long retryInterval,
+                             long retryMaxInterval, File spoolDir, int spoolSegmentSize, long spoolMaxBytes) {
+        this.sink = sink;
+        this.flushLines = Math.max(flushLines, 1);
+        this.flushBytes = Math.max(flushBytes, 1);
+        this.flushInterval = Math.max(flushInterval, 1);
+        this.flushJitter = Math.max(flushJitter, 0);
+        this.maxPendingLines = Math.max(maxPendingLines, this.flushLines);
+        this.maxPendingBytes = Math.max(maxPendingBytes, this.flushBytes);
+        this.overflow = overflow;
+        this.retryInterval = Math.max(retryInterval, 1);
+        this.retryMaxInterval = Math.max(retryMaxInterval, this.retryInterval);
+        this.retryDelay = this.retryInterval;
+        this.spoolDir = spoolDir;
+        this.spoolSegmentSize = spoolSegmentSize;
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+
+    /**
+     * Create the buffer from the "write-behind" section of the server global properties. Missing values take the
+     * DEFAULT_* constants; "overflow" is one of "spill" (default), "block" or "drop".
+     *
+     * @param jGlobalProperties Global properties of the server setup, or null
+     * @param sink Destination of the batches
+     */
+    public static WriteBehindBuffer fromConfig(JSONObject jGlobalProperties, Sink sink) {
+        JSONObject jBuffer = jGlobalProperties == null ? null : jGlobalProperties.optJSONObject("write-behind");
+        if (jBuffer == null) {
+            jBuffer = new JSONObject();
+        }
+        String overflow = jBuffer.optString("overflow", "spill");
+        Overflow policy;
+        try {
+            policy = Overflow.valueOf(overflow.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown write-behind overflow '" + overflow
+                    + "' (expected 'spill', 'block' or 'drop')");
+        }
+        WriteBehindBuffer buffer = new WriteBehindBuffer(sink,
+                jBuffer.optInt("flush-lines", DEFAULT_FLUSH_LINES),
+                jBuffer.optLong("flush-bytes", DEFAULT_FLUSH_BYTES),
+                jBuffer.optLong("flush-interval", DEFAULT_FLUSH_INTERVAL),
+                jBuffer.optLong("flush-jitter", 0),
+                jBuffer.optInt("max-pending-lines", DEFAULT_MAX_PENDING_LINES),
+                jBuffer.optLong("max-pending-bytes", DEFAULT_MAX_PENDING_BYTES),
+                policy,
+                jBuffer.optLong("retry-interval", DEFAULT_RETRY_INTERVAL),
+                jBuffer.optLong("retry-max-interval", DEFAULT_RETRY_MAX_INTERVAL),
+                new File(jBuffer.optString("spool-dir", DEFAULT_SPOOL_DIR)),
+                jBuffer.optInt("spool-segment-size", DEFAULT_SPOOL_SEGMENT_SIZE),
+                jBuffer.optLong("spool-max-bytes", DEFAULT_SPOOL_MAX_BYTES));
+        buffer.setReportInterval(jBuffer.optLong("report-interval", 0));
+        return buffer;
+    }
+
+    /** Log the counters every reportInterval milliseconds once started (0, the default, to disable). */
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    /** Open the spool, if the SPILL policy is used, and start the flusher thread. */
+    public synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        if (overflow == Overflow.SPILL) {
+            try {
+                SegmentJournal journal = new SegmentJournal(spoolDir, spoolSegmentSize, spoolMaxBytes);
+                lock.lock();
+                try {
+                    spool = journal;
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("[WriteBehindBuffer] Cannot open spool " + spoolDir + ", lines will be dropped instead: "
+                        + e.getMessage());
+            }
+        }
+        flusher = new Thread(this::flushLoop, "WriteBehindFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("[WriteBehindBuffer] Flushing every " + flushLines + " lines, " + flushBytes + " bytes or "
+                + flushInterval + " ms; up to " + maxPendingLines + " lines and " + maxPendingBytes
+                + " bytes pending (overflow " + overflow + ")");
+        if (reportInterval > 0) {
+            PeriodicScheduler.getDefault().scheduleWithFixedDelay("WriteBehindReport",
+                    () -> logger.info("[WriteBehindBuffer] " + this), reportInterval, reportInterval);
+        }
+    }
+
+    /** Queue a chunk of line protocol, without settle callback. */
+    public boolean offer(String lines, int count) {
+        return offer(lines, count, null);
+    }
+
+    /**
+     * Queue a chunk of line protocol.
+     *
+     * @param lines One or more lines, separated by '\n'
+     * @param count Number of lines in the chunk
+     * @param onSettled Callback run, without holding any lock of the buffer, once the lines are written, spooled or
+     *                  dropped, telling whether they were kept; or null
+     * @return Whether the chunk was queued (false if it was dropped or spilled)
+     */
+    public boolean offer(String lines, int count, SettleCallback onSettled) {
+        if (count <= 0) {
+            runSettled(onSettled, true);
+            return true;
+        }
+        Chunk chunk = new Chunk(lines, count, onSettled);
+        boolean settled = true;
+        boolean kept = false;
+        lock.lock();
+        try {
+            if (failing && spool != null && !closed) {
+                // The database is down: keep the lines on disk rather than in memory
+                kept = overflow(chunk, "unavailable");
+                return false;
+            }
+            while (!closed && !pending.isEmpty() && isFull(chunk)) {
+                if (overflow == Overflow.BLOCK) {
+                    notFull.await();
+                } else {
+                    break;
+                }
+            }
+            if (closed || (!pending.isEmpty() && isFull(chunk))) {
+                kept = overflow(chunk, closed ? "closed" : "full");
+                return false;
+            }
+            pending.addLast(chunk);
+            settled = false;
+            pendingLines += chunk.count;
+            pendingBytes += chunk.bytes;
+            acceptedLines.addAndGet(chunk.count);
+            if (pendingLines >= flushLines || pendingBytes >= flushBytes) {
+                flushNeeded.signal();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            kept = overflow(chunk, "interrupted");
+            return false;
+        } finally {
+            lock.unlock();
+            if (settled) {
+                runSettled(onSettled, kept);
+            }
+        }
+    }
+
+    private static void runSettled(SettleCallback onSettled, boolean kept) {
+        if (onSettled == null) {
+            return;
+        }
+        try {
+            onSettled.settled(kept);
+        } catch (RuntimeException e) {
+            logger.error("[WriteBehindBuffer] Error in settle callback: " + e.getMessage());
+        }
+    }
+
+    private static void runSettled(List<SettleCallback> callbacks, boolean kept) {
+        for (SettleCallback callback : callbacks) {
+            runSettled(callback, kept);
+        }
+    }
+
+    private boolean isFull(Chunk chunk) {
+        return pendingLines + chunk.count > maxPendingLines || pendingBytes + chunk.bytes > maxPendingBytes;
+    }
+
+    /**
+     * Handle a chunk that cannot be queued. Must be called holding the lock.
+     *
+     * @return Whether the lines were spooled, false if they were dropped
+     */
+    private boolean overflow(Chunk chunk, String reason) {
+        if (overflow == Overflow.SPILL && spill(chunk)) {
+            return true;
+        }
+        if (droppedLines.getAndAdd(chunk.count) == 0) {
+            logger.warn("[WriteBehindBuffer] Buffer " + reason + ", dropping lines (further drops are only counted)");
+        }
+        return false;
+    }
+
+    private boolean spill(Chunk chunk) {
+        if (spool == null) {
+            return false;
+        }
+        String lines = chunk.lines.endsWith("\n") ? chunk.lines : chunk.lines + '\n';
+        try {
+            if (!spool.append(lines.getBytes(StandardCharsets.UTF_8))) {
+                return false;
+            }
+            if (spilledLines.getAndAdd(chunk.count) == 0) {
+                logger.warn("[WriteBehindBuffer] Spooling lines to " + spoolDir.getAbsolutePath());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.error("[WriteBehindBuffer] Error spooling lines: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean spillLocked(Batch batch, String reason) {
+        lock.lock();
+        try {
+            return overflow(new Chunk(batch.lines, batch.count, null), reason);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = nextBatch(hasSpooledLines() && !failing);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (batch == null) {
+                break;
+            }
+            if (batch.count > 0) {
+                boolean kept = send(batch);
+                inFlightLines = 0;
+                runSettled(batch.callbacks, kept);
+            }
+            if (hasSpooledLines() && !isClosed()) {
+                replay();
+            }
+        }
+        closeSpool();
+    }
+
+    /**
+     * Send a batch, retrying until it succeeds or the buffer is closed. With a spool, a failed batch is moved to the
+     * spool instead.
+     *
+     * @return Whether the lines were written or spooled, false if they were dropped
+     */
+    private boolean send(Batch batch) {
+        if (spool != null && failing) {
+            // Replaying the spool probes the database, so do not wait for this batch to fail too
+            return spillLocked(batch, "unavailable");
+        }
+        while (!write(batch.lines, batch.count)) {
+            if (spool != null) {
+                boolean spooled = spillLocked(batch, "unavailable");
+                backoff();
+                return spooled;
+            }
+            if (!backoff()) {
+                return spillLocked(batch, "closed");
+            }
+        }
+        flushedLines.addAndGet(batch.count);
+        return true;
+    }
+
+    /** Send the oldest spooled lines in one batch, removing them from the spool if they are written. */
+    private void replay() {
+        List<SegmentJournal.Record> records;
+        try {
+            records = spool.peek(Integer.MAX_VALUE, flushBytes);
+        } catch (RuntimeException e) {
+            return; // Closed meanwhile
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (SegmentJournal.Record record : records) {
+            sb.append(new String(record.getPayload(), StandardCharsets.UTF_8));
+        }
+        int count = 0;
+        for (int i = 0; i < sb.length(); i++) {
+            if (sb.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        if (!write(sb.toString(), count)) {
+            backoff();
+            return;
+        }
+        try {
+            spool.commit(records.get(records.size() - 1));
+            replayedLines.addAndGet(count);
+        } catch (IOException | RuntimeException e) {
+            logger.error("[WriteBehindBuffer] Error committing replayed lines: " + e.getMessage());
+        }
+    }
+
+    /** Write lines to the sink, keeping track of failures. */
+    private boolean write(String lines, int count) {
+        try {
+            sink.write(lines);
+            flushes.incrementAndGet();
+            if (failuresInARow > 0) {
+                logger.info("[WriteBehindBuffer] Database writes recovered after " + failuresInARow
+                        + " failed attempts");
+            }
+            failuresInARow = 0;
+            failing = false;
+            retryDelay = retryInterval;
+            return true;
+        } catch (Exception e) {
+            failedFlushes.incrementAndGet();
+            failing = true;
+            if (failuresInARow++ == 0) {
+                logger.warn("[WriteBehindBuffer] Error writing " + count + " lines, retrying: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /** Wait before the next attempt after a failure. Returns false if the buffer was closed meanwhile. */
+    private boolean backoff() {
+        boolean open = sleepUnlessClosed(retryDelay);
+        retryDelay = Math.min(2 * retryDelay, retryMaxInterval);
+        return open;
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasSpooledLines() {
+        SegmentJournal journal = spool;
+        try {
+            return journal != null && !journal.isEmpty();
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wait until a flush is due and take the lines to flush. Returns null once the buffer is closed and empty.
+     *
+     * @param now Take the pending lines without waiting, because there is spooled data to replay
+     */
+    private Batch nextBatch(boolean now) throws InterruptedException {
+        lock.lock();
+        try {
+            long interval = now ? 0 : flushInterval + jitter();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+            while (!closed && pendingLines < flushLines && pendingBytes < flushBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                flushNeeded.awaitNanos(remaining);
+            }
+            if (pending.isEmpty()) {
+                return closed ? null : new Batch("", 0, new ArrayList<>(0));
+            }
+            StringBuilder sb = new StringBuilder((int) Math.min(pendingBytes, flushBytes) + 64);
+            int count = 0;
+            long bytes = 0;
+            List<SettleCallback> callbacks = new ArrayList<>();
+            while (!pending.isEmpty() && (count == 0 || (count + pending.peekFirst().count <= flushLines
+                    && bytes + pending.peekFirst().bytes <= flushBytes))) {
+                Chunk chunk = pending.pollFirst();
+                pendingLines -= chunk.count;
+                pendingBytes -= chunk.bytes;
+                bytes += chunk.bytes;
+                sb.append(chunk.lines);
+                if (!chunk.lines.endsWith("\n")) {
+                    sb.append('\n');
+                }
+                count += chunk.count;
+                if (chunk.onSettled != null) {
+                    callbacks.add(chunk.onSettled);
+                }
+            }
+            inFlightLines = count;
+            notFull.signalAll();
+            return new Batch(sb.toString(), count, callbacks);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long jitter() {
+        return flushJitter > 0 ? ThreadLocalRandom.current().nextLong(flushJitter + 1) : 0;
+    }
+
+    /** Sleep for the given time. Returns false if the buffer was closed meanwhile. */
+    private boolean sleepUnlessClosed(long millis) {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(millis);
+            while (!closed && remaining > 0) {
+                remaining = flushNeeded.awaitNanos(remaining);
+            }
+            return !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeSpool() {
+        lock.lock();
+        try {
+            if (spool != null) {
+                spool.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush the pending lines and stop the flusher. Lines that cannot be written before the timeout are dropped or,
+     * with the SPILL policy, spooled to be replayed on the next start.
+     */
+    public void close(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // Let the flusher empty the buffer while the database accepts writes
+        while (getPendingLines() > 0 && !failing && System.nanoTime() < deadline) {
+            lock.lock();
+            try {
+                flushNeeded.signal();
+            } finally {
+                lock.unlock();
+            }
+            Thread.sleep(10);
+        }
+        lock.lock();
+        try {
+            closed = true;
+            flushNeeded.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Thread thread;
+        synchronized (this) {
+            thread = flusher;
+        }
+        if (thread != null) {
+            thread.join(Math.max(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()), 1));
+        }
+        List<SettleCallback> spooled = new ArrayList<>();
+        List<SettleCallback> dropped = new ArrayList<>();
+        lock.lock();
+        try {
+            while (!pending.isEmpty()) {
+                Chunk chunk = pending.pollFirst();
+                pendingLines -= chunk.count;
+                pendingBytes -= chunk.bytes;
+                boolean kept = overflow(chunk, "closed");
+                if (chunk.onSettled != null) {
+                    (kept ? spooled : dropped).add(chunk.onSettled);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        runSettled(spooled, true);
+        runSettled(dropped, false);
+        if (thread == null || !thread.isAlive()) {
+            closeSpool();
+        }
+    }
+
+    public int getPendingLines() {
+        lock.lock();
+        try {
+            return pendingLines;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPendingBytes() {
+        lock.lock();
+        try {
+            return pendingBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Lines pending in the buffer plus the lines of the batch being written. */
+    public long getInFlightLines() {
+        return getPendingLines() + inFlightLines;
+    }
+
+    public long getAcceptedLines() {
+        return acceptedLines.get();
+    }
+
+    public long getFlushedLines() {
+        return flushedLines.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFailedFlushes() {
+        return failedFlushes.get();
+    }
+
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    public long getSpilledLines() {
+        return spilledLines.get();
+    }
+
+    public long getReplayedLines() {
+        return replayedLines.get();
+    }
+
+    /** Bytes waiting in the spool to be replayed. */
+    public long getSpooledBytes() {
+        SegmentJournal journal = spool;
+        try {
+            return journal == null ? 0 : journal.getPendingBytes();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /** Whether the last attempt to write a batch failed. */
+    public boolean isFailing() {
+        return failing;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBehindBuffer{inFlight=" + getInFlightLines() + ", flushed=" + getFlushedLines()
+                + ", flushes=" + getFlushes() + ", failedFlushes=" + getFailedFlushes()
+                + ", dropped=" + getDroppedLines() + ", spilled=" + getSpilledLines()
+                + ", replayed=" + getReplayedLines() + ", spooledBytes=" + getSpooledBytes() + "}";
+    }
+
+    private static final class Chunk {
+        final String lines;
+        final int count;
+        final int bytes;
+        final SettleCallback onSettled;
+
+        Chunk(String lines, int count, SettleCallback onSettled) {
+            this.lines = lines;
+            this.count = count;
+            this.bytes = utf8Length(lines);
+            this.onSettled = onSettled;
+        }
+    }
+
+    /** Size of a string encoded in UTF-8, as sent to the database or the spool, without encoding it. */
+    static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                // Two chars, four bytes
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    private static final class Batch {
+        final String lines;
+        final int count;
+        final List<SettleCallback> callbacks;
+
+        Batch(String lines, int count, List<SettleCallback> callbacks) {
+            this.lines = lines;
+            this.count = count;
+            this.callbacks = callbacks;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package es.bsc.hp2c.server.edge;
+
+import es.bsc.hp2c.common.types.Device;
+import es.bsc.hp2c.server.device.VirtualComm;
+import es.bsc.hp2c.server.device.VirtualSwitch;
+import es.bsc.hp2c.server.device.VirtualVoltmeter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EdgeRegistryTest {
+
+    private static JSONObject properties() {
+        return new JSONObject().put("indexes", new JSONArray().put(0)).put("window-size", 1);
+    }
+
+    private static VirtualEdge edge(String label, String... voltmeters) {
+        JSONObject jGlobalProperties = new JSONObject().put("label", label);
+        Map<String, VirtualComm.VirtualDevice> devices = new HashMap<>();
+        for (String voltmeter : voltmeters) {
+            devices.put(voltmeter, new VirtualVoltmeter(voltmeter, new float[]{0, 0}, properties(),
+                    jGlobalProperties));
+        }
+        devices.put("Switch", new VirtualSwitch("Switch", new float[]{0, 0}, properties(), jGlobalProperties));
+        return new VirtualEdge(label, devices, 0L);
+    }
+
+    @Test
+    void testIndexesByEdgeTypeAndCapability() {
+        EdgeRegistry registry = new EdgeRegistry();
+        registry.register(edge("edge1", "Voltmeter1", "Voltmeter2"));
+        registry.register(edge("edge2", "Voltmeter3"));
+        EdgeRegistry.Snapshot snapshot = registry.snapshot();
+
+        assertEquals(2, snapshot.getEdgeLabels().size());
+        assertEquals(3, snapshot.getDevices("edge1").size());
+        assertEquals(3, snapshot.getDevicesByType("Voltmeter").size());
+        assertEquals(2, snapshot.getDevicesByTypeAndEdge("Voltmeter", "edge1").size());
+        assertEquals(1, snapshot.getDevicesByTypeAndEdge("Switch", "edge2").size());
+        assertEquals(2, snapshot.getDevicesByTypePerEdge("Voltmeter").size());
+        assertEquals(5, snapshot.getSensors().size());
+        assertEquals(2, snapshot.getActuators().size());
+
+        // Assert unknown types and edges give empty results and lists cannot be modified by readers
+        assertTrue(snapshot.getDevicesByType("Ammeter").isEmpty());
+        assertTrue(snapshot.getDevicesByTypeAndEdge("Voltmeter", "edge3").isEmpty());
+        List<Device> voltmeters = snapshot.getDevicesByType("Voltmeter");
+        assertThrows(UnsupportedOperationException.class, () -> voltmeters.remove(0));
+
+        Device voltmeter = (Device) registry.get("edge2").getDevice("Voltmeter3");
+        assertEquals("edge2", snapshot.getEdgeLabel(voltmeter));
+        assertSame(voltmeters, registry.snapshot().getDevicesByType("Voltmeter"));
+    }
+
+    @Test
+    void testChangesPublishNewSnapshots() {
+        EdgeRegistry registry = new EdgeRegistry();
+        registry.register(edge("edge1", "Voltmeter1"));
+        EdgeRegistry.Snapshot before = registry.snapshot();
+
+        assertTrue(registry.update("edge1", edge("edge1", "Voltmeter1", "Voltmeter2")));
+        assertFalse(registry.update("edge2", edge("edge2")));
+        registry.register(edge("edge2", "Voltmeter3"));
+
+        // Assert readers of the old snapshot keep a consistent view while new readers see the changes
+        assertEquals(1, before.getDevicesByType("Voltmeter").size());
+        assertEquals(1, before.getEdges().size());
+        EdgeRegistry.Snapshot after = registry.snapshot();
+        assertEquals(3, after.getDevicesByType("Voltmeter").size());
+        assertEquals(2, after.getDevicesByTypeAndEdge("Voltmeter", "edge1").size());
+        assertTrue(registry.contains("edge2"));
+    }
+}
@@ -0,0 +1,74 @@
+package es.bsc.hp2c.server.edge;
+
+import es.bsc.hp2c.common.types.Device;
+import es.bsc.hp2c.common.utils.HeartbeatDelta;
+import es.bsc.hp2c.server.device.VirtualComm;
+import es.bsc.hp2c.server.device.VirtualSwitch;
+import es.bsc.hp2c.server.device.VirtualVoltmeter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VirtualEdgeTest {
+
+    /** Full heartbeat of an edge with the given devices, in order, all of them available. */
+    private static JSONObject setup(String setupHash, String... deviceLabels) {
+        JSONArray jDevices = new JSONArray();
+        for (String deviceLabel : deviceLabels) {
+            jDevices.put(new JSONObject().put("label", deviceLabel)
+                    .put("driver-dt", VirtualVoltmeter.class.getName())
+                    .put("properties", new JSONObject().put("indexes", new JSONArray().put(0)).put("window-size", 1))
+                    .put("availability", true));
+        }
+        JSONObject jGeoData = new JSONObject().put("position", new JSONObject().put("x", 0).put("y", 0))
+                .put("connections", new JSONArray());
+        return new JSONObject().put(HeartbeatDelta.SETUP_HASH, setupHash).put("devices", jDevices)
+                .put("global-properties", new JSONObject().put("label", "edge1").put("available", true)
+                        .put("heartbeat", 1000L).put("geo-data", jGeoData));
+    }
+
+    @Test
+    void testApplyAvailability() {
+        JSONObject jGlobalProperties = new JSONObject().put("label", "edge1");
+        JSONObject jProperties = new JSONObject().put("indexes", new JSONArray().put(0)).put("window-size", 1);
+        Map<String, VirtualComm.VirtualDevice> devices = new LinkedHashMap<>();
+        devices.put("Voltmeter", new VirtualVoltmeter("Voltmeter", new float[]{0, 0}, jProperties,
+                jGlobalProperties));
+        devices.put("Switch", new VirtualSwitch("Switch", new float[]{0, 0}, jProperties, jGlobalProperties));
+        VirtualEdge edge = new VirtualEdge("edge1", devices, 0L);
+        int voltmeter = edge.getDeviceLabels().indexOf("Voltmeter");
+        boolean[] availability = new boolean[]{true, true};
+
+        // Assert the devices are kept and only changes are reported (devices start unavailable)
+        assertTrue(edge.applyAvailability(availability, true));
+        assertFalse(edge.applyAvailability(availability, true));
+        availability[voltmeter] = false;
+        assertTrue(edge.applyAvailability(availability, true));
+        assertFalse(((Device) edge.getDevice("Voltmeter")).getDeviceAvailability());
+        assertTrue(((Device) edge.getDevice("Switch")).getDeviceAvailability());
+        assertSame(devices.get("Voltmeter"), edge.getDevice("Voltmeter"));
+        assertTrue(edge.applyAvailability(availability, false));
+        assertFalse(edge.isAvailable());
+
+        assertThrows(IllegalArgumentException.class, () -> edge.applyAvailability(new boolean[1], true));
+    }
+
+    @Test
+    void testEqualSetupWithNewHashIsAdopted() {
+        VirtualEdge edge = new VirtualEdge(setup("hash1", "Voltmeter1", "Voltmeter2"));
+        VirtualEdge newEdge = new VirtualEdge(setup("hash2", "Voltmeter2", "Voltmeter1"));
+        assertTrue(newEdge.equals(edge));
+
+        // Assert the registered edge takes the new hash, and the availability follows the new device order
+        edge.adoptSetup(newEdge);
+        assertEquals("hash2", edge.getSetupHash());
+        assertTrue(edge.applyAvailability(new boolean[]{false, true}, true));
+        assertFalse(((Device) edge.getDevice("Voltmeter2")).getDeviceAvailability());
+        assertTrue(((Device) edge.getDevice("Voltmeter1")).getDeviceAvailability());
+    }
+}
@@ -0,0 +1,82 @@
+package es.bsc.hp2c.server.modules;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AlarmHandlerTest {
+
+    private static JSONObject read(Path file) throws IOException {
+        return new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testOnlyTransitionsAreWritten(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("alarms.json");
+        AlarmHandler alarms = new AlarmHandler(file, null);
+        alarms.addNewAlarm("VoltageFaultDetection");
+        alarms.writeAlarm("VoltageFaultDetection", "edge1", "Voltmeter", "Fault", true);
+        alarms.writeAlarm("VoltageFaultDetection", "edge2", "Voltmeter", null, false);
+        alarms.flush();
+        assertEquals(1, alarms.getWrites());
+        assertFalse(Files.exists(dir.resolve("alarms.json.tmp")));
+
+        // A healthy edge does not turn off the alarm of another edge
+        JSONObject jAlarm = read(file).getJSONObject("VoltageFaultDetection");
+        assertTrue(jAlarm.getBoolean("alarm"));
+        assertEquals("Fault", jAlarm.getJSONObject("location").getJSONObject("edge1")
+                .getJSONObject("Voltmeter").getString("info"));
+        assertFalse(jAlarm.getJSONObject("location").has("edge2"));
+        assertEquals(2, alarms.getAlarmTriples().size());
+
+        // Reporting the same status again costs no write
+        alarms.writeAlarm("VoltageFaultDetection", "edge1", "Voltmeter", "Fault", true);
+        alarms.writeAlarm("VoltageFaultDetection", "edge2", "Voltmeter", null, false);
+        alarms.flush();
+        assertEquals(1, alarms.getWrites());
+    }
+
+    @Test
+    void testAlarmIsClearedAfterOffDelay(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("alarms.json");
+        AlarmHandler alarms = new AlarmHandler(file, null);
+        alarms.addNewAlarm("LoadBalanceAlarm");
+        alarms.writeAlarm("LoadBalanceAlarm", null, null, "Unbalanced", true);
+        assertTrue(alarms.toJSON().getJSONObject("LoadBalanceAlarm").getBoolean("alarm"));
+
+        alarms.setAlarmOffDelay("0ms");
+        alarms.writeAlarm("LoadBalanceAlarm", null, null, null, false);
+        alarms.flush();
+        JSONObject jAlarm = read(file).getJSONObject("LoadBalanceAlarm");
+        assertFalse(jAlarm.getBoolean("alarm"));
+        assertFalse(jAlarm.has("time"));
+    }
+
+    @Test
+    void testActiveAlarmIsStoredAgainAfterRefreshInterval(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("alarms.json");
+        AlarmHandler alarms = new AlarmHandler(file, null);
+        alarms.setRefreshInterval(50);
+        alarms.addNewAlarm("VoltageFaultDetection");
+        alarms.writeAlarm("VoltageFaultDetection", "edge1", "Voltmeter", "Fault", true);
+        alarms.writeAlarm("VoltageFaultDetection", "edge1", "Voltmeter", "Fault", true);
+        alarms.writeAlarm("VoltageFaultDetection", "edge2", "Voltmeter", null, false);
+        assertEquals(2, alarms.getStoredReports());
+
+        // Assert only the active alarm is stored again once the interval elapsed, without rewriting the file
+        Thread.sleep(60);
+        alarms.writeAlarm("VoltageFaultDetection", "edge1", "Voltmeter", "Fault", true);
+        alarms.writeAlarm("VoltageFaultDetection", "edge1", "Voltmeter", "Fault", true);
+        alarms.writeAlarm("VoltageFaultDetection", "edge2", "Voltmeter", null, false);
+        assertEquals(3, alarms.getStoredReports());
+        alarms.flush();
+        assertEquals(1, alarms.getWrites());
+    }
+}
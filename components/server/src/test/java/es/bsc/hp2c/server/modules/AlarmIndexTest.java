@@ -0,0 +1,61 @@
+package es.bsc.hp2c.server.modules;
+
+import org.influxdb.dto.QueryResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AlarmIndexTest {
+
+    private static QueryResult.Series series(String alarm, String edge, String device) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("alarm", alarm);
+        tags.put("edge", edge);
+        tags.put("device", device);
+        QueryResult.Series series = new QueryResult.Series();
+        series.setName("alarms");
+        series.setTags(tags);
+        series.setColumns(Arrays.asList("time", "last"));
+        series.setValues(Collections.singletonList(Arrays.<Object>asList("2025-02-03T14:52:40.687Z", 1.0)));
+        return series;
+    }
+
+    private static List<String> triple(String alarm, String edge, String device) {
+        return new ArrayList<>(Arrays.asList(alarm, edge, device));
+    }
+
+    @Test
+    void testGroupedQueryResultToTriples() {
+        QueryResult.Result result = new QueryResult.Result();
+        result.setSeries(Arrays.asList(series("VoltageFaultDetection", "edge1", "VoltmeterGen1"),
+                series("LoadBalanceAlarm", "global", "global"), series("VoltageFaultDetection", "", "VoltmeterGen1")));
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(Collections.singletonList(result));
+
+        // Only the combinations present in the database are returned, not the cross-product of the tag values
+        Set<ArrayList<String>> triples = DatabaseHandler.parseAlarmTriples(queryResult);
+        assertEquals(2, triples.size());
+        assertTrue(triples.contains(triple("VoltageFaultDetection", "edge1", "VoltmeterGen1")));
+        assertTrue(triples.contains(triple("LoadBalanceAlarm", "global", "global")));
+    }
+
+    @Test
+    void testWrittenAlarmsAreIndexed() {
+        AlarmHandler alarms = new AlarmHandler("missing-setup.json", null);
+        alarms.indexAlarm("VoltageFaultDetection", "edge1", "VoltmeterGen1");
+        alarms.indexAlarm("VoltageFaultDetection", "edge1", "VoltmeterGen1");
+        alarms.indexAlarm("LoadBalanceAlarm", null, null);
+
+        Set<ArrayList<String>> triples = alarms.getAlarmTriples();
+        assertEquals(2, triples.size());
+        assertTrue(triples.contains(triple("LoadBalanceAlarm", "global", "global")));
+    }
+}
@@ -0,0 +1,137 @@
+package es.bsc.hp2c.server.modules;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AmqpAckTrackerTest {
+
+    /** Channel that records the delivery tags of basicAck calls, which must acknowledge multiple deliveries. */
+    private static Channel recordingChannel(List<Long> acked) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("basicAck")) {
+                        assertTrue((Boolean) args[1]);
+                        acked.add((Long) args[0]);
+                    }
+                    return null;
+                });
+    }
+
+    @Test
+    void testAcksOnlySettledPrefix() {
+        List<Long> acked = new ArrayList<>();
+        AmqpAckTracker tracker = new AmqpAckTracker(recordingChannel(acked), 1, 0);
+        AmqpAckTracker.Delivery first = tracker.register(1);
+        AmqpAckTracker.Delivery second = tracker.register(2);
+        AmqpAckTracker.Delivery third = tracker.register(3);
+
+        // Assert a delivery settled before an older one is not acknowledged yet
+        second.release();
+        third.release();
+        assertTrue(acked.isEmpty());
+        assertEquals(1, tracker.getUnsettled());
+
+        first.release();
+        assertEquals(3L, (long) acked.get(acked.size() - 1));
+        assertEquals(0, tracker.getUnsettled());
+    }
+
+    @Test
+    void testDeliveryWaitsForEveryHold() {
+        List<Long> acked = new ArrayList<>();
+        AmqpAckTracker tracker = new AmqpAckTracker(recordingChannel(acked), 1, 0);
+        AmqpAckTracker.Delivery batch = tracker.register(1);
+        WriteBehindBuffer.SettleCallback window1 = batch.hold();
+        WriteBehindBuffer.SettleCallback window2 = batch.hold();
+        batch.release();
+        window1.settled(true);
+        window1.settled(true); // A hold is released only once
+        assertTrue(acked.isEmpty());
+
+        window2.settled(true);
+        assertEquals(1, acked.size());
+        assertEquals(1, tracker.getSettled());
+    }
+
+    @Test
+    void testAcksAreBatched() {
+        List<Long> acked = new ArrayList<>();
+        AmqpAckTracker tracker = new AmqpAckTracker(recordingChannel(acked), 10, 0);
+        for (long tag = 1; tag <= 25; tag++) {
+            tracker.register(tag).release();
+        }
+
+        // Assert one ack for every 10 settled deliveries, and the rest on flush
+        assertEquals(2, acked.size());
+        assertEquals(20L, (long) acked.get(1));
+        tracker.flush();
+        assertEquals(25L, (long) acked.get(2));
+        assertEquals(3, tracker.getAcks());
+    }
+
+    @Test
+    void testDeliveriesWithDroppedValuesAreRejected() {
+        List<Long> acked = new ArrayList<>();
+        List<Long> rejected = new ArrayList<>();
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("basicAck")) {
+                        acked.add((Long) args[0]);
+                    } else if (method.getName().equals("basicNack")) {
+                        assertFalse((Boolean) args[1]);
+                        assertTrue((Boolean) args[2]);
+                        rejected.add((Long) args[0]);
+                    }
+                    return null;
+                });
+        AmqpAckTracker tracker = new AmqpAckTracker(channel, 1, 0);
+        AmqpAckTracker.Delivery first = tracker.register(1);
+        AmqpAckTracker.Delivery batch = tracker.register(2);
+        AmqpAckTracker.Delivery third = tracker.register(3);
+        WriteBehindBuffer.SettleCallback window1 = batch.hold();
+        WriteBehindBuffer.SettleCallback window2 = batch.hold();
+        batch.release();
+        window1.settled(true);
+        window2.settled(false);
+
+        // Assert the batch with a dropped window is requeued, and acks never end at its tag
+        assertEquals(1, rejected.size());
+        assertEquals(2L, (long) rejected.get(0));
+        first.release();
+        assertEquals(1L, (long) acked.get(acked.size() - 1));
+        third.release();
+        assertEquals(3L, (long) acked.get(acked.size() - 1));
+        assertEquals(0, tracker.getUnsettled());
+        assertEquals(1, tracker.getRejections());
+    }
+
+    @Test
+    void testDeliveriesOfAClosedChannelAreNotAcknowledged() {
+        List<Long> oldAcks = new ArrayList<>();
+        List<Long> newAcks = new ArrayList<>();
+        Channel oldChannel = recordingChannel(oldAcks);
+        Channel newChannel = recordingChannel(newAcks);
+        AmqpAckTracker tracker = new AmqpAckTracker(oldChannel, 1, 0);
+        AmqpAckTracker.Delivery inFlight = tracker.register(oldChannel, 7);
+
+        // The consumer moves to a new channel, whose delivery tags start again
+        tracker.rebind(newChannel);
+        AmqpAckTracker.Delivery late = tracker.register(oldChannel, 8);
+        AmqpAckTracker.Delivery first = tracker.register(newChannel, 1);
+        inFlight.release();
+        late.release();
+        assertEquals(1, tracker.getUnsettled());
+        first.release();
+
+        // Assert only the delivery of the new channel is acknowledged, on the new channel
+        assertTrue(oldAcks.isEmpty());
+        assertEquals(1, newAcks.size());
+        assertEquals(1L, (long) newAcks.get(0));
+    }
+}
@@ -0,0 +1,70 @@
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.server.device.VirtualComm;
+import es.bsc.hp2c.server.edge.VirtualEdge;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeviceRoutingTableTest {
+
+    private static VirtualComm.VirtualDevice device(Class<?> type) {
+        return (VirtualComm.VirtualDevice) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> null);
+    }
+
+    private static VirtualEdge edge(String label, String... sensors) {
+        Map<String, VirtualComm.VirtualDevice> devices = new HashMap<>();
+        for (String sensor : sensors) {
+            devices.put(sensor, device(VirtualComm.VirtualSensor.class));
+        }
+        devices.put("Switch", device(VirtualComm.VirtualActuator.class));
+        return new VirtualEdge(label, devices, 0L);
+    }
+
+    @Test
+    void testResolvesSensorsAndBatches() {
+        Map<String, VirtualEdge> edgeMap = new HashMap<>();
+        edgeMap.put("edge1", edge("edge1", "Voltmeter", "Ammeter"));
+        DeviceRoutingTable table = new DeviceRoutingTable();
+        table.rebuild(edgeMap);
+
+        DeviceRoutingTable.Route route = table.get("edge.edge1.sensors.Voltmeter");
+        assertNotNull(route);
+        assertFalse(route.isBatch());
+        assertEquals("edge1", route.getEdgeLabel());
+        assertEquals("Voltmeter", route.getDeviceName());
+        assertSame(edgeMap.get("edge1").getDevice("Voltmeter"), route.getSensor());
+
+        // Assert actuators and unknown devices are not routed
+        assertNull(table.get("edge.edge1.sensors.Switch"));
+        assertNull(table.get("edge.edge2.sensors.Voltmeter"));
+
+        DeviceRoutingTable.Route batch = table.get("edge.edge1.batch");
+        assertTrue(batch.isBatch());
+        assertSame(route, batch.getDevice("Voltmeter"));
+        assertNull(batch.getDevice("Switch"));
+    }
+
+    @Test
+    void testRebuildReplacesSnapshot() {
+        Map<String, VirtualEdge> edgeMap = new HashMap<>();
+        edgeMap.put("edge1", edge("edge1", "Voltmeter"));
+        DeviceRoutingTable table = new DeviceRoutingTable();
+        table.rebuild(edgeMap);
+        DeviceRoutingTable.Route before = table.get("edge.edge1.batch");
+
+        edgeMap.put("edge2", edge("edge2", "Ammeter"));
+        assertNull(table.get("edge.edge2.sensors.Ammeter"));
+        table.rebuild(edgeMap);
+
+        // Assert the new edge is routed and routes taken before the rebuild are left untouched
+        assertNotNull(table.get("edge.edge2.sensors.Ammeter"));
+        assertNull(before.getDevice("Ammeter"));
+        assertEquals(4, table.size());
+    }
+}
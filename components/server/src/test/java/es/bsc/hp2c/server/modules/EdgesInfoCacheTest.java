@@ -0,0 +1,72 @@
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.server.device.VirtualComm;
+import es.bsc.hp2c.server.device.VirtualVoltmeter;
+import es.bsc.hp2c.server.edge.EdgeRegistry;
+import es.bsc.hp2c.server.edge.VirtualEdge;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EdgesInfoCacheTest {
+
+    private static VirtualEdge edge(String label) {
+        JSONObject jGlobalProperties = new JSONObject().put("label", label);
+        JSONObject jProperties = new JSONObject().put("indexes", new JSONArray().put(0)).put("window-size", 1);
+        VirtualVoltmeter voltmeter = new VirtualVoltmeter("Voltmeter", new float[]{0, 0}, jProperties,
+                jGlobalProperties);
+        voltmeter.setUnits("V");
+        Map<String, VirtualComm.VirtualDevice> devices = new HashMap<>();
+        devices.put("Voltmeter", voltmeter);
+        return new VirtualEdge(label, devices, 0L);
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void testEntryIsReusedUntilEdgesChange() throws IOException {
+        EdgeRegistry registry = new EdgeRegistry();
+        VirtualEdge edge1 = edge("edge1");
+        registry.register(edge1);
+        EdgesInfoCache cache = new EdgesInfoCache(registry);
+
+        EdgesInfoCache.Entry entry = cache.get();
+        assertSame(entry, cache.get());
+        JSONObject jEdgesInfo = new JSONObject(new String(entry.getBody(), StandardCharsets.UTF_8));
+        assertTrue(jEdgesInfo.getJSONObject("edge1").getJSONObject("info").has("Voltmeter"));
+        assertArrayEquals(entry.getBody(), gunzip(entry.getGzipped()));
+        assertTrue(entry.matches(entry.getETag()));
+        assertTrue(entry.matches("\"other\", W/" + entry.getETag()));
+        assertFalse(entry.matches("\"other\""));
+
+        // A change of an edge and a new edge invalidate the entry
+        edge1.setModified(true);
+        EdgesInfoCache.Entry modified = cache.get();
+        assertNotSame(entry, modified);
+        assertFalse(modified.matches(entry.getETag()));
+        registry.register(edge("edge2"));
+        EdgesInfoCache.Entry registered = cache.get();
+        assertNotSame(modified, registered);
+        assertTrue(new JSONObject(new String(registered.getBody(), StandardCharsets.UTF_8)).has("edge2"));
+    }
+}
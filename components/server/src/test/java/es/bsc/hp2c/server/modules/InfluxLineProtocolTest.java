@@ -0,0 +1,91 @@
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.common.utils.CommUtils;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import es.bsc.hp2c.server.modules.InfluxLineProtocol.Schema;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfluxLineProtocolTest {
+
+    @Test
+    void testFieldsSchemaWritesOneLinePerTimestamp() {
+        InfluxLineProtocol lines = new InfluxLineProtocol(Schema.FIELDS);
+        lines.append("edge1", "Voltmeter", 1000L, new Float[]{230.5f, -1.25f, 0.0f});
+
+        assertEquals("edge1,device=Voltmeter v0=230.5,v1=-1.25,v2=0.0 1000\n", lines.toString());
+        assertEquals(1, lines.getLines());
+    }
+
+    @Test
+    void testPerPhaseSchemaWritesOneLinePerPhase() {
+        InfluxLineProtocol lines = new InfluxLineProtocol(Schema.PER_PHASE);
+        lines.append("edge1", "Voltmeter", 1000L, new Float[]{230.5f, -1.25f});
+
+        assertEquals("edge1,device=VoltmeterSensor0 value=230.5 1000\n"
+                + "edge1,device=VoltmeterSensor1 value=-1.25 1000\n", lines.toString());
+        assertEquals(2, lines.getLines());
+    }
+
+    @Test
+    void testWindowIsWrittenFromOlderToNewer() {
+        Instant first = Instant.ofEpochSecond(1700000000L, 1);
+        Instant second = first.plusMillis(1);
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(2);
+        window.addMeasurement(first, new Float[]{1.0f});
+        window.addMeasurement(second, new Float[]{2.0f});
+
+        InfluxLineProtocol lines = new InfluxLineProtocol(Schema.FIELDS);
+        lines.appendWindow("edge1", "Voltmeter", window);
+
+        assertEquals("edge1,device=Voltmeter v0=1.0 " + CommUtils.toEpochNanos(first) + "\n"
+                + "edge1,device=Voltmeter v0=2.0 " + CommUtils.toEpochNanos(second) + "\n", lines.toString());
+    }
+
+    @Test
+    void testNonFiniteValuesAreDropped() {
+        InfluxLineProtocol fields = new InfluxLineProtocol(Schema.FIELDS);
+        fields.append("edge1", "Voltmeter", 1000L, new Float[]{Float.NaN, 1.5f, Float.POSITIVE_INFINITY, null});
+        // A line without any writable field is not written
+        fields.append("edge1", "Voltmeter", 2000L, new Float[]{Float.NaN, Float.NEGATIVE_INFINITY});
+        assertEquals("edge1,device=Voltmeter v1=1.5 1000\n", fields.toString());
+        assertEquals(1, fields.getLines());
+
+        InfluxLineProtocol perPhase = new InfluxLineProtocol(Schema.PER_PHASE);
+        perPhase.append("edge1", "Voltmeter", 1000L, new Float[]{Float.NaN, 1.5f, Float.NEGATIVE_INFINITY});
+        assertEquals("edge1,device=VoltmeterSensor1 value=1.5 1000\n", perPhase.toString());
+
+        perPhase.reset();
+        perPhase.append("edge1", "Voltmeter", 1000L, new Float[]{Float.NaN});
+        assertTrue(perPhase.isEmpty());
+        assertEquals("", perPhase.toString());
+    }
+
+    @Test
+    void testLabelsAreEscaped() {
+        InfluxLineProtocol fields = new InfluxLineProtocol(Schema.FIELDS);
+        fields.append("edge 1,a=b", "Volt meter,1=2", 1000L, new Float[]{1.0f});
+        // Measurements escape commas and spaces, tag values also escape equal signs
+        assertEquals("edge\\ 1\\,a=b,device=Volt\\ meter\\,1\\=2 v0=1.0 1000\n", fields.toString());
+
+        InfluxLineProtocol perPhase = new InfluxLineProtocol(Schema.PER_PHASE);
+        perPhase.append("edge 1,a=b", "Volt meter,1=2", 1000L, new Float[]{1.0f});
+        assertEquals("edge\\ 1\\,a=b,device=Volt\\ meter\\,1\\=2Sensor0 value=1.0 1000\n", perPhase.toString());
+
+        assertEquals("Voltmeter", InfluxLineProtocol.escapeTag("Voltmeter"));
+        assertEquals("a\\=b", InfluxLineProtocol.escapeTag("a=b"));
+        assertEquals("a=b", InfluxLineProtocol.escapeMeasurement("a=b"));
+    }
+
+    @Test
+    void testParseSchema() {
+        assertEquals(Schema.PER_PHASE, InfluxLineProtocol.parseSchema(null));
+        assertEquals(Schema.PER_PHASE, InfluxLineProtocol.parseSchema(""));
+        assertEquals(Schema.PER_PHASE, InfluxLineProtocol.parseSchema("per-phase"));
+        assertEquals(Schema.FIELDS, InfluxLineProtocol.parseSchema("fields"));
+        assertThrows(IllegalArgumentException.class, () -> InfluxLineProtocol.parseSchema("columns"));
+    }
+}
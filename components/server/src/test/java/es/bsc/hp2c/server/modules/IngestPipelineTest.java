@@ -0,0 +1,147 @@
+package es.bsc.hp2c.server.modules;
+
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import es.bsc.hp2c.server.device.VirtualVoltmeter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestPipelineTest {
+    private IngestPipeline pipeline;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (pipeline != null) {
+            pipeline.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static byte[] window(float value) {
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(1);
+        window.addMeasurement(Instant.now(), new Float[]{value});
+        return window.encode();
+    }
+
+    /** Voltmeter recording the value it holds every time its functions are triggered. */
+    private static class RecordingVoltmeter extends VirtualVoltmeter {
+        private final List<Float> reads = Collections.synchronizedList(new ArrayList<>());
+        private volatile CountDownLatch block = new CountDownLatch(0);
+
+        RecordingVoltmeter(String label) {
+            super(label, new float[]{0, 0}, new JSONObject().put("indexes", new JSONArray().put(0))
+                    .put("window-size", 1), new JSONObject().put("label", "edge1"));
+        }
+
+        @Override
+        public void onRead() {
+            try {
+                block.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reads.add(getCurrentValues()[0]);
+            super.onRead();
+        }
+    }
+
+    @Test
+    void testWindowsOfADeviceKeepTheirOrder() throws Exception {
+        List<Float> written = Collections.synchronizedList(new ArrayList<>());
+        pipeline = new IngestPipeline((window, edge, device, onSettled) -> {
+            written.add(window.getLastMeasurement().getValue()[0]);
+            onSettled.settled(true);
+        }, 4, 16, 2, 16);
+        RecordingVoltmeter voltmeter = new RecordingVoltmeter("Voltmeter");
+        AtomicInteger settled = new AtomicInteger(0);
+        int n = 200;
+        for (int i = 0; i < n; i++) {
+            pipeline.submit("edge1", "Voltmeter", voltmeter, window(i), kept -> settled.incrementAndGet());
+        }
+        waitFor(() -> settled.get() == n && voltmeter.reads.size() == n);
+
+        // Assert the functions of every window saw that window, in arrival order
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, voltmeter.reads.get(i), 0f);
+        }
+        assertEquals(n, pipeline.getProcessedWindows());
+        assertEquals(n, written.size());
+    }
+
+    @Test
+    void testSubmitterWaitsWhenTheShardIsFull() throws Exception {
+        pipeline = new IngestPipeline((window, edge, device, onSettled) -> onSettled.settled(true), 1, 1, 1, 16);
+        RecordingVoltmeter voltmeter = new RecordingVoltmeter("Voltmeter");
+        voltmeter.block = new CountDownLatch(1);
+
+        // The first window holds the shard worker and the second one fills its queue
+        pipeline.submit("edge1", "Voltmeter", voltmeter, window(0), null);
+        waitFor(() -> pipeline.getProcessedWindows() == 1);
+        pipeline.submit("edge1", "Voltmeter", voltmeter, window(1), null);
+        CompletableFuture<Void> third = CompletableFuture.runAsync(
+                () -> pipeline.submit("edge1", "Voltmeter", voltmeter, window(2), null));
+        Thread.sleep(100);
+        assertFalse(third.isDone());
+
+        voltmeter.block.countDown();
+        third.get(5, TimeUnit.SECONDS);
+        waitFor(() -> voltmeter.reads.size() == 3);
+    }
+
+    @Test
+    void testOnDoneRunsWhenAWindowCannotBeDecoded() throws Exception {
+        pipeline = new IngestPipeline((window, edge, device, onSettled) -> onSettled.settled(true), 2, 16, 1, 16);
+        RecordingVoltmeter voltmeter = new RecordingVoltmeter("Voltmeter");
+        CountDownLatch done = new CountDownLatch(1);
+
+        pipeline.submit("edge1", "Voltmeter", voltmeter, new byte[]{0x48, 0x57, 1, 0, 0}, kept -> done.countDown());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, pipeline.getFailedWindows());
+        assertTrue(voltmeter.reads.isEmpty());
+    }
+
+    @Test
+    void testReplayedWindowsAreOnlyStored() throws Exception {
+        List<Float> written = Collections.synchronizedList(new ArrayList<>());
+        pipeline = new IngestPipeline((window, edge, device, onSettled) -> {
+            written.add(window.getLastMeasurement().getValue()[0]);
+            onSettled.settled(true);
+        }, 2, 16, 1, 16);
+        RecordingVoltmeter voltmeter = new RecordingVoltmeter("Voltmeter");
+        pipeline.submit("edge1", "Voltmeter", voltmeter, window(5), null);
+        waitFor(() -> voltmeter.reads.size() == 1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        pipeline.submit("edge1", "Voltmeter", voltmeter, window(1), true, kept -> done.countDown());
+
+        // Assert the old window is written, but neither sets the values of the sensor nor triggers its functions
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitFor(() -> written.size() == 2);
+        assertEquals(1f, written.get(1), 0f);
+        assertEquals(5f, voltmeter.getCurrentValues()[0], 0f);
+        assertEquals(1, voltmeter.reads.size());
+        assertEquals(1, pipeline.getProcessedWindows());
+        assertEquals(1, pipeline.getReplayedWindows());
+    }
+}
@@ -0,0 +1,146 @@
+package es.bsc.hp2c.server.modules;
+
+import com.sun.net.httpserver.HttpServer;
+import es.bsc.hp2c.common.utils.MeasurementWindow;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MeasurementStreamTest {
+    private HttpServer server;
+    private MeasurementStream stream;
+
+    @AfterEach
+    void tearDown() {
+        if (stream != null) {
+            stream.shutdown();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private BufferedReader subscribe(String query) throws IOException {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/stream?" + query);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/event-stream"));
+        return new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /** Read the data of the next measurement event, skipping keep-alive comments. */
+    private static JSONObject nextUpdate(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("data: ")) {
+                return new JSONObject(line.substring("data: ".length()));
+            }
+        }
+        throw new IOException("Stream closed");
+    }
+
+    @Test
+    void testUpdatesAreFilteredAndEncodedOnce() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stream = new MeasurementStream(4, 16, 0, 1);
+        server.createContext("/stream", stream);
+        server.start();
+
+        BufferedReader all = subscribe("");
+        BufferedReader voltmeter = subscribe("edge=edge1&device=Voltmeter");
+        waitFor(() -> stream.getSubscribers() == 2);
+
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(1);
+        window.addMeasurement(Instant.now(), new Float[]{230.0f});
+        // Nobody but the first client receives the ammeter, and both clients share the frame of the voltmeter
+        stream.publish("edge1", "Ammeter", window);
+        stream.publish("edge1", "Voltmeter", window);
+        assertEquals(2, stream.getFrames());
+
+        JSONObject jUpdate = nextUpdate(all);
+        assertEquals("Ammeter", jUpdate.getString("device"));
+        assertEquals("Voltmeter", nextUpdate(all).getString("device"));
+        jUpdate = nextUpdate(voltmeter);
+        assertEquals("edge1", jUpdate.getString("edge"));
+        assertEquals("Voltmeter", jUpdate.getString("device"));
+        assertEquals(230.0, jUpdate.getJSONArray("values").getDouble(0), 1e-6);
+    }
+
+    @Test
+    void testDecimationPerDevice() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stream = new MeasurementStream(4, 16, 0, 1);
+        server.createContext("/stream", stream);
+        server.start();
+
+        BufferedReader reader = subscribe("interval=60000");
+        waitFor(() -> stream.getSubscribers() == 1);
+        MeasurementWindow<Float[]> window = new MeasurementWindow<>(1);
+        window.addMeasurement(Instant.now(), new Float[]{1.0f});
+        stream.publish("edge1", "Voltmeter", window);
+        stream.publish("edge1", "Voltmeter", window);
+        stream.publish("edge1", "Ammeter", window);
+        assertEquals(2, stream.getFrames());
+        assertEquals("Voltmeter", nextUpdate(reader).getString("device"));
+        assertEquals("Ammeter", nextUpdate(reader).getString("device"));
+    }
+
+    @Test
+    void testStalledClientDoesNotHoldTheWriter() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stream = new MeasurementStream(4, 16, 0, 1);
+        server.createContext("/stream", stream);
+        server.start();
+
+        // Client that subscribes and never reads
+        try (Socket stalled = new Socket()) {
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(server.getAddress());
+            stalled.getOutputStream().write("GET /stream HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            waitFor(() -> stream.getSubscribers() == 1);
+
+            Float[] values = new Float[20000];
+            Arrays.fill(values, 230.0f);
+            MeasurementWindow<Float[]> big = new MeasurementWindow<>(1);
+            big.addMeasurement(Instant.now(), values);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (stream.closeStalled(100) == 0 && System.currentTimeMillis() < deadline) {
+                stream.publish("edge1", "Voltmeter", big);
+                Thread.sleep(20);
+            }
+            assertEquals(1, stream.getStalled());
+            assertEquals(0, stream.getSubscribers());
+
+            // Assert the only writer thread was released and serves new clients
+            BufferedReader reader = subscribe("device=Ammeter");
+            waitFor(() -> stream.getSubscribers() == 1);
+            MeasurementWindow<Float[]> window = new MeasurementWindow<>(1);
+            window.addMeasurement(Instant.now(), new Float[]{1.0f});
+            stream.publish("edge1", "Ammeter", window);
+            assertEquals("Ammeter", nextUpdate(reader).getString("device"));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package es.bsc.hp2c.server.modules;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RestExecutorTest {
+    private HttpServer server;
+    private RestExecutor executor;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /** Handler that records its name, waits for the latch and answers 200. */
+    private static HttpHandler handler(String name, List<String> order, CountDownLatch latch) {
+        return exchange -> {
+            order.add(name);
+            try {
+                latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        };
+    }
+
+    private CompletableFuture<Integer> get(String path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                URL url = new URL("http://localhost:" + server.getAddress().getPort() + path);
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                return connection.getResponseCode();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    }
+
+    @Test
+    void testRouteConcurrencyLimit() throws Exception {
+        startServer();
+        executor = new RestExecutor(4, 16, 0, null);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(1);
+        server.createContext("/slow", executor.route("/slow", RestExecutor.Priority.LOW, 1,
+                handler("slow", order, latch)));
+        server.createContext("/actuate", executor.route("/actuate", RestExecutor.Priority.HIGH,
+                handler("actuate", order, new CountDownLatch(0))));
+        server.start();
+
+        // Assert a second request to a route at its limit is rejected while other routes are still served
+        CompletableFuture<Integer> first = get("/slow");
+        waitFor(() -> order.size() == 1);
+        assertEquals(503, (int) get("/slow").get(5, TimeUnit.SECONDS));
+        assertEquals(200, (int) get("/actuate").get(5, TimeUnit.SECONDS));
+        latch.countDown();
+        assertEquals(200, (int) first.get(5, TimeUnit.SECONDS));
+
+        RestExecutor.Route route = executor.getRoute("/slow");
+        assertEquals(2, route.getRequests());
+        assertEquals(1, route.getRejected());
+        waitFor(() -> route.getLatencies().getCount() == 1);
+    }
+
+    @Test
+    void testHighPriorityRequestsRunFirst() throws Exception {
+        startServer();
+        executor = new RestExecutor(1, 16, 0, null);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(0);
+        server.createContext("/block", executor.route("/block", RestExecutor.Priority.LOW,
+                handler("block", order, latch)));
+        server.createContext("/poll", executor.route("/poll", RestExecutor.Priority.LOW,
+                handler("poll", order, done)));
+        server.createContext("/actuate", executor.route("/actuate", RestExecutor.Priority.HIGH,
+                handler("actuate", order, done)));
+        server.start();
+
+        // Block the only worker, then queue a poll before an actuation
+        CompletableFuture<Integer> block = get("/block");
+        waitFor(() -> order.size() == 1);
+        CompletableFuture<Integer> poll = get("/poll");
+        waitFor(() -> executor.getRoute("/poll").getRequests() == 1);
+        CompletableFuture<Integer> actuate = get("/actuate");
+        waitFor(() -> executor.getRoute("/actuate").getRequests() == 1);
+        latch.countDown();
+
+        CompletableFuture.allOf(block, poll, actuate).get(5, TimeUnit.SECONDS);
+        assertEquals("actuate", order.get(1));
+        assertEquals("poll", order.get(2));
+    }
+}
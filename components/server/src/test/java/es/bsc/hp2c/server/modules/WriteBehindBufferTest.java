@@ -0,0 +1,237 @@
+package es.bsc.hp2c.server.modules;
+
+import com.sun.net.httpserver.HttpServer;
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Exercises the write-behind buffer against a local HTTP endpoint standing in for the InfluxDB write API.
+ */
+class WriteBehindBufferTest {
+    @TempDir
+    File spoolDir;
+
+    private HttpServer server;
+    private volatile boolean available = true;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private InfluxDB influxDB;
+
+    @BeforeEach
+    void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/write", exchange -> {
+            byte[] body = readAll(exchange.getRequestBody());
+            if (available) {
+                for (String line : new String(body, StandardCharsets.UTF_8).split("\n")) {
+                    if (!line.isEmpty()) {
+                        received.add(line);
+                    }
+                }
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                byte[] error = "{\"error\":\"unavailable\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(503, error.length);
+                exchange.getResponseBody().write(error);
+            }
+            exchange.close();
+        });
+        server.start();
+        influxDB = InfluxDBFactory.connect("http://127.0.0.1:" + server.getAddress().getPort());
+        influxDB.setDatabase("hp2cdt");
+    }
+
+    @AfterEach
+    void stopStub() {
+        influxDB.close();
+        server.stop(0);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private WriteBehindBuffer newBuffer(WriteBehindBuffer.Overflow overflow, int maxPendingLines) {
+        return new WriteBehindBuffer(influxDB::write, 10, 64 * 1024, 20, 0, maxPendingLines, 1024 * 1024,
+                overflow, 10, 40, spoolDir, 4096, 1024 * 1024);
+    }
+
+    private static String line(int i) {
+        return "edge1,device=Voltmeter v0=" + i + ".0 " + (1_700_000_000_000_000_000L + i);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private void assertReceivedOnce(int n) {
+        assertEquals(n, received.size());
+        for (int i = 0; i < n; i++) {
+            assertTrue(received.contains(line(i)), "Missing " + line(i));
+        }
+    }
+
+    @Test
+    void testFlushesInBatches() throws InterruptedException {
+        WriteBehindBuffer buffer = newBuffer(WriteBehindBuffer.Overflow.BLOCK, 1000);
+        buffer.start();
+        for (int i = 0; i < 95; i++) {
+            buffer.offer(line(i), 1);
+        }
+        waitFor(() -> buffer.getFlushedLines() == 95);
+        assertReceivedOnce(95);
+        assertTrue(buffer.getFlushes() >= 10);
+        assertEquals(0, buffer.getFailedFlushes());
+        buffer.close(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testSettleCallbacksRunOnceWrittenOrSpooled() throws InterruptedException {
+        WriteBehindBuffer buffer = newBuffer(WriteBehindBuffer.Overflow.SPILL, 1000);
+        buffer.start();
+        AtomicInteger settled = new AtomicInteger(0);
+        for (int i = 0; i < 30; i++) {
+            buffer.offer(line(i), 1, kept -> {
+                if (kept) {
+                    settled.incrementAndGet();
+                }
+            });
+        }
+        waitFor(() -> settled.get() == 30);
+        assertReceivedOnce(30);
+
+        // Lines spooled while the database is down are settled too, as they are kept on disk
+        available = false;
+        for (int i = 30; i < 60; i++) {
+            buffer.offer(line(i), 1, kept -> {
+                if (kept) {
+                    settled.incrementAndGet();
+                }
+            });
+        }
+        waitFor(() -> settled.get() == 60);
+        assertTrue(buffer.getSpilledLines() > 0);
+        buffer.close(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testDropCountsLinesWhileDatabaseIsDown() throws InterruptedException {
+        available = false;
+        WriteBehindBuffer buffer = newBuffer(WriteBehindBuffer.Overflow.DROP, 20);
+        buffer.start();
+        for (int i = 0; i < 100; i++) {
+            buffer.offer(line(i), 1);
+        }
+        waitFor(() -> buffer.getFailedFlushes() > 0);
+        assertTrue(buffer.getDroppedLines() > 0);
+        available = true;
+        waitFor(() -> buffer.getInFlightLines() == 0);
+        // Every line was either written or counted as dropped
+        assertEquals(100, received.size() + buffer.getDroppedLines());
+        buffer.close(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testDroppedLinesAreNotSettledAsKept() throws InterruptedException {
+        available = false;
+        WriteBehindBuffer buffer = newBuffer(WriteBehindBuffer.Overflow.DROP, 20);
+        buffer.start();
+        AtomicInteger kept = new AtomicInteger(0);
+        AtomicInteger dropped = new AtomicInteger(0);
+        for (int i = 0; i < 100; i++) {
+            buffer.offer(line(i), 1, k -> (k ? kept : dropped).incrementAndGet());
+        }
+        waitFor(() -> buffer.getDroppedLines() > 0 && buffer.getFailedFlushes() > 0);
+        available = true;
+        waitFor(() -> kept.get() + dropped.get() == 100);
+
+        // Assert only the lines written to the database are settled as kept
+        assertEquals(received.size(), kept.get());
+        assertEquals(buffer.getDroppedLines(), dropped.get());
+        buffer.close(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testSpoolsWhileDatabaseIsDownAndReplays() throws InterruptedException {
+        available = false;
+        WriteBehindBuffer buffer = newBuffer(WriteBehindBuffer.Overflow.SPILL, 20);
+        buffer.start();
+        for (int i = 0; i < 500; i++) {
+            buffer.offer(line(i), 1);
+        }
+        waitFor(() -> buffer.getInFlightLines() == 0);
+        assertEquals(500, buffer.getSpilledLines());
+        assertTrue(buffer.getSpooledBytes() > 0);
+        assertTrue(received.isEmpty());
+
+        available = true;
+        waitFor(() -> buffer.getReplayedLines() == 500);
+        assertReceivedOnce(500);
+        assertEquals(0, buffer.getDroppedLines());
+        assertEquals(0, buffer.getSpooledBytes());
+        buffer.close(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testSpoolIsReplayedAfterRestart() throws InterruptedException {
+        available = false;
+        WriteBehindBuffer buffer = newBuffer(WriteBehindBuffer.Overflow.SPILL, 1000);
+        buffer.start();
+        for (int i = 0; i < 300; i++) {
+            buffer.offer(line(i), 1);
+        }
+        // Pending and in-flight lines are spooled on close
+        buffer.close(2, TimeUnit.SECONDS);
+        assertEquals(300, buffer.getSpilledLines());
+
+        available = true;
+        WriteBehindBuffer restarted = newBuffer(WriteBehindBuffer.Overflow.SPILL, 1000);
+        restarted.start();
+        waitFor(() -> restarted.getReplayedLines() == 300);
+        assertReceivedOnce(300);
+        restarted.close(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testPendingBytesAreUtf8Bytes() {
+        WriteBehindBuffer buffer = newBuffer(WriteBehindBuffer.Overflow.BLOCK, 1000);
+        String[] samples = {line(0), "edge1,device=Volt\u00edmetro v0=1.0 1", "edge\u20ac\ud83d\ude00 v0=1.0 1"};
+        for (String lines : samples) {
+            assertEquals(lines.getBytes(StandardCharsets.UTF_8).length, WriteBehindBuffer.utf8Length(lines));
+        }
+
+        // Limits are checked against the encoded size, not the number of chars
+        String lines = "edge1,device=Amper\u00edmetro\u20ac v0=1.0 1";
+        buffer.offer(lines, 1);
+        assertEquals(lines.getBytes(StandardCharsets.UTF_8).length, buffer.getPendingBytes());
+        assertTrue(buffer.getPendingBytes() > lines.length());
+    }
+}